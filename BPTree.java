@@ -5,8 +5,17 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Queue;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Implementation of a B+ tree to allow efficient access to
@@ -25,12 +34,31 @@ import java.util.Random;
 public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 
     // Root of the tree
-    private Node root;
+    private volatile Node root;
     
     // Branching factor is the number of children nodes 
     // for internal nodes of the tree
     private int branchingFactor;
     
+    // Number of key, value pairs in the tree
+    private AtomicInteger size;
+    
+    // Number of node splits since the tree was created
+    private final AtomicLong splits = new AtomicLong();
+    
+    // Whether nodes carry latches so that readers can run during inserts
+    private final boolean concurrent;
+    
+    // Whether inserts copy the nodes they change and publish snapshots
+    private final boolean versioned;
+    
+    // Guards the root reference itself in concurrent mode,
+    // serializes writers in versioned mode
+    private final ReentrantReadWriteLock rootLatch;
+    
+    // Latest published version in versioned mode
+    private volatile Snapshot current;
+    
     
     /**
      * Public constructor
@@ -41,14 +69,186 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      * @param branchingFactor The given branching factor of the tree (>2)
      */
     public BPTree(int branchingFactor) {
+        this(branchingFactor, false);
+    }
+    
+    
+    /**
+     * Public constructor
+     *
+     * Initializes the BPTree with a root and the given branching factor.
+     * A concurrent tree gives every node a read/write latch: insert,
+     * rangeSearch and between can then be called from many threads at
+     * once, with readers running alongside a writer that splits nodes.
+     * Cursors, spliterators and toString are not latched and should only
+     * be used while no insert is running.
+     * 
+     * @param branchingFactor The given branching factor of the tree (>2)
+     * @param concurrent whether the tree is shared between threads
+     */
+    public BPTree(int branchingFactor, boolean concurrent) {
+        this(branchingFactor, concurrent, false);
+    }
+    
+    
+    /**
+     * Public constructor
+     *
+     * Initializes the BPTree with a root and the given branching factor.
+     * A versioned tree never changes a node once it is reachable: an
+     * insert copies the nodes on its root-to-leaf path and publishes the
+     * new root as an immutable Snapshot. Readers holding a snapshot never
+     * see a half-split node and never block the writer, and versions
+     * nobody holds any more are left to the garbage collector. Leaves of a
+     * versioned tree are not linked, so cursors and spliterators are not
+     * available; read through snapshot() instead.
+     * 
+     * @param branchingFactor The given branching factor of the tree (>2)
+     * @param concurrent whether the tree is shared between threads with latches
+     * @param versioned whether the tree publishes copy-on-write snapshots
+     */
+    public BPTree(int branchingFactor, boolean concurrent, boolean versioned) {
         if (branchingFactor <= 2) {
             throw new IllegalArgumentException(
                "Illegal branching factor: " + branchingFactor);
         }
+        if (concurrent && versioned) {
+            throw new IllegalArgumentException(
+               "A tree is either latched or versioned, not both");
+        }
         
         this.branchingFactor = branchingFactor;
+        this.concurrent = concurrent;
+        this.versioned = versioned;
+        rootLatch = (concurrent || versioned) ? new ReentrantReadWriteLock() : null;
+        size = new AtomicInteger();
         root = new LeafNode();
+        if (versioned) {
+            current = new Snapshot(root, 0);
+        }
+        
+    }
+    
+    
+    /**
+     * Bulk-load constructor
+     *
+     * Builds the tree bottom-up from a run of key, value pairs that is
+     * already sorted by key. Leaves are packed left to right up to the
+     * fill factor and linked together, then each internal level is built
+     * from the level below it, so the whole build is a single linear pass
+     * with no splits.
+     * 
+     * @param branchingFactor The given branching factor of the tree (>2)
+     * @param keys keys sorted in ascending order
+     * @param values values where values.get(i) belongs to keys.get(i)
+     * @param fillFactor fraction of each node to fill, in (0, 1]
+     */
+    public BPTree(int branchingFactor, List<K> keys, List<V> values, double fillFactor) {
+        this(branchingFactor);
+        if (keys == null || values == null || keys.size() != values.size()) {
+            throw new IllegalArgumentException(
+               "Keys and values must be non-null and of equal size");
+        }
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException(
+               "Illegal fill factor: " + fillFactor);
+        }
         
+        if (!keys.isEmpty()) {
+        	root = bulkLoad(keys, values, fillFactor);
+        	size.set(keys.size());
+        }
+    }
+    
+    
+    /**
+     * Builds the packed leaf level and then every internal level above it.
+     * 
+     * @param keys sorted keys
+     * @param values values matching the keys
+     * @param fillFactor fraction of each node to fill
+     * @return the root of the new tree
+     */
+    private Node bulkLoad(List<K> keys, List<V> values, double fillFactor) {
+    	/*
+    	 * Method variables:
+    	 * int leafFill holds the number of entries to put in each leaf (a leaf overflows at branchingFactor).
+    	 * int internalFill holds the number of children to give each internal node.
+    	 * List<Node> level holds the nodes of the level currently being built upon.
+    	 */
+    	int leafFill = Math.max(1, (int) Math.ceil(fillFactor * (branchingFactor - 1)));
+    	int internalFill = Math.max(2, (int) Math.ceil(fillFactor * branchingFactor));
+    	
+    	// Pack the leaves and link them together.
+    	List<Node> level = new ArrayList<Node>();
+    	LeafNode previousLeaf = null;
+    	int[] leafSizes = groupSizes(keys.size(), leafFill, 1);
+    	int position = 0;
+    	for (int size : leafSizes) {
+    		LeafNode leaf = new LeafNode();
+    		for (int i = position; i < position + size; i++) {
+    			K key = keys.get(i);
+    			if (i > 0 && keys.get(i - 1).compareTo(key) > 0) {
+    				throw new IllegalArgumentException("Keys must be sorted in ascending order");
+    			}
+    			leaf.keys.add(key);
+    			leaf.values.add(values.get(i));
+    		}
+    		position += size;
+    		
+    		leaf.previous = previousLeaf;
+    		if (previousLeaf != null) {
+    			previousLeaf.next = leaf;
+    		}
+    		previousLeaf = leaf;
+    		level.add(leaf);
+    	}
+    	
+    	// Build internal levels until a single node is left.
+    	while (level.size() > 1) {
+    		List<Node> parents = new ArrayList<Node>();
+    		position = 0;
+    		for (int size : groupSizes(level.size(), internalFill, 2)) {
+    			InternalNode parent = new InternalNode();
+    			for (int i = position; i < position + size; i++) {
+    				Node child = level.get(i);
+    				if (i > position) {
+    					parent.keys.add(child.getFirstLeafKey());
+    				}
+    				parent.children.add(child);
+    			}
+    			position += size;
+    			parents.add(parent);
+    		}
+    		level = parents;
+    	}
+    	
+    	return level.get(0);
+    }
+    
+    /**
+     * Splits count items into groups of at most fill items, spreading the
+     * remainder evenly so that no group has fewer than minimum items.
+     * 
+     * @param count number of items to group
+     * @param fill target number of items per group
+     * @param minimum smallest allowed group size
+     * @return the size of each group, in order
+     */
+    private int[] groupSizes(int count, int fill, int minimum) {
+    	int groups = (count + fill - 1) / fill;
+    	// Only happens for very small counts, where one group less leaves
+    	// at most three items per group, which any node can hold.
+    	if (groups > 1 && count / groups < minimum) {
+    		groups--;
+    	}
+    	
+    	int[] sizes = new int[groups];
+    	for (int i = 0; i < groups; i++) {
+    		sizes[i] = count / groups + (i < count % groups ? 1 : 0);
+    	}
+    	return sizes;
     }
     
     
@@ -58,8 +258,322 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      */
     @Override
     public void insert(K key, V value) {
-    	root.insert(key, value);
+    	if(concurrent) {
+    		latchedInsert(key, value);
+    	}
+    	else if(versioned) {
+    		versionedInsert(key, value);
+    		return;
+    	}
+    	else {
+    		root.insert(key, value);
+    	}
+    	size.incrementAndGet();
+    	
+    }
+    
+    
+    /**
+     * Deletes one entry with the given key and value. Nodes left with too
+     * few entries borrow from a sibling or merge with it, and the root
+     * shrinks when it is left with a single child.
+     * 
+     * Only a plain tree supports delete; latched and versioned trees
+     * throw UnsupportedOperationException.
+     * 
+     * @param key key of the entry
+     * @param value value of the entry, compared with equals
+     * @return true if an entry was deleted, false if there was none
+     */
+    public boolean delete(K key, V value) {
+    	if(concurrent || versioned) {
+    		throw new UnsupportedOperationException("Delete is only supported on a plain tree");
+    	}
+    	if(key == null || !root.delete(key, value)) {
+    		return false;
+    	}
+    	size.decrementAndGet();
     	
+    	// The root shrinks away when it is left with a single child.
+    	while(root instanceof BPTree.InternalNode && ((InternalNode) root).children.size() == 1) {
+    		root = ((InternalNode) root).children.get(0);
+    	}
+    	return true;
+    }
+    
+    
+    /**
+     * Gets the latest published version of a versioned tree. The snapshot
+     * stays the same no matter how many inserts follow.
+     * 
+     * @return the current snapshot
+     */
+    public Snapshot snapshot() {
+    	if(!versioned) {
+    		throw new UnsupportedOperationException("Only a versioned tree publishes snapshots");
+    	}
+    	return current;
+    }
+    
+    
+    /**
+     * Inserts by path copying: every node from the root down to the leaf
+     * is copied and changed, the shared nodes beside the path are reused,
+     * and the new root is published in one volatile write.
+     * 
+     * @param key
+     * @param value
+     */
+    private void versionedInsert(K key, V value) {
+    	rootLatch.writeLock().lock();
+    	try {
+    		List<Node> replaced = copyInsert(root, key, value);
+    		Node newRoot = replaced.get(0);
+    		
+    		// The old root split, so the tree grows by one level.
+    		if(replaced.size() == 2) {
+    			InternalNode grown = new InternalNode();
+    			grown.keys.add(replaced.get(1).getFirstLeafKey());
+    			grown.children.add(replaced.get(0));
+    			grown.children.add(replaced.get(1));
+    			newRoot = grown;
+    		}
+    		
+    		root = newRoot;
+    		current = new Snapshot(newRoot, size.incrementAndGet());
+    	}
+    	finally {
+    		rootLatch.writeLock().unlock();
+    	}
+    }
+    
+    
+    /**
+     * Inserts into a copy of node, copying the child on the way down.
+     * 
+     * @param node the node to insert below, left unchanged
+     * @param key
+     * @param value
+     * @return the copy, followed by its new sibling if the copy split
+     */
+    private List<Node> copyInsert(Node node, K key, V value) {
+    	List<Node> result = new ArrayList<Node>(2);
+    	Node copy;
+    	if(node instanceof BPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		int index = upperBound(internal.keys, key);
+    		List<Node> replaced = copyInsert(internal.children.get(index), key, value);
+    		
+    		InternalNode internalCopy = new InternalNode();
+    		internalCopy.keys.addAll(internal.keys);
+    		internalCopy.children.addAll(internal.children);
+    		internalCopy.children.set(index, replaced.get(0));
+    		if(replaced.size() == 2) {
+    			internalCopy.keys.add(index, replaced.get(1).getFirstLeafKey());
+    			internalCopy.children.add(index + 1, replaced.get(1));
+    		}
+    		copy = internalCopy;
+    	}
+    	else {
+    		LeafNode leaf = (LeafNode) node;
+    		LeafNode leafCopy = new LeafNode();
+    		int position = upperBound(leaf.keys, key);
+    		leafCopy.keys.addAll(leaf.keys);
+    		leafCopy.values.addAll(leaf.values);
+    		leafCopy.keys.add(position, key);
+    		leafCopy.values.add(position, value);
+    		copy = leafCopy;
+    	}
+    	
+    	result.add(copy);
+    	if(copy.isOverflow()) {
+    		Node sibling = copy.split();
+    		// Versioned leaves are not linked, older versions share the neighbours.
+    		if(sibling instanceof BPTree.LeafNode) {
+    			((LeafNode) copy).next = null;
+    			((LeafNode) sibling).previous = null;
+    		}
+    		result.add(sibling);
+    	}
+    	return result;
+    }
+    
+    
+    /**
+     * Inserts with latch crabbing. The writer takes write latches top-down
+     * and lets go of everything above a node as soon as that node is safe,
+     * meaning one more entry can not make it split. Only the unsafe part of
+     * the path stays latched while the insert and any splits happen, so
+     * readers elsewhere in the tree are not held up.
+     * 
+     * @param key
+     * @param value
+     */
+    private void latchedInsert(K key, V value) {
+    	/*
+    	 * Method variables:
+    	 * List<Node> path holds the write-latched nodes from the top of the unsafe part down.
+    	 * List<Integer> childIndexes holds, for each latched internal node, the child taken.
+    	 * boolean holdingRoot holds whether the root latch is still held.
+    	 */
+    	List<Node> path = new ArrayList<Node>();
+    	List<Integer> childIndexes = new ArrayList<Integer>();
+    	rootLatch.writeLock().lock();
+    	boolean holdingRoot = true;
+    	
+    	try {
+    		Node node = root;
+    		node.latch.writeLock().lock();
+    		path.add(node);
+    		while(true) {
+    			// A safe node absorbs any split below it, so nothing above it can change.
+    			if(node.isSafe()) {
+    				for(int i = 0; i < path.size() - 1; i++) {
+    					path.get(i).latch.writeLock().unlock();
+    				}
+    				path.subList(0, path.size() - 1).clear();
+    				childIndexes.clear();
+    				if(holdingRoot) {
+    					rootLatch.writeLock().unlock();
+    					holdingRoot = false;
+    				}
+    			}
+    			if(!(node instanceof BPTree.InternalNode)) {
+    				break;
+    			}
+    			
+    			// Equal keys go right, after the ones already in the tree.
+    			InternalNode internal = (InternalNode) node;
+    			int index = upperBound(internal.keys, key);
+    			node = internal.children.get(index);
+    			node.latch.writeLock().lock();
+    			childIndexes.add(index);
+    			path.add(node);
+    		}
+    		
+    		LeafNode leaf = (LeafNode) node;
+    		int position = upperBound(leaf.keys, key);
+    		leaf.keys.add(position, key);
+    		leaf.values.add(position, value);
+    		
+    		// Split upwards through the latched path for as long as nodes overflow.
+    		int level = path.size() - 1;
+    		Node child = leaf;
+    		while(child.isOverflow()) {
+    			K promotedKey;
+    			Node sibling;
+    			if(child == leaf) {
+    				// The next leaf's back link changes too; latching left to right
+    				// matches the order readers move along the leaves.
+    				LeafNode next = leaf.next;
+    				if(next != null) {
+    					next.latch.writeLock().lock();
+    				}
+    				sibling = leaf.split();
+    				if(next != null) {
+    					next.latch.writeLock().unlock();
+    				}
+    				promotedKey = sibling.keys.get(0);
+    			}
+    			else {
+    				// The middle key moves up; reading the sibling's first leaf key
+    				// would reach into children other writers may be changing.
+    				promotedKey = child.keys.get(child.keys.size() / 2);
+    				sibling = child.split();
+    			}
+    			
+    			if(level == 0) {
+    				// Only an unsafe root splits, so the root latch is still held.
+    				InternalNode newRoot = new InternalNode();
+    				newRoot.keys.add(promotedKey);
+    				newRoot.children.add(child);
+    				newRoot.children.add(sibling);
+    				root = newRoot;
+    				break;
+    			}
+    			
+    			level--;
+    			InternalNode parent = (InternalNode) path.get(level);
+    			int index = childIndexes.get(level);
+    			parent.keys.add(index, promotedKey);
+    			parent.children.add(index + 1, sibling);
+    			child = parent;
+    		}
+    	}
+    	finally {
+    		for(Node latched : path) {
+    			latched.latch.writeLock().unlock();
+    		}
+    		if(holdingRoot) {
+    			rootLatch.writeLock().unlock();
+    		}
+    	}
+    }
+    
+    
+    /**
+     * Collects the values between lowKey and highKey with latch coupling:
+     * a reader holds the read latch of a node until it has latched the
+     * next one, going down the tree and then left to right along the leaves.
+     * 
+     * @param lowKey lower end of the interval, or null to start at the first key
+     * @param highKey upper end of the interval, or null to run to the last key
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return list of values in the interval, in ascending key order
+     */
+    private List<V> latchedScan(K lowKey, K highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	List<V> masterList = new ArrayList<V>();
+    	
+    	rootLatch.readLock().lock();
+    	Node node = root;
+    	node.latch.readLock().lock();
+    	rootLatch.readLock().unlock();
+    	
+    	while(node instanceof BPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		int index = 0;
+    		if(lowKey != null) {
+    			index = inclusiveLow ? lowerBound(internal.keys, lowKey) : upperBound(internal.keys, lowKey);
+    		}
+    		Node child = internal.children.get(index);
+    		child.latch.readLock().lock();
+    		node.latch.readLock().unlock();
+    		node = child;
+    	}
+    	
+    	LeafNode curNode = (LeafNode) node;
+    	int index = 0;
+    	if(lowKey != null) {
+    		index = inclusiveLow ? lowerBound(curNode.keys, lowKey) : upperBound(curNode.keys, lowKey);
+    	}
+    	try {
+    		while(curNode != null) {
+    			for(; index < curNode.keys.size(); index++) {
+    				if(highKey != null) {
+    					int cmp = curNode.keys.get(index).compareTo(highKey);
+    					if(cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+    						return masterList;
+    					}
+    				}
+    				masterList.add(curNode.values.get(index));
+    			}
+    			
+    			LeafNode next = curNode.next;
+    			if(next != null) {
+    				next.latch.readLock().lock();
+    			}
+    			curNode.latch.readLock().unlock();
+    			curNode = next;
+    			index = 0;
+    		}
+    	}
+    	finally {
+    		if(curNode != null) {
+    			curNode.latch.readLock().unlock();
+    		}
+    	}
+    	return masterList;
     }
     
     
@@ -77,45 +591,924 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 		if (key == null) {
 			return new ArrayList<V>();
 		}
+		
+		if (versioned) {
+			return current.rangeSearch(key, comparator);
+		}
+		
+		// Concurrent readers only ever move forward along the leaves.
+		if (concurrent) {
+			if (comparator.contentEquals("<=")) {
+				return latchedScan(null, key, true, true);
+			}
+			else if (comparator.contentEquals(">=")) {
+				return latchedScan(key, null, true, true);
+			}
+			return latchedScan(key, key, true, true);
+		}
 
 		return root.rangeSearch(key, comparator);
 	}
     
     
-    /*
-     * (non-Javadoc)
-     * @see java.lang.Object#toString()
+    /**
+     * Gets the values whose keys fall in the interval between lowKey and
+     * highKey, in ascending key order. The search seeks straight to the
+     * first key inside the interval and stops at the first key past it,
+     * so only matching entries are visited.
+     * 
+     * If either key is null, return empty list.
+     * 
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return list of values in the interval; if nothing found, return empty list
+     */
+    public List<V> between(K lowKey, K highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	List<V> masterList = new ArrayList<V>();
+    	if(lowKey == null || highKey == null) {
+    		return masterList;
+    	}
+    	if(concurrent) {
+    		return latchedScan(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	}
+    	if(versioned) {
+    		return current.between(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	}
+    	
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while(cursor.hasNext()) {
+    		masterList.add(cursor.next());
+    	}
+    	return masterList;
+    }
+    
+    
+    /**
+     * Opens a cursor over the values whose keys fall in the interval
+     * between lowKey and highKey, in ascending key order. The cursor
+     * seeks to the first key inside the interval and then produces one
+     * value at a time, so nothing is copied and the caller can stop early.
+     * 
+     * The cursor is only valid until the next insert into the tree.
+     * 
+     * @param lowKey lower end of the interval, or null to start at the first key
+     * @param highKey upper end of the interval, or null to run to the last key
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return a cursor positioned before the first value in the interval
+     */
+    public Cursor cursor(K lowKey, K highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	if(versioned) {
+    		throw new UnsupportedOperationException("Read a versioned tree through snapshot()");
+    	}
+    	
+    	// Descend to the leaf that holds the first key inside the interval.
+    	Node node = root;
+    	while(node instanceof BPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		int index = 0;
+    		if(lowKey != null) {
+    			index = inclusiveLow ? lowerBound(internal.keys, lowKey) : upperBound(internal.keys, lowKey);
+    		}
+    		node = internal.children.get(index);
+    	}
+    	
+    	LeafNode leaf = (LeafNode) node;
+    	int index = 0;
+    	if(lowKey != null) {
+    		index = inclusiveLow ? lowerBound(leaf.keys, lowKey) : upperBound(leaf.keys, lowKey);
+    	}
+    	return new Cursor(leaf, index, highKey, inclusiveHigh, null);
+    }
+    
+    
+    /**
+     * Opens a cursor over the values whose keys fall in the interval
+     * between lowKey and highKey, in descending key order. The cursor
+     * seeks to the last key inside the interval and follows the previous
+     * links between leaves. Values that share a key come in the reverse
+     * of the order a forward cursor returns them in.
+     * 
+     * The cursor is only valid until the next insert into the tree.
+     * 
+     * @param highKey upper end of the interval, or null to start at the last key
+     * @param lowKey lower end of the interval, or null to run to the first key
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @return a cursor positioned before the first value in the interval
+     */
+    public DescendingCursor descendingCursor(K highKey, K lowKey, boolean inclusiveHigh, boolean inclusiveLow) {
+    	if(versioned) {
+    		throw new UnsupportedOperationException("Read a versioned tree through snapshot()");
+    	}
+    	
+    	// Descend to the leaf that holds the last key inside the interval.
+    	Node node = root;
+    	while(node instanceof BPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		int index = internal.keys.size();
+    		if(highKey != null) {
+    			index = inclusiveHigh ? upperBound(internal.keys, highKey) : lowerBound(internal.keys, highKey);
+    		}
+    		node = internal.children.get(index);
+    	}
+    	
+    	LeafNode leaf = (LeafNode) node;
+    	int index = leaf.keys.size();
+    	if(highKey != null) {
+    		index = inclusiveHigh ? upperBound(leaf.keys, highKey) : lowerBound(leaf.keys, highKey);
+    	}
+    	return new DescendingCursor(leaf, index - 1, lowKey, inclusiveLow);
+    }
+    
+    
+    /**
+     * Gets up to limit values in key order, starting at fromKey, along
+     * with a token for the page after them. Only the values returned are
+     * visited, so the cost is one descent plus the size of the page.
+     * 
+     * @param fromKey first key of an ascending scan, last key of a
+     *        descending one, or null to start at the end of the tree
+     * @param ascending direction of the scan
+     * @param limit most values to return (> 0)
+     * @return the values and the token for the next page
+     */
+    public KeysetPage<K, V> scan(K fromKey, boolean ascending, int limit) {
+    	if(ascending) {
+    		Cursor cursor = cursor(fromKey, null, true, true);
+    		return KeysetPage.collect(cursor, cursor::getKey, null, true, limit);
+    	}
+    	DescendingCursor cursor = descendingCursor(fromKey, null, true, true);
+    	return KeysetPage.collect(cursor, cursor::getKey, null, false, limit);
+    }
+    
+    
+    /**
+     * Gets the next page of a scan. The scan seeks back to the last key of
+     * the token and skips the values with that key it already returned.
+     * 
+     * @param after token of the previous page
+     * @param limit most values to return (> 0)
+     * @return the values and the token for the next page
+     */
+    public KeysetPage<K, V> scan(KeysetPage.Token<K> after, int limit) {
+    	if(after.isAscending()) {
+    		Cursor cursor = cursor(after.getLastKey(), null, true, true);
+    		return KeysetPage.collect(cursor, cursor::getKey, after, true, limit);
+    	}
+    	DescendingCursor cursor = descendingCursor(after.getLastKey(), null, true, true);
+    	return KeysetPage.collect(cursor, cursor::getKey, after, false, limit);
+    }
+    
+    
+    /**
+     * Creates a spliterator over the values whose keys fall in the interval
+     * between lowKey and highKey, in ascending key order. Splitting hands
+     * off whole subtrees along internal node child boundaries, so a
+     * parallel stream over a large range fans out in balanced chunks.
+     * 
+     * The spliterator is only valid until the next insert into the tree.
+     * 
+     * @param lowKey lower end of the interval, or null to start at the first key
+     * @param highKey upper end of the interval, or null to run to the last key
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return a spliterator over the interval
+     */
+    public Spliterator<V> spliterator(K lowKey, K highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	if(versioned) {
+    		throw new UnsupportedOperationException("Read a versioned tree through snapshot()");
+    	}
+    	
+    	List<Node> frontier = new ArrayList<Node>();
+    	frontier.add(root);
+    	return new RangeSpliterator(frontier, lowKey, highKey, inclusiveLow, inclusiveHigh, size.get());
+    }
+    
+    
+    /**
+     * Creates a stream over the values whose keys fall in the interval
+     * between lowKey and highKey.
+     * 
+     * @see #spliterator(Comparable, Comparable, boolean, boolean)
+     * @param lowKey lower end of the interval, or null to start at the first key
+     * @param highKey upper end of the interval, or null to run to the last key
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @param parallel whether the stream should be parallel
+     * @return a stream over the interval
+     */
+    public Stream<V> stream(K lowKey, K highKey, boolean inclusiveLow, boolean inclusiveHigh, boolean parallel) {
+    	return StreamSupport.stream(spliterator(lowKey, highKey, inclusiveLow, inclusiveHigh), parallel);
+    }
+    
+    
+    /**
+     * Finds the first position in a sorted list of keys holding a key
+     * greater than or equal to key.
+     * 
+     * @param keys sorted keys
+     * @param key the key to look for
+     * @return the position, or keys.size() if every key is smaller
+     */
+    private int lowerBound(List<K> keys, K key) {
+    	int low = 0;
+    	int high = keys.size();
+    	while(low < high) {
+    		int mid = (low + high) >>> 1;
+    		if(keys.get(mid).compareTo(key) < 0) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+    
+    /**
+     * Finds the first position in a sorted list of keys holding a key
+     * greater than key.
+     * 
+     * @param keys sorted keys
+     * @param key the key to look for
+     * @return the position, or keys.size() if no key is bigger
+     */
+    private int upperBound(List<K> keys, K key) {
+    	int low = 0;
+    	int high = keys.size();
+    	while(low < high) {
+    		int mid = (low + high) >>> 1;
+    		if(keys.get(mid).compareTo(key) <= 0) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+    
+    
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Arrays.asList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                Iterator<Node> it = nodes.iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    sb.append(node.toString());
+                    if (it.hasNext())
+                        sb.append(", ");
+                    if (node instanceof BPTree.InternalNode)
+                        nextQueue.add(((InternalNode) node).children);
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            queue = nextQueue;
+        }
+        return sb.toString();
+    }
+    
+    
+    /**
+     * Walks the tree and reports its shape. The byte estimate counts each
+     * key as one small boxed object. Nodes are read without latches, so a
+     * concurrent tree should not be written to during the walk.
+     * 
+     * @return height, nodes per level, leaf fill, splits and size of the tree
+     */
+    public TreeStats stats() {
+    	/*
+    	 * Method variables:
+    	 * long used holds the keys in all leaves, long room the keys they have space for.
+    	 * long bytes holds the estimated size of the nodes, their lists and the boxed keys.
+    	 */
+    	List<Integer> levelNodes = new ArrayList<Integer>();
+    	long used = 0;
+    	long room = 0;
+    	long bytes = 0;
+    	List<Node> level = Arrays.asList(root);
+    	while (!level.isEmpty()) {
+    		levelNodes.add(level.size());
+    		List<Node> nextLevel = new ArrayList<Node>();
+    		for (Node node : level) {
+    			bytes += TreeStats.OBJECT_BYTES + listBytes(node.keys.size())
+    					+ (long) TreeStats.OBJECT_BYTES * node.keys.size();
+    			if (node instanceof BPTree.InternalNode) {
+    				InternalNode internal = (InternalNode) node;
+    				bytes += listBytes(internal.children.size());
+    				nextLevel.addAll(internal.children);
+    				continue;
+    			}
+    			LeafNode leaf = (LeafNode) node;
+    			used += leaf.keys.size();
+    			room += branchingFactor - 1;
+    			bytes += listBytes(leaf.values.size());
+    		}
+    		level = nextLevel;
+    	}
+    	
+    	int[] counts = new int[levelNodes.size()];
+    	for (int i = 0; i < counts.length; i++) {
+    		counts[i] = levelNodes.get(i);
+    	}
+    	return new TreeStats(counts.length, counts, used, size.get(), (double) used / room, splits.get(), bytes);
+    }
+    
+    
+    /**
+     * Estimates the size of an ArrayList holding the given number of references
+     * 
+     * @param length number of elements
+     * @return bytes
+     */
+    private static long listBytes(int length) {
+    	return TreeStats.OBJECT_BYTES + TreeStats.ARRAY_BYTES + (long) TreeStats.REFERENCE_BYTES * length;
+    }
+    
+    
+    /**
+     * Checks the structure of the tree: keys in order within each node,
+     * separators bounding their subtrees, all leaves at the same depth,
+     * and the leaf sibling links. Keys may repeat, so a key equal to a
+     * separator may sit on either side of it. A versioned tree does not
+     * keep its leaf links, so they are only checked in the other modes.
+     * 
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+    	int height = 1;
+    	for (Node node = root; node instanceof BPTree.InternalNode; node = ((InternalNode) node).children.get(0)) {
+    		height++;
+    	}
+    	List<LeafNode> leaves = new ArrayList<LeafNode>();
+    	int count = validate(root, null, null, 1, height, leaves);
+    	if (count != size.get()) {
+    		throw new IllegalStateException("Size is " + size.get() + ", leaves hold " + count + " values");
+    	}
+    	if (versioned) {
+    		return;
+    	}
+    	
+    	// The leaf chain has to visit the leaves in key order, both ways.
+    	for (int i = 0; i < leaves.size(); i++) {
+    		LeafNode leaf = leaves.get(i);
+    		LeafNode previous = i == 0 ? null : leaves.get(i - 1);
+    		LeafNode next = i == leaves.size() - 1 ? null : leaves.get(i + 1);
+    		if (leaf.previous != previous || leaf.next != next) {
+    			throw new IllegalStateException("Sibling links of leaf " + i + " are broken");
+    		}
+    	}
+    }
+    
+    
+    /**
+     * Checks the subtree under node and collects its leaves in key order.
+     * 
+     * @param node root of the subtree
+     * @param low every key must be at least low, null for no bound
+     * @param high every key must be at most high, null for no bound
+     * @param depth depth of node, the root is at depth 1
+     * @param height depth every leaf has to be at
+     * @param leaves list of the leaves found so far
+     * @return number of values in the subtree
+     */
+    private int validate(Node node, K low, K high, int depth, int height, List<LeafNode> leaves) {
+    	for (int i = 0; i < node.keys.size(); i++) {
+    		K key = node.keys.get(i);
+    		if (i > 0 && node.keys.get(i - 1).compareTo(key) > 0) {
+    			throw new IllegalStateException("Keys out of order at depth " + depth + ": " + node);
+    		}
+    		if ((low != null && key.compareTo(low) < 0) || (high != null && key.compareTo(high) > 0)) {
+    			throw new IllegalStateException("Key " + key + " outside its separators at depth " + depth);
+    		}
+    	}
+    	
+    	if (node instanceof BPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		int n = internal.keys.size();
+    		if (n == 0 || internal.children.size() != n + 1) {
+    			throw new IllegalStateException("Internal node with " + n + " keys and "
+    					+ internal.children.size() + " children at depth " + depth);
+    		}
+    		int count = 0;
+    		for (int i = 0; i <= n; i++) {
+    			K childLow = i == 0 ? low : internal.keys.get(i - 1);
+    			K childHigh = i == n ? high : internal.keys.get(i);
+    			count += validate(internal.children.get(i), childLow, childHigh, depth + 1, height, leaves);
+    		}
+    		return count;
+    	}
+    	
+    	LeafNode leaf = (LeafNode) node;
+    	if (depth != height) {
+    		throw new IllegalStateException("Leaf at depth " + depth + " in a tree of height " + height);
+    	}
+    	if (leaf.values.size() != leaf.keys.size()) {
+    		throw new IllegalStateException("Leaf with " + leaf.keys.size() + " keys and "
+    				+ leaf.values.size() + " values at depth " + depth);
+    	}
+    	leaves.add(leaf);
+    	return leaf.values.size();
+    }
+    
+    
+    /**
+     * A forward cursor over a range of the tree. It holds a leaf and a
+     * position in that leaf and follows the next links between leaves,
+     * checking each key against the upper end of the range as it goes.
+     */
+    public class Cursor implements Iterator<V> {
+        
+        // Leaf the cursor is in, null once the range is used up
+        private LeafNode leaf;
+        
+        // Position of the next entry within leaf
+        private int index;
+        
+        // Upper end of the range, null if unbounded
+        private final K highKey;
+        
+        // Whether keys equal to highKey are in the range
+        private final boolean inclusiveHigh;
+        
+        // Last leaf the cursor may visit, null to run to the end of the tree
+        private final LeafNode lastLeaf;
+        
+        // Key of the value most recently returned by next()
+        private K key;
+        
+        /**
+         * Package constructor
+         * 
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf
+         * @param highKey upper end of the range, null if unbounded
+         * @param inclusiveHigh whether keys equal to highKey are in the range
+         * @param lastLeaf last leaf to visit, null to run to the end of the tree
+         */
+        Cursor(LeafNode leaf, int index, K highKey, boolean inclusiveHigh, LeafNode lastLeaf) {
+            this.leaf = leaf;
+            this.index = index;
+            this.highKey = highKey;
+            this.inclusiveHigh = inclusiveHigh;
+            this.lastLeaf = lastLeaf;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the end of the current leaf.
+        	while(leaf != null && index >= leaf.keys.size()) {
+        		leaf = (leaf == lastLeaf) ? null : leaf.next;
+        		index = 0;
+        	}
+        	if(leaf == null) {
+        		return false;
+        	}
+        	
+        	if(highKey != null) {
+        		int cmp = leaf.keys.get(index).compareTo(highKey);
+        		if(cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+        			leaf = null;
+        			return false;
+        		}
+        	}
+        	return true;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	if(!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = leaf.keys.get(index);
+        	return leaf.values.get(index++);
+        }
+        
+        /**
+         * Gets the key of the value most recently returned by next()
+         * 
+         * @return key, or null if next() has not been called yet
+         */
+        public K getKey() {
+        	return key;
+        }
+        
+    } // End of class Cursor
+    
+    
+    /**
+     * A backward cursor over a range of the tree. It mirrors Cursor,
+     * following the previous links between leaves and checking each key
+     * against the lower end of the range.
+     */
+    public class DescendingCursor implements Iterator<V> {
+        
+        // Leaf the cursor is in, null once the range is used up
+        private LeafNode leaf;
+        
+        // Position of the next entry within leaf
+        private int index;
+        
+        // Lower end of the range, null if unbounded
+        private final K lowKey;
+        
+        // Whether keys equal to lowKey are in the range
+        private final boolean inclusiveLow;
+        
+        // Key of the value most recently returned by next()
+        private K key;
+        
+        /**
+         * Package constructor
+         * 
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf, -1 if it is in an earlier leaf
+         * @param lowKey lower end of the range, null if unbounded
+         * @param inclusiveLow whether keys equal to lowKey are in the range
+         */
+        DescendingCursor(LeafNode leaf, int index, K lowKey, boolean inclusiveLow) {
+            this.leaf = leaf;
+            this.index = index;
+            this.lowKey = lowKey;
+            this.inclusiveLow = inclusiveLow;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the start of the current leaf.
+        	while(leaf != null && index < 0) {
+        		leaf = leaf.previous;
+        		index = leaf == null ? -1 : leaf.keys.size() - 1;
+        	}
+        	if(leaf == null) {
+        		return false;
+        	}
+        	
+        	if(lowKey != null) {
+        		int cmp = leaf.keys.get(index).compareTo(lowKey);
+        		if(cmp < 0 || (cmp == 0 && !inclusiveLow)) {
+        			leaf = null;
+        			return false;
+        		}
+        	}
+        	return true;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	if(!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = leaf.keys.get(index);
+        	return leaf.values.get(index--);
+        }
+        
+        /**
+         * Gets the key of the value most recently returned by next()
+         * 
+         * @return key, or null if next() has not been called yet
+         */
+        public K getKey() {
+        	return key;
+        }
+        
+    } // End of class DescendingCursor
+    
+    
+    /**
+     * An immutable point-in-time version of a versioned tree. Its nodes
+     * are never changed again, so any number of threads can search it
+     * while the tree keeps taking inserts. Without leaf links, searches
+     * walk the subtrees that overlap the interval in order.
+     */
+    public class Snapshot {
+        
+        // Root of this version
+        private final Node root;
+        
+        // Number of key, value pairs in this version
+        private final int size;
+        
+        /**
+         * Package constructor
+         * 
+         * @param root root of the version
+         * @param size number of key, value pairs in the version
+         */
+        Snapshot(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+        
+        /**
+         * Gets the number of key, value pairs in this version
+         * 
+         * @return size
+         */
+        public int size() {
+        	return size;
+        }
+        
+        /**
+         * Gets the values that satisfy the given range search arguments
+         * in this version.
+         * 
+         * @see BPTreeADT#rangeSearch(Object, String)
+         * @param key to be searched
+         * @param comparator one of "<=", "==", ">="
+         * @return list of values in the range; if nothing found, return empty list
+         */
+        public List<V> rangeSearch(K key, String comparator) {
+        	List<V> masterList = new ArrayList<V>();
+        	if(key == null || comparator == null) {
+        		return masterList;
+        	}
+        	if(comparator.contentEquals("<=")) {
+        		collect(root, null, key, true, true, masterList);
+        	}
+        	else if(comparator.contentEquals(">=")) {
+        		collect(root, key, null, true, true, masterList);
+        	}
+        	else if(comparator.contentEquals("==")) {
+        		collect(root, key, key, true, true, masterList);
+        	}
+        	return masterList;
+        }
+        
+        /**
+         * Gets the values whose keys fall in the interval between lowKey and
+         * highKey in this version, in ascending key order.
+         * 
+         * @param lowKey lower end of the interval
+         * @param highKey upper end of the interval
+         * @param inclusiveLow whether keys equal to lowKey match
+         * @param inclusiveHigh whether keys equal to highKey match
+         * @return list of values in the interval; if nothing found, return empty list
+         */
+        public List<V> between(K lowKey, K highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+        	List<V> masterList = new ArrayList<V>();
+        	if(lowKey == null || highKey == null) {
+        		return masterList;
+        	}
+        	collect(root, lowKey, highKey, inclusiveLow, inclusiveHigh, masterList);
+        	return masterList;
+        }
+        
+        /**
+         * Adds the values below node that fall in the interval, visiting
+         * only the children that overlap it.
+         * 
+         * @param node subtree to search
+         * @param lowKey lower end of the interval, null if unbounded
+         * @param highKey upper end of the interval, null if unbounded
+         * @param inclusiveLow whether keys equal to lowKey match
+         * @param inclusiveHigh whether keys equal to highKey match
+         * @param masterList list the values are added to
+         */
+        private void collect(Node node, K lowKey, K highKey, 
+        		boolean inclusiveLow, boolean inclusiveHigh, List<V> masterList) {
+        	int start = 0;
+        	if(lowKey != null) {
+        		start = inclusiveLow ? lowerBound(node.keys, lowKey) : upperBound(node.keys, lowKey);
+        	}
+        	
+        	if(node instanceof BPTree.InternalNode) {
+        		InternalNode internal = (InternalNode) node;
+        		for(int i = start; i < internal.children.size(); i++) {
+        			// Child i holds no key below keys[i - 1].
+        			if(highKey != null && i > 0) {
+        				int cmp = internal.keys.get(i - 1).compareTo(highKey);
+        				if(cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+        					return;
+        				}
+        			}
+        			collect(internal.children.get(i), lowKey, highKey, inclusiveLow, inclusiveHigh, masterList);
+        		}
+        		return;
+        	}
+        	
+        	for(int i = start; i < node.keys.size(); i++) {
+        		if(highKey != null) {
+        			int cmp = node.keys.get(i).compareTo(highKey);
+        			if(cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+        				return;
+        			}
+        		}
+        		masterList.add(((LeafNode) node).values.get(i));
+        	}
+        }
+        
+    } // End of class Snapshot
+    
+    
+    /**
+     * Spliterator over a range of the tree. It keeps a frontier of
+     * subtrees that together cover the range, in key order. Splitting
+     * gives away the first half of the frontier, after replacing a lone
+     * internal node by those of its children that overlap the range.
+     * Traversal seeks into the first subtree and walks the leaves up to
+     * the last leaf of the last subtree with a Cursor.
      */
-    @Override
-    public String toString() {
-        Queue<List<Node>> queue = new LinkedList<List<Node>>();
-        queue.add(Arrays.asList(root));
-        StringBuilder sb = new StringBuilder();
-        while (!queue.isEmpty()) {
-            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
-            while (!queue.isEmpty()) {
-                List<Node> nodes = queue.remove();
-                sb.append('{');
-                Iterator<Node> it = nodes.iterator();
-                while (it.hasNext()) {
-                    Node node = it.next();
-                    sb.append(node.toString());
-                    if (it.hasNext())
-                        sb.append(", ");
-                    if (node instanceof BPTree.InternalNode)
-                        nextQueue.add(((InternalNode) node).children);
-                }
-                sb.append('}');
-                if (!queue.isEmpty())
-                    sb.append(", ");
-                else {
-                    sb.append('\n');
-                }
-            }
-            queue = nextQueue;
+    private class RangeSpliterator implements Spliterator<V> {
+        
+        // Subtrees still to traverse, in key order
+        private List<Node> frontier;
+        
+        // Bounds of the range, null if unbounded
+        private final K lowKey;
+        private final K highKey;
+        private final boolean inclusiveLow;
+        private final boolean inclusiveHigh;
+        
+        // Estimated number of values left
+        private long estimate;
+        
+        // Cursor over the frontier once traversal has started
+        private Cursor cursor;
+        
+        /**
+         * Package constructor
+         * 
+         * @param frontier subtrees covering the range, in key order
+         * @param lowKey lower end of the range, null if unbounded
+         * @param highKey upper end of the range, null if unbounded
+         * @param inclusiveLow whether keys equal to lowKey are in the range
+         * @param inclusiveHigh whether keys equal to highKey are in the range
+         * @param estimate estimated number of values in the frontier
+         */
+        RangeSpliterator(List<Node> frontier, K lowKey, K highKey, 
+        		boolean inclusiveLow, boolean inclusiveHigh, long estimate) {
+            this.frontier = frontier;
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.inclusiveLow = inclusiveLow;
+            this.inclusiveHigh = inclusiveHigh;
+            this.estimate = estimate;
         }
-        return sb.toString();
-    }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+        	Cursor cursor = start();
+        	if(cursor.hasNext()) {
+        		action.accept(cursor.next());
+        		return true;
+        	}
+        	return false;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#forEachRemaining(java.util.function.Consumer)
+         */
+        @Override
+        public void forEachRemaining(Consumer<? super V> action) {
+        	Cursor cursor = start();
+        	while(cursor.hasNext()) {
+        		action.accept(cursor.next());
+        	}
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#trySplit()
+         */
+        @Override
+        public Spliterator<V> trySplit() {
+        	if(cursor != null) {
+        		return null;
+        	}
+        	
+        	// Open up a lone internal node into its overlapping children.
+        	while(frontier.size() == 1 && frontier.get(0) instanceof BPTree.InternalNode) {
+        		InternalNode internal = (InternalNode) frontier.get(0);
+        		frontier = new ArrayList<Node>();
+        		for(int i = 0; i < internal.children.size(); i++) {
+        			// Child i holds keys between keys[i - 1] and keys[i]. Keeping only
+        			// children whose upper separator is inside the range means every
+        			// child after the first starts inside the range as well.
+        			int lowCmp = (lowKey == null || i == internal.keys.size()) ? 1 
+        					: internal.keys.get(i).compareTo(lowKey);
+        			boolean aboveLow = lowCmp > 0 || (lowCmp == 0 && inclusiveLow);
+        			boolean belowHigh = highKey == null || i == 0
+        					|| internal.keys.get(i - 1).compareTo(highKey) <= 0;
+        			if(aboveLow && belowHigh) {
+        				frontier.add(internal.children.get(i));
+        			}
+        		}
+        	}
+        	if(frontier.size() < 2) {
+        		return null;
+        	}
+        	
+        	// Hand off the first half, which comes first in key order.
+        	int middle = frontier.size() / 2;
+        	List<Node> prefix = new ArrayList<Node>(frontier.subList(0, middle));
+        	frontier = new ArrayList<Node>(frontier.subList(middle, frontier.size()));
+        	long prefixEstimate = estimate * middle / (middle + frontier.size());
+        	estimate -= prefixEstimate;
+        	return new RangeSpliterator(prefix, lowKey, highKey, inclusiveLow, inclusiveHigh, prefixEstimate);
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#estimateSize()
+         */
+        @Override
+        public long estimateSize() {
+        	return estimate;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#characteristics()
+         */
+        @Override
+        public int characteristics() {
+        	return Spliterator.ORDERED;
+        }
+        
+        /**
+         * Creates the cursor over the frontier the first time it is needed.
+         * 
+         * @return the cursor
+         */
+        private Cursor start() {
+        	if(cursor != null) {
+        		return cursor;
+        	}
+        	if(frontier.isEmpty()) {
+        		cursor = new Cursor(null, 0, highKey, inclusiveHigh, null);
+        		return cursor;
+        	}
+        	
+        	// Seek to the start of the range inside the first subtree.
+        	Node node = frontier.get(0);
+        	while(node instanceof BPTree.InternalNode) {
+        		InternalNode internal = (InternalNode) node;
+        		int index = 0;
+        		if(lowKey != null) {
+        			index = inclusiveLow ? lowerBound(internal.keys, lowKey) : upperBound(internal.keys, lowKey);
+        		}
+        		node = internal.children.get(index);
+        	}
+        	LeafNode firstLeaf = (LeafNode) node;
+        	int index = 0;
+        	if(lowKey != null) {
+        		index = inclusiveLow ? lowerBound(firstLeaf.keys, lowKey) : upperBound(firstLeaf.keys, lowKey);
+        	}
+        	
+        	// Stop at the rightmost leaf of the last subtree.
+        	node = frontier.get(frontier.size() - 1);
+        	while(node instanceof BPTree.InternalNode) {
+        		List<Node> children = ((InternalNode) node).children;
+        		node = children.get(children.size() - 1);
+        	}
+        	
+        	cursor = new Cursor(firstLeaf, index, highKey, inclusiveHigh, (LeafNode) node);
+        	frontier = null;
+        	return cursor;
+        }
+        
+    } // End of class RangeSpliterator
     
     
     /**
@@ -129,6 +1522,9 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         // List of keys
         List<K> keys;
         
+        // Read/write latch of the node, only used by a concurrent tree
+        ReentrantReadWriteLock latch;
+        
         /**
          * Package constructor
          * 
@@ -136,6 +1532,9 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          */
         Node() {
             keys = new ArrayList<K>();
+            if (concurrent) {
+                latch = new ReentrantReadWriteLock();
+            }
         }
         
         /**
@@ -173,6 +1572,38 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          */
         abstract boolean isOverflow();
         
+        /**
+         * Checks whether one more entry below this node can not make it split
+         * 
+         * @return boolean
+         */
+        abstract boolean isSafe();
+        
+        /**
+         * Deletes one entry with the given key and value below this node
+         * and rebalances any child that is left with too few entries
+         * 
+         * @param key
+         * @param value
+         * @return true if an entry was deleted
+         */
+        abstract boolean delete(K key, V value);
+        
+        /**
+         * Checks whether the node has fewer entries than a node should keep
+         * 
+         * @return boolean
+         */
+        abstract boolean isUnderflow();
+        
+        /**
+         * Checks whether the node can give an entry to a sibling
+         * and still keep enough entries
+         * 
+         * @return boolean
+         */
+        abstract boolean canLend();
+        
         public String toString() {
             return keys.toString();
         }
@@ -224,6 +1655,164 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         	}
         }
         
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#isSafe()
+         */
+        boolean isSafe() {
+        	return children.size() < branchingFactor;
+        }
+        
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#isUnderflow()
+         */
+        boolean isUnderflow() {
+        	return children.size() < (branchingFactor + 1) / 2;
+        }
+        
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#canLend()
+         */
+        boolean canLend() {
+        	return children.size() > (branchingFactor + 1) / 2;
+        }
+        
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#delete(java.lang.Comparable, java.lang.Object)
+         */
+        boolean delete(K key, V value) {
+        	// Duplicates of key can be spread over every child from the first
+        	// one that can hold key up to the last one.
+        	int first = lowerBound(keys, key);
+        	int last = upperBound(keys, key);
+        	for(int i = first; i <= last; i++) {
+        		if(children.get(i).delete(key, value)) {
+        			rebalance(i);
+        			return true;
+        		}
+        	}
+        	return false;
+        }
+        
+        /**
+         * Fixes the child at index if it underflowed: it borrows from a
+         * sibling that has entries to spare, otherwise merges with one.
+         * 
+         * @param index position of the child that lost an entry
+         */
+        void rebalance(int index) {
+        	/*
+        	 * Method variables:
+        	 * Node child holds the child that lost an entry.
+        	 * Node left and Node right hold its siblings, null at the edges.
+        	 */
+        	Node child = children.get(index);
+        	if(!child.isUnderflow()) {
+        		return;
+        	}
+        	Node left = index > 0 ? children.get(index - 1) : null;
+        	Node right = index < children.size() - 1 ? children.get(index + 1) : null;
+        	
+        	if(left != null && left.canLend()) {
+        		borrowFromLeft(index);
+        	}
+        	else if(right != null && right.canLend()) {
+        		borrowFromRight(index);
+        	}
+        	else if(left != null) {
+        		merge(index - 1);
+        	}
+        	else if(right != null) {
+        		merge(index);
+        	}
+        }
+        
+        /**
+         * Moves the last entry of the left sibling into the child at index.
+         * 
+         * @param index position of the child
+         */
+        private void borrowFromLeft(int index) {
+        	Node left = children.get(index - 1);
+        	Node child = children.get(index);
+        	if(child instanceof BPTree.LeafNode) {
+        		LeafNode leftLeaf = (LeafNode) left;
+        		LeafNode leaf = (LeafNode) child;
+        		int last = leftLeaf.keys.size() - 1;
+        		leaf.keys.add(0, leftLeaf.keys.remove(last));
+        		leaf.values.add(0, leftLeaf.values.remove(last));
+        		keys.set(index - 1, leaf.keys.get(0));
+        	}
+        	else {
+        		// Rotate through the separator in this node.
+        		InternalNode leftInternal = (InternalNode) left;
+        		InternalNode internal = (InternalNode) child;
+        		internal.keys.add(0, keys.get(index - 1));
+        		internal.children.add(0, leftInternal.children.remove(leftInternal.children.size() - 1));
+        		keys.set(index - 1, leftInternal.keys.remove(leftInternal.keys.size() - 1));
+        	}
+        }
+        
+        /**
+         * Moves the first entry of the right sibling into the child at index.
+         * 
+         * @param index position of the child
+         */
+        private void borrowFromRight(int index) {
+        	Node child = children.get(index);
+        	Node right = children.get(index + 1);
+        	if(child instanceof BPTree.LeafNode) {
+        		LeafNode leaf = (LeafNode) child;
+        		LeafNode rightLeaf = (LeafNode) right;
+        		leaf.keys.add(rightLeaf.keys.remove(0));
+        		leaf.values.add(rightLeaf.values.remove(0));
+        		keys.set(index, rightLeaf.keys.get(0));
+        	}
+        	else {
+        		// Rotate through the separator in this node.
+        		InternalNode internal = (InternalNode) child;
+        		InternalNode rightInternal = (InternalNode) right;
+        		internal.keys.add(keys.get(index));
+        		internal.children.add(rightInternal.children.remove(0));
+        		keys.set(index, rightInternal.keys.remove(0));
+        	}
+        }
+        
+        /**
+         * Merges the child at index + 1 into the child at index and
+         * drops the separator between them.
+         * 
+         * @param index position of the left child of the pair
+         */
+        private void merge(int index) {
+        	Node left = children.get(index);
+        	Node right = children.get(index + 1);
+        	if(left instanceof BPTree.LeafNode) {
+        		LeafNode leftLeaf = (LeafNode) left;
+        		LeafNode rightLeaf = (LeafNode) right;
+        		leftLeaf.keys.addAll(rightLeaf.keys);
+        		leftLeaf.values.addAll(rightLeaf.values);
+        		
+        		// Re-setting the LeafNode links.
+        		leftLeaf.next = rightLeaf.next;
+        		if(rightLeaf.next != null) {
+        			rightLeaf.next.previous = leftLeaf;
+        		}
+        	}
+        	else {
+        		InternalNode leftInternal = (InternalNode) left;
+        		InternalNode rightInternal = (InternalNode) right;
+        		leftInternal.keys.add(keys.get(index));
+        		leftInternal.keys.addAll(rightInternal.keys);
+        		leftInternal.children.addAll(rightInternal.children);
+        	}
+        	keys.remove(index);
+        	children.remove(index + 1);
+        }
+        
         /**
          * (non-Javadoc)
          * @see BPTree.Node#insert(java.lang.Comparable, java.lang.Object)
@@ -256,15 +1845,11 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         		Node sibling = child.split();
         		K promotedKey = sibling.getFirstLeafKey();
         		
-        		// Obtaining the position to promote the key to.
-        		int correctIndex2 = Collections.binarySearch(keys, promotedKey);
-        		if(correctIndex2 < 0) {
-        			correctIndex2 = (-1)*(correctIndex2 +1);
-        		}
-        		
         		// Finally, add promoted key to the parents and then sibling to the children.
-        		keys.add(correctIndex2, promotedKey);
-        		children.add(correctIndex2 +1, sibling);
+        		// The sibling goes right after the child it split from; searching for the
+        		// promoted key could land elsewhere when the keys hold duplicates.
+        		keys.add(correctIndex, promotedKey);
+        		children.add(correctIndex +1, sibling);
         		
         	}
         	
@@ -297,6 +1882,7 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         	 */
         	
         	InternalNode sibling = new InternalNode();
+        	splits.incrementAndGet();
         	int keySize = keys.size();
         	int startingIndex = keySize / 2 + 1;
         	int endingIndex = keySize;
@@ -313,42 +1899,29 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         }
         
         /**
-         * (non-Javadoc)
+         * Descends to the leaf where the matching run of keys ends for <=
+         * or begins for >= and ==, so only that side has to be scanned.
          * @see BPTree.Node#rangeSearch(java.lang.Comparable, java.lang.String)
          */
         List<V> rangeSearch(K key, String comparator) {
         	/*
         	 * Method variables:
-        	 * Node lowestChild holds the child in the lowest index position.
-        	 * Node highestChild holds the child in the last index position.
-        	 * int index holds the index that the key should be found within the keys.
+        	 * int index holds the index of the child whose range holds the boundary.
         	 * Node child holds the child at the index.
         	 */
         	
-        	// Go down left (lowest) child for <=.
-            if(comparator.contentEquals("<=")) {
-            	Node lowestChild = children.get(0);
-            	return lowestChild.rangeSearch(key, comparator);
-            	
-            }
-            // Go down right (highest) child for >=.
-            else if(comparator.contentEquals(">=")) {
-            	Node highestChild = children.get(children.size()-1);
-            	return highestChild.rangeSearch(key, comparator);
-            }
-            // Find where to go down if ==.
-            else if(comparator.contentEquals("==")) {
-            	// binarySearch is used to find the correct index.
-            	int index = Collections.binarySearch(keys, key);
-            	if(index < 0) {
-            		index = -1*(index+1);
-            	}
-            	Node child = children.get(index);
-            	return child.rangeSearch(key, comparator);
-            }
-            
-            // Should never be reached, because we test for potential invalids previous to this.
-            return new ArrayList<V>();
+        	// For <= go to the last child that can hold a key <= key,
+        	// otherwise to the first child that can hold a key >= key.
+        	int index;
+        	if(comparator.contentEquals("<=")) {
+        		index = upperBound(keys, key);
+        	}
+        	else {
+        		index = lowerBound(keys, key);
+        	}
+        	
+        	Node child = children.get(index);
+        	return child.rangeSearch(key, comparator);
         }
     
     } // End of class InternalNode
@@ -406,6 +1979,46 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
             
         }
         
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#isSafe()
+         */
+        boolean isSafe() {
+        	return values.size() < branchingFactor - 1;
+        }
+        
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#isUnderflow()
+         */
+        boolean isUnderflow() {
+        	return values.size() < branchingFactor / 2;
+        }
+        
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#canLend()
+         */
+        boolean canLend() {
+        	return values.size() > branchingFactor / 2;
+        }
+        
+        /**
+         * (non-Javadoc)
+         * @see BPTree.Node#delete(Comparable, Object)
+         */
+        boolean delete(K key, V value) {
+        	// Look through the run of equal keys for the value.
+        	for(int i = lowerBound(keys, key); i < keys.size() && keys.get(i).compareTo(key) == 0; i++) {
+        		if(Objects.equals(values.get(i), value)) {
+        			keys.remove(i);
+        			values.remove(i);
+        			return true;
+        		}
+        	}
+        	return false;
+        }
+        
         /**
          * (non-Javadoc)
          * @see BPTree.Node#insert(Comparable, Object)
@@ -469,6 +2082,7 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         	 */
 
         	LeafNode siblingNode = new LeafNode();
+        	splits.incrementAndGet();
         	int keySize = keys.size();
         	int startingIndex = (keySize + 1) / 2;
         	int endingIndex = keySize;
@@ -495,7 +2109,9 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         }
         
         /**
-         * (non-Javadoc)
+         * Scans outward from the boundary of the range in this leaf:
+         * backwards for <= and forwards for >= and ==, visiting only
+         * matching entries plus the one that ends the scan.
          * @see BPTree.Node#rangeSearch(Comparable, String)
          */
         List<V> rangeSearch(K key, String comparator) {
@@ -503,71 +2119,45 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         	 * Method variables:
         	 * List<V> masterList is the cumulative list of values that fall into the comparator's range.
         	 * LeafNode curNode holds the current node that we are in.
-        	 * LeafNode temp temporarily holds the current node that we are in.
+        	 * int index holds the position of the scan within curNode.
         	 */
         	
         	List<V> masterList = new ArrayList<V>();
+        	LeafNode curNode = this;
         	
         	if(comparator.contentEquals("<=")) {
-        		LeafNode curNode = this;
-        		
-        		// Continue to go to the next node while there's still nodes.
-        		while(curNode != null && key.compareTo(curNode.getFirstLeafKey()) >= 0) {
-        			// Comparing the individual keys.
-        			for(K k : curNode.keys) {
-        				if(k.compareTo(key) <= 0) {
-        					masterList.add(curNode.values.get(curNode.keys.indexOf(k)));
-        				}
-        			}
-        			curNode = curNode.next;
-        		}
-        		
-        		return masterList;
-        	}
-        	
-        	else if(comparator.contentEquals(">=")) {
-        		LeafNode curNode = this;
-        		
-        		// Continue to go to the previous node while there's still nodes.
-        		while(curNode != null && key.compareTo(curNode.keys.get(curNode.keys.size()-1)) <= 0) {
-        			List<K> reversedKeys = new ArrayList<K>(curNode.keys);
-        			List<V> reversedValues = new ArrayList<V>(curNode.values);
-        			
-        			// Using reverse in order to get to the end of the list, then traverse back.
-        			Collections.reverse(reversedKeys);
-        			Collections.reverse(reversedValues);
-        			
-        			for(K k : reversedKeys) {
-        				// Comparing the individual keys.
-        				if(k.compareTo(key) >= 0) {
-        					masterList.add(reversedValues.get(reversedKeys.indexOf(k)));
-        				}
+        		// Every key before the first key > key matches, back to the first leaf.
+        		int index = upperBound(keys, key);
+        		while(curNode != null) {
+        			for(int i = index - 1; i >= 0; i--) {
+        				masterList.add(curNode.values.get(i));
         			}
-        			
         			curNode = curNode.previous;
-        			
+        			if(curNode != null) {
+        				index = curNode.keys.size();
+        			}
         		}
         		
+        		// Collected backwards, so put it back in ascending key order.
         		Collections.reverse(masterList);
         		return masterList;
         	}
         	
-        	else if(comparator.contentEquals("==")) {
-        		LeafNode temp = this;
-        		
-        		// Continue to go through nodes.
-        		while(temp != null && key.compareTo(temp.getFirstLeafKey()) >= 0) {
-        			// Comparing the individual keys.
-	        		for(K k : temp.keys) {
-	        			if(k.compareTo(key) == 0) {
-	        				masterList.add(temp.values.get(temp.keys.indexOf(k)));
-	        			}
-	        		}
-	        		temp = temp.next;
+        	// For >= every key from the first key >= key on matches,
+        	// for == only until the keys get bigger.
+        	boolean equalOnly = comparator.contentEquals("==");
+        	int index = lowerBound(keys, key);
+        	while(curNode != null) {
+        		for(; index < curNode.keys.size(); index++) {
+        			if(equalOnly && curNode.keys.get(index).compareTo(key) != 0) {
+        				return masterList;
+        			}
+        			masterList.add(curNode.values.get(index));
         		}
+        		curNode = curNode.next;
+        		index = 0;
         	}
         	
-        	
             return masterList;
         }
         
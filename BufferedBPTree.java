@@ -0,0 +1,1625 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.ToIntFunction;
+
+/**
+ * Write-optimized B+ tree over double keys, built like a B-epsilon tree.
+ * Every internal node keeps a buffer of inserts that have not reached a
+ * leaf yet. An insert only appends to the root's buffer. When a buffer
+ * overflows, the largest group of entries bound for one child is moved
+ * down to it in a single batch, so the descent and the splits are paid
+ * once per batch instead of once per insert.
+ *
+ * Reads see the buffered entries by first pushing the buffered entries
+ * in their key range down to the leaves, and then walking the leaves as
+ * the other trees do. That work is never wasted, since every entry has to
+ * reach a leaf sooner or later, but a workload that reads the keys it has
+ * just written gains little over DoubleBPTree.
+ *
+ * As in PagedBPTree, the caller supplies the function that gives each
+ * value its ordinal and the table an ordinal is looked up in. Entries are
+ * ordered by key and then by ordinal, and each (key, value) pair is
+ * expected to be inserted once. A delete pushes the buffered entries with
+ * its key down and removes the entry from its leaf, and emptied leaves
+ * are not merged away.
+ *
+ * snapshot() pushes every buffered entry down to the leaves and then
+ * hands out a read-only version of the tree, as DoubleBPTree does. After
+ * it, a batch or a delete copies each node on its way down that the
+ * snapshot may share. The values have to be kept in a VersionedTable for
+ * the snapshot to read them as they were.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class BufferedBPTree<V> implements NutrientIndex<V> {
+
+    // Most children an internal node has
+    private final int branchingFactor;
+
+    // Most entries an internal node buffers, and most entries a leaf holds
+    private final int bufferCapacity;
+
+    // Root of the tree
+    private Node root;
+
+    // Number of entries in the tree, buffered or not
+    private int size;
+
+    // Number of entries in the leaves, the rest wait in buffers
+    private int merged;
+
+    // Values by ordinal
+    private final List<V> table;
+
+    // Gives each value its ordinal
+    private final ToIntFunction<V> ordinals;
+
+    // Number of node splits since the tree was created
+    private long splits;
+
+    // Epoch of the nodes made since the last snapshot; nodes of an earlier
+    // epoch may be shared with a snapshot, so they are copied before they change
+    private int epoch;
+
+    // Snapshot of the tree as it is, null once the tree changes
+    private Snapshot published;
+
+
+    /**
+     * Public constructor
+     *
+     * Initializes the tree with an empty leaf as root
+     *
+     * @param branchingFactor most children of an internal node (>2)
+     * @param bufferCapacity most entries an internal node buffers and a leaf holds (>0)
+     * @param table values by ordinal
+     * @param ordinals gives each value its ordinal in table
+     */
+    public BufferedBPTree(int branchingFactor, int bufferCapacity, List<V> table, ToIntFunction<V> ordinals) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException(
+               "Illegal buffer capacity: " + bufferCapacity);
+        }
+
+        this.branchingFactor = branchingFactor;
+        this.bufferCapacity = bufferCapacity;
+        this.table = table;
+        this.ordinals = ordinals;
+        clear();
+    }
+
+
+    /**
+     * Empties the tree.
+     */
+    public void clear() {
+    	root = new LeafNode();
+    	size = 0;
+    	merged = 0;
+    	published = null;
+    }
+
+
+    /**
+     * Replaces the contents of the tree with entries that are already
+     * sorted by key and then by ordinal. Leaves are filled left to right
+     * and each internal level is built from the level below it, with
+     * every buffer empty.
+     *
+     * @param keys sorted keys
+     * @param ordinals ordinals where ordinals[i] belongs to keys[i]
+     */
+    @SuppressWarnings("unchecked")
+    public void load(double[] keys, int[] ordinals) {
+    	if (keys.length != ordinals.length) {
+    		throw new IllegalArgumentException("Keys and ordinals must be of equal size");
+    	}
+    	clear();
+    	if (keys.length == 0) {
+    		return;
+    	}
+
+    	/*
+    	 * Method variables:
+    	 * Node[] level holds the nodes of the level being built on.
+    	 * double[] lowKeys and int[] lowOrdinals hold the first entry below each of those nodes.
+    	 */
+    	int groups = (keys.length + bufferCapacity - 1) / bufferCapacity;
+    	Node[] level = (Node[]) new BufferedBPTree<?>.Node[groups];
+    	double[] lowKeys = new double[groups];
+    	int[] lowOrdinals = new int[groups];
+    	int entry = 0;
+    	LeafNode previous = null;
+    	for (int g = 0; g < groups; g++) {
+    		// Spread the entries evenly so the last leaf is not left nearly empty.
+    		int count = keys.length / groups + (g < keys.length % groups ? 1 : 0);
+    		LeafNode leaf = new LeafNode();
+    		System.arraycopy(keys, entry, leaf.keys, 0, count);
+    		System.arraycopy(ordinals, entry, leaf.ordinals, 0, count);
+    		leaf.count = count;
+    		level[g] = leaf;
+    		lowKeys[g] = keys[entry];
+    		lowOrdinals[g] = ordinals[entry];
+    		entry += count;
+    		if (previous != null) {
+    			previous.next = leaf;
+    			leaf.previous = previous;
+    		}
+    		previous = leaf;
+    	}
+
+    	while (level.length > 1) {
+    		int parents = (level.length + branchingFactor - 1) / branchingFactor;
+    		Node[] parentLevel = (Node[]) new BufferedBPTree<?>.Node[parents];
+    		double[] parentKeys = new double[parents];
+    		int[] parentOrdinals = new int[parents];
+    		int child = 0;
+    		for (int g = 0; g < parents; g++) {
+    			int count = level.length / parents + (g < level.length % parents ? 1 : 0);
+    			InternalNode node = new InternalNode();
+    			node.children[0] = level[child];
+    			for (int i = 1; i < count; i++) {
+    				node.keys[i - 1] = lowKeys[child + i];
+    				node.ordinals[i - 1] = lowOrdinals[child + i];
+    				node.children[i] = level[child + i];
+    			}
+    			node.count = count - 1;
+    			parentLevel[g] = node;
+    			parentKeys[g] = lowKeys[child];
+    			parentOrdinals[g] = lowOrdinals[child];
+    			child += count;
+    		}
+    		level = parentLevel;
+    		lowKeys = parentKeys;
+    		lowOrdinals = parentOrdinals;
+    	}
+    	root = level[0];
+    	size = keys.length;
+    	merged = keys.length;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Double key, V value) {
+    	if (key == null) {
+    		throw new IllegalArgumentException("Null keys can not be indexed");
+    	}
+
+    	int ordinal = ordinals.applyAsInt(value);
+    	published = null;
+    	root = writable(root);
+    	List<Split> rootSplits;
+    	if (root instanceof BufferedBPTree.LeafNode) {
+    		rootSplits = merge((LeafNode) root, new double[] {key}, new int[] {ordinal}, 1);
+    	}
+    	else {
+    		InternalNode node = (InternalNode) root;
+    		buffer(node, key, ordinal);
+    		rootSplits = flush(node);
+    	}
+    	growRoot(rootSplits);
+    	size++;
+    }
+
+
+    /**
+     * Adds an entry to the buffer of the child it is bound for, keeping
+     * that buffer sorted.
+     *
+     * @param node node to buffer the entry in
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     */
+    private void buffer(InternalNode node, double key, int ordinal) {
+    	int c = search(node.keys, node.ordinals, node.count, key, ordinal, true);
+    	int n = node.pending[c];
+    	if (node.pendingKeys[c].length == n) {
+    		node.pendingKeys[c] = Arrays.copyOf(node.pendingKeys[c], Math.max(4, 2 * n));
+    		node.pendingOrdinals[c] = Arrays.copyOf(node.pendingOrdinals[c], Math.max(4, 2 * n));
+    	}
+    	int pos = search(node.pendingKeys[c], node.pendingOrdinals[c], n, key, ordinal, true);
+    	System.arraycopy(node.pendingKeys[c], pos, node.pendingKeys[c], pos + 1, n - pos);
+    	System.arraycopy(node.pendingOrdinals[c], pos, node.pendingOrdinals[c], pos + 1, n - pos);
+    	node.pendingKeys[c][pos] = key;
+    	node.pendingOrdinals[c][pos] = ordinal;
+    	node.pending[c]++;
+    	node.buffered++;
+    }
+
+
+    /**
+     * Moves batches out of an overflowing buffer until it fits again.
+     * Each batch is every buffered entry bound for the child that has the
+     * most of them.
+     *
+     * @param node node whose buffer may overflow
+     * @return the nodes split off from node, or null if it did not split
+     */
+    private List<Split> flush(InternalNode node) {
+    	while (node.buffered > bufferCapacity) {
+    		int target = 0;
+    		for (int c = 1; c <= node.count; c++) {
+    			if (node.pending[c] > node.pending[target]) {
+    				target = c;
+    			}
+    		}
+    		double[] batchKeys = node.pendingKeys[target];
+    		int[] batchOrdinals = node.pendingOrdinals[target];
+    		int batched = node.pending[target];
+    		node.pendingKeys[target] = new double[0];
+    		node.pendingOrdinals[target] = new int[0];
+    		node.pending[target] = 0;
+    		node.buffered -= batched;
+    		adopt(node, target, push(writableChild(node, target), batchKeys, batchOrdinals, batched));
+    	}
+    	return node.count + 1 > branchingFactor ? split(node) : null;
+    }
+
+
+    /**
+     * Moves every buffered entry with a key between low and high down to
+     * the leaves, below node and all of its descendants. Keys are in the
+     * order of Double.compare, so a high of NaN reaches the NaN keys.
+     *
+     * @param node node to drain
+     * @param low lowest key to move
+     * @param high highest key to move
+     * @return the nodes split off from node, or null if it did not split
+     */
+    private List<Split> drain(InternalNode node, double low, double high) {
+    	// Right to left, so the splits adopted from one child leave the positions of the rest alone.
+    	for (int c = node.count; c >= 0; c--) {
+    		if ((c > 0 && Double.compare(node.keys[c - 1], high) > 0)
+    				|| (c < node.count && Double.compare(node.keys[c], low) < 0)) {
+    			continue;
+    		}
+
+    		// A child's buffer is sorted, so the entries in the range are one run of it.
+    		int n = node.pending[c];
+    		int from = search(node.pendingKeys[c], node.pendingOrdinals[c], n, low, Integer.MIN_VALUE, false);
+    		int to = search(node.pendingKeys[c], node.pendingOrdinals[c], n, high, Integer.MAX_VALUE, true);
+    		double[] batchKeys = Arrays.copyOfRange(node.pendingKeys[c], from, to);
+    		int[] batchOrdinals = Arrays.copyOfRange(node.pendingOrdinals[c], from, to);
+    		System.arraycopy(node.pendingKeys[c], to, node.pendingKeys[c], from, n - to);
+    		System.arraycopy(node.pendingOrdinals[c], to, node.pendingOrdinals[c], from, n - to);
+    		node.pending[c] -= to - from;
+    		node.buffered -= to - from;
+
+    		// A node shared with a snapshot has nothing buffered below it, so with
+    		// no batch for it there is nothing to move and it is left alone.
+    		if (to == from && node.children[c].epoch != epoch) {
+    			continue;
+    		}
+    		Node child = writableChild(node, c);
+    		List<Split> childSplits;
+    		if (child instanceof BufferedBPTree.LeafNode) {
+    			childSplits = to == from ? null : merge((LeafNode) child, batchKeys, batchOrdinals, to - from);
+    		}
+    		else {
+    			InternalNode internal = (InternalNode) child;
+    			for (int i = 0; i < batchKeys.length; i++) {
+    				buffer(internal, batchKeys[i], batchOrdinals[i]);
+    			}
+    			childSplits = drain(internal, low, high);
+    		}
+    		adopt(node, c, childSplits);
+    	}
+    	return node.count + 1 > branchingFactor ? split(node) : null;
+    }
+
+
+    /**
+     * Hands a sorted batch of entries to a child: a leaf takes them in,
+     * an internal node buffers them and flushes if its buffer overflows.
+     *
+     * @param child node to take the batch
+     * @param keys keys of the batch
+     * @param ordinals ordinals of the batch
+     * @param count number of entries in the batch
+     * @return the nodes split off from child, or null if it did not split
+     */
+    private List<Split> push(Node child, double[] keys, int[] ordinals, int count) {
+    	if (child instanceof BufferedBPTree.LeafNode) {
+    		return merge((LeafNode) child, keys, ordinals, count);
+    	}
+    	InternalNode node = (InternalNode) child;
+    	for (int i = 0; i < count; i++) {
+    		buffer(node, keys[i], ordinals[i]);
+    	}
+    	return flush(node);
+    }
+
+
+    /**
+     * Merges a sorted batch of entries into a leaf, then splits the leaf
+     * into as many leaves as it takes for each to fit.
+     *
+     * @param leaf leaf the entries belong in
+     * @param keys keys of the batch
+     * @param ordinals ordinals of the batch
+     * @param count number of entries in the batch
+     * @return the leaves split off from leaf, or null if it did not split
+     */
+    private List<Split> merge(LeafNode leaf, double[] keys, int[] ordinals, int count) {
+    	growEntries(leaf, leaf.count + count);
+    	// Merge from the back, so every entry moves once.
+    	int i = leaf.count - 1;
+    	int j = count - 1;
+    	for (int k = leaf.count + count - 1; j >= 0; k--) {
+    		if (i >= 0 && compare(leaf.keys[i], leaf.ordinals[i], keys[j], ordinals[j]) > 0) {
+    			leaf.keys[k] = leaf.keys[i];
+    			leaf.ordinals[k] = leaf.ordinals[i--];
+    		}
+    		else {
+    			leaf.keys[k] = keys[j];
+    			leaf.ordinals[k] = ordinals[j--];
+    		}
+    	}
+    	leaf.count += count;
+    	merged += count;
+    	if (leaf.count <= bufferCapacity) {
+    		return null;
+    	}
+
+    	// Spread the entries evenly over the fewest leaves that hold them.
+    	int n = leaf.count;
+    	int pieces = (n + bufferCapacity - 1) / bufferCapacity;
+    	List<Split> result = new ArrayList<Split>();
+    	int start = n / pieces + (0 < n % pieces ? 1 : 0);
+    	LeafNode last = leaf;
+    	for (int g = 1; g < pieces; g++) {
+    		splits++;
+    		int length = n / pieces + (g < n % pieces ? 1 : 0);
+    		LeafNode sibling = new LeafNode();
+    		System.arraycopy(leaf.keys, start, sibling.keys, 0, length);
+    		System.arraycopy(leaf.ordinals, start, sibling.ordinals, 0, length);
+    		sibling.count = length;
+    		sibling.next = last.next;
+    		if (last.next != null) {
+    			last.next.previous = sibling;
+    		}
+    		sibling.previous = last;
+    		last.next = sibling;
+    		last = sibling;
+    		result.add(new Split(sibling.keys[0], sibling.ordinals[0], sibling));
+    		start += length;
+    	}
+    	leaf.count = n / pieces + (0 < n % pieces ? 1 : 0);
+    	return result;
+    }
+
+
+    /**
+     * Splits an internal node with too many children into as many nodes
+     * as it takes for each to fit. The buffer of each child moves with it.
+     *
+     * @param node the overfull node
+     * @return the nodes split off from node
+     */
+    private List<Split> split(InternalNode node) {
+    	int children = node.count + 1;
+    	int pieces = (children + branchingFactor - 1) / branchingFactor;
+    	List<Split> result = new ArrayList<Split>();
+    	int kept = children / pieces + (0 < children % pieces ? 1 : 0);
+    	int start = kept;
+    	for (int g = 1; g < pieces; g++) {
+    		splits++;
+    		int length = children / pieces + (g < children % pieces ? 1 : 0);
+    		InternalNode sibling = new InternalNode();
+    		System.arraycopy(node.children, start, sibling.children, 0, length);
+    		System.arraycopy(node.pendingKeys, start, sibling.pendingKeys, 0, length);
+    		System.arraycopy(node.pendingOrdinals, start, sibling.pendingOrdinals, 0, length);
+    		System.arraycopy(node.pending, start, sibling.pending, 0, length);
+    		System.arraycopy(node.keys, start, sibling.keys, 0, length - 1);
+    		System.arraycopy(node.ordinals, start, sibling.ordinals, 0, length - 1);
+    		sibling.count = length - 1;
+    		for (int c = 0; c < length; c++) {
+    			sibling.buffered += sibling.pending[c];
+    		}
+    		node.buffered -= sibling.buffered;
+    		result.add(new Split(node.keys[start - 1], node.ordinals[start - 1], sibling));
+    		start += length;
+    	}
+    	Arrays.fill(node.children, kept, children, null);
+    	Arrays.fill(node.pendingKeys, kept, children, null);
+    	Arrays.fill(node.pendingOrdinals, kept, children, null);
+    	Arrays.fill(node.pending, kept, children, 0);
+    	node.count = kept - 1;
+    	return result;
+    }
+
+
+    /**
+     * Puts the nodes split off from a child right of it in its parent,
+     * and shares the child's buffer out between them.
+     *
+     * @param node parent of the child
+     * @param index position of the child
+     * @param childSplits separators and nodes split off from the child, or null
+     */
+    private void adopt(InternalNode node, int index, List<Split> childSplits) {
+    	if (childSplits == null) {
+    		return;
+    	}
+    	int m = childSplits.size();
+    	growEntries(node, node.count + m);
+    	growChildren(node, node.count + 1 + m);
+    	int moved = node.count - index;
+    	System.arraycopy(node.keys, index, node.keys, index + m, moved);
+    	System.arraycopy(node.ordinals, index, node.ordinals, index + m, moved);
+    	System.arraycopy(node.children, index + 1, node.children, index + 1 + m, moved);
+    	System.arraycopy(node.pendingKeys, index + 1, node.pendingKeys, index + 1 + m, moved);
+    	System.arraycopy(node.pendingOrdinals, index + 1, node.pendingOrdinals, index + 1 + m, moved);
+    	System.arraycopy(node.pending, index + 1, node.pending, index + 1 + m, moved);
+
+    	// The child's buffer is sorted, so each new child takes the next run of it.
+    	double[] keys = node.pendingKeys[index];
+    	int[] ordinals = node.pendingOrdinals[index];
+    	int n = node.pending[index];
+    	int from = 0;
+    	for (int j = 0; j <= m; j++) {
+    		int to = n;
+    		if (j < m) {
+    			Split split = childSplits.get(j);
+    			node.keys[index + j] = split.key;
+    			node.ordinals[index + j] = split.ordinal;
+    			node.children[index + 1 + j] = split.node;
+    			to = search(keys, ordinals, n, split.key, split.ordinal, false);
+    		}
+    		node.pendingKeys[index + j] = Arrays.copyOfRange(keys, from, to);
+    		node.pendingOrdinals[index + j] = Arrays.copyOfRange(ordinals, from, to);
+    		node.pending[index + j] = to - from;
+    		from = to;
+    	}
+    	node.count += m;
+    }
+
+
+    /**
+     * Grows the tree by a level for as long as the root has split.
+     *
+     * @param rootSplits separators and nodes split off from the root, or null
+     */
+    private void growRoot(List<Split> rootSplits) {
+    	while (rootSplits != null) {
+    		InternalNode newRoot = new InternalNode();
+    		newRoot.children[0] = root;
+    		adopt(newRoot, 0, rootSplits);
+    		root = newRoot;
+    		rootSplits = newRoot.count + 1 > branchingFactor ? split(newRoot) : null;
+    	}
+    }
+
+
+    /**
+     * Moves every buffered entry with a key between low and high down to
+     * the leaves, so that the leaves alone answer a read of that range.
+     *
+     * @param low lowest key of the range
+     * @param high highest key of the range
+     */
+    private void drain(double low, double high) {
+    	// With every entry in a leaf there is nothing to move, and a read changes nothing.
+    	if (merged < size && root instanceof BufferedBPTree.InternalNode) {
+    		root = writable(root);
+    		growRoot(drain((InternalNode) root, low, high));
+    	}
+    }
+
+
+    /**
+     * Moves every buffered entry down to the leaves, for example at the
+     * end of a long run of inserts. NaN sorts above POSITIVE_INFINITY, so
+     * it is the top of the range.
+     */
+    public void flushBuffers() {
+    	drain(Double.NEGATIVE_INFINITY, Double.NaN);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#delete(java.lang.Double, java.lang.Object)
+     */
+    @Override
+    public boolean delete(Double key, V value) {
+    	if (key == null) {
+    		return false;
+    	}
+
+    	int ordinal = ordinals.applyAsInt(value);
+    	drain(key, key);
+    	LeafNode leaf = findLeaf(key, ordinal);
+    	int pos = search(leaf, key, ordinal, false);
+    	if (pos == leaf.count || compare(leaf.keys[pos], leaf.ordinals[pos], key, ordinal) != 0) {
+    		return false;
+    	}
+    	published = null;
+    	leaf = writableLeaf(key, ordinal);
+    	System.arraycopy(leaf.keys, pos + 1, leaf.keys, pos, leaf.count - pos - 1);
+    	System.arraycopy(leaf.ordinals, pos + 1, leaf.ordinals, pos, leaf.count - pos - 1);
+    	leaf.count--;
+    	merged--;
+    	size--;
+    	return true;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double key, String comparator) {
+    	// Return just an empty list if the comparator is invalid or if the key is invalid.
+    	if (key == null || comparator == null) {
+    		return new ArrayList<V>();
+    	}
+    	if (comparator.contentEquals("==")) {
+    		return between(key, key, true, true);
+    	}
+    	else if (comparator.contentEquals("<=")) {
+    		return between(Double.NEGATIVE_INFINITY, key, true, true);
+    	}
+    	else if (comparator.contentEquals(">=")) {
+    		return between(key, Double.POSITIVE_INFINITY, true, true);
+    	}
+    	return new ArrayList<V>();
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#between(double, double, boolean, boolean)
+     */
+    @Override
+    public List<V> between(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	List<V> result = new ArrayList<V>();
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while (cursor.hasNext()) {
+    		result.add(cursor.next());
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Counts the values in the interval by walking its leaf entries,
+     * without looking up any value.
+     *
+     * @see NutrientIndex#countRange(double, double, boolean, boolean)
+     */
+    @Override
+    public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	int count = 0;
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while (cursor.hasNext()) {
+    		cursor.advance();
+    		count++;
+    	}
+    	return count;
+    }
+
+
+    /**
+     * Drains the buffered entries in the interval, then opens a cursor
+     * over its leaves.
+     *
+     * @see NutrientIndex#cursor(double, double, boolean, boolean)
+     */
+    @Override
+    public Cursor cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	drain(lowKey, highKey);
+    	// Ordinals are never negative, so these sort before or after every entry with lowKey.
+    	int ordinal = inclusiveLow ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    	LeafNode leaf = findLeaf(lowKey, ordinal);
+    	return new Cursor(leaf, search(leaf, lowKey, ordinal, false), highKey, inclusiveHigh, null, table);
+    }
+
+
+    /**
+     * Drains the buffered entries in the interval, then opens a cursor
+     * over its leaves.
+     *
+     * @see NutrientIndex#descendingCursor(double, double, boolean, boolean)
+     */
+    @Override
+    public DescendingCursor descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow) {
+    	drain(lowKey, highKey);
+    	// Ordinals are never negative, so these sort after or before every entry with highKey.
+    	int ordinal = inclusiveHigh ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+    	LeafNode leaf = findLeaf(highKey, ordinal);
+    	return new DescendingCursor(leaf, search(leaf, highKey, ordinal, false) - 1, lowKey, inclusiveLow, null, table);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#size()
+     */
+    @Override
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Gets the number of entries still waiting in buffers
+     *
+     * @return entries not yet in a leaf
+     */
+    public int bufferedEntries() {
+    	return size - merged;
+    }
+
+
+    /**
+     * Gets the branching factor the tree was built with
+     *
+     * @return most children an internal node can have
+     */
+    public int getBranchingFactor() {
+    	return branchingFactor;
+    }
+
+
+    /**
+     * Gets the buffer capacity the tree was built with
+     *
+     * @return most entries an internal node buffers and a leaf holds
+     */
+    public int getBufferCapacity() {
+    	return bufferCapacity;
+    }
+
+
+    /**
+     * Pushes every buffered entry down to the leaves, then takes a
+     * read-only snapshot of the tree as it is now. Snapshots taken with no
+     * change in between are the same object.
+     *
+     * @see NutrientIndex#snapshot()
+     * @throws UnsupportedOperationException if the values are not kept in a VersionedTable
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Snapshot snapshot() {
+    	if (!(table instanceof VersionedTable)) {
+    		throw new UnsupportedOperationException("Snapshots need the values in a VersionedTable");
+    	}
+    	if (published == null) {
+    		flushBuffers();
+    		published = new Snapshot(root, size, ((VersionedTable<V>) table).snapshot());
+    		epoch++;
+    	}
+    	return published;
+    }
+
+
+    /**
+     * Gets a node that may be changed in place: the node itself if it was
+     * made since the last snapshot, otherwise a copy of it.
+     *
+     * @param node the node about to change
+     * @return the node or its copy
+     */
+    private Node writable(Node node) {
+    	if (node.epoch == epoch) {
+    		return node;
+    	}
+    	return node instanceof BufferedBPTree.LeafNode ? new LeafNode((LeafNode) node)
+    			: new InternalNode((InternalNode) node);
+    }
+
+
+    /**
+     * Gets a child ready to be changed, putting a copy in its place if a
+     * snapshot may share it.
+     *
+     * @param node parent of the child, itself ready to be changed
+     * @param c position of the child
+     * @return the child
+     */
+    private Node writableChild(InternalNode node, int c) {
+    	node.children[c] = writable(node.children[c]);
+    	return node.children[c];
+    }
+
+
+    /**
+     * Gets the leaf the given entry belongs in ready to be changed, like
+     * findLeaf, copying every node on the way down a snapshot may share.
+     *
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @return the leaf
+     */
+    private LeafNode writableLeaf(double key, int ordinal) {
+    	root = writable(root);
+    	Node node = root;
+    	while (node instanceof BufferedBPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		node = writableChild(internal, search(internal, key, ordinal, true));
+    	}
+    	return (LeafNode) node;
+    }
+
+
+    /**
+     * Walks the tree and reports its shape. The keys are those already in
+     * leaves, the values include the buffered entries as well.
+     *
+     * @see NutrientIndex#stats()
+     */
+    @Override
+    public TreeStats stats() {
+    	List<Integer> levelNodes = new ArrayList<Integer>();
+    	long used = 0;
+    	long leaves = 0;
+    	long bytes = 0;
+    	List<Node> level = Arrays.asList(root);
+    	while (!level.isEmpty()) {
+    		levelNodes.add(level.size());
+    		List<Node> nextLevel = new ArrayList<Node>();
+    		for (Node node : level) {
+    			bytes += TreeStats.OBJECT_BYTES + 2 * TreeStats.ARRAY_BYTES + 12L * node.keys.length;
+    			if (node instanceof BufferedBPTree.InternalNode) {
+    				InternalNode internal = (InternalNode) node;
+    				bytes += 4 * TreeStats.ARRAY_BYTES + (long) 3 * TreeStats.REFERENCE_BYTES * internal.children.length
+    						+ 4L * internal.pending.length;
+    				for (int c = 0; c <= internal.count; c++) {
+    					bytes += 2 * TreeStats.ARRAY_BYTES + 12L * internal.pendingKeys[c].length;
+    				}
+    				nextLevel.addAll(Arrays.asList(internal.children).subList(0, internal.count + 1));
+    				continue;
+    			}
+    			used += node.count;
+    			leaves++;
+    		}
+    		level = nextLevel;
+    	}
+
+    	int[] counts = new int[levelNodes.size()];
+    	for (int i = 0; i < counts.length; i++) {
+    		counts[i] = levelNodes.get(i);
+    	}
+    	return new TreeStats(counts.length, counts, used, size, (double) used / (leaves * bufferCapacity), splits, bytes);
+    }
+
+
+    /**
+     * Checks the structure of the tree. Besides what the other trees
+     * check, every buffer has to fit its capacity and hold only entries
+     * that belong below its node, and a node shared with a snapshot may
+     * buffer nothing. Deletes leave underfull and even empty leaves
+     * behind, so neither counts as a violation.
+     *
+     * @see NutrientIndex#validate()
+     */
+    @Override
+    public void validate() {
+    	int height = 1;
+    	for (Node node = root; node instanceof BufferedBPTree.InternalNode; node = ((InternalNode) node).children[0]) {
+    		height++;
+    	}
+    	List<LeafNode> leaves = new ArrayList<LeafNode>();
+    	int entries = validate(root, Double.NEGATIVE_INFINITY, Integer.MIN_VALUE, Double.POSITIVE_INFINITY,
+    			Integer.MAX_VALUE, 1, height, leaves);
+    	if (entries != size) {
+    		throw new IllegalStateException("Size is " + size + ", the tree holds " + entries + " entries");
+    	}
+
+    	int inLeaves = 0;
+    	for (LeafNode leaf : leaves) {
+    		inLeaves += leaf.count;
+    	}
+    	if (inLeaves != merged) {
+    		throw new IllegalStateException(merged + " entries counted in the leaves, the leaves hold " + inLeaves);
+    	}
+
+    	// The leaf chain has to visit the leaves in key order, both ways.
+    	for (int i = 0; i < leaves.size(); i++) {
+    		LeafNode leaf = leaves.get(i);
+    		LeafNode previous = i == 0 ? null : leaves.get(i - 1);
+    		LeafNode next = i == leaves.size() - 1 ? null : leaves.get(i + 1);
+    		if (leaf.previous != previous || leaf.next != next) {
+    			throw new IllegalStateException("Sibling links of leaf " + i + " are broken");
+    		}
+    	}
+    }
+
+
+    /**
+     * Checks the subtree under a node and collects its leaves in key order.
+     * Every entry, buffered or not, has to lie in [low, high) by key and
+     * then ordinal, the bounds being the separators around the subtree.
+     *
+     * @param node root of the subtree
+     * @param lowKey key of the lower bound
+     * @param lowOrdinal ordinal of the lower bound
+     * @param highKey key of the upper bound, POSITIVE_INFINITY with MAX_VALUE for none
+     * @param highOrdinal ordinal of the upper bound
+     * @param depth depth of the node, the root is at depth 1
+     * @param height depth every leaf has to be at
+     * @param leaves list of the leaves found so far
+     * @return number of entries in the subtree, buffered or not
+     */
+    private int validate(Node node, double lowKey, int lowOrdinal, double highKey, int highOrdinal,
+    		int depth, int height, List<LeafNode> leaves) {
+    	boolean unbounded = highKey == Double.POSITIVE_INFINITY && highOrdinal == Integer.MAX_VALUE;
+    	for (int i = 0; i < node.count; i++) {
+    		if (i > 0 && compare(node.keys[i - 1], node.ordinals[i - 1], node.keys[i], node.ordinals[i]) >= 0) {
+    			throw new IllegalStateException("Entries out of order at depth " + depth);
+    		}
+    		if (compare(node.keys[i], node.ordinals[i], lowKey, lowOrdinal) < 0
+    				|| (!unbounded && compare(node.keys[i], node.ordinals[i], highKey, highOrdinal) >= 0)) {
+    			throw new IllegalStateException("Entry " + node.keys[i] + "#" + node.ordinals[i]
+    					+ " outside its separators at depth " + depth);
+    		}
+    	}
+
+    	if (node instanceof BufferedBPTree.LeafNode) {
+    		if (depth != height) {
+    			throw new IllegalStateException("Leaf at depth " + depth + " in a tree of height " + height);
+    		}
+    		if (node.count > bufferCapacity) {
+    			throw new IllegalStateException("Leaf with " + node.count + " entries at depth " + depth);
+    		}
+    		leaves.add((LeafNode) node);
+    		return node.count;
+    	}
+
+    	InternalNode internal = (InternalNode) node;
+    	if (internal.count == 0 || internal.count + 1 > branchingFactor) {
+    		throw new IllegalStateException("Internal node with " + (internal.count + 1) + " children at depth " + depth);
+    	}
+    	int buffered = 0;
+    	for (int c = 0; c <= internal.count; c++) {
+    		buffered += internal.pending[c];
+    	}
+    	if (buffered != internal.buffered || buffered > bufferCapacity) {
+    		throw new IllegalStateException("Buffer of " + buffered + " entries, counted as "
+    				+ internal.buffered + ", at depth " + depth);
+    	}
+    	// A drain leaves a node shared with a snapshot alone when it has no batch for it.
+    	if (internal.epoch != epoch && buffered > 0) {
+    		throw new IllegalStateException("Node shared with a snapshot buffers " + buffered
+    				+ " entries at depth " + depth);
+    	}
+
+    	int entries = 0;
+    	for (int c = 0; c <= internal.count; c++) {
+    		double childLowKey = c == 0 ? lowKey : internal.keys[c - 1];
+    		int childLowOrdinal = c == 0 ? lowOrdinal : internal.ordinals[c - 1];
+    		double childHighKey = c == internal.count ? highKey : internal.keys[c];
+    		int childHighOrdinal = c == internal.count ? highOrdinal : internal.ordinals[c];
+    		boolean childUnbounded = c == internal.count && unbounded;
+
+    		// The buffer of each child has to be sorted and within the child's bounds.
+    		double[] keys = internal.pendingKeys[c];
+    		int[] ordinals = internal.pendingOrdinals[c];
+    		for (int i = 0; i < internal.pending[c]; i++) {
+    			if (i > 0 && compare(keys[i - 1], ordinals[i - 1], keys[i], ordinals[i]) >= 0) {
+    				throw new IllegalStateException("Buffered entries out of order at depth " + depth);
+    			}
+    			if (compare(keys[i], ordinals[i], childLowKey, childLowOrdinal) < 0
+    					|| (!childUnbounded && compare(keys[i], ordinals[i], childHighKey, childHighOrdinal) >= 0)) {
+    				throw new IllegalStateException("Buffered entry " + keys[i] + "#" + ordinals[i]
+    						+ " outside its child's separators at depth " + depth);
+    			}
+    		}
+    		entries += internal.pending[c];
+    		entries += validate(internal.children[c], childLowKey, childLowOrdinal, childHighKey, childHighOrdinal,
+    				depth + 1, height, leaves);
+    	}
+    	return entries;
+    }
+
+
+    /**
+     * Gets the leaf the given entry belongs in, ignoring the buffers.
+     *
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @return the leaf
+     */
+    private LeafNode findLeaf(double key, int ordinal) {
+    	Node node = root;
+    	while (node instanceof BufferedBPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		node = internal.children[search(internal, key, ordinal, true)];
+    	}
+    	return (LeafNode) node;
+    }
+
+
+    /**
+     * Binary searches the entries of a node for the given entry.
+     *
+     * @param node node to search
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @param upper whether to skip past an equal entry
+     * @return first position whose entry is greater than, or with upper false
+     *         greater than or equal to, the given entry
+     */
+    private int search(Node node, double key, int ordinal, boolean upper) {
+    	return search(node.keys, node.ordinals, node.count, key, ordinal, upper);
+    }
+
+
+    /**
+     * Binary searches sorted key and ordinal arrays for the given entry.
+     *
+     * @param keys sorted keys
+     * @param ordinals ordinals where ordinals[i] belongs to keys[i]
+     * @param count number of entries in use
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @param upper whether to skip past an equal entry
+     * @return first position whose entry is greater than, or with upper false
+     *         greater than or equal to, the given entry
+     */
+    private static int search(double[] keys, int[] ordinals, int count, double key, int ordinal, boolean upper) {
+    	int low = 0;
+    	int high = count;
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		int cmp = compare(keys[mid], ordinals[mid], key, ordinal);
+    		if (cmp < 0 || (upper && cmp == 0)) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Compares two entries by key and then by ordinal.
+     */
+    private static int compare(double key, int ordinal, double otherKey, int otherOrdinal) {
+    	int cmp = Double.compare(key, otherKey);
+    	return cmp != 0 ? cmp : Integer.compare(ordinal, otherOrdinal);
+    }
+
+
+    /**
+     * Makes room for at least the given number of entries in a node.
+     */
+    private void growEntries(Node node, int capacity) {
+    	if (node.keys.length < capacity) {
+    		int length = Math.max(capacity, 2 * node.keys.length);
+    		node.keys = Arrays.copyOf(node.keys, length);
+    		node.ordinals = Arrays.copyOf(node.ordinals, length);
+    	}
+    }
+
+
+    /**
+     * Makes room for at least the given number of children, and their
+     * buffers, in an internal node.
+     */
+    private void growChildren(InternalNode node, int capacity) {
+    	if (node.children.length < capacity) {
+    		int length = Math.max(capacity, 2 * node.children.length);
+    		node.children = Arrays.copyOf(node.children, length);
+    		node.pendingKeys = Arrays.copyOf(node.pendingKeys, length);
+    		node.pendingOrdinals = Arrays.copyOf(node.pendingOrdinals, length);
+    		node.pending = Arrays.copyOf(node.pending, length);
+    	}
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        List<Node> level = Arrays.asList(root);
+        while (!level.isEmpty()) {
+            List<Node> nextLevel = new ArrayList<Node>();
+            sb.append('{');
+            for (int p = 0; p < level.size(); p++) {
+                Node node = level.get(p);
+                sb.append(Arrays.toString(Arrays.copyOf(node.keys, node.count)));
+                if (node instanceof BufferedBPTree.InternalNode) {
+                    InternalNode internal = (InternalNode) node;
+                    sb.append('+').append(internal.buffered);
+                    nextLevel.addAll(Arrays.asList(internal.children).subList(0, internal.count + 1));
+                }
+                if (p < level.size() - 1)
+                    sb.append(", ");
+            }
+            sb.append("}\n");
+            level = nextLevel;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Any node of the tree. An internal node holds separators, a leaf
+     * holds entries, both as parallel key and ordinal arrays.
+     */
+    private abstract class Node {
+
+        // Keys of the separators or entries
+        double[] keys;
+
+        // Ordinals of the separators or entries
+        int[] ordinals;
+
+        // Number of separators or entries in use
+        int count;
+
+        // Epoch the node was made in
+        final int epoch;
+
+        /**
+         * Package constructor
+         *
+         * @param capacity initial length of the arrays
+         */
+        Node(int capacity) {
+            keys = new double[capacity];
+            ordinals = new int[capacity];
+            epoch = BufferedBPTree.this.epoch;
+        }
+
+    } // End of abstract class Node
+
+
+    /**
+     * An internal node: separators, children and the buffer of entries
+     * on their way down to the children. The buffer is kept per child and
+     * sorted, so a flush hands a child its entries without sorting them,
+     * and a read finds the entries of its range by binary search.
+     */
+    private class InternalNode extends Node {
+
+        // Children, count + 1 of them in use
+        Node[] children;
+
+        // Keys of the entries buffered for each child, sorted with their ordinals
+        double[][] pendingKeys;
+
+        // Ordinals of the entries buffered for each child
+        int[][] pendingOrdinals;
+
+        // Number of entries buffered for each child
+        int[] pending;
+
+        // Number of entries buffered for all children
+        int buffered;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings("unchecked")
+        InternalNode() {
+            super(branchingFactor);
+            children = (Node[]) new BufferedBPTree<?>.Node[branchingFactor + 1];
+            pendingKeys = new double[branchingFactor + 1][];
+            pendingOrdinals = new int[branchingFactor + 1][];
+            pending = new int[branchingFactor + 1];
+            for (int c = 0; c < pendingKeys.length; c++) {
+                pendingKeys[c] = new double[0];
+                pendingOrdinals[c] = new int[0];
+            }
+        }
+
+        /**
+         * Package constructor
+         *
+         * Copies a node for a change that a snapshot sharing it must not
+         * see. Snapshots never read the buffers, so the copy takes them over.
+         *
+         * @param node the node to copy
+         */
+        InternalNode(InternalNode node) {
+            super(node.keys.length);
+            System.arraycopy(node.keys, 0, keys, 0, node.count);
+            System.arraycopy(node.ordinals, 0, ordinals, 0, node.count);
+            count = node.count;
+            children = node.children.clone();
+            pendingKeys = node.pendingKeys.clone();
+            pendingOrdinals = node.pendingOrdinals.clone();
+            pending = node.pending.clone();
+            buffered = node.buffered;
+        }
+
+    } // End of class InternalNode
+
+
+    /**
+     * A leaf: entries in order, linked to the leaves on either side.
+     */
+    private class LeafNode extends Node {
+
+        // Leaf with the next larger entries
+        LeafNode next;
+
+        // Leaf with the next smaller entries
+        LeafNode previous;
+
+        /**
+         * Package constructor
+         */
+        LeafNode() {
+            super(bufferCapacity + 1);
+        }
+
+        /**
+         * Package constructor
+         *
+         * Copies a leaf for a change that a snapshot sharing it must not
+         * see. The copy takes the leaf's place in the chain of leaves;
+         * snapshots never follow the links, so the leaf keeps its own.
+         *
+         * @param leaf the leaf to copy
+         */
+        LeafNode(LeafNode leaf) {
+            super(leaf.keys.length);
+            System.arraycopy(leaf.keys, 0, keys, 0, leaf.count);
+            System.arraycopy(leaf.ordinals, 0, ordinals, 0, leaf.count);
+            count = leaf.count;
+            next = leaf.next;
+            previous = leaf.previous;
+            if (next != null) {
+                next.previous = this;
+            }
+            if (previous != null) {
+                previous.next = this;
+            }
+        }
+
+    } // End of class LeafNode
+
+
+    /**
+     * A node split off from another, with the separator that goes left of
+     * it in their parent.
+     */
+    private class Split {
+
+        // Key of the separator
+        final double key;
+
+        // Ordinal of the separator
+        final int ordinal;
+
+        // The new node
+        final Node node;
+
+        /**
+         * Package constructor
+         *
+         * @param key key of the separator
+         * @param ordinal ordinal of the separator
+         * @param node the new node
+         */
+        Split(double key, int ordinal, Node node) {
+            this.key = key;
+            this.ordinal = ordinal;
+            this.node = node;
+        }
+
+    } // End of class Split
+
+
+    /**
+     * A forward cursor over a range of the tree. It holds a leaf and a
+     * position in that leaf and follows the next links between leaves,
+     * checking each key against the upper end of the range as it goes.
+     * A cursor over a snapshot steps along a LeafPath instead.
+     *
+     * A cursor over the tree is only valid until the next insert or delete.
+     */
+    public class Cursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, null once the range is used up
+        private LeafNode leaf;
+
+        // Position of the next entry within leaf
+        private int index;
+
+        // Upper end of the range
+        private final double highKey;
+
+        // Whether keys equal to highKey are in the range
+        private final boolean inclusiveHigh;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        // Path to leaf in a snapshot, null to follow the leaf links
+        private final LeafPath path;
+
+        // Values by ordinal
+        private final List<V> table;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf
+         * @param highKey upper end of the range
+         * @param inclusiveHigh whether keys equal to highKey are in the range
+         * @param path path to leaf in a snapshot, or null to follow the leaf links
+         * @param table values by ordinal
+         */
+        Cursor(LeafNode leaf, int index, double highKey, boolean inclusiveHigh, LeafPath path, List<V> table) {
+            this.leaf = leaf;
+            this.index = index;
+            this.highKey = highKey;
+            this.inclusiveHigh = inclusiveHigh;
+            this.path = path;
+            this.table = table;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the end of the current leaf, and over leaves emptied by deletes.
+        	while (leaf != null && index >= leaf.count) {
+        		leaf = path != null ? path.next() : leaf.next;
+        		index = 0;
+        	}
+        	if (leaf == null) {
+        		return false;
+        	}
+
+        	int cmp = Double.compare(leaf.keys[index], highKey);
+        	if (cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+        		leaf = null;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	return table.get(advance());
+        }
+
+        /**
+         * Moves past the next entry without looking up its value.
+         *
+         * @return ordinal of the entry
+         */
+        private int advance() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = leaf.keys[index];
+        	return leaf.ordinals[index++];
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.RangeCursor#getKey()
+         */
+        @Override
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class Cursor
+
+
+    /**
+     * A backward cursor over a range of the tree. It mirrors Cursor,
+     * following the previous links between leaves, or a LeafPath in a
+     * snapshot.
+     *
+     * A cursor over the tree is only valid until the next insert or delete.
+     */
+    public class DescendingCursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, null once the range is used up
+        private LeafNode leaf;
+
+        // Position of the next entry within leaf
+        private int index;
+
+        // Lower end of the range
+        private final double lowKey;
+
+        // Whether keys equal to lowKey are in the range
+        private final boolean inclusiveLow;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        // Path to leaf in a snapshot, null to follow the leaf links
+        private final LeafPath path;
+
+        // Values by ordinal
+        private final List<V> table;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf, -1 if it is in an earlier leaf
+         * @param lowKey lower end of the range
+         * @param inclusiveLow whether keys equal to lowKey are in the range
+         * @param path path to leaf in a snapshot, or null to follow the leaf links
+         * @param table values by ordinal
+         */
+        DescendingCursor(LeafNode leaf, int index, double lowKey, boolean inclusiveLow, LeafPath path, List<V> table) {
+            this.leaf = leaf;
+            this.index = index;
+            this.lowKey = lowKey;
+            this.inclusiveLow = inclusiveLow;
+            this.path = path;
+            this.table = table;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the start of the current leaf, and over leaves emptied by deletes.
+        	while (leaf != null && index < 0) {
+        		leaf = path != null ? path.previous() : leaf.previous;
+        		index = leaf == null ? -1 : leaf.count - 1;
+        	}
+        	if (leaf == null) {
+        		return false;
+        	}
+
+        	int cmp = Double.compare(leaf.keys[index], lowKey);
+        	if (cmp < 0 || (cmp == 0 && !inclusiveLow)) {
+        		leaf = null;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = leaf.keys[index];
+        	return table.get(leaf.ordinals[index--]);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.RangeCursor#getKey()
+         */
+        @Override
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class DescendingCursor
+
+
+    /**
+     * A read-only version of the tree as it was when snapshot() was called,
+     * with every entry in a leaf. The tree copies every node a snapshot may
+     * share before changing it, and the values table copies its pages, so
+     * nothing a snapshot reaches changes again and any number of threads
+     * can read it while the tree goes on changing. Only the tree keeps
+     * its leaf links up to date, so cursors over a snapshot step from leaf
+     * to leaf along a LeafPath.
+     */
+    public class Snapshot implements NutrientIndex.Snapshot<V> {
+
+        // Root of this version
+        private final Node root;
+
+        // Number of entries in this version
+        private final int size;
+
+        // Values of this version by ordinal
+        private final List<V> table;
+
+        // Number of internal levels above the leaves
+        private final int levels;
+
+        /**
+         * Package constructor
+         *
+         * @param root root of the version, with every buffer below it empty
+         * @param size number of entries in the version
+         * @param table values of the version by ordinal
+         */
+        Snapshot(Node root, int size, List<V> table) {
+            this.root = root;
+            this.size = size;
+            this.table = table;
+            int height = 0;
+            for (Node node = root; node instanceof BufferedBPTree.InternalNode; node = ((InternalNode) node).children[0]) {
+                height++;
+            }
+            levels = height;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.Snapshot#size()
+         */
+        @Override
+        public int size() {
+        	return size;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.Snapshot#cursor(double, double, boolean, boolean)
+         */
+        @Override
+        public Cursor cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+        	// Ordinals are never negative, so these sort before or after every entry with lowKey.
+        	int ordinal = inclusiveLow ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        	LeafPath path = new LeafPath(root, levels, lowKey, ordinal);
+        	return new Cursor(path.leaf, search(path.leaf, lowKey, ordinal, false), highKey, inclusiveHigh, path, table);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.Snapshot#descendingCursor(double, double, boolean, boolean)
+         */
+        @Override
+        public DescendingCursor descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow) {
+        	// Ordinals are never negative, so these sort after or before every entry with highKey.
+        	int ordinal = inclusiveHigh ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        	LeafPath path = new LeafPath(root, levels, highKey, ordinal);
+        	return new DescendingCursor(path.leaf, search(path.leaf, highKey, ordinal, false) - 1, lowKey, inclusiveLow,
+        			path, table);
+        }
+
+        /**
+         * Counts the values in the interval by walking its leaf entries,
+         * without looking up any value, as the tree does.
+         *
+         * @see NutrientIndex.Snapshot#countRange(double, double, boolean, boolean)
+         */
+        @Override
+        public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+        	int count = 0;
+        	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+        	while (cursor.hasNext()) {
+        		cursor.advance();
+        		count++;
+        	}
+        	return count;
+        }
+
+    } // End of class Snapshot
+
+
+    /**
+     * The internal nodes on the way from a root down to one leaf, with the
+     * child taken at each. The next leaf is found by going up to the
+     * lowest node with a child right of the path and then down the left
+     * edge of that child, and the previous leaf the other way round, so a
+     * walk over a run of leaves visits each node above them once.
+     */
+    private class LeafPath {
+
+        // Internal nodes from the root down
+        private final InternalNode[] nodes;
+
+        // Child taken at each of them
+        private final int[] slots;
+
+        // Leaf at the end of the path, null once a walk runs off either end
+        LeafNode leaf;
+
+        /**
+         * Package constructor
+         *
+         * Descends to the leaf the given entry belongs in, the way
+         * findLeaf does.
+         *
+         * @param root root to descend from
+         * @param levels number of internal levels above the leaves
+         * @param key key of the entry
+         * @param ordinal ordinal of the entry
+         */
+        @SuppressWarnings("unchecked")
+        LeafPath(Node root, int levels, double key, int ordinal) {
+            nodes = (InternalNode[]) new BufferedBPTree<?>.InternalNode[levels];
+            slots = new int[levels];
+            Node node = root;
+            for (int level = 0; level < levels; level++) {
+                nodes[level] = (InternalNode) node;
+                slots[level] = search(nodes[level], key, ordinal, true);
+                node = nodes[level].children[slots[level]];
+            }
+            leaf = (LeafNode) node;
+        }
+
+        /**
+         * Moves the path to the leaf after the current one.
+         *
+         * @return the next leaf, or null after the last
+         */
+        LeafNode next() {
+        	int level = nodes.length - 1;
+        	while (level >= 0 && slots[level] == nodes[level].count) {
+        		level--;
+        	}
+        	if (level < 0) {
+        		leaf = null;
+        		return null;
+        	}
+        	slots[level]++;
+        	return descend(level, true);
+        }
+
+        /**
+         * Moves the path to the leaf before the current one.
+         *
+         * @return the previous leaf, or null before the first
+         */
+        LeafNode previous() {
+        	int level = nodes.length - 1;
+        	while (level >= 0 && slots[level] == 0) {
+        		level--;
+        	}
+        	if (level < 0) {
+        		leaf = null;
+        		return null;
+        	}
+        	slots[level]--;
+        	return descend(level, false);
+        }
+
+        /**
+         * Follows the edge below the child taken at level down to a leaf.
+         *
+         * @param level level whose child was just changed
+         * @param first whether to take the first child on the way down, otherwise the last
+         * @return the leaf reached
+         */
+        private LeafNode descend(int level, boolean first) {
+        	Node node = nodes[level].children[slots[level]];
+        	for (int below = level + 1; below < nodes.length; below++) {
+        		nodes[below] = (InternalNode) node;
+        		slots[below] = first ? 0 : nodes[below].count;
+        		node = nodes[below].children[slots[below]];
+        	}
+        	leaf = (LeafNode) node;
+        	return leaf;
+        }
+
+    } // End of class LeafPath
+
+} // End of class BufferedBPTree
@@ -0,0 +1,2165 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * B+ tree specialized for double keys, used for the nutrient indexes.
+ * Nodes hold their keys in fixed-capacity double arrays instead of lists
+ * of boxed Doubles, and leaves hold int ordinals into a table of values
+ * instead of the values themselves. This keeps every node a few flat
+ * arrays, and binary searches and range scans never leave those arrays.
+ *
+ * Each distinct key is stored once. A key held by a single value keeps its
+ * ordinal inline in the leaf; a key shared by several values keeps a
+ * sorted posting list of their ordinals instead, so heavily duplicated
+ * keys (zero grams of fat, say) cost four bytes per value and an exact
+ * match reads one posting list rather than walking a run of leaves.
+ * Values with equal keys come back in ordinal order.
+ *
+ * Every node also keeps the number of values below it, so range counts
+ * and the i-th key are found in one descent without collecting values.
+ *
+ * snapshot() hands out a read-only version of the tree without copying
+ * anything. After it, a change copies each node on its path that the
+ * snapshot may share, along with the node's posting lists, and changes the
+ * copies. The snapshot keeps the tree as it was while the tree goes on
+ * taking inserts and deletes, and versions nobody holds are left to the
+ * garbage collector. Until the first snapshot nothing is ever copied.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class DoubleBPTree<V> implements NutrientIndex<V> {
+
+    // Root of the tree
+    private Node root;
+
+    // Branching factor is the number of children nodes
+    // for internal nodes of the tree
+    private int branchingFactor;
+
+    // Values in the order they were inserted, leaves refer to them by position
+    private VersionedTable<V> values;
+
+    // Separator key handed up to the parent by the most recent split
+    private double promotedKey;
+
+    // Ordinals freed by deletes, reused by later inserts
+    private int[] freeOrdinals;
+
+    // Number of ordinals in freeOrdinals
+    private int freeCount;
+
+    // Number of node splits since the tree was created
+    private long splits;
+
+    // Epoch of the nodes made since the last snapshot; nodes and posting lists
+    // of an earlier epoch may be shared with a snapshot, so they are copied
+    // before they change
+    private int epoch;
+
+    // Snapshot of the tree as it is, null once the tree changes
+    private Snapshot published;
+
+
+    /**
+     * Public constructor
+     *
+     * Initializes the tree with an empty leaf as root and the given branching factor
+     *
+     * @param branchingFactor The given branching factor of the tree (>2)
+     */
+    public DoubleBPTree(int branchingFactor) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+
+        this.branchingFactor = branchingFactor;
+        values = new VersionedTable<V>();
+        freeOrdinals = new int[0];
+        root = new LeafNode();
+    }
+
+
+    /**
+     * Bulk-load constructor
+     *
+     * Builds the tree bottom-up from keys that are already sorted, packing
+     * leaves up to the fill factor and then building each internal level
+     * from the level below it.
+     *
+     * @param branchingFactor The given branching factor of the tree (>2)
+     * @param keys keys sorted in ascending order
+     * @param values values where values.get(i) belongs to keys[i]
+     * @param fillFactor fraction of each node to fill, in (0, 1]
+     */
+    public DoubleBPTree(int branchingFactor, double[] keys, List<V> values, double fillFactor) {
+        this(branchingFactor);
+        if (keys == null || values == null || keys.length != values.size()) {
+            throw new IllegalArgumentException(
+               "Keys and values must be non-null and of equal size");
+        }
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException(
+               "Illegal fill factor: " + fillFactor);
+        }
+
+        this.values.addAll(values);
+        if (keys.length > 0) {
+        	root = bulkLoad(keys, fillFactor);
+        }
+    }
+
+
+    /**
+     * Builds the packed leaf level and then every internal level above it.
+     *
+     * @param keys sorted keys, keys[i] belongs to ordinal i
+     * @param fillFactor fraction of each node to fill
+     * @return the root of the new tree
+     */
+    private Node bulkLoad(double[] keys, double fillFactor) {
+    	int leafFill = Math.max(1, (int) Math.ceil(fillFactor * (branchingFactor - 1)));
+    	int internalFill = Math.max(2, (int) Math.ceil(fillFactor * branchingFactor));
+
+    	// Find where each run of equal keys starts; runs[distinct] = keys.length.
+    	int[] runs = new int[keys.length + 1];
+    	int distinct = 0;
+    	for (int i = 0; i < keys.length; i++) {
+    		int cmp = i > 0 ? Double.compare(keys[i - 1], keys[i]) : -1;
+    		if (cmp > 0) {
+    			throw new IllegalArgumentException("Keys must be sorted in ascending order");
+    		}
+    		if (cmp < 0) {
+    			runs[distinct++] = i;
+    		}
+    	}
+    	runs[distinct] = keys.length;
+
+    	// Pack the distinct keys into leaves and link them together.
+    	List<Node> level = new ArrayList<Node>();
+    	LeafNode previousLeaf = null;
+    	int position = 0;
+    	for (int size : groupSizes(distinct, leafFill, 1)) {
+    		LeafNode leaf = new LeafNode();
+    		for (int i = position; i < position + size; i++) {
+    			int start = runs[i];
+    			int count = runs[i + 1] - start;
+    			leaf.keys[leaf.size] = keys[start];
+    			leaf.ordinals[leaf.size] = start;
+    			if (count > 1) {
+    				int[] ordinals = new int[count];
+    				for (int j = 0; j < count; j++) {
+    					ordinals[j] = start + j;
+    				}
+    				leaf.postings[leaf.size] = new PostingList(ordinals, count, epoch);
+    			}
+    			leaf.count += count;
+    			leaf.size++;
+    		}
+    		position += size;
+
+    		leaf.previous = previousLeaf;
+    		if (previousLeaf != null) {
+    			previousLeaf.next = leaf;
+    		}
+    		previousLeaf = leaf;
+    		level.add(leaf);
+    	}
+
+    	// Build internal levels until a single node is left.
+    	while (level.size() > 1) {
+    		List<Node> parents = new ArrayList<Node>();
+    		position = 0;
+    		for (int size : groupSizes(level.size(), internalFill, 2)) {
+    			InternalNode parent = new InternalNode();
+    			for (int i = position; i < position + size; i++) {
+    				Node child = level.get(i);
+    				if (i > position) {
+    					parent.keys[parent.size++] = child.getFirstLeafKey();
+    				}
+    				parent.children[i - position] = child;
+    				parent.count += child.count;
+    			}
+    			position += size;
+    			parents.add(parent);
+    		}
+    		level = parents;
+    	}
+
+    	return level.get(0);
+    }
+
+    /**
+     * Splits count items into groups of at most fill items, spreading the
+     * remainder evenly so that no group has fewer than minimum items.
+     *
+     * @param count number of items to group
+     * @param fill target number of items per group
+     * @param minimum smallest allowed group size
+     * @return the size of each group, in order
+     */
+    private int[] groupSizes(int count, int fill, int minimum) {
+    	int groups = (count + fill - 1) / fill;
+    	// Only happens for very small counts, where one group less leaves
+    	// at most three items per group, which any node can hold.
+    	if (groups > 1 && count / groups < minimum) {
+    		groups--;
+    	}
+
+    	int[] sizes = new int[groups];
+    	for (int i = 0; i < groups; i++) {
+    		sizes[i] = count / groups + (i < count % groups ? 1 : 0);
+    	}
+    	return sizes;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Double key, V value) {
+    	if (key == null) {
+    		throw new IllegalArgumentException("Null keys can not be indexed");
+    	}
+
+    	// Reuse an ordinal freed by a delete before growing the table.
+    	int ordinal;
+    	if (freeCount > 0) {
+    		ordinal = freeOrdinals[--freeCount];
+    		values.set(ordinal, value);
+    	}
+    	else {
+    		ordinal = values.size();
+    		values.add(value);
+    	}
+    	published = null;
+    	root = writable(root);
+    	Node sibling = root.insert(key, ordinal);
+
+    	// The root split, so the tree grows by one level.
+    	if (sibling != null) {
+    		InternalNode newRoot = new InternalNode();
+    		newRoot.keys[0] = promotedKey;
+    		newRoot.size = 1;
+    		newRoot.children[0] = root;
+    		newRoot.children[1] = sibling;
+    		newRoot.count = root.count + sibling.count;
+    		root = newRoot;
+    	}
+    }
+
+
+    /**
+     * Deletes one entry with the given key and value. Nodes left with too
+     * few entries borrow from a sibling or merge with it, and the root
+     * shrinks when it is left with a single child.
+     *
+     * @param key key of the entry
+     * @param value value of the entry, compared with equals
+     * @return true if an entry was deleted, false if there was none
+     */
+    public boolean delete(Double key, V value) {
+    	// Nothing is copied away from a snapshot unless there is an entry to delete.
+    	if (key == null || !contains(key, value)) {
+    		return false;
+    	}
+    	root = writable(root);
+    	if (!root.delete(key, value)) {
+    		return false;
+    	}
+    	published = null;
+
+    	// The root shrinks away when it is left with a single child.
+    	while (root instanceof DoubleBPTree.InternalNode && root.size == 0) {
+    		root = ((InternalNode) root).children[0];
+    	}
+    	return true;
+    }
+
+
+    /**
+     * Releases the ordinal of a deleted entry so a later insert can reuse it.
+     *
+     * @param ordinal position of the value in the values table
+     */
+    private void freeOrdinal(int ordinal) {
+    	values.set(ordinal, null);
+    	if (freeCount == freeOrdinals.length) {
+    		freeOrdinals = Arrays.copyOf(freeOrdinals, Math.max(8, freeCount * 2));
+    	}
+    	freeOrdinals[freeCount++] = ordinal;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double key, String comparator) {
+    	List<V> result = new ArrayList<V>();
+    	// Return just an empty list if the comparator is invalid or if the key is invalid.
+    	if (key == null || comparator == null) {
+    		return result;
+    	}
+
+    	/*
+    	 * Method variables:
+    	 * LeafNode leaf holds the leaf the scan is currently in.
+    	 * int index holds the position of the scan within that leaf.
+    	 */
+    	double k = key;
+    	LeafNode leaf;
+    	int index;
+    	// ">=" stops at POSITIVE_INFINITY like between, so NaN keys, which sort above it, are left out.
+    	double high = comparator.contentEquals(">=") ? Double.POSITIVE_INFINITY : k;
+    	if (comparator.contentEquals("==")) {
+    		// A key is stored once, so an exact match is a single posting list.
+    		leaf = findLeaf(k);
+    		index = lowerBound(leaf.keys, leaf.size, k);
+    		if (index < leaf.size && Double.compare(leaf.keys[index], k) == 0) {
+    			leaf.addValues(index, result);
+    		}
+    		return result;
+    	}
+    	else if (comparator.contentEquals("<=")) {
+    		// Everything from the first key up to k matches.
+    		leaf = firstLeaf();
+    		index = 0;
+    	}
+    	else if (comparator.contentEquals(">=")) {
+    		// Descend straight to the first key that is not below k.
+    		leaf = findLeaf(k);
+    		index = lowerBound(leaf.keys, leaf.size, k);
+    	}
+    	else {
+    		return result;
+    	}
+
+    	while (leaf != null) {
+    		for (; index < leaf.size; index++) {
+    			if (Double.compare(leaf.keys[index], high) > 0) {
+    				return result;
+    			}
+    			leaf.addValues(index, result);
+    		}
+    		leaf = leaf.next;
+    		index = 0;
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Gets the values whose keys fall in the interval between lowKey and
+     * highKey, in ascending key order. The search seeks straight to the
+     * first key inside the interval and stops at the first key past it.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return list of values in the interval; if nothing found, return empty list
+     */
+    public List<V> between(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	List<V> result = new ArrayList<V>();
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while (cursor.hasNext()) {
+    		result.add(cursor.next());
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Gets the number of values in the tree.
+     *
+     * @return number of values
+     */
+    public int size() {
+    	return root.count;
+    }
+
+
+    /**
+     * Counts the values whose keys fall in the interval between lowKey
+     * and highKey without collecting them. Every node knows how many
+     * values are below it, so this is two root-to-leaf descents.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey count
+     * @param inclusiveHigh whether keys equal to highKey count
+     * @return number of values in the interval
+     */
+    public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	int count = rank(root, highKey, inclusiveHigh) - rank(root, lowKey, !inclusiveLow);
+    	return Math.max(0, count);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#estimateRange(double, double, int)
+     */
+    @Override
+    public int estimateRange(double lowKey, double highKey, int limit) {
+    	// Counting costs two descents however many values there are, so the count is exact.
+    	return countRange(lowKey, highKey, true, true);
+    }
+
+
+    /**
+     * Gets the key of the value at the given position in key order, so
+     * the index-th smallest key counting duplicates.
+     *
+     * @param index position of the value, from 0 to size() - 1
+     * @return key at that position
+     */
+    public double select(int index) {
+    	if (index < 0 || index >= root.count) {
+    		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + root.count);
+    	}
+
+    	// Skip whole children until the one holding the position.
+    	Node node = root;
+    	while (node instanceof DoubleBPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		int child = 0;
+    		while (index >= internal.children[child].count) {
+    			index -= internal.children[child].count;
+    			child++;
+    		}
+    		node = internal.children[child];
+    	}
+
+    	LeafNode leaf = (LeafNode) node;
+    	int entry = 0;
+    	while (index >= leaf.entryCount(entry)) {
+    		index -= leaf.entryCount(entry);
+    		entry++;
+    	}
+    	return leaf.keys[entry];
+    }
+
+
+    /**
+     * Counts the values whose keys are below key, or not above key.
+     *
+     * @param node root of the tree or of a snapshot
+     * @param key the key to count up to
+     * @param inclusive whether values with keys equal to key are counted
+     * @return number of values
+     */
+    private int rank(Node node, double key, boolean inclusive) {
+    	/*
+    	 * Method variables:
+    	 * int rank holds the values counted in subtrees left of the descent.
+    	 */
+    	int rank = 0;
+    	while (node instanceof DoubleBPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		int child = upperBound(internal.keys, internal.size, key);
+    		for (int i = 0; i < child; i++) {
+    			rank += internal.children[i].count;
+    		}
+    		node = internal.children[child];
+    	}
+
+    	LeafNode leaf = (LeafNode) node;
+    	int end = inclusive ? upperBound(leaf.keys, leaf.size, key) : lowerBound(leaf.keys, leaf.size, key);
+    	for (int i = 0; i < end; i++) {
+    		rank += leaf.entryCount(i);
+    	}
+    	return rank;
+    }
+
+
+    /**
+     * Opens a cursor over the values whose keys fall in the interval
+     * between lowKey and highKey, in ascending key order. The cursor
+     * seeks to the first key inside the interval and then produces one
+     * value at a time, so nothing is copied and the caller can stop early.
+     * Infinite bounds give an open-ended range.
+     *
+     * The cursor is only valid until the next insert into the tree.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return a cursor positioned before the first value in the interval
+     */
+    public Cursor cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	// Descend to the leaf that holds the first key inside the interval.
+    	LeafNode leaf = findLeaf(lowKey);
+    	int index = inclusiveLow ? lowerBound(leaf.keys, leaf.size, lowKey)
+    			: upperBound(leaf.keys, leaf.size, lowKey);
+    	return new Cursor(leaf, index, highKey, inclusiveHigh, null, values);
+    }
+
+
+    /**
+     * Opens a cursor over the values whose keys fall in the interval
+     * between lowKey and highKey, in descending key order. Values that
+     * share a key come in descending ordinal order.
+     *
+     * The cursor is only valid until the next insert into the tree.
+     *
+     * @see NutrientIndex#descendingCursor(double, double, boolean, boolean)
+     */
+    public DescendingCursor descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow) {
+    	// Descend to the leaf that holds the last key inside the interval.
+    	LeafNode leaf = findLeaf(highKey);
+    	int index = (inclusiveHigh ? upperBound(leaf.keys, leaf.size, highKey)
+    			: lowerBound(leaf.keys, leaf.size, highKey)) - 1;
+    	return new DescendingCursor(leaf, index, lowKey, inclusiveLow, null, values);
+    }
+
+
+    /**
+     * Creates a spliterator over the values whose keys fall in the interval
+     * between lowKey and highKey, in ascending key order. The interval is
+     * turned into a run of positions by two rank descents, so the size of
+     * every piece is exact. Splitting cuts the run at an internal node
+     * child boundary, so a parallel stream hands out whole subtrees and
+     * no leaf is shared between two pieces.
+     *
+     * The spliterator is only valid until the next insert into the tree.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return a spliterator over the interval
+     */
+    public Spliterator<V> spliterator(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	int from = rank(root, lowKey, !inclusiveLow);
+    	int to = Math.max(from, rank(root, highKey, inclusiveHigh));
+    	return new RangeSpliterator(from, to);
+    }
+
+
+    /**
+     * Creates a stream over the values whose keys fall in the interval
+     * between lowKey and highKey.
+     *
+     * @see #spliterator(double, double, boolean, boolean)
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @param parallel whether the stream should be parallel
+     * @return a stream over the interval
+     */
+    public Stream<V> stream(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh, boolean parallel) {
+    	return StreamSupport.stream(spliterator(lowKey, highKey, inclusiveLow, inclusiveHigh), parallel);
+    }
+
+
+    /**
+     * Gets the branching factor the tree was built with
+     *
+     * @return most children an internal node can have
+     */
+    public int getBranchingFactor() {
+    	return branchingFactor;
+    }
+
+
+    /**
+     * Takes a read-only snapshot of the tree as it is now, in constant
+     * time. Snapshots taken with no change in between are the same object.
+     *
+     * @see NutrientIndex#snapshot()
+     */
+    @Override
+    public Snapshot snapshot() {
+    	if (published == null) {
+    		published = new Snapshot(root, values.snapshot());
+    		epoch++;
+    	}
+    	return published;
+    }
+
+
+    /**
+     * Gets a node that may be changed in place: the node itself if it was
+     * made since the last snapshot, otherwise a copy of it.
+     *
+     * @param node the node about to change
+     * @return the node or its copy
+     */
+    private Node writable(Node node) {
+    	return node.epoch == epoch ? node : node.copy();
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#stats()
+     */
+    @Override
+    public TreeStats stats() {
+    	/*
+    	 * Method variables:
+    	 * long used holds the keys in all leaves, long room the keys they have space for.
+    	 * long bytes holds the estimated size of the nodes, posting lists and values table.
+    	 */
+    	List<Integer> levelNodes = new ArrayList<Integer>();
+    	long used = 0;
+    	long room = 0;
+    	long bytes = TreeStats.ARRAY_BYTES + (long) TreeStats.REFERENCE_BYTES * values.size()
+    			+ TreeStats.ARRAY_BYTES + 4L * freeOrdinals.length;
+    	List<Node> level = Arrays.asList(root);
+    	while (!level.isEmpty()) {
+    		levelNodes.add(level.size());
+    		List<Node> nextLevel = new ArrayList<Node>();
+    		for (Node node : level) {
+    			bytes += TreeStats.OBJECT_BYTES + TreeStats.ARRAY_BYTES + 8L * node.keys.length;
+    			if (node instanceof DoubleBPTree.InternalNode) {
+    				InternalNode internal = (InternalNode) node;
+    				bytes += TreeStats.ARRAY_BYTES + (long) TreeStats.REFERENCE_BYTES * internal.children.length;
+    				nextLevel.addAll(Arrays.asList(internal.children).subList(0, internal.size + 1));
+    				continue;
+    			}
+    			LeafNode leaf = (LeafNode) node;
+    			used += leaf.size;
+    			room += branchingFactor - 1;
+    			bytes += 2 * TreeStats.ARRAY_BYTES + 4L * leaf.ordinals.length
+    					+ (long) TreeStats.REFERENCE_BYTES * leaf.postings.length;
+    			for (int i = 0; i < leaf.size; i++) {
+    				if (leaf.postings[i] != null) {
+    					bytes += TreeStats.OBJECT_BYTES + TreeStats.ARRAY_BYTES + 4L * leaf.postings[i].ordinals.length;
+    				}
+    			}
+    		}
+    		level = nextLevel;
+    	}
+
+    	int[] counts = new int[levelNodes.size()];
+    	for (int i = 0; i < counts.length; i++) {
+    		counts[i] = levelNodes.get(i);
+    	}
+    	return new TreeStats(counts.length, counts, used, root.count, (double) used / room, splits, bytes);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#validate()
+     */
+    @Override
+    public void validate() {
+    	int height = 1;
+    	for (Node node = root; node instanceof DoubleBPTree.InternalNode; node = ((InternalNode) node).children[0]) {
+    		height++;
+    	}
+    	List<LeafNode> leaves = new ArrayList<LeafNode>();
+    	int count = validate(root, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true, 1, height, leaves);
+    	if (count != root.count) {
+    		throw new IllegalStateException("Root counts " + root.count + " values, found " + count);
+    	}
+
+    	// The leaf chain has to visit the leaves in key order, both ways.
+    	for (int i = 0; i < leaves.size(); i++) {
+    		LeafNode leaf = leaves.get(i);
+    		LeafNode previous = i == 0 ? null : leaves.get(i - 1);
+    		LeafNode next = i == leaves.size() - 1 ? null : leaves.get(i + 1);
+    		if (leaf.previous != previous || leaf.next != next) {
+    			throw new IllegalStateException("Sibling links of leaf " + i + " are broken");
+    		}
+    	}
+    }
+
+
+    /**
+     * Checks the subtree under node and collects its leaves in key order.
+     *
+     * @param node root of the subtree
+     * @param low every key must be at least low
+     * @param high every key must be below high, or equal to it if highOpen is false
+     * @param highOpen whether high is an unbounded end
+     * @param depth depth of node, the root is at depth 1
+     * @param height depth every leaf has to be at
+     * @param leaves list of the leaves found so far
+     * @return number of values in the subtree
+     */
+    private int validate(Node node, double low, double high, boolean highOpen, int depth, int height, List<LeafNode> leaves) {
+    	for (int i = 0; i < node.size; i++) {
+    		if (i > 0 && Double.compare(node.keys[i - 1], node.keys[i]) >= 0) {
+    			throw new IllegalStateException("Keys out of order at depth " + depth + ": " + node);
+    		}
+    		if (Double.compare(node.keys[i], low) < 0 || (!highOpen && Double.compare(node.keys[i], high) >= 0)) {
+    			throw new IllegalStateException("Key " + node.keys[i] + " outside its separators at depth " + depth);
+    		}
+    	}
+
+    	int count = 0;
+    	if (node instanceof DoubleBPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		if (internal.size == 0) {
+    			throw new IllegalStateException("Internal node without keys at depth " + depth);
+    		}
+    		for (int i = 0; i <= internal.size; i++) {
+    			double childLow = i == 0 ? low : internal.keys[i - 1];
+    			double childHigh = i == internal.size ? high : internal.keys[i];
+    			boolean childOpen = i == internal.size && highOpen;
+    			count += validate(internal.children[i], childLow, childHigh, childOpen, depth + 1, height, leaves);
+    		}
+    	}
+    	else {
+    		LeafNode leaf = (LeafNode) node;
+    		if (depth != height) {
+    			throw new IllegalStateException("Leaf at depth " + depth + " in a tree of height " + height);
+    		}
+    		for (int i = 0; i < leaf.size; i++) {
+    			PostingList postings = leaf.postings[i];
+    			if (postings != null) {
+    				for (int j = 1; j < postings.size; j++) {
+    					if (postings.ordinals[j - 1] >= postings.ordinals[j]) {
+    						throw new IllegalStateException("Posting list of key " + leaf.keys[i] + " out of order");
+    					}
+    				}
+    			}
+    			count += leaf.entryCount(i);
+    		}
+    		leaves.add(leaf);
+    	}
+
+    	if (count != node.count) {
+    		throw new IllegalStateException("Node at depth " + depth + " counts " + node.count + " values, found " + count);
+    	}
+    	return count;
+    }
+
+
+    /**
+     * Gets the leftmost leaf of the tree.
+     *
+     * @return the first leaf in key order
+     */
+    private LeafNode firstLeaf() {
+    	Node node = root;
+    	while (node instanceof DoubleBPTree.InternalNode) {
+    		node = ((InternalNode) node).children[0];
+    	}
+    	return (LeafNode) node;
+    }
+
+
+    /**
+     * Gets the leaf that holds key, or the leaf it would be inserted into.
+     * Keys are distinct, and a key equal to a separator always lives in
+     * the subtree to the right of it.
+     *
+     * @param key the key to look for
+     * @return the leaf where a scan for key should start
+     */
+    private LeafNode findLeaf(double key) {
+    	Node node = root;
+    	while (node instanceof DoubleBPTree.InternalNode) {
+    		InternalNode internal = (InternalNode) node;
+    		node = internal.children[upperBound(internal.keys, internal.size, key)];
+    	}
+    	return (LeafNode) node;
+    }
+
+
+    /**
+     * Tells whether a key holds a value, without changing anything
+     *
+     * @param key the key
+     * @param value the value to look for
+     * @return true if value is one of the values of key
+     */
+    private boolean contains(double key, V value) {
+    	LeafNode leaf = findLeaf(key);
+    	int index = lowerBound(leaf.keys, leaf.size, key);
+    	if (index == leaf.size || Double.compare(leaf.keys[index], key) != 0) {
+    		return false;
+    	}
+    	PostingList list = leaf.postings[index];
+    	if (list == null) {
+    		return Objects.equals(values.get(leaf.ordinals[index]), value);
+    	}
+    	for (int i = 0; i < list.size; i++) {
+    		if (Objects.equals(values.get(list.ordinals[i]), value)) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+
+    /**
+     * Finds the first position in keys[0..size) holding a key >= key.
+     *
+     * @param keys sorted keys
+     * @param size number of keys in use
+     * @param key the key to look for
+     * @return the position, or size if every key is smaller
+     */
+    private static int lowerBound(double[] keys, int size, double key) {
+    	int low = 0;
+    	int high = size;
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		if (Double.compare(keys[mid], key) < 0) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Finds the first position in keys[0..size) holding a key > key.
+     *
+     * @param keys sorted keys
+     * @param size number of keys in use
+     * @param key the key to look for
+     * @return the position, or size if no key is larger
+     */
+    private static int upperBound(double[] keys, int size, double key) {
+    	int low = 0;
+    	int high = size;
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		if (Double.compare(keys[mid], key) <= 0) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Arrays.asList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                for (int i = 0; i < nodes.size(); i++) {
+                    Node node = nodes.get(i);
+                    sb.append(node.toString());
+                    if (i < nodes.size() - 1)
+                        sb.append(", ");
+                    if (node instanceof DoubleBPTree.InternalNode) {
+                        InternalNode internal = (InternalNode) node;
+                        nextQueue.add(Arrays.asList(internal.children).subList(0, internal.size + 1));
+                    }
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            queue = nextQueue;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * A forward cursor over a range of the tree. It holds a leaf and a
+     * position in that leaf and follows the next links between leaves,
+     * checking each key against the upper end of the range as it goes.
+     * A cursor over a snapshot steps along a LeafPath instead.
+     */
+    public class Cursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, null once the range is used up
+        private LeafNode leaf;
+
+        // Position of the next key within leaf
+        private int index;
+
+        // Position of the next ordinal within the posting list of that key
+        private int posting;
+
+        // Upper end of the range
+        private final double highKey;
+
+        // Whether keys equal to highKey are in the range
+        private final boolean inclusiveHigh;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        // Path to leaf in a snapshot, null to follow the leaf links
+        private final LeafPath path;
+
+        // Values by ordinal
+        private final List<V> table;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf
+         * @param highKey upper end of the range
+         * @param inclusiveHigh whether keys equal to highKey are in the range
+         * @param path path to leaf in a snapshot, or null to follow the leaf links
+         * @param table values by ordinal
+         */
+        Cursor(LeafNode leaf, int index, double highKey, boolean inclusiveHigh, LeafPath path, List<V> table) {
+            this.leaf = leaf;
+            this.index = index;
+            this.highKey = highKey;
+            this.inclusiveHigh = inclusiveHigh;
+            this.path = path;
+            this.table = table;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the end of the current leaf.
+        	while (leaf != null && index >= leaf.size) {
+        		leaf = path != null ? path.next() : leaf.next;
+        		index = 0;
+        		posting = 0;
+        	}
+        	if (leaf == null) {
+        		return false;
+        	}
+
+        	int cmp = Double.compare(leaf.keys[index], highKey);
+        	if (cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+        		leaf = null;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = leaf.keys[index];
+        	PostingList postings = leaf.postings[index];
+        	if (postings == null) {
+        		return table.get(leaf.ordinals[index++]);
+        	}
+        	int ordinal = postings.ordinals[posting++];
+        	if (posting == postings.size) {
+        		index++;
+        		posting = 0;
+        	}
+        	return table.get(ordinal);
+        }
+
+        /**
+         * Gets the key of the value most recently returned by next()
+         *
+         * @return key, or NaN if next() has not been called yet
+         */
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class Cursor
+
+
+    /**
+     * A backward cursor over a range of the tree. It mirrors Cursor,
+     * following the previous links between leaves, or a LeafPath in a
+     * snapshot, and reading each posting list from its end.
+     */
+    public class DescendingCursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, null once the range is used up
+        private LeafNode leaf;
+
+        // Position of the next key within leaf
+        private int index;
+
+        // Number of ordinals of that key already returned
+        private int posting;
+
+        // Lower end of the range
+        private final double lowKey;
+
+        // Whether keys equal to lowKey are in the range
+        private final boolean inclusiveLow;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        // Path to leaf in a snapshot, null to follow the leaf links
+        private final LeafPath path;
+
+        // Values by ordinal
+        private final List<V> table;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf, -1 if it is in an earlier leaf
+         * @param lowKey lower end of the range
+         * @param inclusiveLow whether keys equal to lowKey are in the range
+         * @param path path to leaf in a snapshot, or null to follow the leaf links
+         * @param table values by ordinal
+         */
+        DescendingCursor(LeafNode leaf, int index, double lowKey, boolean inclusiveLow, LeafPath path, List<V> table) {
+            this.leaf = leaf;
+            this.index = index;
+            this.lowKey = lowKey;
+            this.inclusiveLow = inclusiveLow;
+            this.path = path;
+            this.table = table;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the start of the current leaf.
+        	while (leaf != null && index < 0) {
+        		leaf = path != null ? path.previous() : leaf.previous;
+        		index = leaf == null ? -1 : leaf.size - 1;
+        		posting = 0;
+        	}
+        	if (leaf == null) {
+        		return false;
+        	}
+
+        	int cmp = Double.compare(leaf.keys[index], lowKey);
+        	if (cmp < 0 || (cmp == 0 && !inclusiveLow)) {
+        		leaf = null;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = leaf.keys[index];
+        	PostingList postings = leaf.postings[index];
+        	if (postings == null) {
+        		return table.get(leaf.ordinals[index--]);
+        	}
+        	int ordinal = postings.ordinals[postings.size - 1 - posting++];
+        	if (posting == postings.size) {
+        		index--;
+        		posting = 0;
+        	}
+        	return table.get(ordinal);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.RangeCursor#getKey()
+         */
+        @Override
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class DescendingCursor
+
+
+    /**
+     * Spliterator over a run of positions in key order, from and up to
+     * but not including to. Subtree counts place every position, so the
+     * spliterator and every piece split off it know their exact size.
+     * Traversal seeks to the first position the way select does and then
+     * follows the next links between leaves.
+     */
+    private class RangeSpliterator implements Spliterator<V> {
+
+        // Position of the next value
+        private int from;
+
+        // Position one past the last value
+        private final int to;
+
+        // Leaf holding position from, null until traversal starts
+        private LeafNode leaf;
+
+        // Position of the next key within leaf
+        private int index;
+
+        // Position of the next ordinal within the posting list of that key
+        private int posting;
+
+        /**
+         * Package constructor
+         *
+         * @param from position of the first value
+         * @param to position one past the last value
+         */
+        RangeSpliterator(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+        	if (from >= to) {
+        		return false;
+        	}
+        	action.accept(advance());
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#forEachRemaining(java.util.function.Consumer)
+         */
+        @Override
+        public void forEachRemaining(Consumer<? super V> action) {
+        	while (from < to) {
+        		action.accept(advance());
+        	}
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#trySplit()
+         */
+        @Override
+        public Spliterator<V> trySplit() {
+        	// Descend to the lowest node whose children split the run, skipping
+        	// whole children the way select does. first is the position of the
+        	// first value under node.
+        	int first = 0;
+        	Node node = root;
+        	while (node instanceof DoubleBPTree.InternalNode) {
+        		InternalNode internal = (InternalNode) node;
+        		int middle = from + (to - from) / 2;
+        		int cut = -1;
+        		int boundary = first;
+        		int child = 0;
+        		int inside = -1;
+        		for (; child <= internal.size; child++) {
+        			int end = boundary + internal.children[child].count;
+        			if (boundary > from && boundary < to
+        					&& (cut < 0 || Math.abs(boundary - middle) < Math.abs(cut - middle))) {
+        				cut = boundary;
+        			}
+        			if (from >= boundary && from < end) {
+        				inside = child;
+        			}
+        			if (end >= to) {
+        				break;
+        			}
+        			boundary = end;
+        		}
+        		if (cut >= 0) {
+        			// Hand off the part before the cut, which comes first in key order.
+        			RangeSpliterator prefix = new RangeSpliterator(from, cut);
+        			prefix.leaf = leaf;
+        			prefix.index = index;
+        			prefix.posting = posting;
+        			from = cut;
+        			leaf = null;
+        			return prefix;
+        		}
+        		if (inside < 0) {
+        			return null;
+        		}
+        		for (int i = 0; i < inside; i++) {
+        			first += internal.children[i].count;
+        		}
+        		node = internal.children[inside];
+        	}
+        	// The rest of the run lies in one leaf.
+        	return null;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#estimateSize()
+         */
+        @Override
+        public long estimateSize() {
+        	return to - from;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Spliterator#characteristics()
+         */
+        @Override
+        public int characteristics() {
+        	return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+        }
+
+        /**
+         * Returns the value at position from and moves past it, seeking to
+         * the position the first time it is needed.
+         *
+         * @return the value
+         */
+        private V advance() {
+        	if (leaf == null) {
+        		seek();
+        	}
+        	PostingList postings = leaf.postings[index];
+        	int ordinal;
+        	if (postings == null) {
+        		ordinal = leaf.ordinals[index++];
+        	}
+        	else {
+        		ordinal = postings.ordinals[posting++];
+        		if (posting == postings.size) {
+        			index++;
+        			posting = 0;
+        		}
+        	}
+        	if (index == leaf.size) {
+        		leaf = leaf.next;
+        		index = 0;
+        	}
+        	from++;
+        	return values.get(ordinal);
+        }
+
+        /**
+         * Places leaf, index and posting on position from.
+         */
+        private void seek() {
+        	int position = from;
+        	Node node = root;
+        	while (node instanceof DoubleBPTree.InternalNode) {
+        		InternalNode internal = (InternalNode) node;
+        		int child = 0;
+        		while (position >= internal.children[child].count) {
+        			position -= internal.children[child].count;
+        			child++;
+        		}
+        		node = internal.children[child];
+        	}
+        	leaf = (LeafNode) node;
+        	index = 0;
+        	while (position >= leaf.entryCount(index)) {
+        		position -= leaf.entryCount(index);
+        		index++;
+        	}
+        	posting = position;
+        }
+
+    } // End of class RangeSpliterator
+
+
+    /**
+     * A read-only version of the tree as it was when snapshot() was called.
+     * The tree copies every node and posting list a snapshot may share
+     * before changing it, and the values table copies its pages, so
+     * nothing a snapshot reaches changes again and any number of threads
+     * can read it while the tree goes on changing. Only the tree keeps
+     * its leaf links up to date, so cursors over a snapshot step from leaf
+     * to leaf along a LeafPath.
+     */
+    public class Snapshot implements NutrientIndex.Snapshot<V> {
+
+        // Root of this version
+        private final Node root;
+
+        // Values of this version by ordinal
+        private final List<V> table;
+
+        // Number of internal levels above the leaves
+        private final int levels;
+
+        /**
+         * Package constructor
+         *
+         * @param root root of the version
+         * @param table values of the version by ordinal
+         */
+        Snapshot(Node root, List<V> table) {
+            this.root = root;
+            this.table = table;
+            int height = 0;
+            for (Node node = root; node instanceof DoubleBPTree.InternalNode; node = ((InternalNode) node).children[0]) {
+                height++;
+            }
+            levels = height;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.Snapshot#size()
+         */
+        @Override
+        public int size() {
+        	return root.count;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.Snapshot#cursor(double, double, boolean, boolean)
+         */
+        @Override
+        public Cursor cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+        	LeafPath path = new LeafPath(root, levels, lowKey);
+        	LeafNode leaf = path.leaf;
+        	int index = inclusiveLow ? lowerBound(leaf.keys, leaf.size, lowKey)
+        			: upperBound(leaf.keys, leaf.size, lowKey);
+        	return new Cursor(leaf, index, highKey, inclusiveHigh, path, table);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.Snapshot#descendingCursor(double, double, boolean, boolean)
+         */
+        @Override
+        public DescendingCursor descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow) {
+        	LeafPath path = new LeafPath(root, levels, highKey);
+        	LeafNode leaf = path.leaf;
+        	int index = (inclusiveHigh ? upperBound(leaf.keys, leaf.size, highKey)
+        			: lowerBound(leaf.keys, leaf.size, highKey)) - 1;
+        	return new DescendingCursor(leaf, index, lowKey, inclusiveLow, path, table);
+        }
+
+        /**
+         * Counts the values in the interval in two descents, as the tree does.
+         *
+         * @see NutrientIndex.Snapshot#countRange(double, double, boolean, boolean)
+         */
+        @Override
+        public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+        	int count = rank(root, highKey, inclusiveHigh) - rank(root, lowKey, !inclusiveLow);
+        	return Math.max(0, count);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.Snapshot#estimateRange(double, double, int)
+         */
+        @Override
+        public int estimateRange(double lowKey, double highKey, int limit) {
+        	return countRange(lowKey, highKey, true, true);
+        }
+
+    } // End of class Snapshot
+
+
+    /**
+     * The internal nodes on the way from a root down to one leaf, with the
+     * child taken at each. The next leaf is found by going up to the
+     * lowest node with a child right of the path and then down the left
+     * edge of that child, and the previous leaf the other way round, so a
+     * walk over a run of leaves visits each node above them once.
+     */
+    private class LeafPath {
+
+        // Internal nodes from the root down
+        private final InternalNode[] nodes;
+
+        // Child taken at each of them
+        private final int[] slots;
+
+        // Leaf at the end of the path, null once a walk runs off either end
+        LeafNode leaf;
+
+        /**
+         * Package constructor
+         *
+         * Descends to the leaf that holds key, or the leaf it would be
+         * inserted into, the way findLeaf does.
+         *
+         * @param root root to descend from
+         * @param levels number of internal levels above the leaves
+         * @param key the key to look for
+         */
+        @SuppressWarnings("unchecked")
+        LeafPath(Node root, int levels, double key) {
+            nodes = (InternalNode[]) new DoubleBPTree<?>.InternalNode[levels];
+            slots = new int[levels];
+            Node node = root;
+            for (int level = 0; level < levels; level++) {
+                nodes[level] = (InternalNode) node;
+                slots[level] = upperBound(nodes[level].keys, nodes[level].size, key);
+                node = nodes[level].children[slots[level]];
+            }
+            leaf = (LeafNode) node;
+        }
+
+        /**
+         * Moves the path to the leaf after the current one.
+         *
+         * @return the next leaf, or null after the last
+         */
+        LeafNode next() {
+        	int level = nodes.length - 1;
+        	while (level >= 0 && slots[level] == nodes[level].size) {
+        		level--;
+        	}
+        	if (level < 0) {
+        		leaf = null;
+        		return null;
+        	}
+        	slots[level]++;
+        	return descend(level, true);
+        }
+
+        /**
+         * Moves the path to the leaf before the current one.
+         *
+         * @return the previous leaf, or null before the first
+         */
+        LeafNode previous() {
+        	int level = nodes.length - 1;
+        	while (level >= 0 && slots[level] == 0) {
+        		level--;
+        	}
+        	if (level < 0) {
+        		leaf = null;
+        		return null;
+        	}
+        	slots[level]--;
+        	return descend(level, false);
+        }
+
+        /**
+         * Follows the edge below the child taken at level down to a leaf.
+         *
+         * @param level level whose child was just changed
+         * @param first whether to take the first child on the way down, otherwise the last
+         * @return the leaf reached
+         */
+        private LeafNode descend(int level, boolean first) {
+        	Node node = nodes[level].children[slots[level]];
+        	for (int below = level + 1; below < nodes.length; below++) {
+        		nodes[below] = (InternalNode) node;
+        		slots[below] = first ? 0 : nodes[below].size;
+        		node = nodes[below].children[slots[below]];
+        	}
+        	leaf = (LeafNode) node;
+        	return leaf;
+        }
+
+    } // End of class LeafPath
+
+
+    /**
+     * This abstract class represents any type of node in the tree.
+     * Keys live in a fixed-capacity array of which the first size
+     * positions are in use.
+     */
+    private abstract class Node {
+
+        // Keys of the node, only the first size are in use
+        double[] keys;
+
+        // Number of keys in use
+        int size;
+
+        // Number of values stored in the subtree under this node
+        int count;
+
+        // Epoch the node was made in
+        int epoch;
+
+        /**
+         * Package constructor
+         *
+         * Every node has room for one key more than it may keep,
+         * so that it can overflow before it splits.
+         */
+        Node() {
+            keys = new double[branchingFactor];
+            epoch = DoubleBPTree.this.epoch;
+        }
+
+        /**
+         * Copies the node, in the current epoch, for a change that a
+         * snapshot sharing the node must not see
+         *
+         * @return the copy
+         */
+        abstract Node copy();
+
+        /**
+         * Inserts key and ordinal in the appropriate leaf node
+         * and splits the node if it overflows
+         *
+         * @param key
+         * @param ordinal position of the value in the values table
+         * @return the new sibling if this node split, otherwise null
+         */
+        abstract Node insert(double key, int ordinal);
+
+        /**
+         * Gets the first leaf key of the subtree
+         *
+         * @return key
+         */
+        abstract double getFirstLeafKey();
+
+        /**
+         * Deletes one entry with the given key and value below this node
+         * and rebalances any child that is left with too few entries
+         *
+         * @param key
+         * @param value
+         * @return true if an entry was deleted
+         */
+        abstract boolean delete(double key, V value);
+
+        /**
+         * Checks whether the node has fewer entries than a node should keep
+         *
+         * @return boolean
+         */
+        abstract boolean isUnderflow();
+
+        /**
+         * Checks whether the node can give an entry to a sibling
+         * and still keep enough entries
+         *
+         * @return boolean
+         */
+        abstract boolean canLend();
+
+        public String toString() {
+            return Arrays.toString(Arrays.copyOf(keys, size));
+        }
+
+    } // End of abstract class Node
+
+
+    /**
+     * This class represents an internal node of the tree.
+     * An internal node with size keys has size + 1 children.
+     */
+    private class InternalNode extends Node {
+
+        // Children nodes, only the first size + 1 are in use
+        Node[] children;
+
+        /**
+         * Package constructor
+         */
+        @SuppressWarnings("unchecked")
+        InternalNode() {
+            super();
+            children = (Node[]) new DoubleBPTree<?>.Node[branchingFactor + 1];
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#getFirstLeafKey()
+         */
+        double getFirstLeafKey() {
+            return children[0].getFirstLeafKey();
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#isUnderflow()
+         */
+        boolean isUnderflow() {
+            return size + 1 < (branchingFactor + 1) / 2;
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#copy()
+         */
+        Node copy() {
+        	InternalNode copy = new InternalNode();
+        	System.arraycopy(keys, 0, copy.keys, 0, size);
+        	System.arraycopy(children, 0, copy.children, 0, size + 1);
+        	copy.size = size;
+        	copy.count = count;
+        	return copy;
+        }
+
+        /**
+         * Gets the child at index ready to be changed, putting a copy in
+         * its place if a snapshot may share it
+         *
+         * @param index position of the child
+         * @return the child
+         */
+        private Node writableChild(int index) {
+        	children[index] = writable(children[index]);
+        	return children[index];
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#canLend()
+         */
+        boolean canLend() {
+            return size + 1 > (branchingFactor + 1) / 2;
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#delete(double, Object)
+         */
+        boolean delete(double key, V value) {
+        	int index = upperBound(keys, size, key);
+        	if (!writableChild(index).delete(key, value)) {
+        		return false;
+        	}
+        	count--;
+        	rebalance(index);
+        	return true;
+        }
+
+        /**
+         * Fixes the child at index if it underflowed: it borrows from a
+         * sibling that has entries to spare, otherwise merges with one.
+         *
+         * @param index position of the child that lost an entry
+         */
+        private void rebalance(int index) {
+        	if (!children[index].isUnderflow()) {
+        		return;
+        	}
+        	Node left = index > 0 ? children[index - 1] : null;
+        	Node right = index < size ? children[index + 1] : null;
+
+        	// A sibling that lends or takes the entries changes too.
+        	if (left != null && left.canLend()) {
+        		writableChild(index - 1);
+        		borrowFromLeft(index);
+        	}
+        	else if (right != null && right.canLend()) {
+        		writableChild(index + 1);
+        		borrowFromRight(index);
+        	}
+        	else if (left != null) {
+        		writableChild(index - 1);
+        		merge(index - 1);
+        	}
+        	else if (right != null) {
+        		merge(index);
+        	}
+        }
+
+        /**
+         * Moves the last entry of the left sibling into the child at index.
+         *
+         * @param index position of the child
+         */
+        private void borrowFromLeft(int index) {
+        	if (children[index] instanceof DoubleBPTree.LeafNode) {
+        		LeafNode left = (LeafNode) children[index - 1];
+        		LeafNode leaf = (LeafNode) children[index];
+        		leaf.move(0, 1, leaf.size);
+        		left.size--;
+        		leaf.copyFrom(left, left.size, 0, 1);
+        		left.postings[left.size] = null;
+        		leaf.size++;
+        		int moved = leaf.entryCount(0);
+        		left.count -= moved;
+        		leaf.count += moved;
+        		keys[index - 1] = leaf.keys[0];
+        	}
+        	else {
+        		// Rotate through the separator in this node.
+        		InternalNode left = (InternalNode) children[index - 1];
+        		InternalNode internal = (InternalNode) children[index];
+        		System.arraycopy(internal.keys, 0, internal.keys, 1, internal.size);
+        		System.arraycopy(internal.children, 0, internal.children, 1, internal.size + 1);
+        		internal.keys[0] = keys[index - 1];
+        		internal.children[0] = left.children[left.size];
+        		internal.size++;
+        		left.count -= internal.children[0].count;
+        		internal.count += internal.children[0].count;
+        		left.children[left.size] = null;
+        		left.size--;
+        		keys[index - 1] = left.keys[left.size];
+        	}
+        }
+
+        /**
+         * Moves the first entry of the right sibling into the child at index.
+         *
+         * @param index position of the child
+         */
+        private void borrowFromRight(int index) {
+        	if (children[index] instanceof DoubleBPTree.LeafNode) {
+        		LeafNode leaf = (LeafNode) children[index];
+        		LeafNode right = (LeafNode) children[index + 1];
+        		leaf.copyFrom(right, 0, leaf.size, 1);
+        		int moved = leaf.entryCount(leaf.size);
+        		leaf.count += moved;
+        		right.count -= moved;
+        		leaf.size++;
+        		right.size--;
+        		right.move(1, 0, right.size);
+        		right.postings[right.size] = null;
+        		keys[index] = right.keys[0];
+        	}
+        	else {
+        		// Rotate through the separator in this node.
+        		InternalNode internal = (InternalNode) children[index];
+        		InternalNode right = (InternalNode) children[index + 1];
+        		internal.keys[internal.size] = keys[index];
+        		internal.children[internal.size + 1] = right.children[0];
+        		internal.size++;
+        		internal.count += right.children[0].count;
+        		right.count -= right.children[0].count;
+        		keys[index] = right.keys[0];
+        		System.arraycopy(right.keys, 1, right.keys, 0, right.size - 1);
+        		System.arraycopy(right.children, 1, right.children, 0, right.size);
+        		right.children[right.size] = null;
+        		right.size--;
+        	}
+        }
+
+        /**
+         * Merges the child at index + 1 into the child at index and
+         * drops the separator between them.
+         *
+         * @param index position of the left child of the pair
+         */
+        private void merge(int index) {
+        	if (children[index] instanceof DoubleBPTree.LeafNode) {
+        		LeafNode left = (LeafNode) children[index];
+        		LeafNode right = (LeafNode) children[index + 1];
+        		left.copyFrom(right, 0, left.size, right.size);
+        		left.size += right.size;
+        		left.count += right.count;
+
+        		// Re-setting the LeafNode links.
+        		left.next = right.next;
+        		if (right.next != null) {
+        			right.next.previous = left;
+        		}
+        	}
+        	else {
+        		InternalNode left = (InternalNode) children[index];
+        		InternalNode right = (InternalNode) children[index + 1];
+        		left.keys[left.size] = keys[index];
+        		System.arraycopy(right.keys, 0, left.keys, left.size + 1, right.size);
+        		System.arraycopy(right.children, 0, left.children, left.size + 1, right.size + 1);
+        		left.size += right.size + 1;
+        		left.count += right.count;
+        	}
+
+        	// Drop the separator and the merged child from this node.
+        	System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        	System.arraycopy(children, index + 2, children, index + 1, size - index - 1);
+        	children[size] = null;
+        	size--;
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#insert(double, int)
+         */
+        Node insert(double key, int ordinal) {
+        	// Equal keys go right, after the ones already in the tree.
+        	int index = upperBound(keys, size, key);
+        	Node sibling = writableChild(index).insert(key, ordinal);
+        	count++;
+        	if (sibling == null) {
+        		return null;
+        	}
+
+        	// Make room for the promoted key and the new child.
+        	System.arraycopy(keys, index, keys, index + 1, size - index);
+        	System.arraycopy(children, index + 1, children, index + 2, size - index);
+        	keys[index] = promotedKey;
+        	children[index + 1] = sibling;
+        	size++;
+
+        	if (size + 1 > branchingFactor) {
+        		return split();
+        	}
+        	return null;
+        }
+
+        /**
+         * Moves the upper half of the keys and children to a new sibling
+         * and promotes the middle key.
+         *
+         * @return the new sibling
+         */
+        private Node split() {
+        	splits++;
+        	InternalNode sibling = new InternalNode();
+        	int middle = size / 2;
+
+        	sibling.size = size - middle - 1;
+        	System.arraycopy(keys, middle + 1, sibling.keys, 0, sibling.size);
+        	System.arraycopy(children, middle + 1, sibling.children, 0, sibling.size + 1);
+        	promotedKey = keys[middle];
+        	for (int i = 0; i <= sibling.size; i++) {
+        		sibling.count += sibling.children[i].count;
+        	}
+        	count -= sibling.count;
+
+        	// Clear the moved children so they are not held on to twice.
+        	Arrays.fill(children, middle + 1, size + 1, null);
+        	size = middle;
+        	return sibling;
+        }
+
+    } // End of class InternalNode
+
+
+    /**
+     * This class represents a leaf node of the tree.
+     * Each distinct key is paired with either the ordinal of its only
+     * value or a posting list with the ordinals of all of its values.
+     */
+    private class LeafNode extends Node {
+
+        // Ordinal of the only value of keys[i], used when postings[i] is null
+        int[] ordinals;
+
+        // Ordinals of all values of keys[i] when there is more than one
+        PostingList[] postings;
+
+        // Reference to the next leaf node
+        LeafNode next;
+
+        // Reference to the previous leaf node
+        LeafNode previous;
+
+        /**
+         * Package constructor
+         */
+        LeafNode() {
+            super();
+            ordinals = new int[branchingFactor];
+            postings = new PostingList[branchingFactor];
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#getFirstLeafKey()
+         */
+        double getFirstLeafKey() {
+            return keys[0];
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#isUnderflow()
+         */
+        boolean isUnderflow() {
+            return size < branchingFactor / 2;
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#copy()
+         */
+        Node copy() {
+        	LeafNode copy = new LeafNode();
+        	copy.copyFrom(this, 0, 0, size);
+        	copy.size = size;
+        	copy.count = count;
+
+        	// The copy takes this leaf's place in the tree's chain of leaves;
+        	// snapshots never follow the links, so this leaf keeps its own.
+        	copy.next = next;
+        	copy.previous = previous;
+        	if (next != null) {
+        		next.previous = copy;
+        	}
+        	if (previous != null) {
+        		previous.next = copy;
+        	}
+        	return copy;
+        }
+
+        /**
+         * Gets the posting list of the key at index ready to be changed,
+         * putting a copy in its place if a snapshot may share it
+         *
+         * @param index position of the key
+         * @return the posting list
+         */
+        private PostingList writablePostings(int index) {
+        	PostingList list = postings[index];
+        	if (list.epoch != DoubleBPTree.this.epoch) {
+        		list = new PostingList(Arrays.copyOf(list.ordinals, list.size), list.size, DoubleBPTree.this.epoch);
+        		postings[index] = list;
+        	}
+        	return list;
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#canLend()
+         */
+        boolean canLend() {
+            return size > branchingFactor / 2;
+        }
+
+        /**
+         * Gets the number of values stored under the key at index.
+         *
+         * @param index position of the key
+         * @return number of values
+         */
+        int entryCount(int index) {
+        	return postings[index] == null ? 1 : postings[index].size;
+        }
+
+        /**
+         * Adds every value of the key at index to result, in ordinal order.
+         *
+         * @param index position of the key
+         * @param result list to add the values to
+         */
+        void addValues(int index, List<V> result) {
+        	PostingList list = postings[index];
+        	if (list == null) {
+        		result.add(values.get(ordinals[index]));
+        		return;
+        	}
+        	for (int i = 0; i < list.size; i++) {
+        		result.add(values.get(list.ordinals[i]));
+        	}
+        }
+
+        /**
+         * Shifts count entries within this leaf from position from to position to.
+         *
+         * @param from first position to move
+         * @param to position it moves to
+         * @param count number of entries to move
+         */
+        void move(int from, int to, int count) {
+        	System.arraycopy(keys, from, keys, to, count);
+        	System.arraycopy(ordinals, from, ordinals, to, count);
+        	System.arraycopy(postings, from, postings, to, count);
+        }
+
+        /**
+         * Copies count entries from another leaf into this one.
+         *
+         * @param source leaf to copy from
+         * @param from first position in source
+         * @param to first position in this leaf
+         * @param count number of entries to copy
+         */
+        void copyFrom(LeafNode source, int from, int to, int count) {
+        	System.arraycopy(source.keys, from, keys, to, count);
+        	System.arraycopy(source.ordinals, from, ordinals, to, count);
+        	System.arraycopy(source.postings, from, postings, to, count);
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#delete(double, Object)
+         */
+        boolean delete(double key, V value) {
+        	int index = lowerBound(keys, size, key);
+        	if (index == size || Double.compare(keys[index], key) != 0) {
+        		return false;
+        	}
+
+        	PostingList list = postings[index];
+        	if (list == null) {
+        		if (!Objects.equals(values.get(ordinals[index]), value)) {
+        			return false;
+        		}
+        		// The last value of the key is gone, so the key goes too.
+        		freeOrdinal(ordinals[index]);
+        		count--;
+        		move(index + 1, index, size - index - 1);
+        		size--;
+        		postings[size] = null;
+        		return true;
+        	}
+
+        	for (int i = 0; i < list.size; i++) {
+        		if (Objects.equals(values.get(list.ordinals[i]), value)) {
+        			freeOrdinal(list.ordinals[i]);
+        			list = writablePostings(index);
+        			list.remove(i);
+        			count--;
+        			// A single remaining value goes back inline.
+        			if (list.size == 1) {
+        				ordinals[index] = list.ordinals[0];
+        				postings[index] = null;
+        			}
+        			return true;
+        		}
+        	}
+        	return false;
+        }
+
+        /**
+         * (non-Javadoc)
+         * @see DoubleBPTree.Node#insert(double, int)
+         */
+        Node insert(double key, int ordinal) {
+        	count++;
+        	int index = lowerBound(keys, size, key);
+
+        	// A key that is already here only gains an ordinal.
+        	if (index < size && Double.compare(keys[index], key) == 0) {
+        		if (postings[index] == null) {
+        			postings[index] = new PostingList(new int[] {ordinals[index]}, 1, DoubleBPTree.this.epoch);
+        		}
+        		writablePostings(index).add(ordinal);
+        		return null;
+        	}
+
+        	move(index, index + 1, size - index);
+        	keys[index] = key;
+        	ordinals[index] = ordinal;
+        	postings[index] = null;
+        	size++;
+
+        	if (size == branchingFactor) {
+        		return split();
+        	}
+        	return null;
+        }
+
+        /**
+         * Moves the upper half of the entries to a new sibling leaf,
+         * links it in after this leaf and promotes its first key.
+         *
+         * @return the new sibling
+         */
+        private Node split() {
+        	splits++;
+        	LeafNode sibling = new LeafNode();
+        	int startingIndex = (size + 1) / 2;
+
+        	sibling.size = size - startingIndex;
+        	sibling.copyFrom(this, startingIndex, 0, sibling.size);
+        	for (int i = 0; i < sibling.size; i++) {
+        		sibling.count += sibling.entryCount(i);
+        	}
+        	count -= sibling.count;
+        	Arrays.fill(postings, startingIndex, size, null);
+        	size = startingIndex;
+        	promotedKey = sibling.keys[0];
+
+        	// Re-setting the LeafNode links.
+        	if (next != null) {
+        		next.previous = sibling;
+        	}
+        	sibling.next = next;
+        	sibling.previous = this;
+        	next = sibling;
+
+        	return sibling;
+        }
+
+    } // End of class LeafNode
+
+
+    /**
+     * The ordinals of all values that share one key, in ascending order.
+     * Only the first size positions of the array are in use, so appends
+     * of new, larger ordinals are amortized constant time.
+     */
+    private static class PostingList {
+
+        // Ordinals in ascending order, only the first size are in use
+        int[] ordinals;
+
+        // Number of ordinals in use
+        int size;
+
+        // Epoch of the tree the list was made in
+        final int epoch;
+
+        /**
+         * Package constructor
+         *
+         * @param ordinals ordinals in ascending order
+         * @param size number of ordinals in use
+         * @param epoch epoch of the tree the list is made in
+         */
+        PostingList(int[] ordinals, int size, int epoch) {
+            this.ordinals = ordinals;
+            this.size = size;
+            this.epoch = epoch;
+        }
+
+        /**
+         * Adds an ordinal at its sorted position.
+         *
+         * @param ordinal the ordinal to add
+         */
+        void add(int ordinal) {
+        	if (size == ordinals.length) {
+        		ordinals = Arrays.copyOf(ordinals, Math.max(4, size * 2));
+        	}
+        	// New ordinals are usually the largest, so look from the end.
+        	int index = size;
+        	while (index > 0 && ordinals[index - 1] > ordinal) {
+        		ordinals[index] = ordinals[index - 1];
+        		index--;
+        	}
+        	ordinals[index] = ordinal;
+        	size++;
+        }
+
+        /**
+         * Removes the ordinal at the given position.
+         *
+         * @param index position of the ordinal
+         */
+        void remove(int index) {
+        	System.arraycopy(ordinals, index + 1, ordinals, index, size - index - 1);
+        	size--;
+        }
+
+    } // End of class PostingList
+
+} // End of class DoubleBPTree
@@ -4,41 +4,316 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * This class represents the backend for managing all 
  * the operations associated with FoodItems
  * 
+ * A FoodData can be shared between threads. Every public method runs
+ * under one read/write latch over all of the structures: queries share
+ * it, so they run side by side, and changes such as addFoodItem hold it
+ * alone, so a query never sees an item half added to the indexes. The
+ * cursors a query walks live only inside that call. A snapshot of the
+ * indexes can be queried without the latch at all, while items go on
+ * being added.
+ * 
  * @author sapan (sapan@cs.wisc.edu)
  */
 public class FoodData implements FoodDataADT<FoodItem> {
     
     // List of all the food items.
     private List<FoodItem> foodItemList;
+    
+    // Position of each food item in foodItemList, so that one is removed without a scan
+    private HashMap<FoodItem, Integer> positions;
 
     // Map of nutrients and their corresponding index
-    private HashMap<String, BPTree<Double, FoodItem>> indexes;
+    private HashMap<String, NutrientIndex<FoodItem>> indexes;
+    
+    // Food items by ordinal, in the order they were added
+    private List<FoodItem> ordinalTable;
+    
+    // Ordinal of each food item in ordinalTable
+    private HashMap<FoodItem, Integer> ordinals;
+    
+    // Ordinal of each food item by its ID
+    private FoodIdIndex idIndex;
+    
+    // Ordinals of the food items by the trigrams of their lower case names
+    private NameTrigramIndex nameIndex;
+    
+    // Whether the indexes are PagedBPTrees kept in files
+    private boolean paged;
+    
+    // Branching factor asked for each heap index, AUTO_BRANCHING_FACTOR to size it by the data
+    private HashMap<String, Integer> branchingFactors;
+    
+    // Entries each internal node of a heap index buffers, 0 for unbuffered DoubleBPTrees
+    private int bufferCapacity;
+    
+    // k-d tree over the nutrient vector of each food item, in NUTRIENTS order
+    private KdTree<FoodItem> nutrientSpace;
+    
+    // Bitmap index of each nutrient over the ordinals, null unless the bitmap mode is on
+    private HashMap<String, NutrientBitmapIndex> bitmapIndexes;
+    
+    // Buckets of each bitmap index, 0 while the bitmap mode is off
+    private int bitmapBuckets;
+    
+    // Nutrient values of every ordinal, one column per nutrient in NUTRIENTS
+    private NutrientColumns columns;
+    
+    // Whether filterByNutrients scans the columns instead of searching the indexes
+    private volatile boolean columnScan;
+    
+    // Plan of the last filterByNutrients or countRange call on any thread, null before the first
+    private volatile QueryPlan lastPlan;
+    
+    // Latch over every structure above; reads share it, changes hold it alone
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+    
+    // Branching factor that picks node sizes from the number of entries in the index
+    public static final int AUTO_BRANCHING_FACTOR = 0;
+    
+    // Entries up to which an index is small enough to stay in cache
+    private static final int CACHE_RESIDENT_ENTRIES = 32768;
+    
+    // Size in bytes of a cache line
+    private static final int CACHE_LINE = 64;
+    
+    // How full the index nodes are packed when a file is bulk loaded
+    private static final double LOAD_FILL_FACTOR = 1.0;
+    
+    // Size in bytes of a page of a paged index
+    private static final int PAGE_SIZE = 4096;
+    
+    // Nutrients that are indexed
+    private static final String[] NUTRIENTS = {"calories", "fat", "carbohydrate", "fiber", "protein"};
+    
+    // Food items a bucket of the k-d tree holds before it splits
+    private static final int KD_BUCKET_SIZE = 32;
+    
+    // Planner costs in roughly nanoseconds, measured on 500,000 items: checking
+    // one rule on one value of a column scan, taking one value out of an index,
+    // checking the other rules on one candidate of an index search (a lookup in
+    // the item's HashMap per rule), and one item visited by the k-d tree
+    private static final double SCAN_COST = 2;
+    private static final double INDEX_VALUE_COST = 10;
+    private static final double PREDICATE_COST = 400;
+    private static final double KD_VISIT_COST = 15;
     
     
     /**
      * Public constructor
      * Initialize the foodItemList as well as the hashMap of strings
-     * and BP Trees
+     * and DoubleBPTrees, one per nutrient, with node sizes picked by
+     * the size of the data
      */
     public FoodData() {
+    	this(AUTO_BRANCHING_FACTOR);
+    }
+    
+    /**
+     * Public constructor
+     * Initialize the foodItemList as well as the hashMap of strings
+     * and DoubleBPTrees, one per nutrient, all with the given branching factor
+     * @param branchingFactor branching factor of every index (>2),
+     *        or AUTO_BRANCHING_FACTOR to size the nodes by the data
+     */
+    public FoodData(int branchingFactor) {
+    	this(branchingFactor, 0);
+    }
+    
+    /**
+     * Public constructor
+     * Initialize the foodItemList as well as the hashMap of strings and
+     * nutrient indexes. With a buffer capacity the indexes are
+     * BufferedBPTrees, which hold inserts back in their internal nodes
+     * and move them down in batches; this suits loads that add many items
+     * one at a time between reads.
+     * @param branchingFactor branching factor of every index (>2),
+     *        or AUTO_BRANCHING_FACTOR to size the nodes by the data
+     * @param bufferCapacity entries each internal node buffers, 0 for DoubleBPTree indexes
+     */
+    public FoodData(int branchingFactor, int bufferCapacity) {
+    	checkBranchingFactor(branchingFactor);
+    	if(bufferCapacity < 0) {
+    		throw new IllegalArgumentException("Illegal buffer capacity: " + bufferCapacity);
+    	}
+    	this.bufferCapacity = bufferCapacity;
     	foodItemList = new ArrayList<FoodItem>();
-    	indexes = new HashMap<String, BPTree<Double, FoodItem>>();
-    	indexes.put("calories", new BPTree<Double,FoodItem>(3));
-    	indexes.put("fat", new BPTree<Double,FoodItem>(3));
-    	indexes.put("carbohydrate", new BPTree<Double,FoodItem>(3));
-    	indexes.put("fiber", new BPTree<Double,FoodItem>(3));
-    	indexes.put("protein", new BPTree<Double,FoodItem>(3));
+    	positions = new HashMap<FoodItem, Integer>();
+    	//the buffered indexes read their snapshots' items from a version of this table
+    	ordinalTable = new VersionedTable<FoodItem>();
+    	ordinals = new HashMap<FoodItem, Integer>();
+    	idIndex = new FoodIdIndex();
+    	nameIndex = new NameTrigramIndex();
+    	indexes = new HashMap<String, NutrientIndex<FoodItem>>();
+    	branchingFactors = new HashMap<String, Integer>();
+    	nutrientSpace = new KdTree<FoodItem>(NUTRIENTS.length, KD_BUCKET_SIZE);
+    	columns = new NutrientColumns(NUTRIENTS);
+    	for(String nutrient : NUTRIENTS) {
+    		branchingFactors.put(nutrient, branchingFactor);
+    		indexes.put(nutrient, newIndex(nutrient, 0));
+    	}
+    }
+    
+    /**
+     * Creates an empty heap index of the kind this FoodData uses
+     * @param nutrient name of the nutrient
+     * @param entries number of entries the index is sized for
+     * @return the new index
+     */
+    private NutrientIndex<FoodItem> newIndex(String nutrient, int entries) {
+    	int branchingFactor = branchingFactorFor(nutrient, entries);
+    	if(bufferCapacity > 0) {
+    		return new BufferedBPTree<FoodItem>(branchingFactor, bufferCapacity, ordinalTable, food -> ordinals.get(food));
+    	}
+    	return new DoubleBPTree<FoodItem>(branchingFactor);
+    }
+    
+    /**
+     * Public constructor
+     * Keeps every nutrient index in its own file in indexDirectory, cached
+     * through a buffer pool of poolPages pages per index. Index files left
+     * by an earlier run are reopened, and are only rebuilt when the first
+     * file loaded no longer matches them.
+     * @param indexDirectory directory of the index files
+     * @param poolPages number of pages each index caches in memory
+     */
+    public FoodData(File indexDirectory, int poolPages) {
+    	foodItemList = new ArrayList<FoodItem>();
+    	positions = new HashMap<FoodItem, Integer>();
+    	ordinalTable = new ArrayList<FoodItem>();
+    	ordinals = new HashMap<FoodItem, Integer>();
+    	idIndex = new FoodIdIndex();
+    	nameIndex = new NameTrigramIndex();
+    	indexes = new HashMap<String, NutrientIndex<FoodItem>>();
+    	paged = true;
+    	nutrientSpace = new KdTree<FoodItem>(NUTRIENTS.length, KD_BUCKET_SIZE);
+    	columns = new NutrientColumns(NUTRIENTS);
+    	indexDirectory.mkdirs();
+    	for(String nutrient : NUTRIENTS) {
+    		indexes.put(nutrient, new PagedBPTree<FoodItem>(new File(indexDirectory, nutrient + ".idx"),
+    				PAGE_SIZE, poolPages, ordinalTable, food -> ordinals.get(food)));
+    	}
+    }
+    
+    
+    /**
+     * Runs a read of the data set under the latch, shared with other
+     * reads. A paged index moves pages through its pool as it reads, and
+     * a buffered index pushes buffered entries down to the leaves it
+     * reads, so those reads hold the latch alone. The buffered entries
+     * are all pushed down then, so the reads after it share the latch
+     * again. A read made inside another read or a change runs under the
+     * latch the outer call holds.
+     * @param read the read
+     * @return what the read returns
+     */
+    private <T> T read(Supplier<T> read) {
+    	if(latch.isWriteLockedByCurrentThread() || latch.getReadHoldCount() > 0) {
+    		return read.get();
+    	}
+    	Lock lock = latch.readLock();
+    	lock.lock();
+    	if(paged || hasBufferedEntries()) {
+    		lock.unlock();
+    		lock = latch.writeLock();
+    		lock.lock();
+    	}
+    	try {
+    		flushBuffers();
+    		return read.get();
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+    
+    /**
+     * Runs a read of the data set that returns nothing under the latch
+     * @param read the read
+     * @see #read(Supplier)
+     */
+    private void read(Runnable read) {
+    	read(() -> {
+    		read.run();
+    		return null;
+    	});
+    }
+    
+    /**
+     * Runs a change of the data set holding the latch alone
+     * @param write the change
+     * @return what the change returns
+     * @throws IllegalStateException if called from inside a read, whose
+     *         shared latch could never be traded for the exclusive one
+     */
+    private <T> T write(Supplier<T> write) {
+    	if(latch.getReadHoldCount() > 0 && !latch.isWriteLockedByCurrentThread()) {
+    		throw new IllegalStateException("The food data can not be changed inside a read");
+    	}
+    	Lock lock = latch.writeLock();
+    	lock.lock();
+    	try {
+    		return write.get();
+    	}
+    	finally {
+    		lock.unlock();
+    	}
+    }
+    
+    /**
+     * Runs a change of the data set that returns nothing holding the latch alone
+     * @param write the change
+     * @see #write(Supplier)
+     */
+    private void write(Runnable write) {
+    	write(() -> {
+    		write.run();
+    		return null;
+    	});
+    }
+    
+    /**
+     * Tells whether any buffered index holds entries that are not in a leaf yet
+     * @return true if a read would move entries
+     */
+    private boolean hasBufferedEntries() {
+    	for(NutrientIndex<FoodItem> index : indexes.values()) {
+    		if(index instanceof BufferedBPTree && ((BufferedBPTree<FoodItem>) index).bufferedEntries() > 0) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Pushes the entries of every buffered index down to the leaves,
+     * which only happens while the latch is held alone
+     */
+    private void flushBuffers() {
+    	if(!latch.isWriteLockedByCurrentThread()) {
+    		return;
+    	}
+    	for(NutrientIndex<FoodItem> index : indexes.values()) {
+    		if(index instanceof BufferedBPTree) {
+    			((BufferedBPTree<FoodItem>) index).flushBuffers();
+    		}
+    	}
     }
     
     
@@ -48,8 +323,18 @@ public class FoodData implements FoodDataADT<FoodItem> {
      */
     @Override
     public void loadFoodItems(String filePath) {
+    	write(() -> load(filePath));
+    }
+    
+    /**
+     * Reads the food items of a file into the data set, under the latch
+     * @param filePath path of the file
+     */
+    private void load(String filePath) {
     	
     	File inputFile = new File(filePath);
+    	//items read from the file, indexed all at once after reading
+    	List<FoodItem> loadedItems = new ArrayList<FoodItem>();
     	try {
 	    	Scanner in = new Scanner(inputFile);
 	    	
@@ -78,14 +363,15 @@ public class FoodData implements FoodDataADT<FoodItem> {
 		    			else {
 		    				//construct new foodItem
 		    				
+		    				//nutrient names are kept in lower case, the case rules are compiled to
 		    				FoodItem newItem = new FoodItem(id, name);
-		    				newItem.addNutrient(calories, calorieCount);
-		    				newItem.addNutrient(fat, fatCount);
-		    				newItem.addNutrient(carbohydrates, carbohydratesCount);
-		    				newItem.addNutrient(fiber, fiberCount);
-		    				newItem.addNutrient(protein, proteinCount);
+		    				newItem.addNutrient(calories.toLowerCase(), calorieCount);
+		    				newItem.addNutrient(fat.toLowerCase(), fatCount);
+		    				newItem.addNutrient(carbohydrates.toLowerCase(), carbohydratesCount);
+		    				newItem.addNutrient(fiber.toLowerCase(), fiberCount);
+		    				newItem.addNutrient(protein.toLowerCase(), proteinCount);
 		    				
-		    				addFoodItem(newItem);
+		    				loadedItems.add(newItem);
 		    				
 		    			}
 		    				
@@ -101,12 +387,455 @@ public class FoodData implements FoodDataADT<FoodItem> {
     		System.err.println(e.getMessage());
     	}
     	
+    	//an ID already in the data set or earlier in the file is rejected
+    	FoodIdIndex loadedIds = new FoodIdIndex();
+    	List<FoodItem> uniqueItems = new ArrayList<FoodItem>();
+    	for(FoodItem item : loadedItems) {
+    		if(idIndex.get(item.getID()) >= 0 || !loadedIds.put(item.getID(), uniqueItems.size())) {
+    			System.err.println("Duplicate food item ID: " + item.getID());
+    		}
+    		else {
+    			uniqueItems.add(item);
+    		}
+    	}
+    	loadedItems = uniqueItems;
+    	
+    	//an empty data set can have its indexes built bottom-up in one pass,
+    	//otherwise the new items have to be inserted one at a time
+    	if(foodItemList.isEmpty()) {
+    		foodItemList.addAll(loadedItems);
+    		for(FoodItem item : loadedItems) {
+    			assignOrdinal(item);
+    		}
+    		bulkLoadIndexes();
+    		bulkLoadNutrientSpace();
+    		bulkLoadBitmapIndexes();
+    		bulkLoadColumns();
+    	}
+    	else {
+    		for(FoodItem item : loadedItems) {
+    			add(item);
+    		}
+    	}
+    	
     	//maintain sort
     	Collections.sort(foodItemList, (a,b) -> a.getName().toLowerCase().compareTo(b.getName().toLowerCase()));
+    	reposition();
+    	flushIndexes();
+    }
+    
+    /**
+     * Records the position of every food item in foodItemList, after the
+     * list has been sorted
+     */
+    private void reposition() {
+    	positions.clear();
+    	for(int i = 0; i < foodItemList.size(); i++) {
+    		positions.put(foodItemList.get(i), i);
+    	}
+    }
+    
+    /**
+     * Rebuilds every nutrient index from foodItemList by sorting the
+     * items on that nutrient and bulk loading the sorted run into a new
+     * heap index, instead of inserting (and splitting) item by item.
+     * A paged index whose file already holds exactly these items is
+     * reused as it is.
+     */
+    private void bulkLoadIndexes() {
+    	if(paged) {
+    		bulkLoadPagedIndexes();
+    		return;
+    	}
+    	for(String nutrient : indexes.keySet()) {
+    		bulkLoadIndex(nutrient);
+    	}
+    }
+    
+    /**
+     * Rebuilds the k-d tree from foodItemList, splitting the items at
+     * medians instead of inserting them one at a time
+     */
+    private void bulkLoadNutrientSpace() {
+    	List<double[]> points = new ArrayList<double[]>();
+    	for(FoodItem food : foodItemList) {
+    		points.add(pointOf(food));
+    	}
+    	nutrientSpace = new KdTree<FoodItem>(NUTRIENTS.length, KD_BUCKET_SIZE, points, foodItemList);
+    }
+    
+    /**
+     * Rebuilds the bitmap indexes from the ordinal table, or drops them
+     * while the bitmap mode is off
+     */
+    private void bulkLoadBitmapIndexes() {
+    	if(bitmapBuckets == 0) {
+    		bitmapIndexes = null;
+    		return;
+    	}
+    	bitmapIndexes = new HashMap<String, NutrientBitmapIndex>();
+    	for(String nutrient : NUTRIENTS) {
+    		//removed items leave an empty slot, which has no value like a missing nutrient
+    		double[] values = new double[ordinalTable.size()];
+    		for(int ordinal = 0; ordinal < values.length; ordinal++) {
+    			FoodItem food = ordinalTable.get(ordinal);
+    			Double value = food != null ? food.getNutrients().get(nutrient) : null;
+    			values[ordinal] = value != null ? value : Double.NaN;
+    		}
+    		bitmapIndexes.put(nutrient, new NutrientBitmapIndex(bitmapBuckets, values));
+    	}
+    }
+    
+    /**
+     * Rebuilds the nutrient columns from the ordinal table
+     */
+    private void bulkLoadColumns() {
+    	columns = new NutrientColumns(NUTRIENTS);
+    	for(int ordinal = 0; ordinal < ordinalTable.size(); ordinal++) {
+    		FoodItem food = ordinalTable.get(ordinal);
+    		if(food != null) {
+    			setColumns(ordinal, food);
+    		}
+    	}
+    }
+    
+    /**
+     * Copies the nutrient values of a food item into the columns
+     * @param ordinal ordinal of the food item
+     * @param food the food item
+     */
+    private void setColumns(int ordinal, FoodItem food) {
+    	for(Map.Entry<String, Double> entry : food.getNutrients().entrySet()) {
+    		columns.set(ordinal, entry.getKey(), entry.getValue());
+    	}
+    }
+    
+    /**
+     * Turns the column scan mode on or off. In column scan mode
+     * filterByNutrients and countRange read the nutrient columns from
+     * end to end instead of searching the indexes, which wins when the
+     * rules keep a large share of the items. The bitmap mode, if on,
+     * still comes first.
+     * @param columnScan whether to scan the columns
+     */
+    public void setColumnScan(boolean columnScan) {
+    	this.columnScan = columnScan;
+    }
+    
+    /**
+     * Tells whether the column scan mode is on
+     * @return true if filterByNutrients scans the columns
+     */
+    public boolean isColumnScan() {
+    	return columnScan;
+    }
+    
+    /**
+     * Scans the nutrient columns for the ordinals inside every interval
+     * @param intervals map of nutrient to interval {low, high}
+     * @return the matches as NutrientColumns.scan words
+     */
+    private long[] scanColumns(Map<String, double[]> intervals) {
+    	String[] ruleNutrients = new String[intervals.size()];
+    	double[] lows = new double[intervals.size()];
+    	double[] highs = new double[intervals.size()];
+    	int r = 0;
+    	for(Map.Entry<String, double[]> entry : intervals.entrySet()) {
+    		ruleNutrients[r] = entry.getKey();
+    		lows[r] = entry.getValue()[0];
+    		highs[r] = entry.getValue()[1];
+    		r++;
+    	}
+    	return columns.scan(ruleNutrients, lows, highs);
+    }
+    
+    /**
+     * Turns the bitmap mode on or off. In bitmap mode every nutrient also
+     * gets a NutrientBitmapIndex over the food item ordinals, and
+     * filterByNutrients and countRange answer all their rules by
+     * intersecting bitmaps, one word of 64 items at a time.
+     * @param buckets value buckets of each bitmap index, 256 suits large
+     *        data sets; 0 turns the bitmap mode off
+     */
+    public void setBitmapBuckets(int buckets) {
+    	if(buckets < 0) {
+    		throw new IllegalArgumentException("Illegal number of buckets: " + buckets);
+    	}
+    	write(() -> {
+    		bitmapBuckets = buckets;
+    		bulkLoadBitmapIndexes();
+    	});
+    }
+    
+    /**
+     * Gets the number of value buckets the bitmap indexes are built with
+     * @return the number of buckets, 0 while the bitmap mode is off
+     */
+    public int getBitmapBuckets() {
+    	return read(() -> bitmapBuckets);
+    }
+    
+    /**
+     * Finds the ordinals of the food items within every interval using
+     * the bitmap indexes
+     * @param intervals map of nutrient to interval {low, high}
+     * @return bitmap of the matching ordinals, or null if the bitmap mode
+     *         is off or a rule is on a nutrient without a bitmap index
+     */
+    private OrdinalBitmap bitmapMatches(Map<String, double[]> intervals) {
+    	if(bitmapIndexes == null || intervals.isEmpty() || !bitmapIndexes.keySet().containsAll(intervals.keySet())) {
+    		return null;
+    	}
+    	List<NutrientBitmapIndex> bitmaps = new ArrayList<NutrientBitmapIndex>();
+    	List<double[]> bands = new ArrayList<double[]>();
+    	for(Map.Entry<String, double[]> entry : intervals.entrySet()) {
+    		bitmaps.add(bitmapIndexes.get(entry.getKey()));
+    		bands.add(entry.getValue());
+    	}
+    	return NutrientBitmapIndex.intersect(bitmaps, bands);
+    }
+    
+    /**
+     * Gets the point of a food item in the k-d tree
+     * @param food the food item
+     * @return its nutrient values in NUTRIENTS order, NaN for a nutrient it lacks
+     */
+    private static double[] pointOf(FoodItem food) {
+    	double[] point = new double[NUTRIENTS.length];
+    	for(int i = 0; i < NUTRIENTS.length; i++) {
+    		Double value = food.getNutrients().get(NUTRIENTS[i]);
+    		point[i] = value != null ? value : Double.NaN;
+    	}
+    	return point;
+    }
+    
+    /**
+     * Turns folded rule intervals into a box of the k-d tree
+     * @param intervals map of nutrient to interval {low, high}
+     * @return {low, high} corners of the box, or null if a rule is on a nutrient the tree does not hold
+     */
+    private static double[][] boxOf(Map<String, double[]> intervals) {
+    	double[][] box = new double[2][NUTRIENTS.length];
+    	Arrays.fill(box[0], Double.NEGATIVE_INFINITY);
+    	Arrays.fill(box[1], Double.POSITIVE_INFINITY);
+    	int bounded = 0;
+    	for(int i = 0; i < NUTRIENTS.length; i++) {
+    		double[] interval = intervals.get(NUTRIENTS[i]);
+    		if(interval != null) {
+    			box[0][i] = interval[0];
+    			box[1][i] = interval[1];
+    			bounded++;
+    		}
+    	}
+    	return bounded == intervals.size() ? box : null;
+    }
+    
+    /**
+     * Rebuilds one heap index from foodItemList, with the branching
+     * factor set for it resolved against the number of items it holds
+     * @param nutrient name of the nutrient
+     */
+    private void bulkLoadIndex(String nutrient) {
+    	//only items that actually carry this nutrient are indexed
+    	List<FoodItem> sortedItems = new ArrayList<FoodItem>();
+    	for(FoodItem food : foodItemList) {
+    		if(food.getNutrients().containsKey(nutrient)) {
+    			sortedItems.add(food);
+    		}
+    	}
+    	
+    	if(bufferCapacity > 0) {
+    		//a buffered index orders its entries by value and then by ordinal
+    		Collections.sort(sortedItems, (a, b) -> {
+    			int cmp = Double.compare(a.getNutrientValue(nutrient), b.getNutrientValue(nutrient));
+    			return cmp != 0 ? cmp : Integer.compare(ordinals.get(a), ordinals.get(b));
+    		});
+    		double[] keys = new double[sortedItems.size()];
+    		int[] itemOrdinals = new int[sortedItems.size()];
+    		for(int i = 0; i < keys.length; i++) {
+    			keys[i] = sortedItems.get(i).getNutrientValue(nutrient);
+    			itemOrdinals[i] = ordinals.get(sortedItems.get(i));
+    		}
+    		BufferedBPTree<FoodItem> index = (BufferedBPTree<FoodItem>) newIndex(nutrient, keys.length);
+    		index.load(keys, itemOrdinals);
+    		indexes.put(nutrient, index);
+    		return;
+    	}
+    	
+    	Collections.sort(sortedItems, (a, b) -> Double.compare(a.getNutrientValue(nutrient), b.getNutrientValue(nutrient)));
+    	double[] keys = new double[sortedItems.size()];
+    	for(int i = 0; i < keys.length; i++) {
+    		keys[i] = sortedItems.get(i).getNutrientValue(nutrient);
+    	}
+    	indexes.put(nutrient, new DoubleBPTree<FoodItem>(branchingFactorFor(nutrient, keys.length),
+    			keys, sortedItems, LOAD_FILL_FACTOR));
+    }
+    
+    /**
+     * Sets the branching factor of one nutrient index and rebuilds it.
+     * Paged indexes size their nodes by the page instead.
+     * @param nutrient name of the nutrient
+     * @param branchingFactor branching factor of the index (>2),
+     *        or AUTO_BRANCHING_FACTOR to size the nodes by the data
+     */
+    public void setBranchingFactor(String nutrient, int branchingFactor) {
+    	if(paged) {
+    		throw new UnsupportedOperationException("Paged indexes size their nodes by the page");
+    	}
+    	checkBranchingFactor(branchingFactor);
+    	write(() -> {
+    		if(!indexes.containsKey(nutrient)) {
+    			throw new IllegalArgumentException("No index for nutrient: " + nutrient);
+    		}
+    		branchingFactors.put(nutrient, branchingFactor);
+    		bulkLoadIndex(nutrient);
+    	});
+    }
+    
+    /**
+     * Gets the branching factor one nutrient index is built with
+     * @param nutrient name of the nutrient
+     * @return the branching factor in use, after resolving AUTO_BRANCHING_FACTOR
+     */
+    public int getBranchingFactor(String nutrient) {
+    	return read(() -> branchingFactorOf(nutrient));
+    }
+    
+    /**
+     * Gets the branching factor one nutrient index is built with, under the latch
+     * @param nutrient name of the nutrient
+     * @return the branching factor in use
+     */
+    private int branchingFactorOf(String nutrient) {
+    	if(paged) {
+    		throw new UnsupportedOperationException("Paged indexes size their nodes by the page");
+    	}
+    	if(!indexes.containsKey(nutrient)) {
+    		throw new IllegalArgumentException("No index for nutrient: " + nutrient);
+    	}
+    	NutrientIndex<FoodItem> index = indexes.get(nutrient);
+    	if(index instanceof BufferedBPTree) {
+    		return ((BufferedBPTree<FoodItem>) index).getBranchingFactor();
+    	}
+    	return ((DoubleBPTree<FoodItem>) index).getBranchingFactor();
+    }
+    
+    /**
+     * Rejects a branching factor a tree can not be built with
+     * @param branchingFactor branching factor to check
+     */
+    private static void checkBranchingFactor(int branchingFactor) {
+    	if(branchingFactor != AUTO_BRANCHING_FACTOR && branchingFactor <= 2) {
+    		throw new IllegalArgumentException("Illegal branching factor: " + branchingFactor);
+    	}
+    }
+    
+    /**
+     * Resolves the branching factor of an index holding the given number
+     * of entries
+     * @param nutrient name of the nutrient
+     * @param entries number of entries in the index
+     * @return the branching factor to build the index with
+     */
+    private int branchingFactorFor(String nutrient, int entries) {
+    	int branchingFactor = branchingFactors.get(nutrient);
+    	return branchingFactor == AUTO_BRANCHING_FACTOR ? autoBranchingFactor(entries) : branchingFactor;
+    }
+    
+    /**
+     * Picks a branching factor from the number of entries in an index.
+     * While the whole index stays in cache the height barely matters, so
+     * a node's keys fill two cache lines and inserts shift little. Past
+     * that every level is a likely cache miss, so the keys of a node grow
+     * to a 1 KiB slice of a page and the tree stays three levels deep up
+     * to a few million entries. The DoubleBPTree benchmark sweeps the
+     * branching factors these sizes were picked from.
+     * @param entries number of entries in the index
+     * @return branching factor
+     */
+    static int autoBranchingFactor(int entries) {
+    	int nodeBytes = entries <= CACHE_RESIDENT_ENTRIES ? 2 * CACHE_LINE : 16 * CACHE_LINE;
+    	return nodeBytes / Double.BYTES;
+    }
+    
+    /**
+     * Bulk loads every paged index whose file does not match foodItemList.
+     * The stamp of a file is the sum of stampOf over its entries, so it
+     * changes with any item, value or ordinal that differs from the run
+     * that wrote the file.
+     */
+    private void bulkLoadPagedIndexes() {
+    	for(String nutrient : indexes.keySet()) {
+    		PagedBPTree<FoodItem> index = (PagedBPTree<FoodItem>) indexes.get(nutrient);
+    		
+    		List<FoodItem> sortedItems = new ArrayList<FoodItem>();
+    		long stamp = 0;
+    		for(FoodItem food : foodItemList) {
+    			if(food.getNutrients().containsKey(nutrient)) {
+    				sortedItems.add(food);
+    				stamp += stampOf(food, food.getNutrientValue(nutrient));
+    			}
+    		}
+    		if(index.size() == sortedItems.size() && index.getStamp() == stamp) {
+    			continue;
+    		}
+    		
+    		//entries are ordered by value and then by ordinal
+    		Collections.sort(sortedItems, (a, b) -> {
+    			int cmp = Double.compare(a.getNutrientValue(nutrient), b.getNutrientValue(nutrient));
+    			return cmp != 0 ? cmp : Integer.compare(ordinals.get(a), ordinals.get(b));
+    		});
+    		double[] keys = new double[sortedItems.size()];
+    		int[] itemOrdinals = new int[sortedItems.size()];
+    		for(int i = 0; i < keys.length; i++) {
+    			keys[i] = sortedItems.get(i).getNutrientValue(nutrient);
+    			itemOrdinals[i] = ordinals.get(sortedItems.get(i));
+    		}
+    		index.load(keys, itemOrdinals);
+    		index.setStamp(stamp);
+    	}
+    }
+    
+    /**
+     * Gives a food item the next ordinal
+     * @param food the food item
+     */
+    private void assignOrdinal(FoodItem food) {
+    	idIndex.put(food.getID(), ordinalTable.size());
+    	nameIndex.add(ordinalTable.size(), food.getName());
+    	ordinals.put(food, ordinalTable.size());
+    	ordinalTable.add(food);
+    }
+    
+    /**
+     * Hashes one entry of a paged index, from the food item's ordinal,
+     * its id and the value it is indexed under
+     * @param food the food item
+     * @param value value of the indexed nutrient
+     * @return hash of the entry
+     */
+    private long stampOf(FoodItem food, double value) {
+    	long hash = ordinals.get(food) * 0x9E3779B97F4A7C15L;
+    	hash = (hash ^ food.getID().hashCode()) * 0xBF58476D1CE4E5B9L;
+    	hash = (hash ^ Double.doubleToLongBits(value)) * 0x94D049BB133111EBL;
+    	return hash ^ (hash >>> 31);
+    }
+    
+    /**
+     * Adds the change of one entry to the stamp of a paged index,
+     * so the stamp keeps matching its contents
+     * @param nutrient name of the nutrient
+     * @param delta stampOf the entry, negated for a removed entry
+     */
+    private void restamp(String nutrient, long delta) {
+    	if(paged) {
+    		PagedBPTree<FoodItem> index = (PagedBPTree<FoodItem>) indexes.get(nutrient);
+    		index.setStamp(index.getStamp() + delta);
+    	}
     }
     
     /**
-     * Adds the foodItem to each of the BPTrees associated with each
+     * Adds the foodItem to each of the DoubleBPTrees associated with each
      * nutrient value in the hashMap
      * @param newItem
      */
@@ -115,27 +844,156 @@ public class FoodData implements FoodDataADT<FoodItem> {
     	Map<String, Double> nutrientMap = newItem.getNutrients();
     	
     	//for each nutrient string, we want to insert the item
-    	//into the BPTree
+    	//into the DoubleBPTree
     	for(String s : nutrientMap.keySet()) {
-    		indexes.get(s).insert(nutrientMap.get(s), newItem);;
+    		indexes.get(s).insert(nutrientMap.get(s), newItem);
+    		restamp(s, stampOf(newItem, nutrientMap.get(s)));
+    	}
+    	nutrientSpace.insert(pointOf(newItem), newItem);
+    	setColumns(ordinals.get(newItem), newItem);
+    	if(bitmapIndexes != null) {
+    		for(String s : nutrientMap.keySet()) {
+    			if(bitmapIndexes.containsKey(s)) {
+    				bitmapIndexes.get(s).insert(ordinals.get(newItem), nutrientMap.get(s));
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Writes the changed pages of the paged indexes to their files
+     */
+    public void flushIndexes() {
+    	if(paged) {
+    		write(() -> {
+    			for(NutrientIndex<FoodItem> index : indexes.values()) {
+    				((PagedBPTree<FoodItem>) index).flush();
+    			}
+    		});
+    	}
+    }
+    
+    /**
+     * Flushes and closes the files of the paged indexes. This FoodData
+     * can not be used afterwards.
+     */
+    public void closeIndexes() {
+    	if(paged) {
+    		write(() -> {
+    			for(NutrientIndex<FoodItem> index : indexes.values()) {
+    				((PagedBPTree<FoodItem>) index).close();
+    			}
+    		});
     	}
     }
 
-    /*
-     * (non-Javadoc)
-     * @see skeleton.FoodDataADT#filterByName(java.lang.String)
+    /**
+     * Gets the shape of each nutrient index
+     *
+     * @return stats keyed by nutrient name
+     */
+    public Map<String, TreeStats> indexStats() {
+    	return read(() -> {
+    		Map<String, TreeStats> stats = new HashMap<String, TreeStats>();
+    		for(Map.Entry<String, NutrientIndex<FoodItem>> entry : indexes.entrySet()) {
+    			stats.put(entry.getKey(), entry.getValue().stats());
+    		}
+    		return stats;
+    	});
+    }
+
+    /**
+     * Gets the shape of all nutrient indexes added together
+     *
+     * @return combined stats
+     * @see TreeStats#sum(java.util.Collection)
+     */
+    public TreeStats totalIndexStats() {
+    	return TreeStats.sum(indexStats().values());
+    }
+
+    /**
+     * Checks the structure of every nutrient index
+     *
+     * @throws IllegalStateException naming the index and its first violation
+     */
+    public void validateIndexes() {
+    	read(this::validate);
+    }
+    
+    /**
+     * Checks every structure of the data set, under the latch
+     * @throws IllegalStateException naming the structure and its first violation
+     */
+    private void validate() {
+    	for(Map.Entry<String, NutrientIndex<FoodItem>> entry : indexes.entrySet()) {
+    		try {
+    			entry.getValue().validate();
+    		}
+    		catch(IllegalStateException e) {
+    			throw new IllegalStateException(entry.getKey() + " index: " + e.getMessage(), e);
+    		}
+    	}
+    	try {
+    		idIndex.validate();
+    		if(idIndex.size() != ordinals.size()) {
+    			throw new IllegalStateException(idIndex.size() + " IDs for " + ordinals.size() + " items");
+    		}
+    	}
+    	catch(IllegalStateException e) {
+    		throw new IllegalStateException("ID index: " + e.getMessage(), e);
+    	}
+    	try {
+    		nameIndex.validate();
+    	}
+    	catch(IllegalStateException e) {
+    		throw new IllegalStateException("name index: " + e.getMessage(), e);
+    	}
+    	try {
+    		nutrientSpace.validate();
+    	}
+    	catch(IllegalStateException e) {
+    		throw new IllegalStateException("k-d tree: " + e.getMessage(), e);
+    	}
+    	if(bitmapIndexes != null) {
+    		for(Map.Entry<String, NutrientBitmapIndex> entry : bitmapIndexes.entrySet()) {
+    			try {
+    				entry.getValue().validate();
+    			}
+    			catch(IllegalStateException e) {
+    				throw new IllegalStateException(entry.getKey() + " bitmap index: " + e.getMessage(), e);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Finds the food items whose names contain a substring, ignoring
+     * case. The trigram index narrows the search to the names holding
+     * every three-letter run of the substring, and only those names are
+     * compared; a substring under three letters is looked for in the
+     * lower case names the index keeps.
+     * @param substring the text to look for
+     * @return the matching food items, sorted by name
      */
     @Override
     public List<FoodItem> filterByName(String substring) {
+    	return read(() -> searchNames(substring));
+    }
+    
+    /**
+     * Runs filterByName under the latch
+     * @param substring the text to look for
+     * @return the matching food items, sorted by name
+     */
+    private List<FoodItem> searchNames(String substring) {
     	
     	//We will store the filtered food here
     	List<FoodItem> filteredList = new ArrayList<FoodItem>();
     	
-    	//for each foodItem, see if it matches the substring in a case-insensitive manner
-    	for(FoodItem food : foodItemList) {
-    		if(food.getName().toLowerCase().contains(substring.toLowerCase())) {
-    			filteredList.add(food);
-    		}
+    	//the index gives the matches by ordinal, in the order they were added
+    	for(int ordinal : nameIndex.search(substring)) {
+    		filteredList.add(ordinalTable.get(ordinal));
     	}
     	
     	//return the list in sorted form
@@ -149,46 +1007,569 @@ public class FoodData implements FoodDataADT<FoodItem> {
      */
     @Override
     public List<FoodItem> filterByNutrients(List<String> rules) {
+    	return filterByNutrients(NutrientQuery.compile(rules));
+    }
+    
+    /**
+     * Gets the food items that pass every rule of a compiled query. A
+     * query compiled once can be run again after the data changes.
+     * @param query the compiled rules
+     * @return the matching food items
+     */
+    public List<FoodItem> filterByNutrients(NutrientQuery query) {
+    	return read(() -> filter(query));
+    }
+    
+    /**
+     * Runs filterByNutrients under the latch
+     * @param query the compiled rules
+     * @return the matching food items
+     */
+    private List<FoodItem> filter(NutrientQuery query) {
     	
-    	List<List<FoodItem>> filteredList = new ArrayList<List<FoodItem>>();
-    	//A list of the lists that will need to be interesected
-    	for(String rule : rules) {
-    		String[] ruleArray = rule.split(" ");
-    		String nutrient = ruleArray[0];
-    		String comparator = ruleArray[1];
-    		Double value = Double.parseDouble(ruleArray[2]);
-    		
-    		//apply the range search on each query
-    		List<FoodItem> filteredFood = indexes.get(nutrient).rangeSearch(value, comparator);
-			//add the result of the query to our overall list
-    		//we want to intersect
-    		filteredList.add(filteredFood);
+    	Map<String, double[]> intervals = query.intervals();
+    	QueryPlan plan = plan(query);
+    	lastPlan = plan;
+    	QueryPlan.Strategy strategy = plan.getStrategy();
+    	if(strategy == QueryPlan.Strategy.EMPTY) {
+    		return new ArrayList<FoodItem>();
     	}
     	
-    	//call the static helper class for intersecting lists
-    	List<FoodItem> resultList = FoodListOperations.intersectLists(filteredList);
+    	//the bitmap and scan plans both find ordinals
+    	if(strategy == QueryPlan.Strategy.BITMAP || strategy == QueryPlan.Strategy.SCAN) {
+    		int[] matches = strategy == QueryPlan.Strategy.BITMAP ? bitmapMatches(intervals).toArray()
+    				: NutrientColumns.ordinals(scanColumns(intervals));
+    		List<FoodItem> resultList = new ArrayList<FoodItem>();
+    		for(int ordinal : matches) {
+    			resultList.add(ordinalTable.get(ordinal));
+    		}
+    		return resultList;
+    	}
+    	
+    	if(strategy == QueryPlan.Strategy.KD_TREE) {
+    		double[][] box = boxOf(intervals);
+    		return nutrientSpace.search(box[0], box[1]);
+    	}
     	
+    	//search the driving nutrient's index and check the other rules on each candidate
+    	NutrientIndex<FoodItem> index = indexes.get(plan.getDriver());
+    	double[] band = intervals.get(plan.getDriver());
+    	if(intervals.size() == 1) {
+    		return index.between(band[0], band[1], true, true);
+    	}
+    	List<FoodItem> resultList = new ArrayList<FoodItem>();
+    	Iterator<FoodItem> cursor = index.cursor(band[0], band[1], true, true);
+    	while(cursor.hasNext()) {
+    		FoodItem food = cursor.next();
+    		if(inIntervals(food, intervals)) {
+    			resultList.add(food);
+    		}
+    	}
     	return resultList;
     			
     }
-
-    /*
-     * (non-Javadoc)
-     * @see skeleton.FoodDataADT#addFoodItem(skeleton.FoodItem)
+    
+    /**
+     * Counts the food items that filterByNutrients would return for the
+     * same rules, following the same plan but without building any of
+     * the lists. The bitmap and k-d tree plans count without visiting
+     * the items, and so does an index plan with a single nutrient.
+     * @param rules list of rules in the same form as filterByNutrients
+     * @return number of matching food items
+     */
+    public int countRange(List<String> rules) {
+    	return countRange(NutrientQuery.compile(rules));
+    }
+    
+    /**
+     * Counts the food items that pass every rule of a compiled query
+     * @param query the compiled rules
+     * @return number of matching food items
+     */
+    public int countRange(NutrientQuery query) {
+    	return read(() -> count(query));
+    }
+    
+    /**
+     * Runs countRange under the latch
+     * @param query the compiled rules
+     * @return number of matching food items
+     */
+    private int count(NutrientQuery query) {
+    	
+    	Map<String, double[]> intervals = query.intervals();
+    	QueryPlan plan = plan(query);
+    	lastPlan = plan;
+    	QueryPlan.Strategy strategy = plan.getStrategy();
+    	if(strategy == QueryPlan.Strategy.EMPTY) {
+    		return 0;
+    	}
+    	if(strategy == QueryPlan.Strategy.BITMAP) {
+    		return bitmapMatches(intervals).cardinality();
+    	}
+    	if(strategy == QueryPlan.Strategy.SCAN) {
+    		return NutrientColumns.count(scanColumns(intervals));
+    	}
+    	if(strategy == QueryPlan.Strategy.KD_TREE) {
+    		double[][] box = boxOf(intervals);
+    		return nutrientSpace.count(box[0], box[1]);
+    	}
+    	
+    	NutrientIndex<FoodItem> index = indexes.get(plan.getDriver());
+    	double[] band = intervals.get(plan.getDriver());
+    	if(intervals.size() == 1) {
+    		return index.countRange(band[0], band[1], true, true);
+    	}
+    	int matches = 0;
+    	Iterator<FoodItem> cursor = index.cursor(band[0], band[1], true, true);
+    	while(cursor.hasNext()) {
+    		if(inIntervals(cursor.next(), intervals)) {
+    			matches++;
+    		}
+    	}
+    	return matches;
+    }
+    
+    /**
+     * Takes a read-only snapshot of the nutrient indexes as they are now.
+     * The snapshot is queried without the latch, so long queries do not
+     * hold up the threads adding items, and it never changes; the indexes
+     * copy the nodes they share with it as they change after it.
+     * @return the snapshot
+     * @throws UnsupportedOperationException if the indexes are paged
+     */
+    public FoodDataSnapshot snapshot() {
+    	if(paged) {
+    		throw new UnsupportedOperationException("Paged indexes do not take snapshots");
+    	}
+    	//taking the snapshots starts a new version of each index, which is a change
+    	return write(() -> {
+    		Map<String, NutrientIndex.Snapshot<FoodItem>> snapshots = new HashMap<String, NutrientIndex.Snapshot<FoodItem>>();
+    		for(Map.Entry<String, NutrientIndex<FoodItem>> entry : indexes.entrySet()) {
+    			snapshots.put(entry.getKey(), entry.getValue().snapshot());
+    		}
+    		return new FoodDataSnapshot(snapshots, foodItemList.size());
+    	});
+    }
+    
+    /**
+     * Intersects lists of this data set's food items, such as the
+     * results of filterByName and filterByNutrients, on the items'
+     * ordinals. Items that are not in the data set are left out.
+     * @param foodLists lists to intersect
+     * @return the items present in all of the lists, in the order of the first list
+     */
+    public List<FoodItem> intersectLists(List<List<FoodItem>> foodLists) {
+    	return read(() -> FoodListOperations.intersectLists(foodLists, food -> ordinals.getOrDefault(food, -1),
+    			ordinalTable.size()));
+    }
+    
+    /**
+     * Plans the rules the way filterByNutrients would, without running
+     * them
+     * @param rules list of rules in the same form as filterByNutrients
+     * @return the plan filterByNutrients would follow
+     */
+    public QueryPlan explain(List<String> rules) {
+    	return explain(NutrientQuery.compile(rules));
+    }
+    
+    /**
+     * Plans a compiled query the way filterByNutrients would, without
+     * running it
+     * @param query the compiled rules
+     * @return the plan filterByNutrients would follow
+     */
+    public QueryPlan explain(NutrientQuery query) {
+    	return read(() -> plan(query));
+    }
+    
+    /**
+     * Gets the plan the last filterByNutrients or countRange call followed
+     * @return the plan, or null if neither has been called
+     */
+    public QueryPlan getLastPlan() {
+    	return lastPlan;
+    }
+    
+    /**
+     * Picks how to find the items inside the intervals. The bitmap and
+     * column scan modes decide by themselves. Otherwise each nutrient's
+     * index estimates how many items its interval holds, and the
+     * cheapest of three plans wins: searching the index of the nutrient
+     * with the fewest and checking the other rules on each of its items,
+     * searching the k-d tree, or scanning the columns. A nutrient stops
+     * being estimated once its index search would cost more than the
+     * scan, so nothing selective means a scan.
+     * @param query the compiled rules
+     * @return the plan
+     */
+    private QueryPlan plan(NutrientQuery query) {
+    	int items = foodItemList.size();
+    	Map<String, double[]> intervals = query.intervals();
+    	Map<String, Integer> estimates = new LinkedHashMap<String, Integer>();
+    	//a rule on a nutrient that is not indexed has no item to match
+    	if(query.isContradictory() || query.isEmpty() || !indexes.keySet().containsAll(intervals.keySet())) {
+    		return new QueryPlan(QueryPlan.Strategy.EMPTY, null, estimates, items, 0);
+    	}
+    	if(bitmapIndexes != null && bitmapIndexes.keySet().containsAll(intervals.keySet())) {
+    		return new QueryPlan(QueryPlan.Strategy.BITMAP, null, estimates, items, Double.NaN);
+    	}
+    	
+    	//removed items leave slots in the columns that a scan still reads
+    	double scanCost = SCAN_COST * intervals.size() * columns.size();
+    	if(columnScan) {
+    		return new QueryPlan(QueryPlan.Strategy.SCAN, null, estimates, items, scanCost);
+    	}
+    	
+    	double candidateCost = INDEX_VALUE_COST + (intervals.size() > 1 ? PREDICATE_COST : 0);
+    	int limit = (int) Math.min(Integer.MAX_VALUE, scanCost / candidateCost + 1);
+    	String driver = null;
+    	int fewest = Integer.MAX_VALUE;
+    	for(Map.Entry<String, double[]> entry : intervals.entrySet()) {
+    		double[] interval = entry.getValue();
+    		int estimate = indexes.get(entry.getKey()).estimateRange(interval[0], interval[1], limit);
+    		estimates.put(entry.getKey(), estimate);
+    		if(estimate < fewest) {
+    			driver = entry.getKey();
+    			fewest = estimate;
+    		}
+    	}
+    	QueryPlan.Strategy strategy = QueryPlan.Strategy.SCAN;
+    	double cost = scanCost;
+    	if(fewest * candidateCost < cost) {
+    		strategy = QueryPlan.Strategy.INDEX;
+    		cost = fewest * candidateCost;
+    	}
+    	
+    	//the k-d tree visits the buckets that overlap the box, so each
+    	//interval is widened by about one bucket's width in its dimension;
+    	//an estimate that stopped at the limit could be all the items
+    	if(intervals.size() > 1 && items > 0 && boxOf(intervals) != null) {
+    		double bucketWidth = Math.pow((double) KD_BUCKET_SIZE / items, 1.0 / NUTRIENTS.length);
+    		double visited = items;
+    		for(int estimate : estimates.values()) {
+    			double share = estimate != limit ? (double) estimate / items : 1;
+    			visited *= Math.min(1, share + bucketWidth);
+    		}
+    		if(visited * KD_VISIT_COST < cost) {
+    			strategy = QueryPlan.Strategy.KD_TREE;
+    			cost = visited * KD_VISIT_COST;
+    		}
+    	}
+    	return new QueryPlan(strategy, strategy == QueryPlan.Strategy.INDEX ? driver : null, estimates, items, cost);
+    }
+    
+    /**
+     * Gets the first limit food items matching the rules in the order of
+     * one nutrient, such as the 50 highest-protein items under 300
+     * calories. The nutrient's index is walked from the right end and
+     * stops once limit items matched, so nothing else is collected or
+     * sorted.
+     * @param nutrient nutrient to order by
+     * @param ascending whether the lowest values come first
+     * @param rules list of rules in the same form as filterByNutrients
+     * @param limit most food items to return
+     * @return the matching food items in nutrient order
+     */
+    public List<FoodItem> orderByNutrient(String nutrient, boolean ascending, List<String> rules, int limit) {
+    	return orderByNutrient(nutrient, ascending, rules, limit, null).getValues();
+    }
+    
+    /**
+     * Gets one page of the food items matching the rules in the order of
+     * one nutrient. Pass the token of a page to get the page after it.
+     * @param nutrient nutrient to order by
+     * @param ascending whether the lowest values come first
+     * @param rules list of rules in the same form as filterByNutrients
+     * @param limit most food items on the page
+     * @param after token of the previous page, or null for the first page
+     * @return the page and the token for the next one
+     */
+    public KeysetPage<Double, FoodItem> orderByNutrient(String nutrient, boolean ascending, List<String> rules,
+    		int limit, KeysetPage.Token<Double> after) {
+    	return read(() -> page(nutrient, ascending, rules, limit, after));
+    }
+    
+    /**
+     * Runs the paged orderByNutrient under the latch
+     * @param nutrient nutrient to order by
+     * @param ascending whether the lowest values come first
+     * @param rules list of rules in the same form as filterByNutrients
+     * @param limit most food items on the page
+     * @param after token of the previous page, or null for the first page
+     * @return the page and the token for the next one
+     */
+    private KeysetPage<Double, FoodItem> page(String nutrient, boolean ascending, List<String> rules,
+    		int limit, KeysetPage.Token<Double> after) {
+    	NutrientQuery query = NutrientQuery.compile(rules);
+    	NutrientIndex<FoodItem> index = indexes.get(nutrient);
+    	if(query.isContradictory() || index == null) {
+    		return new KeysetPage<Double, FoodItem>(new ArrayList<FoodItem>(), null);
+    	}
+    	Map<String, double[]> intervals = new HashMap<String, double[]>(query.intervals());
+    	
+    	//rules on the ordering nutrient only narrow the walk
+    	double[] band = intervals.remove(nutrient);
+    	if(band == null) {
+    		band = new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+    	}
+    	double start = after != null ? after.getLastKey() : ascending ? band[0] : band[1];
+    	NutrientIndex.RangeCursor<FoodItem> cursor = ascending ? index.cursor(start, band[1], true, true)
+    			: index.descendingCursor(start, band[0], true, true);
+    	
+    	//only the items that pass the other rules reach the page
+    	Iterator<FoodItem> matches = new Iterator<FoodItem>() {
+    		private FoodItem next;
+    		
+    		@Override
+    		public boolean hasNext() {
+    			while(next == null && cursor.hasNext()) {
+    				FoodItem food = cursor.next();
+    				if(inIntervals(food, intervals)) {
+    					next = food;
+    				}
+    			}
+    			return next != null;
+    		}
+    		
+    		@Override
+    		public FoodItem next() {
+    			if(!hasNext()) {
+    				throw new NoSuchElementException();
+    			}
+    			FoodItem food = next;
+    			next = null;
+    			return food;
+    		}
+    	};
+    	return KeysetPage.collect(matches, cursor::getKey, after, ascending, limit);
+    }
+    
+    /**
+     * Checks a food item against folded rule intervals. Values are
+     * compared with Double.compare, the order the nutrient indexes keep
+     * their keys in, so an item passes the same rules whichever index
+     * drove the search; a NaN value is above every bound.
+     * @param food the food item
+     * @param intervals map of nutrient to interval {low, high}
+     * @return true if every nutrient of the item is inside its interval
+     */
+    private boolean inIntervals(FoodItem food, Map<String, double[]> intervals) {
+    	Map<String, Double> nutrients = food.getNutrients();
+    	for(Map.Entry<String, double[]> entry : intervals.entrySet()) {
+    		Double value = nutrients.get(entry.getKey());
+    		if(value == null || Double.compare(value, entry.getValue()[0]) < 0
+    				|| Double.compare(value, entry.getValue()[1]) > 0) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Adds a food item to the data set. IDs are unique, so an item whose
+     * ID is already taken is rejected before anything changes.
+     * @param foodItem the food item instance to be added
+     * @throws IllegalArgumentException if an item with the same ID is in the data set
      */
     @Override
     public void addFoodItem(FoodItem foodItem) {
+    	write(() -> add(foodItem));
+    }
+    
+    /**
+     * Runs addFoodItem under the latch
+     * @param foodItem the food item instance to be added
+     */
+    private void add(FoodItem foodItem) {
+    	if(idIndex.get(foodItem.getID()) >= 0) {
+    		throw new IllegalArgumentException("Duplicate food item ID: " + foodItem.getID());
+    	}
+    	positions.put(foodItem, foodItemList.size());
     	foodItemList.add(foodItem);
+    	assignOrdinal(foodItem);
     	addFoodToHashMap(foodItem);
+    	
+    	//an auto-sized index that has outgrown its node size is rebuilt once
+    	for(String nutrient : foodItem.getNutrients().keySet()) {
+    		if(isMissized(nutrient)) {
+    			bulkLoadIndex(nutrient);
+    		}
+    	}
+    }
+    
+    /**
+     * Tells whether an auto-sized heap index is far enough past
+     * CACHE_RESIDENT_ENTRIES to be rebuilt with the other node size. It
+     * has to hold twice the entries of the threshold or under half of
+     * them, so adds and removes around the threshold do not rebuild it
+     * again and again.
+     * @param nutrient name of the nutrient
+     * @return true if the index should be bulk loaded again
+     */
+    private boolean isMissized(String nutrient) {
+    	if(paged || !indexes.containsKey(nutrient) || branchingFactors.get(nutrient) != AUTO_BRANCHING_FACTOR) {
+    		return false;
+    	}
+    	int entries = indexes.get(nutrient).size();
+    	return (entries > 2 * CACHE_RESIDENT_ENTRIES || entries < CACHE_RESIDENT_ENTRIES / 2)
+    			&& branchingFactorOf(nutrient) != autoBranchingFactor(entries);
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Removes a food item from the data set. Only its own entries are
+     * deleted from each nutrient index, which is not rebuilt unless it is
+     * auto-sized and has shrunk well below its node size.
+     * @param foodItem the food item instance to be removed
+     * @return true if the food item was in the data set
+     * @throws IllegalStateException if a nutrient index does not hold the item's entry
+     */
+    public boolean removeFoodItem(FoodItem foodItem) {
+    	return write(() -> remove(foodItem));
+    }
+    
+    /**
+     * Runs removeFoodItem under the latch
+     * @param foodItem the food item instance to be removed
+     * @return true if the food item was in the data set
+     */
+    private boolean remove(FoodItem foodItem) {
+    	Integer position = positions.remove(foodItem);
+    	if(position == null) {
+    		return false;
+    	}
+    	
+    	//the last item takes the removed item's place, so nothing has to shift
+    	FoodItem last = foodItemList.remove(foodItemList.size() - 1);
+    	if(last != foodItem) {
+    		foodItemList.set(position, last);
+    		positions.put(last, position);
+    	}
+    	
+    	//delete the item's entry from the index of each of its nutrients
+    	Map<String, Double> nutrientMap = foodItem.getNutrients();
+    	nutrientSpace.delete(pointOf(foodItem), foodItem);
+    	for(String s : nutrientMap.keySet()) {
+    		NutrientIndex<FoodItem> index = indexes.get(s);
+    		if(index == null || !index.delete(nutrientMap.get(s), foodItem)) {
+    			throw new IllegalStateException("Index of " + s + " lost the entry of " + foodItem.getID());
+    		}
+    		restamp(s, -stampOf(foodItem, nutrientMap.get(s)));
+    		if(bitmapIndexes != null && bitmapIndexes.containsKey(s)) {
+    			bitmapIndexes.get(s).delete(ordinals.get(foodItem), nutrientMap.get(s));
+    		}
+    	}
+    	
+    	//the ordinal is not reused, the slot and its column values are only cleared
+    	columns.clear(ordinals.get(foodItem));
+    	idIndex.remove(foodItem.getID());
+    	nameIndex.remove(ordinals.get(foodItem));
+    	ordinalTable.set(ordinals.remove(foodItem), null);
+    	
+    	//an auto-sized index that has shrunk well below its node size is rebuilt once
+    	for(String nutrient : nutrientMap.keySet()) {
+    		if(isMissized(nutrient)) {
+    			bulkLoadIndex(nutrient);
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Changes the value of one nutrient of a food item in the data set,
+     * moving only that item's entry in that nutrient's index
+     * @param foodItem the food item instance to be corrected
+     * @param nutrient name of the nutrient
+     * @param value new value of the nutrient
+     * @return true if the food item was found in the nutrient's index
+     */
+    public boolean updateNutrient(FoodItem foodItem, String nutrient, double value) {
+    	return write(() -> update(foodItem, nutrient, value));
+    }
+    
+    /**
+     * Runs updateNutrient under the latch
+     * @param foodItem the food item instance to be corrected
+     * @param nutrient name of the nutrient
+     * @param value new value of the nutrient
+     * @return true if the food item was found in the nutrient's index
+     */
+    private boolean update(FoodItem foodItem, String nutrient, double value) {
+    	NutrientIndex<FoodItem> index = indexes.get(nutrient);
+    	if(index == null || !ordinals.containsKey(foodItem) || !foodItem.getNutrients().containsKey(nutrient)) {
+    		return false;
+    	}
+    	
+    	//take the old entry out, then index the item under its new value,
+    	//with -0.0 as 0.0 the way FoodItem.addNutrient keeps it
+    	value += 0.0;
+    	double oldValue = foodItem.getNutrientValue(nutrient);
+    	if(!index.delete(oldValue, foodItem)) {
+    		return false;
+    	}
+    	nutrientSpace.delete(pointOf(foodItem), foodItem);
+    	foodItem.addNutrient(nutrient, value);
+    	index.insert(value, foodItem);
+    	nutrientSpace.insert(pointOf(foodItem), foodItem);
+    	columns.set(ordinals.get(foodItem), nutrient, value);
+    	if(bitmapIndexes != null && bitmapIndexes.containsKey(nutrient)) {
+    		bitmapIndexes.get(nutrient).delete(ordinals.get(foodItem), oldValue);
+    		bitmapIndexes.get(nutrient).insert(ordinals.get(foodItem), value);
+    	}
+    	restamp(nutrient, stampOf(foodItem, value) - stampOf(foodItem, oldValue));
+    	return true;
+    }
+
+    /**
+     * Gets every food item in the data set, sorted by name after a load.
+     * A remove moves the last item into the removed one's place. The
+     * list is a copy, so it does not change while another thread adds an
+     * item.
+     * @return the food items
      * @see skeleton.FoodDataADT#getAllFoodItems()
      */
     @Override
     public List<FoodItem> getAllFoodItems() {
-        return foodItemList;
+        return read(() -> new ArrayList<FoodItem>(foodItemList));
+    }
+    
+    /**
+     * Gets the food item with the given ID
+     * @param id ID of the food item
+     * @return the food item, or null if no item in the data set has the ID
+     */
+    public FoodItem getById(String id) {
+    	return read(() -> {
+    		int ordinal = idIndex.get(id);
+    		return ordinal >= 0 ? ordinalTable.get(ordinal) : null;
+    	});
+    }
+    
+    /**
+     * Gets the food items with the given IDs
+     * @param ids IDs of the food items
+     * @return the food item of each ID in the same order, null for an ID no item has
+     */
+    public List<FoodItem> getByIds(List<String> ids) {
+    	return read(() -> {
+    		List<FoodItem> foods = new ArrayList<FoodItem>(ids.size());
+    		for(String id : ids) {
+    			foods.add(getById(id));
+    		}
+    		return foods;
+    	});
+    }
+    
+    /**
+     * Gets the ordinal of the food item with the given ID. Ordinals are
+     * dense ints given out in the order items are added and never reused,
+     * so other structures can keep items as ints.
+     * @param id ID of the food item
+     * @return the ordinal, or -1 if no item in the data set has the ID
+     */
+    public int ordinalOf(String id) {
+    	return read(() -> idIndex.get(id));
     }
     
     /**
@@ -197,10 +1578,20 @@ public class FoodData implements FoodDataADT<FoodItem> {
      * @param filename
      */
     public void saveFoodItems(String filename) {
+    	//saving sorts the items, so it holds the latch alone
+    	write(() -> save(filename));
+    }
+    
+    /**
+     * Runs saveFoodItems under the latch
+     * @param filename
+     */
+    private void save(String filename) {
     	File saveFile = new File(filename);
     	
     	//start with sorted food items
     	Collections.sort(foodItemList, (a,b) -> a.getName().toLowerCase().compareTo(b.getName().toLowerCase()));
+    	reposition();
     	
     	//save to the file
     	try {
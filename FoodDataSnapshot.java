@@ -0,0 +1,341 @@
+package application;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only version of the nutrient indexes of a FoodData as they were
+ * when FoodData.snapshot() was called. Nothing in it changes again, so
+ * any number of threads can query it without the FoodData's latch while
+ * food items go on being added, removed and corrected.
+ *
+ * Every rule is answered from the snapshot's own indexes. The rules
+ * other than the driving one are not checked against the food items,
+ * whose nutrients a later updateNutrient changes in place; each keeps the
+ * items inside its interval in this version instead, so a result is what
+ * the data set held at the moment of the snapshot.
+ */
+public class FoodDataSnapshot {
+
+    // Snapshot of the index of each nutrient
+    private final Map<String, NutrientIndex.Snapshot<FoodItem>> indexes;
+
+    // Number of food items in the data set when the snapshot was taken
+    private final int size;
+
+
+    /**
+     * Package constructor
+     *
+     * @param indexes snapshot of the index of each nutrient, all taken at the same moment
+     * @param size number of food items in the data set at that moment
+     */
+    FoodDataSnapshot(Map<String, NutrientIndex.Snapshot<FoodItem>> indexes, int size) {
+        this.indexes = new HashMap<String, NutrientIndex.Snapshot<FoodItem>>(indexes);
+        this.size = size;
+    }
+
+
+    /**
+     * Gets the number of food items the data set held
+     *
+     * @return number of food items
+     */
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Gets the food items that passed every rule, as
+     * FoodData.filterByNutrients
+     *
+     * @param rules list of rules in the same form as FoodData.filterByNutrients
+     * @return the matching food items, in the order of the driving nutrient
+     */
+    public List<FoodItem> filterByNutrients(List<String> rules) {
+    	return filterByNutrients(NutrientQuery.compile(rules));
+    }
+
+    /**
+     * Gets the food items that passed every rule of a compiled query. The
+     * index of the nutrient with the fewest items in its interval is
+     * walked, and only the items inside every other interval are kept.
+     *
+     * @param query the compiled rules
+     * @return the matching food items, in the order of the driving nutrient
+     */
+    public List<FoodItem> filterByNutrients(NutrientQuery query) {
+    	List<FoodItem> result = new ArrayList<FoodItem>();
+    	if (!isAnswerable(query)) {
+    		return result;
+    	}
+    	Map<String, double[]> intervals = new HashMap<String, double[]>(query.intervals());
+    	String driver = fewest(intervals);
+    	double[] band = intervals.remove(driver);
+    	Set<FoodItem> passing = passing(intervals);
+    	NutrientIndex.RangeCursor<FoodItem> cursor = indexes.get(driver).cursor(band[0], band[1], true, true);
+    	while (cursor.hasNext()) {
+    		FoodItem food = cursor.next();
+    		if (passing == null || passing.contains(food)) {
+    			result.add(food);
+    		}
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Counts the food items that passed every rule, as FoodData.countRange
+     *
+     * @param rules list of rules in the same form as FoodData.filterByNutrients
+     * @return number of matching food items
+     */
+    public int countRange(List<String> rules) {
+    	return countRange(NutrientQuery.compile(rules));
+    }
+
+    /**
+     * Counts the food items that passed every rule of a compiled query. A
+     * single rule is counted by its index without visiting the items.
+     *
+     * @param query the compiled rules
+     * @return number of matching food items
+     */
+    public int countRange(NutrientQuery query) {
+    	if (!isAnswerable(query)) {
+    		return 0;
+    	}
+    	Map<String, double[]> intervals = new HashMap<String, double[]>(query.intervals());
+    	String driver = fewest(intervals);
+    	double[] band = intervals.remove(driver);
+    	NutrientIndex.Snapshot<FoodItem> index = indexes.get(driver);
+    	if (intervals.isEmpty()) {
+    		return index.countRange(band[0], band[1], true, true);
+    	}
+    	Set<FoodItem> passing = passing(intervals);
+    	int matches = 0;
+    	NutrientIndex.RangeCursor<FoodItem> cursor = index.cursor(band[0], band[1], true, true);
+    	while (cursor.hasNext()) {
+    		if (passing.contains(cursor.next())) {
+    			matches++;
+    		}
+    	}
+    	return matches;
+    }
+
+
+    /**
+     * Opens a cursor over the food items whose value of one nutrient is
+     * in an interval, in ascending order
+     *
+     * @param nutrient name of the nutrient
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether values equal to lowKey are in the interval
+     * @param inclusiveHigh whether values equal to highKey are in the interval
+     * @return a cursor over the food items
+     * @throws IllegalArgumentException if the nutrient is not indexed
+     */
+    public NutrientIndex.RangeCursor<FoodItem> cursor(String nutrient, double lowKey, double highKey,
+    		boolean inclusiveLow, boolean inclusiveHigh) {
+    	return index(nutrient).cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    }
+
+
+    /**
+     * Gets the first page of the food items in the order of one nutrient,
+     * starting at a value
+     *
+     * @param nutrient name of the nutrient
+     * @param fromKey value to start at, inclusive
+     * @param ascending whether the lowest values come first
+     * @param limit most food items on the page
+     * @return the page and the token for the next one
+     * @throws IllegalArgumentException if the nutrient is not indexed
+     */
+    public KeysetPage<Double, FoodItem> scan(String nutrient, double fromKey, boolean ascending, int limit) {
+    	return index(nutrient).scan(fromKey, ascending, limit);
+    }
+
+    /**
+     * Gets the page after the one a token was handed out with
+     *
+     * @param nutrient name of the nutrient, the same as for the first page
+     * @param after token of the previous page
+     * @param limit most food items on the page
+     * @return the page and the token for the next one
+     * @throws IllegalArgumentException if the nutrient is not indexed
+     */
+    public KeysetPage<Double, FoodItem> scan(String nutrient, KeysetPage.Token<Double> after, int limit) {
+    	return index(nutrient).scan(after, limit);
+    }
+
+
+    /**
+     * Gets the first limit food items matching the rules in the order of
+     * one nutrient, as FoodData.orderByNutrient
+     *
+     * @param nutrient nutrient to order by
+     * @param ascending whether the lowest values come first
+     * @param rules list of rules in the same form as FoodData.filterByNutrients
+     * @param limit most food items to return
+     * @return the matching food items in nutrient order
+     */
+    public List<FoodItem> orderByNutrient(String nutrient, boolean ascending, List<String> rules, int limit) {
+    	return orderByNutrient(nutrient, ascending, rules, limit, null).getValues();
+    }
+
+    /**
+     * Gets one page of the food items matching the rules in the order of
+     * one nutrient. Pass the token of a page to get the page after it;
+     * tokens of one snapshot are only meant for the same snapshot.
+     *
+     * @param nutrient nutrient to order by
+     * @param ascending whether the lowest values come first
+     * @param rules list of rules in the same form as FoodData.filterByNutrients
+     * @param limit most food items on the page
+     * @param after token of the previous page, or null for the first page
+     * @return the page and the token for the next one
+     */
+    public KeysetPage<Double, FoodItem> orderByNutrient(String nutrient, boolean ascending, List<String> rules,
+    		int limit, KeysetPage.Token<Double> after) {
+    	NutrientQuery query = NutrientQuery.compile(rules);
+    	NutrientIndex.Snapshot<FoodItem> index = indexes.get(nutrient);
+    	Map<String, double[]> intervals = new HashMap<String, double[]>(query.intervals());
+    	if (query.isContradictory() || index == null || !indexes.keySet().containsAll(intervals.keySet())) {
+    		return new KeysetPage<Double, FoodItem>(new ArrayList<FoodItem>(), null);
+    	}
+
+    	// Rules on the ordering nutrient only narrow the walk.
+    	double[] band = intervals.remove(nutrient);
+    	if (band == null) {
+    		band = new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+    	}
+    	double start = after != null ? after.getLastKey() : ascending ? band[0] : band[1];
+    	NutrientIndex.RangeCursor<FoodItem> cursor = ascending ? index.cursor(start, band[1], true, true)
+    			: index.descendingCursor(start, band[0], true, true);
+    	Set<FoodItem> passing = passing(intervals);
+
+    	// Only the items inside the other intervals reach the page.
+    	Iterator<FoodItem> matches = new Iterator<FoodItem>() {
+    		private FoodItem next;
+
+    		@Override
+    		public boolean hasNext() {
+    			while (next == null && cursor.hasNext()) {
+    				FoodItem food = cursor.next();
+    				if (passing == null || passing.contains(food)) {
+    					next = food;
+    				}
+    			}
+    			return next != null;
+    		}
+
+    		@Override
+    		public FoodItem next() {
+    			if (!hasNext()) {
+    				throw new NoSuchElementException();
+    			}
+    			FoodItem food = next;
+    			next = null;
+    			return food;
+    		}
+    	};
+    	return KeysetPage.collect(matches, cursor::getKey, after, ascending, limit);
+    }
+
+
+    /**
+     * Tells whether a query can match anything in this snapshot. A
+     * contradictory or empty query can not, and neither can a rule on a
+     * nutrient that is not indexed, as in FoodData's plans.
+     *
+     * @param query the compiled rules
+     * @return true if the query has to be searched
+     */
+    private boolean isAnswerable(NutrientQuery query) {
+    	return !query.isContradictory() && !query.isEmpty()
+    			&& indexes.keySet().containsAll(query.intervals().keySet());
+    }
+
+
+    /**
+     * Picks the nutrient whose interval holds the fewest food items. Each
+     * estimate stops at the fewest found so far, since a larger one can
+     * not win.
+     *
+     * @param intervals interval of each nutrient, at least one
+     * @return the nutrient
+     */
+    private String fewest(Map<String, double[]> intervals) {
+    	String driver = null;
+    	int fewest = Integer.MAX_VALUE;
+    	for (Map.Entry<String, double[]> entry : intervals.entrySet()) {
+    		double[] interval = entry.getValue();
+    		int estimate = indexes.get(entry.getKey()).estimateRange(interval[0], interval[1], fewest);
+    		if (driver == null || estimate < fewest) {
+    			driver = entry.getKey();
+    			fewest = estimate;
+    		}
+    	}
+    	return driver;
+    }
+
+
+    /**
+     * Gets the food items inside every interval, from the indexes of this
+     * snapshot. The smallest interval is collected and each of the others
+     * keeps only the items it holds as well.
+     *
+     * @param intervals interval of each nutrient, all indexed
+     * @return the food items, or null if there is no interval to pass
+     */
+    private Set<FoodItem> passing(Map<String, double[]> intervals) {
+    	if (intervals.isEmpty()) {
+    		return null;
+    	}
+    	Map<String, double[]> rest = new HashMap<String, double[]>(intervals);
+    	String first = fewest(rest);
+    	double[] band = rest.remove(first);
+    	Set<FoodItem> passing = new HashSet<FoodItem>(indexes.get(first).between(band[0], band[1], true, true));
+    	for (Map.Entry<String, double[]> entry : rest.entrySet()) {
+    		if (passing.isEmpty()) {
+    			break;
+    		}
+    		Set<FoodItem> kept = new HashSet<FoodItem>();
+    		double[] interval = entry.getValue();
+    		NutrientIndex.RangeCursor<FoodItem> cursor = indexes.get(entry.getKey()).cursor(interval[0], interval[1], true, true);
+    		while (cursor.hasNext()) {
+    			FoodItem food = cursor.next();
+    			if (passing.contains(food)) {
+    				kept.add(food);
+    			}
+    		}
+    		passing = kept;
+    	}
+    	return passing;
+    }
+
+
+    /**
+     * Gets the snapshot of one nutrient's index
+     *
+     * @param nutrient name of the nutrient
+     * @return the snapshot of its index
+     * @throws IllegalArgumentException if the nutrient is not indexed
+     */
+    private NutrientIndex.Snapshot<FoodItem> index(String nutrient) {
+    	NutrientIndex.Snapshot<FoodItem> index = indexes.get(nutrient);
+    	if (index == null) {
+    		throw new IllegalArgumentException("No index on nutrient: " + nutrient);
+    	}
+    	return index;
+    }
+
+} // End of class FoodDataSnapshot
@@ -0,0 +1,321 @@
+package application;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Maps food item IDs to ordinals in an open-addressing hash table. The
+ * IDs in the data files are 24 lower case hex digits, which the table
+ * keeps as a 96-bit number in two adjacent longs: the low 64 bits in
+ * one, the high 32 bits and the ordinal in the other. That is 16 bytes
+ * and one cache line a slot, and no String, boxed Integer or entry
+ * object per item. Collisions probe the next slots in turn, and a
+ * deletion shifts the entries after it back, so the table never fills
+ * with deleted markers.
+ *
+ * IDs of any other form are kept in a HashMap beside the table.
+ */
+public class FoodIdIndex {
+
+    // Number of hex digits in a compact ID
+    static final int ID_DIGITS = 24;
+
+    // Slots are doubled once more than this share of them is in use
+    private static final double MAX_LOAD = 0.5;
+
+    // Value of each lower case hex digit by its character, -1 for the other characters below 128
+    private static final byte[] HEX_VALUES = hexValues();
+
+    // Slot i is slots[2 * i], the low 64 bits of the ID, and slots[2 * i + 1],
+    // the high 32 bits of the ID over the ordinal plus one; 0 marks an empty slot
+    private long[] slots;
+
+    // Number of slots minus one, the number of slots being a power of two
+    private int mask;
+
+    // Number of IDs in the table
+    private int count;
+
+    // Ordinals of the IDs that are not 24 hex digits
+    private final HashMap<String, Integer> others;
+
+
+    /**
+     * Public constructor
+     */
+    public FoodIdIndex() {
+        slots = new long[2 * 16];
+        mask = 16 - 1;
+        others = new HashMap<String, Integer>();
+    }
+
+
+    /**
+     * Builds the table of hex digit values
+     *
+     * @return value of each character below 128, -1 if it is not a lower case hex digit
+     */
+    private static byte[] hexValues() {
+    	byte[] values = new byte[128];
+    	for (int c = 0; c < values.length; c++) {
+    		values[c] = (byte) (c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1);
+    	}
+    	return values;
+    }
+
+
+    /**
+     * Tells whether an ID can be kept in the table, which takes IDs of
+     * 24 lower case hex digits. The digits are checked through a table
+     * rather than by comparisons, which mispredict on random hex.
+     *
+     * @param id the ID, or null
+     * @return true if the ID is compact
+     */
+    static boolean isCompact(String id) {
+    	if (id == null || id.length() != ID_DIGITS) {
+    		return false;
+    	}
+    	int invalid = 0;
+    	for (int i = 0; i < ID_DIGITS; i++) {
+    		char c = id.charAt(i);
+    		invalid |= c >>> 7 | HEX_VALUES[c & 127] >>> 31;
+    	}
+    	return invalid == 0;
+    }
+
+
+    /**
+     * Reads hex digits of a compact ID as a number
+     *
+     * @param id the ID, 24 lower case hex digits
+     * @param from index of the first digit
+     * @param to index after the last digit, at most 16 digits after from
+     * @return bits of the digits
+     */
+    private static long bits(String id, int from, int to) {
+    	long bits = 0;
+    	for (int i = from; i < to; i++) {
+    		bits = bits << 4 | HEX_VALUES[id.charAt(i)];
+    	}
+    	return bits;
+    }
+
+
+    /**
+     * Gets the high 32 bits of a compact ID
+     *
+     * @param id the ID, 24 lower case hex digits
+     * @return bits of the first 8 digits
+     */
+    private static int high(String id) {
+    	return (int) bits(id, 0, 8);
+    }
+
+
+    /**
+     * Gets the low 64 bits of a compact ID
+     *
+     * @param id the ID, 24 lower case hex digits
+     * @return bits of the last 16 digits
+     */
+    private static long low(String id) {
+    	return bits(id, 8, ID_DIGITS);
+    }
+
+
+    /**
+     * Gets the slot where the probe for an ID starts
+     *
+     * @param high high bits of the ID
+     * @param low low bits of the ID
+     * @return the slot
+     */
+    private int home(int high, long low) {
+    	long hash = (low ^ (high & 0xFFFFFFFFL) * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+    	return (int) (hash >>> 32) & mask;
+    }
+
+
+    /**
+     * Finds the slot of an ID, or the empty slot where it would go
+     *
+     * @param high high bits of the ID
+     * @param low low bits of the ID
+     * @return the slot
+     */
+    private int find(int high, long low) {
+    	int slot = home(high, low);
+    	long tag;
+    	while ((tag = slots[2 * slot + 1]) != 0 && ((int) (tag >>> 32) != high || slots[2 * slot] != low)) {
+    		slot = (slot + 1) & mask;
+    	}
+    	return slot;
+    }
+
+
+    /**
+     * Gets the ordinal in a slot
+     *
+     * @param slot the slot
+     * @return the ordinal, or -1 if the slot is empty
+     */
+    private int ordinalAt(int slot) {
+    	return (int) slots[2 * slot + 1] - 1;
+    }
+
+
+    /**
+     * Fills a slot
+     *
+     * @param slot the slot
+     * @param high high bits of the ID
+     * @param low low bits of the ID
+     * @param ordinal the ordinal (>=0)
+     */
+    private void fill(int slot, int high, long low, int ordinal) {
+    	slots[2 * slot] = low;
+    	slots[2 * slot + 1] = (long) high << 32 | (ordinal + 1L);
+    }
+
+
+    /**
+     * Gets the ordinal of an ID
+     *
+     * @param id the ID
+     * @return its ordinal, or -1 if the index does not hold it
+     */
+    public int get(String id) {
+    	if (!isCompact(id)) {
+    		Integer ordinal = others.get(id);
+    		return ordinal != null ? ordinal : -1;
+    	}
+    	return ordinalAt(find(high(id), low(id)));
+    }
+
+
+    /**
+     * Adds an ID, unless the index holds it already
+     *
+     * @param id the ID
+     * @param ordinal its ordinal (>=0)
+     * @return true if the ID was added, false if it was already there
+     */
+    public boolean put(String id, int ordinal) {
+    	if (!isCompact(id)) {
+    		return others.putIfAbsent(id, ordinal) == null;
+    	}
+    	int high = high(id);
+    	long low = low(id);
+    	int slot = find(high, low);
+    	if (ordinalAt(slot) >= 0) {
+    		return false;
+    	}
+    	fill(slot, high, low, ordinal);
+    	count++;
+    	if (count > (mask + 1) * MAX_LOAD) {
+    		grow();
+    	}
+    	return true;
+    }
+
+
+    /**
+     * Doubles the slots and moves every entry to its slot in the new table
+     */
+    private void grow() {
+    	long[] old = slots;
+    	slots = new long[2 * old.length];
+    	mask = 2 * mask + 1;
+    	for (int i = 0; i < old.length; i += 2) {
+    		if (old[i + 1] != 0) {
+    			int high = (int) (old[i + 1] >>> 32);
+    			int slot = find(high, old[i]);
+    			slots[2 * slot] = old[i];
+    			slots[2 * slot + 1] = old[i + 1];
+    		}
+    	}
+    }
+
+
+    /**
+     * Removes an ID. The entries after it in the same run of slots move
+     * back over the gap when the gap lies on their probe path, so every
+     * entry stays reachable from its home slot.
+     *
+     * @param id the ID
+     * @return true if the ID was removed, false if the index did not hold it
+     */
+    public boolean remove(String id) {
+    	if (!isCompact(id)) {
+    		return others.remove(id) != null;
+    	}
+    	int gap = find(high(id), low(id));
+    	if (ordinalAt(gap) < 0) {
+    		return false;
+    	}
+    	for (int slot = (gap + 1) & mask; ordinalAt(slot) >= 0; slot = (slot + 1) & mask) {
+    		// An entry moves back if its home is not between the gap and the entry.
+    		int home = home((int) (slots[2 * slot + 1] >>> 32), slots[2 * slot]);
+    		if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+    			slots[2 * gap] = slots[2 * slot];
+    			slots[2 * gap + 1] = slots[2 * slot + 1];
+    			gap = slot;
+    		}
+    	}
+    	slots[2 * gap] = 0;
+    	slots[2 * gap + 1] = 0;
+    	count--;
+    	return true;
+    }
+
+
+    /**
+     * Gets the number of IDs in the index
+     *
+     * @return number of IDs
+     */
+    public int size() {
+    	return count + others.size();
+    }
+
+
+    /**
+     * Estimates the heap size of the table, not counting the IDs of other
+     * forms
+     *
+     * @return bytes
+     */
+    public long bytes() {
+    	return TreeStats.ARRAY_BYTES + 8L * slots.length;
+    }
+
+
+    /**
+     * Checks that the entry count is right and that every entry is
+     * reachable from its home slot without crossing an empty slot
+     *
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+    	int entries = 0;
+    	for (int slot = 0; slot <= mask; slot++) {
+    		if (ordinalAt(slot) < 0) {
+    			continue;
+    		}
+    		entries++;
+    		int home = home((int) (slots[2 * slot + 1] >>> 32), slots[2 * slot]);
+    		for (int probe = home; probe != slot; probe = (probe + 1) & mask) {
+    			if (ordinalAt(probe) < 0) {
+    				throw new IllegalStateException("Slot " + slot + " is cut off from its home by empty slot " + probe);
+    			}
+    		}
+    	}
+    	if (entries != count) {
+    		throw new IllegalStateException("Count " + count + " but " + entries + " entries");
+    	}
+    	if (count > (mask + 1) * MAX_LOAD) {
+    		throw new IllegalStateException(count + " entries overload " + (mask + 1) + " slots");
+    	}
+    }
+
+} // End of class FoodIdIndex
@@ -64,11 +64,13 @@ public class FoodItem {
     /**
      * Adds a nutrient and its value to this food. 
      * If nutrient already exists, updates its value.
+     * A value of -0.0 is kept as 0.0, so every index and scan of the
+     * food data sees a single zero.
      */
     public void addNutrient(String name, double value) {
         // TODO : Complete
     	
-    	nutrients.put(name, value);
+    	nutrients.put(name, value + 0.0);
     }
 
     /**
@@ -1,8 +1,12 @@
 package application;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.function.ToIntFunction;
 
 /**
  * Helper class with static methods to help with food operations
@@ -41,28 +45,128 @@ public class FoodListOperations {
 	}
 	
 	/**
-	 * Method that takes in a list of lists of food items to intersect
+	 * Method that takes in a list of lists of food items to intersect.
+	 * The items of the smallest list are numbered, since no other item
+	 * can be in the intersection, and the lists are intersected on those
+	 * numbers, in time linear in the total size of the lists
 	 * @param foodLists
-	 * @return the list of items that are present in all of the lists
+	 * @return the list of items that are present in all of the lists,
+	 *         in the order of the first list
 	 */
 	public static List<FoodItem> intersectLists(List<List<FoodItem>> foodLists) {
 		
-		Iterator<List<FoodItem>> iterator = foodLists.iterator();
-		List<FoodItem> intersectedList; // list that will keep track of the intersection
-		if(iterator.hasNext()) {
-			intersectedList = new ArrayList<FoodItem>(iterator.next());
-			//need to copy list to avoid changing what was passed in
+		if(foodLists.isEmpty()) {
+			//return blank array list if nothing to intersect
+			return new ArrayList<FoodItem>();
+		}
+		
+		List<FoodItem> smallest = Collections.min(foodLists, Comparator.comparingInt(List::size));
+		HashMap<FoodItem, Integer> numbers = new HashMap<FoodItem, Integer>();
+		for(FoodItem food : smallest) {
+			numbers.putIfAbsent(food, numbers.size());
+		}
+		return intersectLists(foodLists, food -> numbers.getOrDefault(food, -1), numbers.size());
+	}
+	
+	/**
+	 * Intersects lists of food items that already have dense ordinals,
+	 * such as the ordinals FoodData gives its items. Each list is turned
+	 * into the sorted ordinals of its items and OrdinalIntersection
+	 * intersects those, smallest first.
+	 * @param foodLists lists to intersect
+	 * @param ordinals gives the ordinal of a food item, or -1 for an item
+	 *        without one, which is then in no intersection
+	 * @param universe one past the largest ordinal
+	 * @return the list of items that are present in all of the lists,
+	 *         in the order of the first list
+	 */
+	public static List<FoodItem> intersectLists(List<List<FoodItem>> foodLists, ToIntFunction<FoodItem> ordinals,
+			int universe) {
 		
-			while(iterator.hasNext()) {
-				List<FoodItem> curList = iterator.next();
-				intersectedList.retainAll(curList);
-				//retain all performs the intersection
+		if(foodLists.isEmpty()) {
+			return new ArrayList<FoodItem>();
+		}
+		
+		//the ordinals of the first list are kept in list order for the end
+		List<int[]> sets = new ArrayList<int[]>();
+		int[] firstOrdinals = null;
+		for(List<FoodItem> list : foodLists) {
+			int[] listOrdinals = new int[list.size()];
+			int i = 0;
+			for(FoodItem food : list) {
+				listOrdinals[i++] = ordinals.applyAsInt(food);
 			}
-			return intersectedList;
+			if(firstOrdinals == null) {
+				firstOrdinals = listOrdinals;
+				listOrdinals = listOrdinals.clone();
+			}
+			sets.add(sortedSet(listOrdinals, universe));
 		}
+		int[] common = OrdinalIntersection.intersect(sets);
 		
-		//return blank array list if nothing to intersect
-		return new ArrayList<FoodItem>();
+		//keep the items of the first list that are in the intersection,
+		//duplicates included, as retainAll did
+		long[] inCommon = new long[(universe + 63) >>> 6];
+		for(int ordinal : common) {
+			inCommon[ordinal >>> 6] |= 1L << ordinal;
+		}
+		List<FoodItem> intersectedList = new ArrayList<FoodItem>(common.length);
+		int i = 0;
+		for(FoodItem food : foodLists.get(0)) {
+			int ordinal = firstOrdinals[i++];
+			if(ordinal >= 0 && (inCommon[ordinal >>> 6] & (1L << ordinal)) != 0) {
+				intersectedList.add(food);
+			}
+		}
+		return intersectedList;
+	}
+	
+	/**
+	 * Sorts the ordinals of the items of a list and drops duplicates and
+	 * items without one. Ordinals already in order are taken as they are,
+	 * ones that cover enough of the universe are sorted by marking a
+	 * bitset, and any others are sorted by comparison.
+	 * @param set ordinal of each item, -1 for none; sorted in place
+	 * @param universe one past the largest ordinal
+	 * @return the sorted ordinals
+	 */
+	private static int[] sortedSet(int[] set, int universe) {
+		int count = 0;
+		boolean sorted = true;
+		for(int ordinal : set) {
+			if(ordinal >= 0) {
+				sorted &= count == 0 || set[count - 1] <= ordinal;
+				set[count++] = ordinal;
+			}
+		}
+		
+		if(!sorted && (universe >>> 6) <= count) {
+			long[] words = new long[(universe + 63) >>> 6];
+			for(int i = 0; i < count; i++) {
+				words[set[i] >>> 6] |= 1L << set[i];
+			}
+			count = 0;
+			for(int w = 0; w < words.length; w++) {
+				long word = words[w];
+				while(word != 0) {
+					set[count++] = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return Arrays.copyOf(set, count);
+		}
+		if(!sorted) {
+			Arrays.sort(set, 0, count);
+		}
+		
+		//drop repeated ordinals, which are now next to each other
+		int distinct = 0;
+		for(int i = 0; i < count; i++) {
+			if(distinct == 0 || set[distinct - 1] != set[i]) {
+				set[distinct++] = set[i];
+			}
+		}
+		return Arrays.copyOf(set, distinct);
 	}
 	
 }
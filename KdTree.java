@@ -0,0 +1,556 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A k-d tree over points with a fixed number of dimensions, used to
+ * answer box queries: every value whose point lies within a low and high
+ * bound on each constrained dimension. Each internal node splits its
+ * points on one dimension, smaller coordinates to the left and the rest
+ * to the right, so a query only descends into the sides its box reaches
+ * and prunes on all of its bounds at once. Points sit in buckets at the
+ * leaves.
+ *
+ * A missing coordinate is NaN. It never lies within a bound, so a value
+ * without some coordinate only matches queries that leave that dimension
+ * unconstrained. Deletes empty buckets without merging them away.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class KdTree<V> {
+
+    // Number of coordinates of each point
+    private final int dimensions;
+
+    // A bucket is split once it holds more points than this
+    private final int bucketSize;
+
+    // Root of the tree
+    private Node root;
+
+    // Number of points in the tree
+    private int size;
+
+
+    /**
+     * Public constructor
+     *
+     * Initializes the tree with one empty bucket
+     *
+     * @param dimensions number of coordinates of each point (>0)
+     * @param bucketSize most points a bucket holds before it splits (>0)
+     */
+    public KdTree(int dimensions, int bucketSize) {
+        if (dimensions <= 0) {
+            throw new IllegalArgumentException(
+               "Illegal number of dimensions: " + dimensions);
+        }
+        if (bucketSize <= 0) {
+            throw new IllegalArgumentException(
+               "Illegal bucket size: " + bucketSize);
+        }
+
+        this.dimensions = dimensions;
+        this.bucketSize = bucketSize;
+        root = new Bucket(bucketSize);
+    }
+
+
+    /**
+     * Bulk-load constructor
+     *
+     * Builds a balanced tree by splitting the points at the median of
+     * the dimension they are most spread out on, over and over.
+     *
+     * @param dimensions number of coordinates of each point (>0)
+     * @param bucketSize most points a bucket holds before it splits (>0)
+     * @param points points of the values, each with dimensions coordinates
+     * @param values values where values.get(i) belongs to points.get(i)
+     */
+    public KdTree(int dimensions, int bucketSize, List<double[]> points, List<V> values) {
+        this(dimensions, bucketSize);
+        if (points == null || values == null || points.size() != values.size()) {
+            throw new IllegalArgumentException(
+               "Points and values must be non-null and of equal size");
+        }
+
+        Bucket all = new Bucket(points.size());
+        for (int i = 0; i < points.size(); i++) {
+        	all.add(checkPoint(points.get(i)), values.get(i));
+        }
+        root = build(all);
+        size = points.size();
+    }
+
+
+    /**
+     * Turns a bucket into a subtree whose buckets all fit the bucket
+     * size, unless its points can not be told apart on any dimension.
+     *
+     * @param bucket bucket to split
+     * @return the subtree, or bucket itself if it fits or can not split
+     */
+    private Node build(Bucket bucket) {
+    	if (bucket.count <= bucketSize) {
+    		return bucket;
+    	}
+    	Split split = split(bucket);
+    	if (split == null) {
+    		return bucket;
+    	}
+    	split.left = build((Bucket) split.left);
+    	split.right = build((Bucket) split.right);
+    	return split;
+    }
+
+
+    /**
+     * Splits the points of a bucket at the median of the dimension they
+     * are most spread out on. Points whose coordinate is smaller than the
+     * split value go left, the rest right, and neither side is empty.
+     *
+     * @param bucket bucket with at least two points
+     * @return the split node with two buckets, or null if every point is the same
+     */
+    private Split split(Bucket bucket) {
+    	/*
+    	 * Method variables:
+    	 * int dim holds the dimension with the widest spread of coordinates.
+    	 * double[] coordinates holds the coordinates of the points on dim, sorted.
+    	 */
+    	int dim = -1;
+    	double widest = -1;
+    	for (int d = 0; d < dimensions; d++) {
+    		double min = Double.POSITIVE_INFINITY;
+    		double max = Double.NEGATIVE_INFINITY;
+    		boolean missing = false;
+    		for (int i = 0; i < bucket.count; i++) {
+    			double c = bucket.coordinates[i * dimensions + d];
+    			if (Double.isNaN(c)) {
+    				missing = true;
+    			}
+    			else {
+    				min = Math.min(min, c);
+    				max = Math.max(max, c);
+    			}
+    		}
+    		double spread = max > min ? max - min : 0;
+    		// Points missing the coordinate can still be split off from the others.
+    		if (spread == 0 && missing && min <= max) {
+    			spread = Double.MIN_VALUE;
+    		}
+    		if (spread > widest) {
+    			widest = spread;
+    			dim = d;
+    		}
+    	}
+    	if (widest <= 0) {
+    		return null;
+    	}
+
+    	double[] coordinates = new double[bucket.count];
+    	for (int i = 0; i < bucket.count; i++) {
+    		coordinates[i] = bucket.coordinates[i * dimensions + dim];
+    	}
+    	Arrays.sort(coordinates);
+    	double value = coordinates[bucket.count / 2];
+    	// Everything below the median may be equal to the smallest coordinate; then split just above it.
+    	if (Double.compare(value, coordinates[0]) == 0) {
+    		int i = 1;
+    		while (Double.compare(coordinates[i], coordinates[0]) == 0) {
+    			i++;
+    		}
+    		value = coordinates[i];
+    	}
+
+    	Bucket left = new Bucket(bucketSize);
+    	Bucket right = new Bucket(bucketSize);
+    	for (int i = 0; i < bucket.count; i++) {
+    		double[] point = Arrays.copyOfRange(bucket.coordinates, i * dimensions, (i + 1) * dimensions);
+    		(Double.compare(point[dim], value) < 0 ? left : right).add(point, bucket.values[i]);
+    	}
+    	return new Split(dim, value, left, right);
+    }
+
+
+    /**
+     * Inserts a value at a point. The bucket it lands in is split if it
+     * grows past the bucket size.
+     *
+     * @param point coordinates of the value, NaN where one is missing
+     * @param value the value
+     */
+    public void insert(double[] point, V value) {
+    	point = checkPoint(point);
+    	Split parent = null;
+    	Node node = root;
+    	while (node instanceof KdTree.Split) {
+    		parent = (Split) node;
+    		node = parent.side(point);
+    	}
+
+    	Bucket bucket = (Bucket) node;
+    	bucket.add(point, value);
+    	size++;
+    	if (bucket.count > bucketSize) {
+    		Split split = split(bucket);
+    		if (split != null) {
+    			if (parent == null) {
+    				root = split;
+    			}
+    			else if (parent.left == bucket) {
+    				parent.left = split;
+    			}
+    			else {
+    				parent.right = split;
+    			}
+    		}
+    	}
+    }
+
+
+    /**
+     * Deletes a value at a point.
+     *
+     * @param point coordinates the value was inserted at
+     * @param value the value, compared with equals
+     * @return true if the value was deleted, false if it was not there
+     */
+    public boolean delete(double[] point, V value) {
+    	point = checkPoint(point);
+    	Node node = root;
+    	while (node instanceof KdTree.Split) {
+    		node = ((Split) node).side(point);
+    	}
+
+    	Bucket bucket = (Bucket) node;
+    	for (int i = 0; i < bucket.count; i++) {
+    		if (bucket.values[i].equals(value) && samePoint(bucket, i, point)) {
+    			bucket.remove(i);
+    			size--;
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+
+    /**
+     * Gets the values whose points lie within the box. A dimension whose
+     * bounds are negative and positive infinity is not constrained.
+     *
+     * @param low lowest coordinate on each dimension, inclusive
+     * @param high highest coordinate on each dimension, inclusive
+     * @return the values in the box, in no particular order
+     */
+    public List<V> search(double[] low, double[] high) {
+    	List<V> result = new ArrayList<V>();
+    	search(root, checkPoint(low), checkPoint(high), constrained(low, high), result);
+    	return result;
+    }
+
+
+    /**
+     * Counts the values whose points lie within the box.
+     *
+     * @param low lowest coordinate on each dimension, inclusive
+     * @param high highest coordinate on each dimension, inclusive
+     * @return the number of values in the box
+     * @see #search(double[], double[])
+     */
+    public int count(double[] low, double[] high) {
+    	return search(root, checkPoint(low), checkPoint(high), constrained(low, high), null);
+    }
+
+
+    /**
+     * Visits the parts of a subtree the box reaches.
+     *
+     * @param node root of the subtree
+     * @param low lowest coordinate on each dimension
+     * @param high highest coordinate on each dimension
+     * @param constrained whether each dimension is bounded
+     * @param result list to add the values in the box to, or null to only count them
+     * @return number of values in the box below node
+     */
+    @SuppressWarnings("unchecked")
+    private int search(Node node, double[] low, double[] high, boolean[] constrained, List<V> result) {
+    	if (node instanceof KdTree.Split) {
+    		Split split = (Split) node;
+    		int found = 0;
+    		// The left side holds coordinates below the split value, the right side the rest.
+    		// A NaN split value parts missing coordinates off to the right, where no bound reaches them.
+    		if (!constrained[split.dim] || !(low[split.dim] >= split.value)) {
+    			found += search(split.left, low, high, constrained, result);
+    		}
+    		if (!constrained[split.dim] || high[split.dim] >= split.value) {
+    			found += search(split.right, low, high, constrained, result);
+    		}
+    		return found;
+    	}
+
+    	Bucket bucket = (Bucket) node;
+    	int found = 0;
+    	for (int i = 0; i < bucket.count; i++) {
+    		if (inBox(bucket, i, low, high, constrained)) {
+    			found++;
+    			if (result != null) {
+    				result.add((V) bucket.values[i]);
+    			}
+    		}
+    	}
+    	return found;
+    }
+
+
+    /**
+     * Checks whether a point of a bucket lies within the box
+     */
+    private boolean inBox(Bucket bucket, int i, double[] low, double[] high, boolean[] constrained) {
+    	int base = i * dimensions;
+    	for (int d = 0; d < dimensions; d++) {
+    		// A NaN coordinate fails both comparisons, so it is never in a bounded dimension.
+    		if (constrained[d] && !(bucket.coordinates[base + d] >= low[d] && bucket.coordinates[base + d] <= high[d])) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+
+    /**
+     * Checks whether a point of a bucket has exactly the given coordinates
+     */
+    private boolean samePoint(Bucket bucket, int i, double[] point) {
+    	for (int d = 0; d < dimensions; d++) {
+    		if (Double.compare(bucket.coordinates[i * dimensions + d], point[d]) != 0) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+
+    /**
+     * Finds which dimensions a box bounds
+     */
+    private boolean[] constrained(double[] low, double[] high) {
+    	boolean[] constrained = new boolean[dimensions];
+    	for (int d = 0; d < dimensions; d++) {
+    		constrained[d] = low[d] != Double.NEGATIVE_INFINITY || high[d] != Double.POSITIVE_INFINITY;
+    	}
+    	return constrained;
+    }
+
+
+    /**
+     * Rejects a point that does not have one coordinate per dimension
+     */
+    private double[] checkPoint(double[] point) {
+    	if (point == null || point.length != dimensions) {
+    		throw new IllegalArgumentException("Points must have " + dimensions + " coordinates");
+    	}
+    	return point;
+    }
+
+
+    /**
+     * Gets the number of values in the tree
+     *
+     * @return number of values
+     */
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Checks the structure of the tree: every point lies on the side of
+     * each split above it that its coordinate calls for, buckets fit the
+     * bucket size unless their points can not be split, and the number of
+     * points matches the size.
+     *
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+    	int points = validate(root, new ArrayList<Split>(), new ArrayList<Boolean>());
+    	if (points != size) {
+    		throw new IllegalStateException("Size is " + size + ", the buckets hold " + points + " points");
+    	}
+    }
+
+
+    /**
+     * Checks the subtree under node against the splits on its path.
+     *
+     * @param node root of the subtree
+     * @param path splits from the root down to node
+     * @param sides whether node is left of each split on the path
+     * @return number of points in the subtree
+     */
+    private int validate(Node node, List<Split> path, List<Boolean> sides) {
+    	if (node instanceof KdTree.Split) {
+    		Split split = (Split) node;
+    		path.add(split);
+    		sides.add(true);
+    		int points = validate(split.left, path, sides);
+    		sides.set(sides.size() - 1, false);
+    		points += validate(split.right, path, sides);
+    		path.remove(path.size() - 1);
+    		sides.remove(sides.size() - 1);
+    		return points;
+    	}
+
+    	Bucket bucket = (Bucket) node;
+    	for (int i = 0; i < bucket.count; i++) {
+    		for (int s = 0; s < path.size(); s++) {
+    			Split split = path.get(s);
+    			boolean left = Double.compare(bucket.coordinates[i * dimensions + split.dim], split.value) < 0;
+    			if (left != sides.get(s)) {
+    				throw new IllegalStateException("Point " + i + " of a bucket is on the wrong side of a split on "
+    						+ split.dim + " at " + split.value);
+    			}
+    		}
+    	}
+    	if (bucket.count > bucketSize && split(bucket) != null) {
+    		throw new IllegalStateException("Bucket of " + bucket.count + " points could have been split");
+    	}
+    	return bucket.count;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+    	StringBuilder sb = new StringBuilder();
+    	toString(root, 0, sb);
+    	return sb.toString();
+    }
+
+
+    /**
+     * Appends one line per node of a subtree, indented by depth.
+     */
+    private void toString(Node node, int depth, StringBuilder sb) {
+    	for (int i = 0; i < depth; i++) {
+    		sb.append("  ");
+    	}
+    	if (node instanceof KdTree.Split) {
+    		Split split = (Split) node;
+    		sb.append("dim ").append(split.dim).append(" < ").append(split.value).append('\n');
+    		toString(split.left, depth + 1, sb);
+    		toString(split.right, depth + 1, sb);
+    	}
+    	else {
+    		sb.append(((Bucket) node).count).append(" points\n");
+    	}
+    }
+
+
+    /**
+     * Any node of the tree.
+     */
+    private abstract class Node {
+    } // End of abstract class Node
+
+
+    /**
+     * An internal node. Points whose coordinate on dim is smaller than
+     * value are on the left, the rest on the right.
+     */
+    private class Split extends Node {
+
+        // Dimension the node splits on
+        final int dim;
+
+        // Split value, the smallest coordinate on the right
+        final double value;
+
+        // Side with the smaller coordinates
+        Node left;
+
+        // Side with the other coordinates
+        Node right;
+
+        /**
+         * Package constructor
+         *
+         * @param dim dimension to split on
+         * @param value split value
+         * @param left side with the smaller coordinates
+         * @param right side with the other coordinates
+         */
+        Split(int dim, double value, Node left, Node right) {
+            this.dim = dim;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Gets the side a point belongs on
+         *
+         * @param point the point
+         * @return left or right
+         */
+        Node side(double[] point) {
+        	return Double.compare(point[dim], value) < 0 ? left : right;
+        }
+
+    } // End of class Split
+
+
+    /**
+     * A leaf holding points and their values, the coordinates of point i
+     * at i * dimensions in one flat array.
+     */
+    private class Bucket extends Node {
+
+        // Coordinates of the points, one after the other
+        double[] coordinates;
+
+        // Values of the points
+        Object[] values;
+
+        // Number of points in use
+        int count;
+
+        /**
+         * Package constructor
+         *
+         * @param capacity initial number of points there is room for
+         */
+        Bucket(int capacity) {
+            coordinates = new double[Math.max(1, capacity + 1) * dimensions];
+            values = new Object[Math.max(1, capacity + 1)];
+        }
+
+        /**
+         * Adds a point and its value
+         */
+        void add(double[] point, Object value) {
+        	if (count == values.length) {
+        		values = Arrays.copyOf(values, 2 * count);
+        		coordinates = Arrays.copyOf(coordinates, 2 * count * dimensions);
+        	}
+        	System.arraycopy(point, 0, coordinates, count * dimensions, dimensions);
+        	values[count++] = value;
+        }
+
+        /**
+         * Removes point i by moving the last point into its place
+         */
+        void remove(int i) {
+        	count--;
+        	System.arraycopy(coordinates, count * dimensions, coordinates, i * dimensions, dimensions);
+        	values[i] = values[count];
+        	values[count] = null;
+        }
+
+    } // End of class Bucket
+
+} // End of class KdTree
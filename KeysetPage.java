@@ -0,0 +1,178 @@
+package application;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * One page of a keyset scan over a tree, in ascending or descending key
+ * order, together with the token that continues the scan after it.
+ *
+ * A token holds the last key returned and how many values with that key
+ * the scan has returned so far. The next page seeks straight to that key
+ * and skips those values, so paging costs one descent per page no matter
+ * how deep into the results it is, and inserts elsewhere in the tree do
+ * not shift the pages.
+ *
+ * @param <K> key - type of the keys of the tree
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class KeysetPage<K, V> {
+
+    // Values of this page, in scan order
+    private final List<V> values;
+
+    // Token continuing the scan, null if the scan is over
+    private final Token<K> next;
+
+
+    /**
+     * Public constructor
+     *
+     * @param values values of the page, in scan order
+     * @param next token continuing the scan, or null if the scan is over
+     */
+    public KeysetPage(List<V> values, Token<K> next) {
+        this.values = values;
+        this.next = next;
+    }
+
+
+    /**
+     * Gets the values of this page
+     *
+     * @return values in scan order
+     */
+    public List<V> getValues() {
+    	return values;
+    }
+
+
+    /**
+     * Gets the token that continues the scan after this page
+     *
+     * @return the token, or null if there are no more values
+     */
+    public Token<K> getNext() {
+    	return next;
+    }
+
+
+    /**
+     * Fills a page from a cursor that is positioned at the start of the
+     * page, or at the last key of the token it continues.
+     *
+     * @param cursor values in scan order
+     * @param keys gives the key of the value the cursor returned last
+     * @param after token the page continues, or null for the first page
+     * @param ascending direction of the scan
+     * @param limit most values on the page (> 0)
+     * @return the page
+     */
+    static <K, V> KeysetPage<K, V> collect(Iterator<V> cursor, Supplier<K> keys, Token<K> after,
+    		boolean ascending, int limit) {
+    	if (limit <= 0) {
+    		throw new IllegalArgumentException("Illegal limit: " + limit);
+    	}
+
+    	/*
+    	 * Method variables:
+    	 * K lastKey holds the key of the value returned last.
+    	 * int position holds how many values with lastKey the scan has seen.
+    	 * int skip holds how many of those earlier pages already returned.
+    	 */
+    	K lastKey = after == null ? null : after.lastKey;
+    	int position = 0;
+    	int skip = after == null ? 0 : after.position;
+    	List<V> values = new ArrayList<V>();
+    	while (values.size() < limit && cursor.hasNext()) {
+    		V value = cursor.next();
+    		K key = keys.get();
+    		if (key.equals(lastKey)) {
+    			position++;
+    			if (position <= skip) {
+    				continue;
+    			}
+    		}
+    		else {
+    			lastKey = key;
+    			position = 1;
+    			skip = 0;
+    		}
+    		values.add(value);
+    	}
+
+    	Token<K> next = cursor.hasNext() ? new Token<K>(lastKey, position, ascending) : null;
+    	return new KeysetPage<K, V>(values, next);
+    }
+
+
+    /**
+     * Where a keyset scan stopped: the last key returned, how many values
+     * with that key were returned, and the direction of the scan.
+     *
+     * @param <K> key - type of the keys of the tree
+     */
+    public static class Token<K> {
+
+        // Key of the last value returned
+        private final K lastKey;
+
+        // Number of values with lastKey returned so far
+        private final int position;
+
+        // Direction of the scan
+        private final boolean ascending;
+
+        /**
+         * Public constructor
+         *
+         * @param lastKey key of the last value returned
+         * @param position number of values with lastKey returned so far
+         * @param ascending direction of the scan
+         */
+        public Token(K lastKey, int position, boolean ascending) {
+            this.lastKey = lastKey;
+            this.position = position;
+            this.ascending = ascending;
+        }
+
+        /**
+         * Gets the key of the last value returned
+         *
+         * @return the key
+         */
+        public K getLastKey() {
+        	return lastKey;
+        }
+
+        /**
+         * Gets the number of values with the last key returned so far
+         *
+         * @return the position
+         */
+        public int getPosition() {
+        	return position;
+        }
+
+        /**
+         * Gets the direction of the scan
+         *
+         * @return true for ascending key order
+         */
+        public boolean isAscending() {
+        	return ascending;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+        	return lastKey + "#" + position + (ascending ? "+" : "-");
+        }
+
+    } // End of class Token
+
+} // End of class KeysetPage
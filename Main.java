@@ -59,6 +59,7 @@ public class Main extends Application {
 	
 	FoodData foodData; // field for food data
 	List<String> rulesList = new ArrayList<String>(); //hold our query rules
+	NutrientQuery compiledQuery; //rulesList compiled, null whenever the rules change
 	
 	ListView<FoodItem> mealListView; //field for the mealListView
 	TextField foodInput,calorieInput, nameFilter; //textFields
@@ -245,6 +246,7 @@ public class Main extends Application {
 					foodCountLabel.textProperty().bind((Bindings.size(foodObservableList).asString()));
 					//clear out all rules
 					rulesList.clear();
+					compiledQuery = null;
 					nameQuery = null;
 					sendToMeal.disableProperty().bind(Bindings.size(foodObservableList).isEqualTo(0));
 				}
@@ -306,14 +308,14 @@ public class Main extends Application {
 			applyAllQueries.setOnAction(e -> {
 				if(foodData != null && !rulesList.isEmpty()) {
 					List<List<FoodItem>> listsToIntersect = new ArrayList<List<FoodItem>>();
-					filteredByNutrientList = foodData.filterByNutrients(rulesList);
+					filteredByNutrientList = foodData.filterByNutrients(compiledRules());
 					
 					//intersect the nameList and the nutrientList, we want
 					//both queries to apply at the same time
 					if(filteredByNameList != null && filteredByNutrientList != null) {
 						listsToIntersect.add(filteredByNameList);
 						listsToIntersect.add(filteredByNutrientList);
-						List<FoodItem> intersection = FoodListOperations.intersectLists(listsToIntersect);
+						List<FoodItem> intersection = foodData.intersectLists(listsToIntersect);
 						
 						foodObservableList.setAll(intersection);
 					}
@@ -331,7 +333,7 @@ public class Main extends Application {
 					List<List<FoodItem>> listsToIntersect = new ArrayList<List<FoodItem>>();
 					listsToIntersect.add(filteredByNameList);
 					listsToIntersect.add(filteredByNutrientList);
-					List<FoodItem> intersection = FoodListOperations.intersectLists(listsToIntersect);
+					List<FoodItem> intersection = foodData.intersectLists(listsToIntersect);
 					
 					foodObservableList.setAll(intersection);
 				}
@@ -384,6 +386,7 @@ public class Main extends Application {
 				deleteRule.setOnAction(f -> {
 					List<String> selectedRules = rulesView.getSelectionModel().getSelectedItems();
 					observableRules.removeAll(selectedRules);
+					compiledQuery = null;
 					if(observableRules.isEmpty() && foodData != null) {
 						filteredByNutrientList = foodData.getAllFoodItems();
 						if(nameQuery == null) {
@@ -448,6 +451,9 @@ public class Main extends Application {
 					      if(calories < 0 || fat < 0 || carbohydrate < 0 || fiber < 0 || protein < 0) {
 					    	  displayErrorMessage("Nutrients cannot have negative nutrition values");
 					      }
+					      else if(foodData != null && foodData.getById(foodItem.getID()) != null) {
+					    	  displayErrorMessage("There is already a food item with this id.");
+					      }
 					      else {
 						      foodItem.addNutrient("calories", calories);
 						      foodItem.addNutrient("fat", fat);
@@ -475,7 +481,7 @@ public class Main extends Application {
 							      foodData.addFoodItem(foodItem);
 							      foodObservableList.add(foodItem);
 							      if(!rulesList.isEmpty()) {
-							    	  filteredByNutrientList = foodData.filterByNutrients(rulesList);
+							    	  filteredByNutrientList = foodData.filterByNutrients(compiledRules());
 							      }
 							      else {
 							    	  filteredByNutrientList = foodData.getAllFoodItems();
@@ -572,6 +578,7 @@ public class Main extends Application {
 				
 				if(validInput) {
 					rulesList.add(textInput);
+					compiledQuery = null;
 					applyAllQueries.setDisable(false);
 				}
 			});
@@ -585,6 +592,7 @@ public class Main extends Application {
 					rulesStage.close();
 				}
 				rulesList.clear();
+				compiledQuery = null;
 				applyAllQueries.setDisable(true);
 				if(foodObservableList != null && filteredByNutrientList != null) {
 					filteredByNutrientList = foodData.getAllFoodItems();
@@ -665,6 +673,17 @@ public class Main extends Application {
 		}
 	}
 	
+	/**
+	 * Compiles the rules list, once until the rules change again
+	 * @return the compiled rules
+	 */
+	private NutrientQuery compiledRules() {
+		if(compiledQuery == null) {
+			compiledQuery = NutrientQuery.compile(rulesList);
+		}
+		return compiledQuery;
+	}
+	
 	/**
 	 * Method to display a given string as a popup error message
 	 * @param errorText
@@ -1,7 +1,5 @@
 package application;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 public class MealSummary {
@@ -31,22 +29,13 @@ public class MealSummary {
 		return totals;
 	}
 	
+	/**
+	 * Intersects lists of food items, see FoodListOperations.intersectLists
+	 * @param foodLists
+	 * @return the list of items that are present in all of the lists
+	 */
 	public static List<FoodItem> intersectLists(List<List<FoodItem>> foodLists) {
-		
-		Iterator<List<FoodItem>> iterator = foodLists.iterator();
-		List<FoodItem> intersectedList;
-		if(iterator.hasNext()) {
-			intersectedList = new ArrayList<FoodItem>(iterator.next());
-			//need to copy list to avoid changing what was passed in
-		
-			while(iterator.hasNext()) {
-				List<FoodItem> curList = iterator.next();
-				intersectedList.retainAll(curList);
-			}
-			return intersectedList;
-		}
-		
-		return new ArrayList<FoodItem>();
+		return FoodListOperations.intersectLists(foodLists);
 	}
 	
 }
@@ -0,0 +1,238 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trigram inverted index over the case-folded names of the food items,
+ * by ordinal. Each run of three characters in a name lists the ordinals
+ * of the names it occurs in. A name containing a query contains every
+ * trigram of the query, so a substring search intersects the lists of
+ * the query's trigrams and checks only the names left over. Queries of
+ * fewer than three characters have no trigram; they scan the folded
+ * names, which are kept so no name is folded again.
+ *
+ * Ordinals are added in increasing order, so every list stays sorted
+ * just by appending. A removed ordinal stays in its lists and is skipped
+ * when a search checks it.
+ */
+public class NameTrigramIndex {
+
+    // Case-folded name of each ordinal, null for an ordinal not in use
+    private String[] folded;
+
+    // Number of ordinals covered, one past the largest added
+    private int size;
+
+    // Ordinals of the names containing each trigram, keyed by its three packed characters
+    private final HashMap<Long, Postings> postings;
+
+
+    /**
+     * Public constructor
+     */
+    public NameTrigramIndex() {
+        folded = new String[16];
+        postings = new HashMap<Long, Postings>();
+    }
+
+
+    /**
+     * Folds a name or query to the case the index compares in
+     *
+     * @param text the name or query
+     * @return the lower case text
+     */
+    static String fold(String text) {
+    	return text.toLowerCase();
+    }
+
+
+    /**
+     * Packs the three characters of a trigram into one key
+     *
+     * @param text folded text
+     * @param at index of the first character
+     * @return the key
+     */
+    private static long trigram(String text, int at) {
+    	return (long) text.charAt(at) << 32 | (long) text.charAt(at + 1) << 16 | text.charAt(at + 2);
+    }
+
+
+    /**
+     * Adds the name of a new ordinal
+     *
+     * @param ordinal the ordinal, larger than any added before
+     * @param name the name
+     * @throws IllegalArgumentException if the ordinal is not larger than the last one added
+     */
+    public void add(int ordinal, String name) {
+    	if (ordinal < size) {
+    		throw new IllegalArgumentException("Ordinal " + ordinal + " added after " + (size - 1));
+    	}
+    	if (ordinal >= folded.length) {
+    		folded = Arrays.copyOf(folded, Math.max(ordinal + 1, 2 * folded.length));
+    	}
+    	String text = fold(name);
+    	folded[ordinal] = text;
+    	size = ordinal + 1;
+    	for (int at = 0; at + 3 <= text.length(); at++) {
+    		Long key = trigram(text, at);
+    		Postings list = postings.get(key);
+    		if (list == null) {
+    			list = new Postings();
+    			postings.put(key, list);
+    		}
+    		list.append(ordinal);
+    	}
+    }
+
+
+    /**
+     * Removes the name of an ordinal; searches no longer find it
+     *
+     * @param ordinal the ordinal
+     */
+    public void remove(int ordinal) {
+    	if (ordinal < size) {
+    		folded[ordinal] = null;
+    	}
+    }
+
+
+    /**
+     * Finds the ordinals whose names contain a substring, ignoring case
+     *
+     * @param substring the text to look for
+     * @return the ordinals in ascending order
+     */
+    public int[] search(String substring) {
+    	String query = fold(substring);
+    	int[] matches;
+    	int count = 0;
+
+    	if (query.length() < 3) {
+    		// No trigram to look up, so every folded name is checked.
+    		matches = new int[size];
+    		for (int ordinal = 0; ordinal < size; ordinal++) {
+    			if (folded[ordinal] != null && folded[ordinal].contains(query)) {
+    				matches[count++] = ordinal;
+    			}
+    		}
+    		return Arrays.copyOf(matches, count);
+    	}
+
+    	List<int[]> lists = new ArrayList<int[]>();
+    	List<Long> seen = new ArrayList<Long>();
+    	for (int at = 0; at + 3 <= query.length(); at++) {
+    		Long key = trigram(query, at);
+    		if (seen.contains(key)) {
+    			continue;
+    		}
+    		seen.add(key);
+    		Postings list = postings.get(key);
+    		if (list == null) {
+    			return new int[0];
+    		}
+    		lists.add(list.toArray());
+    	}
+
+    	// The trigrams can come in another order in a name, so each candidate is checked.
+    	int[] candidates = OrdinalIntersection.intersect(lists);
+    	matches = candidates;
+    	for (int ordinal : candidates) {
+    		if (folded[ordinal] != null && (query.length() == 3 || folded[ordinal].contains(query))) {
+    			matches[count++] = ordinal;
+    		}
+    	}
+    	return Arrays.copyOf(matches, count);
+    }
+
+
+    /**
+     * Gets the number of distinct trigrams
+     *
+     * @return trigram count
+     */
+    public int trigrams() {
+    	return postings.size();
+    }
+
+
+    /**
+     * Checks that every list is in strictly ascending order and that
+     * every ordinal in use is listed under each of its name's trigrams
+     *
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+    	for (Map.Entry<Long, Postings> entry : postings.entrySet()) {
+    		int[] list = entry.getValue().toArray();
+    		for (int i = 1; i < list.length; i++) {
+    			if (list[i - 1] >= list[i]) {
+    				throw new IllegalStateException("Trigram list out of order at " + list[i]);
+    			}
+    		}
+    	}
+    	for (int ordinal = 0; ordinal < size; ordinal++) {
+    		String text = folded[ordinal];
+    		for (int at = 0; text != null && at + 3 <= text.length(); at++) {
+    			Postings list = postings.get(trigram(text, at));
+    			if (list == null || Arrays.binarySearch(list.toArray(), ordinal) < 0) {
+    				throw new IllegalStateException("Ordinal " + ordinal + " missing from trigram \""
+    						+ text.substring(at, at + 3) + "\"");
+    			}
+    		}
+    	}
+    }
+
+
+    /**
+     * The ordinals of the names containing one trigram, in ascending
+     * order, in an array that grows by doubling
+     */
+    private static class Postings {
+
+        // Ordinals, the first count of them in use; volatile because readers
+        // searching at the same time may each publish a trimmed copy
+        private volatile int[] ordinals = new int[4];
+
+        // Number of ordinals
+        private int count;
+
+        /**
+         * Appends an ordinal, unless it is the last one already, as when
+         * a trigram occurs twice in one name
+         *
+         * @param ordinal the ordinal, not less than the last one
+         */
+        void append(int ordinal) {
+        	if (count > 0 && ordinals[count - 1] == ordinal) {
+        		return;
+        	}
+        	if (count == ordinals.length) {
+        		ordinals = Arrays.copyOf(ordinals, 2 * count);
+        	}
+        	ordinals[count++] = ordinal;
+        }
+
+        /**
+         * Gets the ordinals as an array of exactly their number. The
+         * array is trimmed once and then shared until the next append.
+         *
+         * @return the ordinals in ascending order, not to be changed
+         */
+        int[] toArray() {
+        	int[] list = ordinals;
+        	if (list.length != count) {
+        		list = Arrays.copyOf(list, count);
+        		ordinals = list;
+        	}
+        	return list;
+        }
+    }
+
+} // End of class NameTrigramIndex
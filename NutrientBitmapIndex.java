@@ -0,0 +1,710 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bitmap index over the values of one nutrient. The values are cut into
+ * buckets holding about the same number of items, and each bucket keeps
+ * an OrdinalBitmap of the ordinals of its items. A range is the OR of the
+ * buckets it covers whole, plus the items of the one or two buckets it
+ * cuts through whose own value is in the range. Every STRIDE buckets the
+ * index also keeps the bitmap of all ordinals below that point, so the
+ * inner part of a wide range is the difference of two of these instead of
+ * an OR of many buckets. Ranges of several nutrients are intersected one
+ * group of 65536 ordinals at a time, word by word.
+ *
+ * Each bucket also lists its members sorted by ordinal group and then by
+ * value, so the members of a cut bucket that are in range are found with
+ * binary searches in each group. Bucket bounds are picked when the index
+ * is built; items added later go to whichever bucket their value falls in.
+ */
+public class NutrientBitmapIndex {
+
+    // Bucket i holds values from bounds[i - 1] up to but excluding bounds[i],
+    // the first bucket from negative infinity and the last to positive infinity
+    private final double[] bounds;
+
+    // Ordinals of the items in each bucket
+    private final OrdinalBitmap[] buckets;
+
+    // below[k] holds the ordinals in the buckets before bucket k * STRIDE, below[0] is empty
+    private final OrdinalBitmap[] below;
+
+    // Number of buckets between two of the bitmaps in below
+    private static final int STRIDE = 4;
+
+    // Ordinals of each bucket, sorted by group (ordinal >>> 16), then value, then ordinal
+    private final int[][] members;
+
+    // Value of each member, memberValues[b][i] belonging to members[b][i]
+    private final double[][] memberValues;
+
+    // Number of members of each bucket
+    private final int[] counts;
+
+    // Number of ordinals in the index
+    private int size;
+
+
+    /**
+     * Public constructor
+     *
+     * Cuts the values into buckets of about the same number of items and
+     * adds every ordinal that has a value.
+     *
+     * @param bucketCount number of buckets to aim for (>0); equal values never span two buckets
+     * @param values value of each ordinal, NaN where the ordinal has none
+     */
+    public NutrientBitmapIndex(int bucketCount, double[] values) {
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Illegal number of buckets: " + bucketCount);
+        }
+
+        double[] sorted = new double[values.length];
+        int count = 0;
+        for (double value : values) {
+        	if (!Double.isNaN(value)) {
+        		sorted[count++] = value;
+        	}
+        }
+        Arrays.sort(sorted, 0, count);
+
+        // A bound is only kept if it is above the one before it.
+        double[] picked = new double[Math.max(0, bucketCount - 1)];
+        int bound = 0;
+        for (int b = 1; b < bucketCount && count > 0; b++) {
+        	double value = sorted[(int) ((long) b * count / bucketCount)];
+        	if (value > sorted[0] && (bound == 0 || value > picked[bound - 1])) {
+        		picked[bound++] = value;
+        	}
+        }
+        bounds = Arrays.copyOf(picked, bound);
+        buckets = new OrdinalBitmap[bound + 1];
+        members = new int[bound + 1][];
+        memberValues = new double[bound + 1][];
+        counts = new int[bound + 1];
+        for (int b = 0; b < buckets.length; b++) {
+        	buckets[b] = new OrdinalBitmap();
+        	members[b] = new int[4];
+        	memberValues[b] = new double[4];
+        }
+
+        // Ordinals come in ascending order, so every member is appended to
+        // its group; each group is then put in value order.
+        for (int ordinal = 0; ordinal < values.length; ordinal++) {
+        	if (!Double.isNaN(values[ordinal])) {
+        		int b = bucketOf(values[ordinal]);
+        		buckets[b].add(ordinal);
+        		addMember(b, counts[b], ordinal, values[ordinal]);
+        		size++;
+        	}
+        }
+        for (int b = 0; b < buckets.length; b++) {
+        	for (int start = 0; start < counts[b]; start = groupEnd(b, start)) {
+        		sortGroup(members[b], memberValues[b], start, groupEnd(b, start) - 1);
+        	}
+        }
+
+        // Each prefix is the one before it plus the next STRIDE buckets.
+        below = new OrdinalBitmap[(buckets.length - 1) / STRIDE + 1];
+        below[0] = new OrdinalBitmap();
+        for (int k = 1; k < below.length; k++) {
+        	List<OrdinalBitmap> parts = new ArrayList<OrdinalBitmap>();
+        	parts.add(below[k - 1]);
+        	parts.addAll(Arrays.asList(buckets).subList((k - 1) * STRIDE, k * STRIDE));
+        	below[k] = OrdinalBitmap.or(parts);
+        }
+    }
+
+
+    /**
+     * Adds an ordinal under a value. A NaN value is no value, as in the
+     * constructor, so the ordinal is left out.
+     *
+     * @param ordinal the ordinal (>=0), not in the index yet
+     * @param value its value, NaN for none
+     */
+    public void insert(int ordinal, double value) {
+    	if (Double.isNaN(value)) {
+    		return;
+    	}
+    	int bucket = bucketOf(value);
+    	if (buckets[bucket].contains(ordinal)) {
+    		throw new IllegalArgumentException("Ordinal " + ordinal + " is already indexed");
+    	}
+    	addMember(bucket, position(bucket, ordinal, value), ordinal, value);
+    	buckets[bucket].add(ordinal);
+    	for (int k = bucket / STRIDE + 1; k < below.length; k++) {
+    		below[k].add(ordinal);
+    	}
+    	size++;
+    }
+
+
+    /**
+     * Removes an ordinal
+     *
+     * @param ordinal the ordinal
+     * @param value the value it was added under
+     * @return true if the ordinal was in the index under value, never for NaN
+     */
+    public boolean delete(int ordinal, double value) {
+    	if (Double.isNaN(value)) {
+    		return false;
+    	}
+    	int bucket = bucketOf(value);
+    	int i = position(bucket, ordinal, value);
+    	if (i == counts[bucket] || members[bucket][i] != ordinal
+    			|| Double.compare(memberValues[bucket][i], value) != 0) {
+    		return false;
+    	}
+    	int moved = --counts[bucket] - i;
+    	System.arraycopy(members[bucket], i + 1, members[bucket], i, moved);
+    	System.arraycopy(memberValues[bucket], i + 1, memberValues[bucket], i, moved);
+    	buckets[bucket].remove(ordinal);
+    	for (int k = bucket / STRIDE + 1; k < below.length; k++) {
+    		below[k].remove(ordinal);
+    	}
+    	size--;
+    	return true;
+    }
+
+
+    /**
+     * Gets the ordinals whose value lies within a range
+     *
+     * @param low lowest value, inclusive
+     * @param high highest value, inclusive
+     * @return bitmap of the ordinals in the range
+     */
+    public OrdinalBitmap range(double low, double high) {
+    	return intersect(Collections.singletonList(this), Collections.singletonList(new double[] {low, high}));
+    }
+
+
+    /**
+     * Gets the ordinals that lie within a range in every one of several
+     * indexes, such as the items matching rules on several nutrients.
+     * The ranges are worked out one group of 65536 ordinals at a time:
+     * each range is ORed into a bitset of the group and ANDed into the
+     * result word by word, so only the result is ever compressed.
+     *
+     * @param indexes the indexes
+     * @param intervals range {low, high} of each index, both inclusive
+     * @return bitmap of the ordinals in all the ranges
+     */
+    public static OrdinalBitmap intersect(List<NutrientBitmapIndex> indexes, List<double[]> intervals) {
+    	OrdinalBitmap result = new OrdinalBitmap();
+    	List<Range> ranges = new ArrayList<Range>();
+    	int lastKey = Integer.MAX_VALUE;
+    	for (int i = 0; i < indexes.size(); i++) {
+    		Range range = indexes.get(i).plan(intervals.get(i)[0], intervals.get(i)[1]);
+    		if (range == null) {
+    			return result;
+    		}
+    		ranges.add(range);
+    		lastKey = Math.min(lastKey, range.lastKey());
+    	}
+    	if (ranges.isEmpty()) {
+    		return result;
+    	}
+
+    	// The narrowest range goes first, so groups it leaves empty are given up early.
+    	ranges.sort((a, b) -> Integer.compare(a.estimate, b.estimate));
+    	long[] words = new long[OrdinalBitmap.WORDS];
+    	long[] scratch = new long[OrdinalBitmap.WORDS];
+    	for (int key = 0; key <= lastKey; key++) {
+    		ranges.get(0).fill(key, words);
+    		int count = 0;
+    		for (long word : words) {
+    			count += Long.bitCount(word);
+    		}
+    		for (int r = 1; r < ranges.size() && count > 0; r++) {
+    			ranges.get(r).fill(key, scratch);
+    			count = 0;
+    			for (int w = 0; w < words.length; w++) {
+    				words[w] &= scratch[w];
+    				count += Long.bitCount(words[w]);
+    			}
+    		}
+    		result.appendGroup((char) key, words, count);
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Works out which bitmaps and cut buckets make up a range
+     *
+     * @param low lowest value, inclusive
+     * @param high highest value, inclusive
+     * @return the parts of the range, or null if it can not hold anything
+     */
+    private Range plan(double low, double high) {
+    	if (!(low <= high)) {
+    		return null;
+    	}
+    	int first = bucketOf(low);
+    	int last = bucketOf(high);
+    	Range range = new Range(low, high);
+    	for (int b = first; b <= last; b++) {
+    		range.estimate += counts[b];
+    	}
+    	range.add(first);
+    	if (last == first) {
+    		return range;
+    	}
+    	range.add(last);
+
+    	// The buckets strictly inside are whole; take the prefix steps among them as one difference.
+    	int from = (first + STRIDE) / STRIDE;
+    	int to = last / STRIDE;
+    	if (from < to) {
+    		range.include = below[to];
+    		range.exclude = below[from];
+    		range.whole.addAll(Arrays.asList(buckets).subList(first + 1, from * STRIDE));
+    		range.whole.addAll(Arrays.asList(buckets).subList(to * STRIDE, last));
+    	}
+    	else {
+    		range.whole.addAll(Arrays.asList(buckets).subList(first + 1, last));
+    	}
+    	return range;
+    }
+
+
+    /**
+     * Counts the ordinals whose value lies within a range
+     *
+     * @param low lowest value, inclusive
+     * @param high highest value, inclusive
+     * @return number of ordinals in the range
+     */
+    public int countRange(double low, double high) {
+    	if (!(low <= high)) {
+    		return 0;
+    	}
+    	int count = 0;
+    	for (int b = bucketOf(low); b <= bucketOf(high); b++) {
+    		if (covers(b, low, high)) {
+    			count += counts[b];
+    			continue;
+    		}
+    		for (int start = 0; start < counts[b]; start = groupEnd(b, start)) {
+    			int end = groupEnd(b, start);
+    			count += firstAbove(b, start, end, high) - firstAtLeast(b, start, end, low);
+    		}
+    	}
+    	return count;
+    }
+
+
+    /**
+     * Finds the bucket a value falls in
+     *
+     * @param value the value
+     * @return index of the bucket
+     */
+    private int bucketOf(double value) {
+    	// Index of the first bound above value.
+    	int low = 0;
+    	int high = bounds.length;
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		if (bounds[mid] <= value) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Checks whether a range holds every value a bucket can hold
+     */
+    private boolean covers(int bucket, double low, double high) {
+    	boolean fromLow = bucket == 0 ? low == Double.NEGATIVE_INFINITY : low <= bounds[bucket - 1];
+    	boolean toHigh = bucket == bounds.length ? high == Double.POSITIVE_INFINITY
+    			: high >= Math.nextDown(bounds[bucket]);
+    	return fromLow && toHigh;
+    }
+
+
+    /**
+     * Finds where a member goes in a bucket's lists
+     *
+     * @return index of the member, or of the first member after it if it is not there
+     */
+    private int position(int bucket, int ordinal, double value) {
+    	int[] ordinals = members[bucket];
+    	double[] values = memberValues[bucket];
+    	int low = 0;
+    	int high = counts[bucket];
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		int cmp = Integer.compare(ordinals[mid] >>> 16, ordinal >>> 16);
+    		if (cmp == 0) {
+    			cmp = Double.compare(values[mid], value);
+    		}
+    		if (cmp == 0) {
+    			cmp = Integer.compare(ordinals[mid], ordinal);
+    		}
+    		if (cmp < 0) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Finds the first member of a bucket in a group or after it
+     */
+    private int groupStart(int bucket, int key) {
+    	int[] ordinals = members[bucket];
+    	int low = 0;
+    	int high = counts[bucket];
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		if (ordinals[mid] >>> 16 < key) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Finds the end of the group of members starting at start
+     *
+     * @return index of the first member of a later group, or the count
+     */
+    private int groupEnd(int bucket, int start) {
+    	int[] ordinals = members[bucket];
+    	int key = ordinals[start] >>> 16;
+    	int low = start + 1;
+    	int high = counts[bucket];
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		if (ordinals[mid] >>> 16 == key) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Finds the first member from start to end whose value is at least value
+     */
+    private int firstAtLeast(int bucket, int start, int end, double value) {
+    	double[] values = memberValues[bucket];
+    	while (start < end) {
+    		int mid = (start + end) >>> 1;
+    		if (values[mid] < value) {
+    			start = mid + 1;
+    		}
+    		else {
+    			end = mid;
+    		}
+    	}
+    	return start;
+    }
+
+
+    /**
+     * Finds the first member from start to end whose value is above value
+     */
+    private int firstAbove(int bucket, int start, int end, double value) {
+    	double[] values = memberValues[bucket];
+    	while (start < end) {
+    		int mid = (start + end) >>> 1;
+    		if (values[mid] <= value) {
+    			start = mid + 1;
+    		}
+    		else {
+    			end = mid;
+    		}
+    	}
+    	return start;
+    }
+
+
+    /**
+     * Inserts a member into a bucket's lists at index i
+     */
+    private void addMember(int bucket, int i, int ordinal, double value) {
+    	int count = counts[bucket];
+    	if (count == members[bucket].length) {
+    		members[bucket] = Arrays.copyOf(members[bucket], 2 * count);
+    		memberValues[bucket] = Arrays.copyOf(memberValues[bucket], 2 * count);
+    	}
+    	System.arraycopy(members[bucket], i, members[bucket], i + 1, count - i);
+    	System.arraycopy(memberValues[bucket], i, memberValues[bucket], i + 1, count - i);
+    	members[bucket][i] = ordinal;
+    	memberValues[bucket][i] = value;
+    	counts[bucket]++;
+    }
+
+
+    /**
+     * Sorts the members from low to high, both inclusive, by value and
+     * then by ordinal, moving the two lists together
+     */
+    private static void sortGroup(int[] ordinals, double[] values, int low, int high) {
+    	while (high - low > 16) {
+    		// Partition around the middle member, then sort the smaller side first.
+    		int mid = (low + high) >>> 1;
+    		double pivotValue = values[mid];
+    		int pivotOrdinal = ordinals[mid];
+    		int i = low;
+    		int j = high;
+    		while (i <= j) {
+    			while (before(values[i], ordinals[i], pivotValue, pivotOrdinal)) {
+    				i++;
+    			}
+    			while (before(pivotValue, pivotOrdinal, values[j], ordinals[j])) {
+    				j--;
+    			}
+    			if (i <= j) {
+    				swap(ordinals, values, i++, j--);
+    			}
+    		}
+    		if (j - low < high - i) {
+    			sortGroup(ordinals, values, low, j);
+    			low = i;
+    		}
+    		else {
+    			sortGroup(ordinals, values, i, high);
+    			high = j;
+    		}
+    	}
+    	for (int i = low + 1; i <= high; i++) {
+    		for (int j = i; j > low && before(values[j], ordinals[j], values[j - 1], ordinals[j - 1]); j--) {
+    			swap(ordinals, values, j, j - 1);
+    		}
+    	}
+    }
+
+
+    /**
+     * Checks whether member (value, ordinal) sorts before (otherValue, otherOrdinal)
+     */
+    private static boolean before(double value, int ordinal, double otherValue, int otherOrdinal) {
+    	int cmp = Double.compare(value, otherValue);
+    	return cmp < 0 || cmp == 0 && ordinal < otherOrdinal;
+    }
+
+
+    /**
+     * Swaps members i and j of the two lists
+     */
+    private static void swap(int[] ordinals, double[] values, int i, int j) {
+    	int ordinal = ordinals[i];
+    	ordinals[i] = ordinals[j];
+    	ordinals[j] = ordinal;
+    	double value = values[i];
+    	values[i] = values[j];
+    	values[j] = value;
+    }
+
+
+    /**
+     * Gets the number of ordinals in the index
+     *
+     * @return number of ordinals
+     */
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Gets the number of buckets
+     *
+     * @return number of buckets
+     */
+    public int getBucketCount() {
+    	return buckets.length;
+    }
+
+
+    /**
+     * Gets an estimate of the memory the index takes
+     *
+     * @return bytes of the bitmaps and the member lists
+     */
+    public long bytes() {
+    	long bytes = TreeStats.OBJECT_BYTES + 6 * TreeStats.ARRAY_BYTES + (long) bounds.length * Double.BYTES
+    			+ (long) (3 * buckets.length + below.length) * TreeStats.REFERENCE_BYTES + (long) counts.length * Integer.BYTES;
+    	for (int b = 0; b < buckets.length; b++) {
+    		bytes += buckets[b].bytes() + 2 * TreeStats.ARRAY_BYTES
+    				+ (long) members[b].length * (Integer.BYTES + Double.BYTES);
+    	}
+    	for (OrdinalBitmap prefix : below) {
+    		bytes += prefix.bytes();
+    	}
+    	return bytes;
+    }
+
+
+    /**
+     * Checks that every ordinal is in the bucket of its value and in no
+     * other, that the member lists are in order and match the bitmaps,
+     * that the buckets add up to the size, and that each prefix bitmap
+     * holds exactly the buckets before it.
+     *
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+    	int count = 0;
+    	for (int b = 0; b < buckets.length; b++) {
+    		int[] ordinals = Arrays.copyOf(members[b], counts[b]);
+    		Arrays.sort(ordinals);
+    		if (!Arrays.equals(buckets[b].toArray(), ordinals)) {
+    			throw new IllegalStateException("Bitmap of bucket " + b + " does not match its members");
+    		}
+    		for (int i = 0; i < counts[b]; i++) {
+    			if (i > 0 && position(b, members[b][i - 1], memberValues[b][i - 1]) != i - 1) {
+    				throw new IllegalStateException("Members of bucket " + b + " are out of order at " + i);
+    			}
+    			if (bucketOf(memberValues[b][i]) != b) {
+    				throw new IllegalStateException("Ordinal " + members[b][i] + " with value " + memberValues[b][i]
+    						+ " is in bucket " + b + " instead of " + bucketOf(memberValues[b][i]));
+    			}
+    		}
+    		count += counts[b];
+    	}
+    	if (count != size) {
+    		throw new IllegalStateException("Size is " + size + ", the buckets hold " + count + " ordinals");
+    	}
+    	for (int k = 1; k < below.length; k++) {
+    		List<OrdinalBitmap> parts = new ArrayList<OrdinalBitmap>();
+    		parts.add(new OrdinalBitmap());
+    		parts.addAll(Arrays.asList(buckets).subList(0, k * STRIDE));
+    		if (!Arrays.equals(below[k].toArray(), OrdinalBitmap.or(parts).toArray())) {
+    			throw new IllegalStateException("Prefix " + k + " does not hold exactly the buckets before it");
+    		}
+    	}
+    }
+
+
+    /**
+     * The parts one range is made of: the ordinals of include that are
+     * not in exclude, if there are any, the buckets it covers whole, and
+     * the buckets it cuts through.
+     */
+    private class Range {
+
+        // Lowest value of the range, inclusive
+        final double low;
+
+        // Highest value of the range, inclusive
+        final double high;
+
+        // Prefix bitmap the range starts from, or null
+        OrdinalBitmap include;
+
+        // Prefix bitmap taken out of include
+        OrdinalBitmap exclude;
+
+        // Buckets the range covers whole
+        final List<OrdinalBitmap> whole = new ArrayList<OrdinalBitmap>();
+
+        // Buckets the range cuts through, at most two
+        final int[] cut = new int[2];
+
+        // Number of buckets in cut
+        int cuts;
+
+        // Number of ordinals in the buckets the range touches
+        int estimate;
+
+        /**
+         * Package constructor
+         *
+         * @param low lowest value, inclusive
+         * @param high highest value, inclusive
+         */
+        Range(double low, double high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        /**
+         * Adds a first or last bucket, whole if the range covers it
+         *
+         * @param bucket index of the bucket
+         */
+        void add(int bucket) {
+        	if (covers(bucket, low, high)) {
+        		whole.add(buckets[bucket]);
+        	}
+        	else {
+        		cut[cuts++] = bucket;
+        	}
+        }
+
+        /**
+         * Sets words to the bits of the range in one group
+         *
+         * @param key the group, the high 16 bits of its ordinals
+         * @param words bitset of the group, overwritten
+         */
+        void fill(int key, long[] words) {
+        	Arrays.fill(words, 0);
+        	if (include != null) {
+        		include.orGroup((char) key, words);
+        		exclude.andNotGroup((char) key, words);
+        	}
+        	for (OrdinalBitmap bucket : whole) {
+        		bucket.orGroup((char) key, words);
+        	}
+
+        	// Within the group the members of a cut bucket are in value order.
+        	for (int c = 0; c < cuts; c++) {
+        		int b = cut[c];
+        		int start = groupStart(b, key);
+        		if (start < counts[b] && members[b][start] >>> 16 == key) {
+        			int end = groupEnd(b, start);
+        			int[] ordinals = members[b];
+        			int until = firstAbove(b, start, end, high);
+        			for (int i = firstAtLeast(b, start, end, low); i < until; i++) {
+        				words[(ordinals[i] >>> 6) & (OrdinalBitmap.WORDS - 1)] |= 1L << ordinals[i];
+        			}
+        		}
+        	}
+        }
+
+        /**
+         * Gets the last group any part of the range has
+         *
+         * @return the group, or -1 if the range is empty
+         */
+        int lastKey() {
+        	int lastKey = include != null ? include.lastKey() : -1;
+        	for (OrdinalBitmap bucket : whole) {
+        		lastKey = Math.max(lastKey, bucket.lastKey());
+        	}
+        	for (int c = 0; c < cuts; c++) {
+        		lastKey = Math.max(lastKey, buckets[cut[c]].lastKey());
+        	}
+        	return lastKey;
+        }
+
+    } // End of class Range
+
+} // End of class NutrientBitmapIndex
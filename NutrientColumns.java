@@ -0,0 +1,220 @@
+package application;
+import java.util.Arrays;
+
+/**
+ * A columnar copy of the nutrient values of the food items: one double[]
+ * per nutrient, indexed by ordinal, with a bitset per column of the
+ * ordinals that have a value. Scanning a column reads one contiguous
+ * array instead of a HashMap per item.
+ *
+ * A scan works through the ordinals 64 at a time. Each rule turns its
+ * block of values into a 64-bit mask without branching on the values:
+ * whether a value is at least the low bound is the sign bit of their
+ * difference. The masks of all rules and the presence bits are ANDed
+ * together, and blocks no item survives are skipped by the later rules.
+ */
+public class NutrientColumns {
+
+    // Names of the nutrients, one column each
+    private final String[] nutrients;
+
+    // columns[n][ordinal] holds nutrient n of the item with that ordinal
+    private double[][] columns;
+
+    // Bit ordinal % 64 of present[n][ordinal / 64] is set if the ordinal has a value for nutrient n
+    private long[][] present;
+
+    // Number of ordinals in use, the length of every column that counts
+    private int size;
+
+
+    /**
+     * Public constructor
+     *
+     * @param nutrients names of the nutrients, one column each
+     */
+    public NutrientColumns(String[] nutrients) {
+        this.nutrients = nutrients.clone();
+        columns = new double[nutrients.length][64];
+        present = new long[nutrients.length][1];
+    }
+
+
+    /**
+     * Gets the column number of a nutrient
+     *
+     * @param nutrient name of the nutrient
+     * @return its column, or -1 if it has none
+     */
+    public int columnOf(String nutrient) {
+    	for (int n = 0; n < nutrients.length; n++) {
+    		if (nutrients[n].equals(nutrient)) {
+    			return n;
+    		}
+    	}
+    	return -1;
+    }
+
+
+    /**
+     * Sets the value of one nutrient of one ordinal, growing the columns
+     * to hold the ordinal
+     *
+     * @param ordinal the ordinal (>=0)
+     * @param nutrient name of the nutrient; nutrients without a column are ignored
+     * @param value the value, NaN to clear it
+     */
+    public void set(int ordinal, String nutrient, double value) {
+    	int n = columnOf(nutrient);
+    	if (n < 0) {
+    		return;
+    	}
+    	if (ordinal >= columns[n].length) {
+    		// Columns grow in whole blocks of 64, so a scan never reads past one.
+    		int length = (Math.max(ordinal + 1, 2 * columns[n].length) + 63) & ~63;
+    		for (int c = 0; c < columns.length; c++) {
+    			columns[c] = Arrays.copyOf(columns[c], length);
+    			present[c] = Arrays.copyOf(present[c], length >>> 6);
+    		}
+    	}
+    	if (Double.isNaN(value)) {
+    		present[n][ordinal >>> 6] &= ~(1L << ordinal);
+    		columns[n][ordinal] = 0;
+    	}
+    	else {
+    		present[n][ordinal >>> 6] |= 1L << ordinal;
+    		// Adding 0.0 turns -0.0 into 0.0, which the sign bit test needs.
+    		columns[n][ordinal] = value + 0.0;
+    	}
+    	size = Math.max(size, ordinal + 1);
+    }
+
+
+    /**
+     * Clears every value of an ordinal, so no bounded rule matches it
+     *
+     * @param ordinal the ordinal
+     */
+    public void clear(int ordinal) {
+    	for (String nutrient : nutrients) {
+    		set(ordinal, nutrient, Double.NaN);
+    	}
+    }
+
+
+    /**
+     * Gets the value of one nutrient of one ordinal
+     *
+     * @param ordinal the ordinal
+     * @param nutrient name of the nutrient
+     * @return the value, or NaN if there is none
+     */
+    public double get(int ordinal, String nutrient) {
+    	int n = columnOf(nutrient);
+    	if (n < 0 || ordinal >= size || (present[n][ordinal >>> 6] & (1L << ordinal)) == 0) {
+    		return Double.NaN;
+    	}
+    	return columns[n][ordinal];
+    }
+
+
+    /**
+     * Gets the number of ordinals the columns cover
+     *
+     * @return one past the largest ordinal set
+     */
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Finds the ordinals whose values lie within a range on every given
+     * nutrient
+     *
+     * @param ruleNutrients nutrient of each rule
+     * @param lows lowest value of each rule, inclusive
+     * @param highs highest value of each rule, inclusive
+     * @return bit ordinal % 64 of word ordinal / 64 is set for each match
+     */
+    public long[] scan(String[] ruleNutrients, double[] lows, double[] highs) {
+    	long[] words = new long[(size + 63) >>> 6];
+    	Arrays.fill(words, -1L);
+    	if ((size & 63) != 0) {
+    		words[words.length - 1] = (1L << (size & 63)) - 1;
+    	}
+
+    	for (int r = 0; r < ruleNutrients.length; r++) {
+    		int n = columnOf(ruleNutrients[r]);
+    		if (n < 0 || !(lows[r] <= highs[r])) {
+    			return new long[words.length];
+    		}
+    		double[] column = columns[n];
+    		long[] has = present[n];
+    		double low = lows[r] + 0.0;
+    		double high = highs[r] + 0.0;
+
+    		// An infinite bound always passes; testing it by subtraction would
+    		// give NaN for an infinite value.
+    		long lowOpen = low == Double.NEGATIVE_INFINITY ? 1 : 0;
+    		long highOpen = high == Double.POSITIVE_INFINITY ? 1 : 0;
+    		for (int w = 0; w < words.length; w++) {
+    			long word = words[w] & has[w];
+    			if (word == 0) {
+    				words[w] = 0;
+    				continue;
+    			}
+    			int base = w << 6;
+    			long bits = 0;
+    			for (int i = 0; i < 64; i++) {
+    				double value = column[base + i];
+    				long atLeast = lowOpen | ~Double.doubleToRawLongBits(value - low) >>> 63;
+    				long atMost = highOpen | ~Double.doubleToRawLongBits(high - value) >>> 63;
+    				bits |= (atLeast & atMost) << i;
+    			}
+    			words[w] = word & bits;
+    		}
+    	}
+    	return words;
+    }
+
+
+    /**
+     * Gets the ordinals set in a scan result
+     *
+     * @param words result of scan
+     * @return the ordinals in ascending order
+     */
+    public static int[] ordinals(long[] words) {
+    	int count = 0;
+    	for (long word : words) {
+    		count += Long.bitCount(word);
+    	}
+    	int[] ordinals = new int[count];
+    	int at = 0;
+    	for (int w = 0; w < words.length; w++) {
+    		long word = words[w];
+    		while (word != 0) {
+    			ordinals[at++] = (w << 6) + Long.numberOfTrailingZeros(word);
+    			word &= word - 1;
+    		}
+    	}
+    	return ordinals;
+    }
+
+
+    /**
+     * Counts the ordinals set in a scan result
+     *
+     * @param words result of scan
+     * @return number of ordinals
+     */
+    public static int count(long[] words) {
+    	int count = 0;
+    	for (long word : words) {
+    		count += Long.bitCount(word);
+    	}
+    	return count;
+    }
+
+} // End of class NutrientColumns
@@ -0,0 +1,292 @@
+package application;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The operations FoodData needs from a nutrient index, on top of the
+ * BPTreeADT contract. Both the heap tree (DoubleBPTree) and the paged
+ * tree (PagedBPTree) implement it, so FoodData can be built over either.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public interface NutrientIndex<V> extends BPTreeADT<Double, V> {
+
+    /**
+     * Gets the values whose keys fall in the interval between lowKey and
+     * highKey, in ascending key order.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return list of values in the interval; if nothing found, return empty list
+     */
+    public List<V> between(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh);
+
+
+    /**
+     * Opens a cursor over the values whose keys fall in the interval
+     * between lowKey and highKey, in ascending key order, without
+     * collecting them first.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @return a cursor positioned before the first value in the interval
+     */
+    public RangeCursor<V> cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh);
+
+
+    /**
+     * Opens a cursor over the values whose keys fall in the interval
+     * between lowKey and highKey, in descending key order. Values with
+     * equal keys come in the reverse of their ascending order.
+     *
+     * @param highKey upper end of the interval, where the cursor starts
+     * @param lowKey lower end of the interval
+     * @param inclusiveHigh whether keys equal to highKey match
+     * @param inclusiveLow whether keys equal to lowKey match
+     * @return a cursor positioned before the first value in the interval
+     */
+    public RangeCursor<V> descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow);
+
+
+    /**
+     * Gets up to limit values in key order, starting at fromKey.
+     *
+     * @param fromKey first key of an ascending scan, last key of a descending one
+     * @param ascending direction of the scan
+     * @param limit most values to return (> 0)
+     * @return the values and the token for the next page
+     */
+    public default KeysetPage<Double, V> scan(double fromKey, boolean ascending, int limit) {
+    	RangeCursor<V> cursor = ascending ? cursor(fromKey, Double.POSITIVE_INFINITY, true, true)
+    			: descendingCursor(fromKey, Double.NEGATIVE_INFINITY, true, true);
+    	return KeysetPage.collect(cursor, cursor::getKey, null, ascending, limit);
+    }
+
+
+    /**
+     * Gets the next page of a scan, up to limit values after the ones
+     * the token's page ended with.
+     *
+     * @param after token of the previous page
+     * @param limit most values to return (> 0)
+     * @return the values and the token for the next page
+     */
+    public default KeysetPage<Double, V> scan(KeysetPage.Token<Double> after, int limit) {
+    	double fromKey = after.getLastKey();
+    	RangeCursor<V> cursor = after.isAscending() ? cursor(fromKey, Double.POSITIVE_INFINITY, true, true)
+    			: descendingCursor(fromKey, Double.NEGATIVE_INFINITY, true, true);
+    	return KeysetPage.collect(cursor, cursor::getKey, after, after.isAscending(), limit);
+    }
+
+
+    /**
+     * Counts the values whose keys fall in the interval between lowKey
+     * and highKey without collecting them.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param inclusiveLow whether keys equal to lowKey count
+     * @param inclusiveHigh whether keys equal to highKey count
+     * @return number of values in the interval
+     */
+    public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh);
+
+
+    /**
+     * Estimates how many values fall in the interval, for weighing one
+     * index against another before searching. An index that has to walk
+     * its values to count them stops at limit; one that counts them
+     * cheaply may give the exact number.
+     *
+     * @param lowKey lower end of the interval
+     * @param highKey upper end of the interval
+     * @param limit count at which the caller no longer needs the exact number
+     * @return number of values in the interval, or any number from limit up if there are at least limit
+     */
+    public default int estimateRange(double lowKey, double highKey, int limit) {
+    	int count = 0;
+    	RangeCursor<V> cursor = cursor(lowKey, highKey, true, true);
+    	while (count < limit && cursor.hasNext()) {
+    		cursor.next();
+    		count++;
+    	}
+    	return count;
+    }
+
+
+    /**
+     * Deletes one entry with the given key and value.
+     *
+     * @param key key of the entry
+     * @param value value of the entry
+     * @return true if an entry was deleted, false if there was none
+     */
+    public boolean delete(Double key, V value);
+
+
+    /**
+     * Gets the number of values in the index.
+     *
+     * @return number of values
+     */
+    public int size();
+
+
+    /**
+     * Walks the index and reports its shape.
+     *
+     * @return height, nodes per level, leaf fill, splits and size of the index
+     */
+    public TreeStats stats();
+
+
+    /**
+     * Checks the structure of the index: key order within and across
+     * nodes, separators bounding their subtrees, all leaves at the same
+     * depth, and the leaf sibling links.
+     *
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate();
+
+
+    /**
+     * Takes a read-only snapshot of the index as it is now. The index
+     * copies whatever the snapshot shares before changing it, so the
+     * snapshot keeps answering for this moment while the index goes on
+     * changing, and any number of threads can read it meanwhile. Taking
+     * the snapshot itself is a change, made while nothing else uses the
+     * index.
+     *
+     * @return the snapshot
+     * @throws UnsupportedOperationException if the index does not take snapshots
+     */
+    public default Snapshot<V> snapshot() {
+    	throw new UnsupportedOperationException(getClass().getSimpleName() + " does not take snapshots");
+    }
+
+
+    /**
+     * An iterator over a range of an index that also tells the key of the
+     * value it returned last.
+     *
+     * @param <V> value - expect a user-defined type that stores all data for a food item
+     */
+    public interface RangeCursor<V> extends Iterator<V> {
+
+        /**
+         * Gets the key of the value most recently returned by next()
+         *
+         * @return key, or NaN if next() has not been called yet
+         */
+        public double getKey();
+    }
+
+
+    /**
+     * A read-only version of an index, as it was when snapshot() was
+     * called. Its reads are those of the index, and they never see a
+     * change made after the snapshot was taken.
+     *
+     * @param <V> value - expect a user-defined type that stores all data for a food item
+     */
+    public interface Snapshot<V> {
+
+        /**
+         * Gets the number of values in this version.
+         *
+         * @return number of values
+         */
+        public int size();
+
+
+        /**
+         * Opens a cursor over the values whose keys fall in the interval
+         * between lowKey and highKey, in ascending key order.
+         *
+         * @see NutrientIndex#cursor(double, double, boolean, boolean)
+         */
+        public RangeCursor<V> cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh);
+
+
+        /**
+         * Opens a cursor over the values whose keys fall in the interval
+         * between lowKey and highKey, in descending key order.
+         *
+         * @see NutrientIndex#descendingCursor(double, double, boolean, boolean)
+         */
+        public RangeCursor<V> descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow);
+
+
+        /**
+         * Counts the values whose keys fall in the interval between lowKey
+         * and highKey without collecting them.
+         *
+         * @see NutrientIndex#countRange(double, double, boolean, boolean)
+         */
+        public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh);
+
+
+        /**
+         * Gets the values whose keys fall in the interval between lowKey
+         * and highKey, in ascending key order.
+         *
+         * @see NutrientIndex#between(double, double, boolean, boolean)
+         */
+        public default List<V> between(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+        	List<V> result = new ArrayList<V>();
+        	RangeCursor<V> cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+        	while (cursor.hasNext()) {
+        		result.add(cursor.next());
+        	}
+        	return result;
+        }
+
+
+        /**
+         * Estimates how many values fall in the interval, stopping at limit
+         * unless the count is cheap.
+         *
+         * @see NutrientIndex#estimateRange(double, double, int)
+         */
+        public default int estimateRange(double lowKey, double highKey, int limit) {
+        	int count = 0;
+        	RangeCursor<V> cursor = cursor(lowKey, highKey, true, true);
+        	while (count < limit && cursor.hasNext()) {
+        		cursor.next();
+        		count++;
+        	}
+        	return count;
+        }
+
+
+        /**
+         * Gets up to limit values in key order, starting at fromKey.
+         *
+         * @see NutrientIndex#scan(double, boolean, int)
+         */
+        public default KeysetPage<Double, V> scan(double fromKey, boolean ascending, int limit) {
+        	RangeCursor<V> cursor = ascending ? cursor(fromKey, Double.POSITIVE_INFINITY, true, true)
+        			: descendingCursor(fromKey, Double.NEGATIVE_INFINITY, true, true);
+        	return KeysetPage.collect(cursor, cursor::getKey, null, ascending, limit);
+        }
+
+
+        /**
+         * Gets the next page of a scan of this version.
+         *
+         * @see NutrientIndex#scan(KeysetPage.Token, int)
+         */
+        public default KeysetPage<Double, V> scan(KeysetPage.Token<Double> after, int limit) {
+        	double fromKey = after.getLastKey();
+        	RangeCursor<V> cursor = after.isAscending() ? cursor(fromKey, Double.POSITIVE_INFINITY, true, true)
+        			: descendingCursor(fromKey, Double.NEGATIVE_INFINITY, true, true);
+        	return KeysetPage.collect(cursor, cursor::getKey, after, after.isAscending(), limit);
+        }
+    }
+}
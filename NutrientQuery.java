@@ -0,0 +1,188 @@
+package application;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of nutrient rules such as "calories >= 300" compiled once into
+ * one closed interval per nutrient. All the rules on a nutrient are
+ * merged into that interval, nutrient names are folded to lower case,
+ * and rules that contradict each other are found at compile time, so
+ * a query that can not match anything never reaches an index. A query
+ * does not change after it is compiled and can be run any number of
+ * times.
+ */
+public final class NutrientQuery {
+
+    // Interval {low, high} of each nutrient, in the order the nutrients first appear in the rules
+    private final Map<String, double[]> intervals;
+
+    // Whether the rules can not match anything
+    private final boolean contradictory;
+
+    // The rules the query was compiled from
+    private final List<String> rules;
+
+
+    /**
+     * Private constructor, see compile
+     *
+     * @param intervals interval of each nutrient
+     * @param contradictory whether the rules can not match anything
+     * @param rules the rules the query was compiled from
+     */
+    private NutrientQuery(Map<String, double[]> intervals, boolean contradictory, List<String> rules) {
+        this.intervals = Collections.unmodifiableMap(intervals);
+        this.contradictory = contradictory;
+        this.rules = Collections.unmodifiableList(new ArrayList<String>(rules));
+    }
+
+
+    /**
+     * Compiles rules of the form "nutrient comparator value", where the
+     * comparator is one of >=, <= and ==. An unknown comparator matches
+     * nothing, like a rule whose interval is empty.
+     *
+     * @param rules the rules, all of which a food item has to pass
+     * @return the compiled query
+     * @throws IllegalArgumentException if a rule does not have three parts or its value is not a number
+     */
+    public static NutrientQuery compile(List<String> rules) {
+    	Map<String, double[]> intervals = new LinkedHashMap<String, double[]>();
+    	boolean contradictory = false;
+    	for (String rule : rules) {
+    		String[] parts = rule.trim().split("\\s+");
+    		if (parts.length != 3) {
+    			throw new IllegalArgumentException("Illegal rule: " + rule);
+    		}
+    		String nutrient = parts[0].toLowerCase();
+    		String comparator = parts[1];
+    		double value;
+    		try {
+    			// Adding 0.0 turns "-0" into 0.0, the only zero food items keep.
+    			value = Double.parseDouble(parts[2]) + 0.0;
+    		}
+    		catch (NumberFormatException e) {
+    			throw new IllegalArgumentException("Illegal rule value: " + rule, e);
+    		}
+
+    		double[] interval = intervals.get(nutrient);
+    		if (interval == null) {
+    			interval = new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+    			intervals.put(nutrient, interval);
+    		}
+    		if (comparator.equals(">=")) {
+    			interval[0] = Math.max(interval[0], value);
+    		}
+    		else if (comparator.equals("<=")) {
+    			interval[1] = Math.min(interval[1], value);
+    		}
+    		else if (comparator.equals("==")) {
+    			interval[0] = Math.max(interval[0], value);
+    			interval[1] = Math.min(interval[1], value);
+    		}
+    		else {
+    			contradictory = true;
+    		}
+
+    		// A NaN bound fails every comparison, so it empties the interval too.
+    		if (!(interval[0] <= interval[1])) {
+    			contradictory = true;
+    		}
+    	}
+    	return new NutrientQuery(intervals, contradictory, rules);
+    }
+
+
+    /**
+     * Tells whether the rules can not match any food item, because two
+     * of them leave an empty interval or one has an unknown comparator
+     *
+     * @return true if the query matches nothing
+     */
+    public boolean isContradictory() {
+    	return contradictory;
+    }
+
+    /**
+     * Tells whether the query has no rules
+     *
+     * @return true if no rule was compiled
+     */
+    public boolean isEmpty() {
+    	return intervals.isEmpty();
+    }
+
+    /**
+     * Gets the nutrients the rules are on
+     *
+     * @return lower case names, in the order they first appear in the rules
+     */
+    public List<String> getNutrients() {
+    	return new ArrayList<String>(intervals.keySet());
+    }
+
+    /**
+     * Gets the lowest value a nutrient may have
+     *
+     * @param nutrient name of the nutrient, in any case
+     * @return low end of its interval, inclusive; negative infinity if no rule bounds it
+     */
+    public double getLow(String nutrient) {
+    	double[] interval = intervals.get(nutrient.toLowerCase());
+    	return interval != null ? interval[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Gets the highest value a nutrient may have
+     *
+     * @param nutrient name of the nutrient, in any case
+     * @return high end of its interval, inclusive; positive infinity if no rule bounds it
+     */
+    public double getHigh(String nutrient) {
+    	double[] interval = intervals.get(nutrient.toLowerCase());
+    	return interval != null ? interval[1] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Gets the rules the query was compiled from
+     *
+     * @return the rules as given
+     */
+    public List<String> getRules() {
+    	return rules;
+    }
+
+    /**
+     * Gets the merged interval of each nutrient for FoodData. The map can
+     * not be changed, and neither may the arrays in it.
+     *
+     * @return nutrient to interval {low, high}
+     */
+    Map<String, double[]> intervals() {
+    	return intervals;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+    	if (contradictory) {
+    		return "contradictory " + rules;
+    	}
+    	StringBuilder text = new StringBuilder();
+    	for (Map.Entry<String, double[]> entry : intervals.entrySet()) {
+    		if (text.length() > 0) {
+    			text.append(", ");
+    		}
+    		text.append(entry.getKey()).append(" in [").append(entry.getValue()[0])
+    				.append(", ").append(entry.getValue()[1]).append("]");
+    	}
+    	return text.toString();
+    }
+
+} // End of class NutrientQuery
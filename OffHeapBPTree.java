@@ -0,0 +1,884 @@
+package application;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.ToIntFunction;
+
+/**
+ * B+ tree over double keys whose nodes live outside the Java heap. Nodes
+ * are fixed-size records in large direct-memory slabs, addressed by an
+ * int node number, and hold their keys, item ordinals and child node
+ * numbers as flat arrays inside the record. The collector therefore sees
+ * one small buffer object per slab instead of several objects per node,
+ * so the size of the index barely affects GC pauses.
+ *
+ * As in PagedBPTree, the caller supplies the function that gives each
+ * value its ordinal and the table an ordinal is looked up in. Entries are
+ * ordered by key and then by ordinal, so every entry is unique and a
+ * separator routes each entry to exactly one leaf.
+ *
+ * A delete removes the entry from its leaf, but underfull nodes are not
+ * merged and their space is only given back by clear(). Slabs are
+ * released when the tree is no longer reachable.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class OffHeapBPTree<V> implements NutrientIndex<V> {
+
+    // Node number that stands for no node
+    private static final int NO_NODE = -1;
+
+    // Byte offsets of the fields in a node record
+    private static final int NODE_TYPE = 0;
+    private static final int NODE_COUNT = 4;
+    private static final int NODE_NEXT = 8;
+    private static final int NODE_PREVIOUS = 12;
+    private static final int NODE_DATA = 16;
+
+    // Values of the node type field
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+
+    // Slabs are sized to hold about this many bytes of nodes
+    private static final int SLAB_BYTES = 1 << 20;
+
+    // Number of entries a node holds, one less than the branching factor,
+    // which is the number of children of a full internal node
+    private final int capacity;
+
+    // Size of a node record in bytes
+    private final int nodeSize;
+
+    // log2 of the number of nodes in a slab
+    private final int slabShift;
+
+    // Slabs of node records, node n is record n & (2^slabShift - 1) of slab n >>> slabShift
+    private ByteBuffer[] slabs;
+
+    // Number of nodes allocated
+    private int nodeCount;
+
+    // Node number of the root
+    private int root;
+
+    // Number of entries in the tree
+    private int size;
+
+    // Values by ordinal
+    private final List<V> table;
+
+    // Gives each value its ordinal
+    private final ToIntFunction<V> ordinals;
+
+    // Number of node splits since the tree was created
+    private long splits;
+
+    // Separator handed up to the parent by the most recent split
+    private double promotedKey;
+    private int promotedOrdinal;
+
+
+    /**
+     * Public constructor
+     *
+     * Initializes the tree with an empty leaf as root and the given branching factor
+     *
+     * @param branchingFactor The given branching factor of the tree (>2)
+     * @param table values by ordinal
+     * @param ordinals gives each value its ordinal in table
+     */
+    public OffHeapBPTree(int branchingFactor, List<V> table, ToIntFunction<V> ordinals) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException(
+               "Illegal branching factor: " + branchingFactor);
+        }
+
+        this.table = table;
+        this.ordinals = ordinals;
+        capacity = branchingFactor - 1;
+        // Keys, ordinals and one more child than keys, rounded up to whole doubles
+        nodeSize = (NODE_DATA + 16 * capacity + 4 + 7) & ~7;
+        int shift = 0;
+        while ((nodeSize << (shift + 1)) <= SLAB_BYTES) {
+        	shift++;
+        }
+        slabShift = shift;
+        clear();
+    }
+
+
+    /**
+     * Empties the tree. The slabs are dropped and released by the collector.
+     */
+    public void clear() {
+    	slabs = new ByteBuffer[0];
+    	nodeCount = 0;
+    	size = 0;
+    	root = allocate(LEAF);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Double key, V value) {
+    	if (key == null) {
+    		throw new IllegalArgumentException("Null keys can not be indexed");
+    	}
+
+    	int sibling = insert(root, key, ordinals.applyAsInt(value));
+
+    	// The root split, so the tree grows by one level.
+    	if (sibling != NO_NODE) {
+    		int newRoot = allocate(INTERNAL);
+    		setKey(newRoot, 0, promotedKey);
+    		setOrdinal(newRoot, 0, promotedOrdinal);
+    		setChild(newRoot, 0, root);
+    		setChild(newRoot, 1, sibling);
+    		setCount(newRoot, 1);
+    		root = newRoot;
+    	}
+    	size++;
+    }
+
+
+    /**
+     * Inserts an entry below the given node.
+     *
+     * @param node node to insert below
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @return the node split off from node, or NO_NODE if it did not split
+     */
+    private int insert(int node, double key, int ordinal) {
+    	int newChild = NO_NODE;
+    	if (!isLeaf(node)) {
+    		newChild = insert(child(node, search(node, key, ordinal, true)), key, ordinal);
+    		if (newChild == NO_NODE) {
+    			return NO_NODE;
+    		}
+    		// The child split, so its separator is inserted here instead.
+    		key = promotedKey;
+    		ordinal = promotedOrdinal;
+    	}
+
+    	if (count(node) < capacity) {
+    		insertEntry(node, search(node, key, ordinal, true), key, ordinal, newChild);
+    		return NO_NODE;
+    	}
+
+    	// The node is full, so split it and insert into the half the entry belongs in.
+    	int sibling = split(node);
+    	int cmp = Double.compare(key, promotedKey);
+    	int target = cmp < 0 || (cmp == 0 && ordinal < promotedOrdinal) ? node : sibling;
+    	insertEntry(target, search(target, key, ordinal, true), key, ordinal, newChild);
+    	return sibling;
+    }
+
+
+    /**
+     * Moves the upper half of a full node into a new node and sets the
+     * separator to promote. A leaf keeps its first entry as a copy in the
+     * separator, an internal node hands its middle separator up.
+     *
+     * @param node the full node
+     * @return the new node
+     */
+    private int split(int node) {
+    	splits++;
+    	boolean leaf = isLeaf(node);
+    	int sibling = allocate(leaf ? LEAF : INTERNAL);
+    	int n = count(node);
+    	int mid = n / 2;
+    	if (leaf) {
+    		for (int i = mid; i < n; i++) {
+    			setKey(sibling, i - mid, key(node, i));
+    			setOrdinal(sibling, i - mid, ordinal(node, i));
+    		}
+    		setCount(sibling, n - mid);
+    		if (next(node) != NO_NODE) {
+    			setPrevious(next(node), sibling);
+    		}
+    		setNext(sibling, next(node));
+    		setPrevious(sibling, node);
+    		setNext(node, sibling);
+    		promotedKey = key(sibling, 0);
+    		promotedOrdinal = ordinal(sibling, 0);
+    	}
+    	else {
+    		promotedKey = key(node, mid);
+    		promotedOrdinal = ordinal(node, mid);
+    		for (int i = mid + 1; i < n; i++) {
+    			setKey(sibling, i - mid - 1, key(node, i));
+    			setOrdinal(sibling, i - mid - 1, ordinal(node, i));
+    		}
+    		for (int i = mid + 1; i <= n; i++) {
+    			setChild(sibling, i - mid - 1, child(node, i));
+    		}
+    		setCount(sibling, n - mid - 1);
+    	}
+    	setCount(node, mid);
+    	return sibling;
+    }
+
+
+    /**
+     * Shifts the entries from pos on one place right and writes the new
+     * entry at pos. In an internal node the new child goes right of it.
+     *
+     * @param node node with room for one more entry
+     * @param pos position of the new entry
+     * @param key key of the new entry
+     * @param ordinal ordinal of the new entry
+     * @param child node right of the new separator, only used in internal nodes
+     */
+    private void insertEntry(int node, int pos, double key, int ordinal, int child) {
+    	int n = count(node);
+    	for (int i = n; i > pos; i--) {
+    		setKey(node, i, key(node, i - 1));
+    		setOrdinal(node, i, ordinal(node, i - 1));
+    	}
+    	setKey(node, pos, key);
+    	setOrdinal(node, pos, ordinal);
+    	if (!isLeaf(node)) {
+    		for (int i = n + 1; i > pos + 1; i--) {
+    			setChild(node, i, child(node, i - 1));
+    		}
+    		setChild(node, pos + 1, child);
+    	}
+    	setCount(node, n + 1);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#delete(java.lang.Double, java.lang.Object)
+     */
+    @Override
+    public boolean delete(Double key, V value) {
+    	if (key == null) {
+    		return false;
+    	}
+
+    	int ordinal = ordinals.applyAsInt(value);
+    	int leaf = findLeaf(key, ordinal);
+    	int pos = search(leaf, key, ordinal, false);
+    	int n = count(leaf);
+    	if (pos == n || Double.compare(key(leaf, pos), key) != 0 || ordinal(leaf, pos) != ordinal) {
+    		return false;
+    	}
+    	for (int i = pos + 1; i < n; i++) {
+    		setKey(leaf, i - 1, key(leaf, i));
+    		setOrdinal(leaf, i - 1, ordinal(leaf, i));
+    	}
+    	setCount(leaf, n - 1);
+    	size--;
+    	return true;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double key, String comparator) {
+    	// Return just an empty list if the comparator is invalid or if the key is invalid.
+    	if (key == null || comparator == null) {
+    		return new ArrayList<V>();
+    	}
+    	if (comparator.contentEquals("==")) {
+    		return between(key, key, true, true);
+    	}
+    	else if (comparator.contentEquals("<=")) {
+    		return between(Double.NEGATIVE_INFINITY, key, true, true);
+    	}
+    	else if (comparator.contentEquals(">=")) {
+    		return between(key, Double.POSITIVE_INFINITY, true, true);
+    	}
+    	return new ArrayList<V>();
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#between(double, double, boolean, boolean)
+     */
+    @Override
+    public List<V> between(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	List<V> result = new ArrayList<V>();
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while (cursor.hasNext()) {
+    		result.add(cursor.next());
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Counts the values in the interval by walking its leaf entries,
+     * without looking up any value.
+     *
+     * @see NutrientIndex#countRange(double, double, boolean, boolean)
+     */
+    @Override
+    public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	int count = 0;
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while (cursor.hasNext()) {
+    		cursor.advance();
+    		count++;
+    	}
+    	return count;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#cursor(double, double, boolean, boolean)
+     */
+    @Override
+    public Cursor cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	// Ordinals are never negative, so these sort before or after every entry with lowKey.
+    	int ordinal = inclusiveLow ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    	int leaf = findLeaf(lowKey, ordinal);
+    	return new Cursor(leaf, search(leaf, lowKey, ordinal, false), highKey, inclusiveHigh);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#descendingCursor(double, double, boolean, boolean)
+     */
+    @Override
+    public DescendingCursor descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow) {
+    	// Ordinals are never negative, so these sort after or before every entry with highKey.
+    	int ordinal = inclusiveHigh ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+    	int leaf = findLeaf(highKey, ordinal);
+    	return new DescendingCursor(leaf, search(leaf, highKey, ordinal, false) - 1, lowKey, inclusiveLow);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#size()
+     */
+    @Override
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Gets the number of bytes of direct memory held by the slabs.
+     *
+     * @return bytes outside the heap
+     */
+    public long offHeapBytes() {
+    	return (long) slabs.length * (nodeSize << slabShift);
+    }
+
+
+    /**
+     * Walks the tree and reports its shape. Splits are counted since the tree was created,
+     * and the size is that of the slabs.
+     *
+     * @see NutrientIndex#stats()
+     */
+    @Override
+    public TreeStats stats() {
+    	List<Integer> levelNodes = new ArrayList<Integer>();
+    	long used = 0;
+    	long leaves = 0;
+    	List<Integer> level = Arrays.asList(root);
+    	while (!level.isEmpty()) {
+    		levelNodes.add(level.size());
+    		List<Integer> nextLevel = new ArrayList<Integer>();
+    		for (int node : level) {
+    			int n = count(node);
+    			if (isLeaf(node)) {
+    				used += n;
+    				leaves++;
+    			}
+    			else {
+    				for (int i = 0; i <= n; i++) {
+    					nextLevel.add(child(node, i));
+    				}
+    			}
+    		}
+    		level = nextLevel;
+    	}
+
+    	int[] counts = new int[levelNodes.size()];
+    	for (int i = 0; i < counts.length; i++) {
+    		counts[i] = levelNodes.get(i);
+    	}
+    	return new TreeStats(counts.length, counts, used, size, (double) used / (leaves * capacity), splits, offHeapBytes());
+    }
+
+
+    /**
+     * Checks the structure of the tree. Deletes leave underfull and even
+     * empty leaves behind, and an internal node may be left with a
+     * single child, so neither counts as a violation.
+     *
+     * @see NutrientIndex#validate()
+     */
+    @Override
+    public void validate() {
+    	int height = 1;
+    	int node = root;
+    	while (true) {
+    		boolean leaf = isLeaf(node);
+    		int child = leaf ? NO_NODE : child(node, 0);
+    		if (leaf) {
+    			break;
+    		}
+    		node = child;
+    		height++;
+    	}
+
+    	List<Integer> leaves = new ArrayList<Integer>();
+    	int entries = validate(root, Double.NEGATIVE_INFINITY, Integer.MIN_VALUE, Double.POSITIVE_INFINITY,
+    			Integer.MAX_VALUE, 1, height, leaves);
+    	if (entries != size) {
+    		throw new IllegalStateException("Size is " + size + ", leaves hold " + entries + " entries");
+    	}
+
+    	// The leaf chain has to visit the leaves in key order, both ways.
+    	for (int i = 0; i < leaves.size(); i++) {
+    		int expectedPrevious = i == 0 ? NO_NODE : leaves.get(i - 1);
+    		int expectedNext = i == leaves.size() - 1 ? NO_NODE : leaves.get(i + 1);
+    		node = leaves.get(i);
+    		boolean linked = previous(node) == expectedPrevious && next(node) == expectedNext;
+    		if (!linked) {
+    			throw new IllegalStateException("Sibling links of leaf " + i + " are broken");
+    		}
+    	}
+    }
+
+
+    /**
+     * Checks the subtree under a node and collects its leaves in key order.
+     * Every entry has to lie in [low, high) by key and then ordinal, the
+     * bounds being the separators around the subtree.
+     *
+     * @param node root of the subtree
+     * @param lowKey key of the lower bound
+     * @param lowOrdinal ordinal of the lower bound
+     * @param highKey key of the upper bound, POSITIVE_INFINITY with MAX_VALUE for none
+     * @param highOrdinal ordinal of the upper bound
+     * @param depth depth of the node, the root is at depth 1
+     * @param height depth every leaf has to be at
+     * @param leaves list of the leaves found so far
+     * @return number of entries in the subtree
+     */
+    private int validate(int node, double lowKey, int lowOrdinal, double highKey, int highOrdinal,
+    		int depth, int height, List<Integer> leaves) {
+    	boolean leaf = isLeaf(node);
+    	int n = count(node);
+    	double[] keys = new double[n];
+    	int[] ordinals = new int[n];
+    	int[] children = new int[leaf ? 0 : n + 1];
+    	for (int i = 0; i < n; i++) {
+    		keys[i] = key(node, i);
+    		ordinals[i] = ordinal(node, i);
+    	}
+    	for (int i = 0; i < children.length; i++) {
+    		children[i] = child(node, i);
+    	}
+
+    	for (int i = 0; i < n; i++) {
+    		if (i > 0 && compare(keys[i - 1], ordinals[i - 1], keys[i], ordinals[i]) >= 0) {
+    			throw new IllegalStateException("Entries out of order in node " + node);
+    		}
+    		boolean unbounded = highKey == Double.POSITIVE_INFINITY && highOrdinal == Integer.MAX_VALUE;
+    		if (compare(keys[i], ordinals[i], lowKey, lowOrdinal) < 0
+    				|| (!unbounded && compare(keys[i], ordinals[i], highKey, highOrdinal) >= 0)) {
+    			throw new IllegalStateException("Entry " + keys[i] + "#" + ordinals[i] + " outside its separators in node " + node);
+    		}
+    	}
+
+    	if (leaf) {
+    		if (depth != height) {
+    			throw new IllegalStateException("Leaf at depth " + depth + " in a tree of height " + height);
+    		}
+    		leaves.add(node);
+    		return n;
+    	}
+    	int entries = 0;
+    	for (int i = 0; i <= n; i++) {
+    		entries += validate(children[i],
+    				i == 0 ? lowKey : keys[i - 1], i == 0 ? lowOrdinal : ordinals[i - 1],
+    				i == n ? highKey : keys[i], i == n ? highOrdinal : ordinals[i],
+    				depth + 1, height, leaves);
+    	}
+    	return entries;
+    }
+
+
+    /**
+     * Compares two entries by key and then by ordinal.
+     */
+    private static int compare(double key, int ordinal, double otherKey, int otherOrdinal) {
+    	int cmp = Double.compare(key, otherKey);
+    	return cmp != 0 ? cmp : Integer.compare(ordinal, otherOrdinal);
+    }
+
+
+    /**
+     * Gets the leaf the given entry belongs in.
+     *
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @return node number of the leaf
+     */
+    private int findLeaf(double key, int ordinal) {
+    	int node = root;
+    	while (!isLeaf(node)) {
+    		node = child(node, search(node, key, ordinal, true));
+    	}
+    	return node;
+    }
+
+
+    /**
+     * Finds the first entry of a node that is not below the given entry,
+     * or with upper set the first entry that is above it. In an internal
+     * node the upper position is also the child to descend into.
+     *
+     * @param node node to search
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @param upper whether entries equal to the given one are skipped
+     * @return position in the node, count(node) if there is none
+     */
+    private int search(int node, double key, int ordinal, boolean upper) {
+    	ByteBuffer slab = slabs[node >>> slabShift];
+    	int base = offset(node);
+    	int low = 0;
+    	int high = slab.getInt(base + NODE_COUNT);
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		int cmp = Double.compare(slab.getDouble(base + NODE_DATA + 8 * mid), key);
+    		if (cmp == 0) {
+    			cmp = Integer.compare(slab.getInt(base + NODE_DATA + 8 * capacity + 4 * mid), ordinal);
+    		}
+    		if (cmp < 0 || (upper && cmp == 0)) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Adds a new empty node, growing the slab table when the last slab is full.
+     *
+     * @param type LEAF or INTERNAL
+     * @return node number of the new node
+     */
+    private int allocate(byte type) {
+    	int node = nodeCount++;
+    	int slab = node >>> slabShift;
+    	if (slab == slabs.length) {
+    		slabs = Arrays.copyOf(slabs, slab + 1);
+    		// A new direct buffer is zeroed, so the node needs only its type and next link.
+    		slabs[slab] = ByteBuffer.allocateDirect(nodeSize << slabShift).order(ByteOrder.nativeOrder());
+    	}
+    	slabs[slab].put(offset(node) + NODE_TYPE, type);
+    	setNext(node, NO_NODE);
+    	setPrevious(node, NO_NODE);
+    	return node;
+    }
+
+
+    /*
+     * Accessors for the fields of a node record. Keys sit at the start of
+     * the data area, ordinals after room for every key, and children
+     * after room for every ordinal.
+     */
+
+    private int offset(int node) {
+    	return (node & ((1 << slabShift) - 1)) * nodeSize;
+    }
+
+    private boolean isLeaf(int node) {
+    	return slabs[node >>> slabShift].get(offset(node) + NODE_TYPE) == LEAF;
+    }
+
+    private int count(int node) {
+    	return slabs[node >>> slabShift].getInt(offset(node) + NODE_COUNT);
+    }
+
+    private void setCount(int node, int count) {
+    	slabs[node >>> slabShift].putInt(offset(node) + NODE_COUNT, count);
+    }
+
+    private int next(int node) {
+    	return slabs[node >>> slabShift].getInt(offset(node) + NODE_NEXT);
+    }
+
+    private void setNext(int node, int next) {
+    	slabs[node >>> slabShift].putInt(offset(node) + NODE_NEXT, next);
+    }
+
+    private int previous(int node) {
+    	return slabs[node >>> slabShift].getInt(offset(node) + NODE_PREVIOUS);
+    }
+
+    private void setPrevious(int node, int previous) {
+    	slabs[node >>> slabShift].putInt(offset(node) + NODE_PREVIOUS, previous);
+    }
+
+    private double key(int node, int i) {
+    	return slabs[node >>> slabShift].getDouble(offset(node) + NODE_DATA + 8 * i);
+    }
+
+    private void setKey(int node, int i, double key) {
+    	slabs[node >>> slabShift].putDouble(offset(node) + NODE_DATA + 8 * i, key);
+    }
+
+    private int ordinal(int node, int i) {
+    	return slabs[node >>> slabShift].getInt(offset(node) + NODE_DATA + 8 * capacity + 4 * i);
+    }
+
+    private void setOrdinal(int node, int i, int ordinal) {
+    	slabs[node >>> slabShift].putInt(offset(node) + NODE_DATA + 8 * capacity + 4 * i, ordinal);
+    }
+
+    private int child(int node, int i) {
+    	return slabs[node >>> slabShift].getInt(offset(node) + NODE_DATA + 12 * capacity + 4 * i);
+    }
+
+    private void setChild(int node, int i, int child) {
+    	slabs[node >>> slabShift].putInt(offset(node) + NODE_DATA + 12 * capacity + 4 * i, child);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        List<Integer> level = Arrays.asList(root);
+        while (!level.isEmpty()) {
+            List<Integer> nextLevel = new ArrayList<Integer>();
+            sb.append('{');
+            for (int p = 0; p < level.size(); p++) {
+                int node = level.get(p);
+                double[] keys = new double[count(node)];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = key(node, i);
+                }
+                sb.append(Arrays.toString(keys));
+                if (p < level.size() - 1)
+                    sb.append(", ");
+                if (!isLeaf(node)) {
+                    for (int i = 0; i <= keys.length; i++) {
+                        nextLevel.add(child(node, i));
+                    }
+                }
+            }
+            sb.append("}\n");
+            level = nextLevel;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * A forward cursor over a range of the tree. It holds a leaf and a
+     * position in that leaf and follows the next links between leaves,
+     * checking each key against the upper end of the range as it goes.
+     *
+     * The cursor is only valid until the next insert or delete.
+     */
+    public class Cursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, NO_NODE once the range is used up
+        private int leaf;
+
+        // Position of the next entry within leaf
+        private int index;
+
+        // Upper end of the range
+        private final double highKey;
+
+        // Whether keys equal to highKey are in the range
+        private final boolean inclusiveHigh;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf
+         * @param highKey upper end of the range
+         * @param inclusiveHigh whether keys equal to highKey are in the range
+         */
+        Cursor(int leaf, int index, double highKey, boolean inclusiveHigh) {
+            this.leaf = leaf;
+            this.index = index;
+            this.highKey = highKey;
+            this.inclusiveHigh = inclusiveHigh;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the end of the current leaf, and over leaves emptied by deletes.
+        	while (leaf != NO_NODE && index >= count(leaf)) {
+        		leaf = OffHeapBPTree.this.next(leaf);
+        		index = 0;
+        	}
+        	if (leaf == NO_NODE) {
+        		return false;
+        	}
+
+        	int cmp = Double.compare(key(leaf, index), highKey);
+        	if (cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+        		leaf = NO_NODE;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	return table.get(advance());
+        }
+
+        /**
+         * Moves past the next entry without looking up its value.
+         *
+         * @return ordinal of the entry
+         */
+        private int advance() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = key(leaf, index);
+        	return ordinal(leaf, index++);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.RangeCursor#getKey()
+         */
+        @Override
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class Cursor
+
+
+    /**
+     * A backward cursor over a range of the tree. It mirrors Cursor,
+     * following the previous links between leaves.
+     *
+     * The cursor is only valid until the next insert or delete.
+     */
+    public class DescendingCursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, NO_NODE once the range is used up
+        private int leaf;
+
+        // Position of the next entry within leaf
+        private int index;
+
+        // Lower end of the range
+        private final double lowKey;
+
+        // Whether keys equal to lowKey are in the range
+        private final boolean inclusiveLow;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf, -1 if it is in an earlier leaf
+         * @param lowKey lower end of the range
+         * @param inclusiveLow whether keys equal to lowKey are in the range
+         */
+        DescendingCursor(int leaf, int index, double lowKey, boolean inclusiveLow) {
+            this.leaf = leaf;
+            this.index = index;
+            this.lowKey = lowKey;
+            this.inclusiveLow = inclusiveLow;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	// Step over the start of the current leaf, and over leaves emptied by deletes.
+        	while (leaf != NO_NODE && index < 0) {
+        		leaf = previous(leaf);
+        		index = leaf == NO_NODE ? -1 : count(leaf) - 1;
+        	}
+        	if (leaf == NO_NODE) {
+        		return false;
+        	}
+
+        	int cmp = Double.compare(key(leaf, index), lowKey);
+        	if (cmp < 0 || (cmp == 0 && !inclusiveLow)) {
+        		leaf = NO_NODE;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	key = key(leaf, index);
+        	return table.get(ordinal(leaf, index--));
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.RangeCursor#getKey()
+         */
+        @Override
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class DescendingCursor
+
+} // End of class OffHeapBPTree
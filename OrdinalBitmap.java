@@ -0,0 +1,750 @@
+package application;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compressed set of non-negative ints, meant for the ordinals of food
+ * items. The ints are grouped by their high 16 bits; each group keeps its
+ * low 16 bits in a container that is either a sorted array, while the
+ * group is sparse, or a bitset of 1024 words once it holds more than
+ * ARRAY_MAX ints. Intersections and differences of two bitsets work on
+ * whole words at a time.
+ */
+public class OrdinalBitmap {
+
+    // Most ints an array container holds before it turns into a bitset
+    static final int ARRAY_MAX = 4096;
+
+    // Number of longs in a bitset container
+    static final int WORDS = 1024;
+
+    // High 16 bits of each group, ascending
+    private char[] keys;
+
+    // Container of each group, containers[i] belonging to keys[i]
+    private Container[] containers;
+
+    // Number of groups in use
+    private int groups;
+
+
+    /**
+     * Public constructor
+     *
+     * Initializes an empty bitmap
+     */
+    public OrdinalBitmap() {
+        keys = new char[4];
+        containers = new Container[4];
+    }
+
+
+    /**
+     * Adds an int to the bitmap
+     *
+     * @param ordinal the int (>=0)
+     */
+    public void add(int ordinal) {
+    	if (ordinal < 0) {
+    		throw new IllegalArgumentException("Illegal ordinal: " + ordinal);
+    	}
+    	char high = (char) (ordinal >>> 16);
+    	int i = find(high);
+    	if (i < 0) {
+    		i = -i - 1;
+    		insertGroup(i, high, new ArrayContainer());
+    	}
+    	containers[i] = containers[i].add((char) ordinal);
+    }
+
+
+    /**
+     * Removes an int from the bitmap
+     *
+     * @param ordinal the int
+     * @return true if the int was in the bitmap
+     */
+    public boolean remove(int ordinal) {
+    	if (!contains(ordinal)) {
+    		return false;
+    	}
+    	int i = find((char) (ordinal >>> 16));
+    	containers[i] = containers[i].remove((char) ordinal);
+    	if (containers[i].cardinality() == 0) {
+    		System.arraycopy(keys, i + 1, keys, i, groups - i - 1);
+    		System.arraycopy(containers, i + 1, containers, i, groups - i - 1);
+    		containers[--groups] = null;
+    	}
+    	return true;
+    }
+
+
+    /**
+     * Checks whether an int is in the bitmap
+     *
+     * @param ordinal the int
+     * @return true if it is in the bitmap
+     */
+    public boolean contains(int ordinal) {
+    	if (ordinal < 0) {
+    		return false;
+    	}
+    	int i = find((char) (ordinal >>> 16));
+    	return i >= 0 && containers[i].contains((char) ordinal);
+    }
+
+
+    /**
+     * Gets the number of ints in the bitmap
+     *
+     * @return number of ints
+     */
+    public int cardinality() {
+    	int cardinality = 0;
+    	for (int i = 0; i < groups; i++) {
+    		cardinality += containers[i].cardinality();
+    	}
+    	return cardinality;
+    }
+
+
+    /**
+     * Checks whether the bitmap is empty
+     *
+     * @return true if it holds no ints
+     */
+    public boolean isEmpty() {
+    	return groups == 0;
+    }
+
+
+    /**
+     * Intersects this bitmap with another. Only groups present in both
+     * are visited.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap of the ints in both
+     */
+    public OrdinalBitmap and(OrdinalBitmap other) {
+    	OrdinalBitmap result = new OrdinalBitmap();
+    	int i = 0;
+    	int j = 0;
+    	while (i < groups && j < other.groups) {
+    		if (keys[i] < other.keys[j]) {
+    			i++;
+    		}
+    		else if (keys[i] > other.keys[j]) {
+    			j++;
+    		}
+    		else {
+    			Container container = containers[i].and(other.containers[j]);
+    			if (container.cardinality() > 0) {
+    				result.insertGroup(result.groups, keys[i], container);
+    			}
+    			i++;
+    			j++;
+    		}
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Takes the ints of another bitmap out of this one. Groups missing
+     * from the other bitmap are copied as they are.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap of the ints in this one but not in other
+     */
+    public OrdinalBitmap andNot(OrdinalBitmap other) {
+    	OrdinalBitmap result = new OrdinalBitmap();
+    	int j = 0;
+    	for (int i = 0; i < groups; i++) {
+    		while (j < other.groups && other.keys[j] < keys[i]) {
+    			j++;
+    		}
+    		Container container = j < other.groups && other.keys[j] == keys[i]
+    				? containers[i].andNot(other.containers[j]) : containers[i].copy();
+    		if (container.cardinality() > 0) {
+    			result.insertGroup(result.groups, keys[i], container);
+    		}
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Unites any number of bitmaps. Each group is ORed word by word into
+     * one scratch bitset and compressed once at the end.
+     *
+     * @param bitmaps the bitmaps
+     * @return a new bitmap of the ints in any of them
+     */
+    public static OrdinalBitmap or(List<OrdinalBitmap> bitmaps) {
+    	OrdinalBitmap result = new OrdinalBitmap();
+    	if (bitmaps.size() == 1) {
+    		result.copyFrom(bitmaps.get(0));
+    		return result;
+    	}
+
+    	// Walk the groups of every bitmap in key order.
+    	int[] at = new int[bitmaps.size()];
+    	long[] words = new long[WORDS];
+    	while (true) {
+    		int key = Integer.MAX_VALUE;
+    		for (int b = 0; b < bitmaps.size(); b++) {
+    			OrdinalBitmap bitmap = bitmaps.get(b);
+    			if (at[b] < bitmap.groups) {
+    				key = Math.min(key, bitmap.keys[at[b]]);
+    			}
+    		}
+    		if (key == Integer.MAX_VALUE) {
+    			return result;
+    		}
+
+    		Arrays.fill(words, 0);
+    		for (int b = 0; b < bitmaps.size(); b++) {
+    			OrdinalBitmap bitmap = bitmaps.get(b);
+    			if (at[b] < bitmap.groups && bitmap.keys[at[b]] == key) {
+    				bitmap.containers[at[b]++].orInto(words);
+    			}
+    		}
+    		result.insertGroup(result.groups, (char) key, fromWords(words));
+    	}
+    }
+
+
+    /**
+     * Gets the ints of the bitmap
+     *
+     * @return the ints in ascending order
+     */
+    public int[] toArray() {
+    	int[] ordinals = new int[cardinality()];
+    	int at = 0;
+    	for (int i = 0; i < groups; i++) {
+    		at = containers[i].copyTo(keys[i] << 16, ordinals, at);
+    	}
+    	return ordinals;
+    }
+
+
+    /**
+     * Gets an estimate of the memory the bitmap takes
+     *
+     * @return bytes of the arrays of the bitmap and its containers
+     */
+    public long bytes() {
+    	long bytes = TreeStats.OBJECT_BYTES + 2 * TreeStats.ARRAY_BYTES
+    			+ (long) keys.length * Character.BYTES + (long) containers.length * TreeStats.REFERENCE_BYTES;
+    	for (int i = 0; i < groups; i++) {
+    		bytes += containers[i].bytes();
+    	}
+    	return bytes;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+    	return Arrays.toString(toArray());
+    }
+
+
+    /**
+     * Gets the key of the last group
+     *
+     * @return high 16 bits of the largest int, or -1 if the bitmap is empty
+     */
+    int lastKey() {
+    	return groups == 0 ? -1 : keys[groups - 1];
+    }
+
+
+    /**
+     * Sets the bits of one group's ints in a bitset
+     *
+     * @param high key of the group
+     * @param words bitset of WORDS longs
+     */
+    void orGroup(char high, long[] words) {
+    	int i = find(high);
+    	if (i >= 0) {
+    		containers[i].orInto(words);
+    	}
+    }
+
+
+    /**
+     * Clears the bits of one group's ints in a bitset
+     *
+     * @param high key of the group
+     * @param words bitset of WORDS longs
+     */
+    void andNotGroup(char high, long[] words) {
+    	int i = find(high);
+    	if (i >= 0) {
+    		containers[i].clearIn(words);
+    	}
+    }
+
+
+    /**
+     * Adds a group after the last one
+     *
+     * @param high key of the group, above every key so far
+     * @param words bits of the group, copied if they are kept
+     * @param count number of bits set, nothing is added for 0
+     */
+    void appendGroup(char high, long[] words, int count) {
+    	if (count > 0) {
+    		Container container = fromWords(words, count);
+    		insertGroup(groups, high, container instanceof BitsetContainer ? container.copy() : container);
+    	}
+    }
+
+
+    /**
+     * Makes this bitmap a copy of another
+     */
+    private void copyFrom(OrdinalBitmap other) {
+    	keys = Arrays.copyOf(other.keys, Math.max(4, other.groups));
+    	containers = new Container[keys.length];
+    	for (int i = 0; i < other.groups; i++) {
+    		containers[i] = other.containers[i].copy();
+    	}
+    	groups = other.groups;
+    }
+
+
+    /**
+     * Finds a group by its key
+     *
+     * @param high the key
+     * @return index of the group, or -(insertion point) - 1 if there is none
+     */
+    private int find(char high) {
+    	// Ordinals are mostly added in ascending order, so try the last group first.
+    	if (groups > 0 && keys[groups - 1] == high) {
+    		return groups - 1;
+    	}
+    	return Arrays.binarySearch(keys, 0, groups, high);
+    }
+
+
+    /**
+     * Inserts a group at index i
+     */
+    private void insertGroup(int i, char high, Container container) {
+    	if (groups == keys.length) {
+    		keys = Arrays.copyOf(keys, 2 * groups);
+    		containers = Arrays.copyOf(containers, 2 * groups);
+    	}
+    	System.arraycopy(keys, i, keys, i + 1, groups - i);
+    	System.arraycopy(containers, i, containers, i + 1, groups - i);
+    	keys[i] = high;
+    	containers[i] = container;
+    	groups++;
+    }
+
+
+    /**
+     * Builds the smaller container for the bits of a bitset
+     *
+     * @param words bits of the group
+     * @return an array container for up to ARRAY_MAX bits, a bitset container otherwise
+     */
+    private static Container fromWords(long[] words) {
+    	int count = 0;
+    	for (long word : words) {
+    		count += Long.bitCount(word);
+    	}
+    	return fromWords(words, count);
+    }
+
+
+    /**
+     * Builds the smaller container for the bits of a bitset whose bits
+     * are already counted
+     *
+     * @param words bits of the group
+     * @param count number of bits set
+     * @return an array container for up to ARRAY_MAX bits, a bitset container otherwise
+     */
+    private static Container fromWords(long[] words, int count) {
+    	if (count > ARRAY_MAX) {
+    		return new BitsetContainer(words.clone(), count);
+    	}
+    	ArrayContainer container = new ArrayContainer(count);
+    	for (int w = 0; w < WORDS; w++) {
+    		long word = words[w];
+    		while (word != 0) {
+    			container.values[container.count++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+    			word &= word - 1;
+    		}
+    	}
+    	return container;
+    }
+
+
+    /**
+     * The low 16 bits of the ints of one group.
+     */
+    private abstract static class Container {
+
+        /**
+         * Gets the number of ints in the container
+         */
+        abstract int cardinality();
+
+        /**
+         * Checks whether the container holds low
+         */
+        abstract boolean contains(char low);
+
+        /**
+         * Adds low, returning the container that now holds the group
+         */
+        abstract Container add(char low);
+
+        /**
+         * Removes low, returning the container that now holds the group
+         */
+        abstract Container remove(char low);
+
+        /**
+         * Intersects with another container of the same group
+         */
+        abstract Container and(Container other);
+
+        /**
+         * Takes the ints of another container of the same group out of this one
+         */
+        abstract Container andNot(Container other);
+
+        /**
+         * Sets the bits of the container's ints in a bitset
+         */
+        abstract void orInto(long[] words);
+
+        /**
+         * Clears the bits of the container's ints in a bitset
+         */
+        abstract void clearIn(long[] words);
+
+        /**
+         * Writes the ints of the container, each ORed with base, into
+         * out from index at, and returns the index after the last one
+         */
+        abstract int copyTo(int base, int[] out, int at);
+
+        /**
+         * Gets a copy of the container
+         */
+        abstract Container copy();
+
+        /**
+         * Gets an estimate of the memory the container takes
+         */
+        abstract long bytes();
+
+    } // End of abstract class Container
+
+
+    /**
+     * A sparse group, kept as a sorted array.
+     */
+    private static class ArrayContainer extends Container {
+
+        // Low 16 bits, ascending
+        char[] values;
+
+        // Number of values in use
+        int count;
+
+        /**
+         * Package constructor
+         */
+        ArrayContainer() {
+            this(4);
+        }
+
+        /**
+         * Package constructor
+         *
+         * @param capacity room for values to start with
+         */
+        ArrayContainer(int capacity) {
+            values = new char[Math.max(1, capacity)];
+        }
+
+        @Override
+        int cardinality() {
+        	return count;
+        }
+
+        @Override
+        boolean contains(char low) {
+        	return Arrays.binarySearch(values, 0, count, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+        	int i = count > 0 && values[count - 1] < low ? -count - 1 : Arrays.binarySearch(values, 0, count, low);
+        	if (i >= 0) {
+        		return this;
+        	}
+        	if (count == ARRAY_MAX) {
+        		long[] words = new long[WORDS];
+        		orInto(words);
+        		return new BitsetContainer(words, count).add(low);
+        	}
+        	i = -i - 1;
+        	if (count == values.length) {
+        		values = Arrays.copyOf(values, Math.min(ARRAY_MAX, 2 * count));
+        	}
+        	System.arraycopy(values, i, values, i + 1, count - i);
+        	values[i] = low;
+        	count++;
+        	return this;
+        }
+
+        @Override
+        Container remove(char low) {
+        	int i = Arrays.binarySearch(values, 0, count, low);
+        	if (i >= 0) {
+        		System.arraycopy(values, i + 1, values, i, count - i - 1);
+        		count--;
+        	}
+        	return this;
+        }
+
+        @Override
+        Container and(Container other) {
+        	ArrayContainer result = new ArrayContainer(count);
+        	if (other instanceof BitsetContainer) {
+        		long[] words = ((BitsetContainer) other).words;
+        		for (int i = 0; i < count; i++) {
+        			if ((words[values[i] >>> 6] & (1L << values[i])) != 0) {
+        				result.values[result.count++] = values[i];
+        			}
+        		}
+        		return result;
+        	}
+
+        	// Merge two sorted arrays.
+        	ArrayContainer array = (ArrayContainer) other;
+        	int i = 0;
+        	int j = 0;
+        	while (i < count && j < array.count) {
+        		if (values[i] < array.values[j]) {
+        			i++;
+        		}
+        		else if (values[i] > array.values[j]) {
+        			j++;
+        		}
+        		else {
+        			result.values[result.count++] = values[i];
+        			i++;
+        			j++;
+        		}
+        	}
+        	return result;
+        }
+
+        @Override
+        Container andNot(Container other) {
+        	ArrayContainer result = new ArrayContainer(count);
+        	if (other instanceof BitsetContainer) {
+        		for (int i = 0; i < count; i++) {
+        			if (!other.contains(values[i])) {
+        				result.values[result.count++] = values[i];
+        			}
+        		}
+        		return result;
+        	}
+
+        	// Merge two sorted arrays, keeping what only this one has.
+        	ArrayContainer array = (ArrayContainer) other;
+        	int j = 0;
+        	for (int i = 0; i < count; i++) {
+        		while (j < array.count && array.values[j] < values[i]) {
+        			j++;
+        		}
+        		if (j == array.count || array.values[j] != values[i]) {
+        			result.values[result.count++] = values[i];
+        		}
+        	}
+        	return result;
+        }
+
+        @Override
+        void orInto(long[] words) {
+        	for (int i = 0; i < count; i++) {
+        		words[values[i] >>> 6] |= 1L << values[i];
+        	}
+        }
+
+        @Override
+        void clearIn(long[] words) {
+        	for (int i = 0; i < count; i++) {
+        		words[values[i] >>> 6] &= ~(1L << values[i]);
+        	}
+        }
+
+        @Override
+        int copyTo(int base, int[] out, int at) {
+        	for (int i = 0; i < count; i++) {
+        		out[at++] = base | values[i];
+        	}
+        	return at;
+        }
+
+        @Override
+        Container copy() {
+        	ArrayContainer copy = new ArrayContainer(count);
+        	System.arraycopy(values, 0, copy.values, 0, count);
+        	copy.count = count;
+        	return copy;
+        }
+
+        @Override
+        long bytes() {
+        	return TreeStats.OBJECT_BYTES + TreeStats.ARRAY_BYTES + (long) values.length * Character.BYTES;
+        }
+
+    } // End of class ArrayContainer
+
+
+    /**
+     * A dense group, kept as a bitset of 65536 bits.
+     */
+    private static class BitsetContainer extends Container {
+
+        // Bit low of words[low / 64] is set for each int in the group
+        final long[] words;
+
+        // Number of bits set
+        int count;
+
+        /**
+         * Package constructor
+         *
+         * @param words the bits
+         * @param count number of bits set
+         */
+        BitsetContainer(long[] words, int count) {
+            this.words = words;
+            this.count = count;
+        }
+
+        @Override
+        int cardinality() {
+        	return count;
+        }
+
+        @Override
+        boolean contains(char low) {
+        	return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+        	if (!contains(low)) {
+        		words[low >>> 6] |= 1L << low;
+        		count++;
+        	}
+        	return this;
+        }
+
+        @Override
+        Container remove(char low) {
+        	if (contains(low)) {
+        		words[low >>> 6] &= ~(1L << low);
+        		count--;
+        	}
+        	return count > ARRAY_MAX ? this : fromWords(words);
+        }
+
+        @Override
+        Container and(Container other) {
+        	if (other instanceof ArrayContainer) {
+        		return other.and(this);
+        	}
+        	long[] otherWords = ((BitsetContainer) other).words;
+        	long[] result = new long[WORDS];
+        	int count = 0;
+        	for (int w = 0; w < WORDS; w++) {
+        		result[w] = words[w] & otherWords[w];
+        		count += Long.bitCount(result[w]);
+        	}
+        	return fromWords(result, count);
+        }
+
+        @Override
+        Container andNot(Container other) {
+        	long[] result = words.clone();
+        	int count = this.count;
+        	if (other instanceof ArrayContainer) {
+        		ArrayContainer array = (ArrayContainer) other;
+        		for (int i = 0; i < array.count; i++) {
+        			long bit = 1L << array.values[i];
+        			if ((result[array.values[i] >>> 6] & bit) != 0) {
+        				result[array.values[i] >>> 6] &= ~bit;
+        				count--;
+        			}
+        		}
+        	}
+        	else {
+        		long[] otherWords = ((BitsetContainer) other).words;
+        		count = 0;
+        		for (int w = 0; w < WORDS; w++) {
+        			result[w] &= ~otherWords[w];
+        			count += Long.bitCount(result[w]);
+        		}
+        	}
+        	return fromWords(result, count);
+        }
+
+        @Override
+        void orInto(long[] into) {
+        	for (int w = 0; w < WORDS; w++) {
+        		into[w] |= words[w];
+        	}
+        }
+
+        @Override
+        void clearIn(long[] into) {
+        	for (int w = 0; w < WORDS; w++) {
+        		into[w] &= ~words[w];
+        	}
+        }
+
+        @Override
+        int copyTo(int base, int[] out, int at) {
+        	for (int w = 0; w < WORDS; w++) {
+        		long word = words[w];
+        		while (word != 0) {
+        			out[at++] = base | (w * 64 + Long.numberOfTrailingZeros(word));
+        			word &= word - 1;
+        		}
+        	}
+        	return at;
+        }
+
+        @Override
+        Container copy() {
+        	return new BitsetContainer(words.clone(), count);
+        }
+
+        @Override
+        long bytes() {
+        	return TreeStats.OBJECT_BYTES + TreeStats.ARRAY_BYTES + (long) WORDS * Long.BYTES;
+        }
+
+    } // End of class BitsetContainer
+
+} // End of class OrdinalBitmap
@@ -0,0 +1,171 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Intersects sets of ordinals, each given as a sorted int[] without
+ * duplicates. The sets are taken smallest first, so the running result
+ * only shrinks, and each step picks its method by the sizes involved:
+ * galloping search when the next set is much larger than the result,
+ * a bitset AND when the result is dense in the ordinals it spans, and a
+ * sorted merge otherwise. Every method is linear in the sizes it reads,
+ * unlike ArrayList.retainAll.
+ */
+public class OrdinalIntersection {
+
+    // How many times larger the next set must be for galloping to pay off
+    static final int GALLOP_RATIO = 16;
+
+    // A result is dense when it has at least one ordinal per this many ordinals it spans
+    static final int DENSE_SPACING = 64;
+
+
+    /**
+     * Intersects any number of sets
+     *
+     * @param sets sorted ordinals of each set, not changed
+     * @return sorted ordinals in every set; empty if there are no sets
+     */
+    public static int[] intersect(List<int[]> sets) {
+    	if (sets.isEmpty()) {
+    		return new int[0];
+    	}
+    	List<int[]> bySize = new ArrayList<int[]>(sets);
+    	bySize.sort(Comparator.comparingInt(set -> set.length));
+    	int[] result = bySize.get(0);
+    	for (int i = 1; i < bySize.size() && result.length > 0; i++) {
+    		result = intersect(result, bySize.get(i));
+    	}
+    	return result == bySize.get(0) ? result.clone() : result;
+    }
+
+
+    /**
+     * Intersects two sets by whichever method suits their sizes
+     *
+     * @param a sorted ordinals of one set
+     * @param b sorted ordinals of the other set
+     * @return sorted ordinals in both sets
+     */
+    public static int[] intersect(int[] a, int[] b) {
+    	if (a.length > b.length) {
+    		int[] swap = a;
+    		a = b;
+    		b = swap;
+    	}
+    	if (a.length == 0) {
+    		return a;
+    	}
+    	if (b.length / a.length >= GALLOP_RATIO) {
+    		return gallop(a, b);
+    	}
+    	long span = (long) a[a.length - 1] - a[0] + 1;
+    	if (span <= (long) a.length * DENSE_SPACING) {
+    		return bitsetAnd(a, b);
+    	}
+    	return merge(a, b);
+    }
+
+
+    /**
+     * Intersects two sets by walking both in step
+     *
+     * @param a sorted ordinals of one set
+     * @param b sorted ordinals of the other set
+     * @return sorted ordinals in both sets
+     */
+    static int[] merge(int[] a, int[] b) {
+    	int[] result = new int[Math.min(a.length, b.length)];
+    	int count = 0;
+    	int i = 0;
+    	int j = 0;
+    	while (i < a.length && j < b.length) {
+    		int x = a[i];
+    		int y = b[j];
+    		// Advance whichever side is behind, both when they match.
+    		result[count] = x;
+    		count += x == y ? 1 : 0;
+    		i += x <= y ? 1 : 0;
+    		j += y <= x ? 1 : 0;
+    	}
+    	return Arrays.copyOf(result, count);
+    }
+
+
+    /**
+     * Intersects a small set with a much larger one, searching the
+     * larger set for each ordinal of the smaller one. Each search doubles
+     * its step from where the last one ended before bisecting, so it
+     * costs the log of the distance moved rather than of the whole set.
+     *
+     * @param small sorted ordinals of the smaller set
+     * @param large sorted ordinals of the larger set
+     * @return sorted ordinals in both sets
+     */
+    static int[] gallop(int[] small, int[] large) {
+    	int[] result = new int[small.length];
+    	int count = 0;
+    	int from = 0;
+    	for (int x : small) {
+    		// Find an upper bound by doubling, then bisect below it.
+    		int step = 1;
+    		int high = from;
+    		while (high < large.length && large[high] < x) {
+    			from = high + 1;
+    			high += step;
+    			step <<= 1;
+    		}
+    		high = Math.min(high, large.length - 1);
+    		int low = from;
+    		while (low < high) {
+    			int mid = (low + high) >>> 1;
+    			if (large[mid] < x) {
+    				low = mid + 1;
+    			}
+    			else {
+    				high = mid;
+    			}
+    		}
+    		if (low >= large.length) {
+    			break;
+    		}
+    		from = low;
+    		if (large[low] == x) {
+    			result[count++] = x;
+    		}
+    	}
+    	return Arrays.copyOf(result, count);
+    }
+
+
+    /**
+     * Intersects two sets by marking the first in a bitset over the
+     * ordinals it spans and testing the second against it
+     *
+     * @param a sorted ordinals of the set to mark, which should be dense
+     * @param b sorted ordinals of the set to test
+     * @return sorted ordinals in both sets
+     */
+    static int[] bitsetAnd(int[] a, int[] b) {
+    	int base = a[0];
+    	long[] words = new long[((a[a.length - 1] - base) >>> 6) + 1];
+    	for (int x : a) {
+    		words[(x - base) >>> 6] |= 1L << (x - base);
+    	}
+    	int[] result = new int[a.length];
+    	int count = 0;
+    	int last = a[a.length - 1];
+    	for (int y : b) {
+    		if (y < base || y > last) {
+    			continue;
+    		}
+    		// Store every ordinal, keep only those whose bit is set.
+    		result[count] = y;
+    		count += (int) (words[(y - base) >>> 6] >>> (y - base)) & 1;
+    	}
+    	return Arrays.copyOf(result, count);
+    }
+
+} // End of class OrdinalIntersection
@@ -0,0 +1,1302 @@
+package application;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.ToIntFunction;
+
+/**
+ * B+ tree over double keys whose nodes live in fixed-size pages of a file
+ * instead of on the heap, so an index can be larger than memory and can
+ * be reopened after a restart instead of being rebuilt.
+ *
+ * Pages are read and written through a FileChannel and cached in a
+ * buffer pool with a fixed number of frames. When every frame is taken,
+ * the clock algorithm picks a frame that has not been used since the
+ * hand last passed it, writing the page back first if it is dirty.
+ * flush() writes every dirty page and the header to the file.
+ *
+ * Leaves hold int ordinals instead of values. The caller supplies the
+ * function that gives each value its ordinal and the table an ordinal is
+ * looked up in, and has to keep both the same across restarts. Entries
+ * are ordered by key and then by ordinal, so every entry is unique and a
+ * separator routes each entry to exactly one leaf.
+ *
+ * A delete removes the entry from its leaf, but underfull pages are not
+ * merged with their siblings and freed space is only reclaimed by load().
+ * The tree is not safe for use from several threads.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class PagedBPTree<V> implements NutrientIndex<V>, Closeable {
+
+    // Marks a file written by this class
+    private static final int MAGIC = 0x4250544c;
+
+    // Page number that stands for no page, page 0 holds the header
+    private static final int NO_PAGE = -1;
+
+    // Byte offsets of the header fields in page 0
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_PAGE_SIZE = 4;
+    private static final int HEADER_ROOT = 8;
+    private static final int HEADER_PAGES = 12;
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_STAMP = 24;
+    private static final int HEADER_LENGTH = 32;
+
+    // Byte offsets of the node fields in every other page
+    private static final int NODE_TYPE = 0;
+    private static final int NODE_COUNT = 4;
+    private static final int NODE_NEXT = 8;
+    private static final int NODE_PREVIOUS = 12;
+    private static final int NODE_DATA = 16;
+
+    // Values of the node type field
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+
+    // File holding the pages
+    private final FileChannel channel;
+
+    // Size of every page in bytes, fixed when the file is created
+    private final int pageSize;
+
+    // Number of entries a leaf page holds
+    private final int leafCapacity;
+
+    // Number of separators an internal page holds, it has one more child
+    private final int internalCapacity;
+
+    // Frames of the buffer pool
+    private final Frame[] frames;
+
+    // Frame holding each cached page
+    private final HashMap<Integer, Frame> pageTable;
+
+    // Position of the clock hand in frames
+    private int hand;
+
+    // Page number of the root
+    private int rootPage;
+
+    // Number of pages in the file, including the header
+    private int pageCount;
+
+    // Number of entries in the tree
+    private int size;
+
+    // Value the caller stores to check the file against its data on reopen
+    private long stamp;
+
+    // Values by ordinal
+    private final List<V> table;
+
+    // Gives each value its ordinal
+    private final ToIntFunction<V> ordinals;
+
+    // Number of node splits since the tree was opened
+    private long splits;
+
+    // Separator handed up to the parent by the most recent split
+    private double promotedKey;
+    private int promotedOrdinal;
+
+
+    /**
+     * Public constructor
+     *
+     * Opens the index in the given file, or creates it there if the file
+     * does not exist yet. An existing file keeps the page size it was
+     * created with.
+     *
+     * @param file file that holds the pages
+     * @param pageSize size of a page in bytes for a new file (>= 128)
+     * @param poolPages number of pages cached in memory (>= 3)
+     * @param table values by ordinal
+     * @param ordinals gives each value its ordinal in table
+     */
+    public PagedBPTree(File file, int pageSize, int poolPages, List<V> table, ToIntFunction<V> ordinals) {
+    	if (pageSize < 128) {
+    		throw new IllegalArgumentException("Illegal page size: " + pageSize);
+    	}
+    	if (poolPages < 3) {
+    		throw new IllegalArgumentException("Illegal pool size: " + poolPages);
+    	}
+    	this.table = table;
+    	this.ordinals = ordinals;
+
+    	boolean existing;
+    	try {
+    		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+    				StandardOpenOption.READ, StandardOpenOption.WRITE);
+    		existing = channel.size() >= HEADER_LENGTH;
+    		if (existing) {
+    			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    			read(header, 0);
+    			if (header.getInt(HEADER_MAGIC) != MAGIC) {
+    				channel.close();
+    				throw new IllegalArgumentException("Not an index file: " + file);
+    			}
+    			pageSize = header.getInt(HEADER_PAGE_SIZE);
+    			rootPage = header.getInt(HEADER_ROOT);
+    			pageCount = header.getInt(HEADER_PAGES);
+    			size = header.getInt(HEADER_SIZE);
+    			stamp = header.getLong(HEADER_STAMP);
+    		}
+    	} catch (IOException e) {
+    		throw new UncheckedIOException(e);
+    	}
+
+    	this.pageSize = pageSize;
+    	leafCapacity = (pageSize - NODE_DATA) / 12;
+    	internalCapacity = (pageSize - NODE_DATA - 4) / 16;
+    	pageTable = new HashMap<Integer, Frame>();
+    	frames = new Frame[poolPages];
+    	for (int i = 0; i < poolPages; i++) {
+    		frames[i] = new Frame(pageSize);
+    	}
+
+    	if (!existing) {
+    		clear();
+    	}
+    }
+
+
+    /**
+     * Empties the tree, truncating the file to the header and a single
+     * empty root leaf.
+     */
+    public void clear() {
+    	reset();
+    	Frame frame = allocate(LEAF);
+    	rootPage = frame.pageId;
+    	release(frame, true);
+    	flush();
+    }
+
+
+    /**
+     * Replaces the contents of the tree with entries that are already
+     * sorted by key and then by ordinal. Leaves are written full, left to
+     * right, and each internal level is built from the level below it, so
+     * every page is written once.
+     *
+     * @param keys sorted keys
+     * @param ordinals ordinals where ordinals[i] belongs to keys[i]
+     */
+    public void load(double[] keys, int[] ordinals) {
+    	if (keys.length != ordinals.length) {
+    		throw new IllegalArgumentException("Keys and ordinals must be of equal size");
+    	}
+    	if (keys.length == 0) {
+    		clear();
+    		return;
+    	}
+    	reset();
+
+    	/*
+    	 * Method variables:
+    	 * int[] pages holds the page numbers of the level being built on.
+    	 * double[] lowKeys and int[] lowOrdinals hold the first entry below each of those pages.
+    	 */
+    	int groups = (keys.length + leafCapacity - 1) / leafCapacity;
+    	int[] pages = new int[groups];
+    	double[] lowKeys = new double[groups];
+    	int[] lowOrdinals = new int[groups];
+    	int entry = 0;
+    	Frame previous = null;
+    	for (int g = 0; g < groups; g++) {
+    		// Spread the entries evenly so the last leaf is not left nearly empty.
+    		int count = keys.length / groups + (g < keys.length % groups ? 1 : 0);
+    		Frame frame = allocate(LEAF);
+    		for (int i = 0; i < count; i++, entry++) {
+    			setKey(frame.page, i, keys[entry]);
+    			setOrdinal(frame.page, i, ordinals[entry]);
+    		}
+    		setCount(frame.page, count);
+    		pages[g] = frame.pageId;
+    		lowKeys[g] = keys[entry - count];
+    		lowOrdinals[g] = ordinals[entry - count];
+    		if (previous != null) {
+    			setNext(previous.page, frame.pageId);
+    			setPrevious(frame.page, previous.pageId);
+    			release(previous, true);
+    		}
+    		previous = frame;
+    	}
+    	release(previous, true);
+
+    	while (pages.length > 1) {
+    		int parents = (pages.length + internalCapacity) / (internalCapacity + 1);
+    		int[] parentPages = new int[parents];
+    		double[] parentKeys = new double[parents];
+    		int[] parentOrdinals = new int[parents];
+    		int child = 0;
+    		for (int g = 0; g < parents; g++) {
+    			int count = pages.length / parents + (g < pages.length % parents ? 1 : 0);
+    			Frame frame = allocate(INTERNAL);
+    			setChild(frame.page, 0, pages[child]);
+    			for (int i = 1; i < count; i++) {
+    				setKey(frame.page, i - 1, lowKeys[child + i]);
+    				setOrdinal(frame.page, i - 1, lowOrdinals[child + i]);
+    				setChild(frame.page, i, pages[child + i]);
+    			}
+    			setCount(frame.page, count - 1);
+    			parentPages[g] = frame.pageId;
+    			parentKeys[g] = lowKeys[child];
+    			parentOrdinals[g] = lowOrdinals[child];
+    			release(frame, true);
+    			child += count;
+    		}
+    		pages = parentPages;
+    		lowKeys = parentKeys;
+    		lowOrdinals = parentOrdinals;
+    	}
+    	rootPage = pages[0];
+    	size = keys.length;
+    	flush();
+    }
+
+
+    /**
+     * Drops every cached page and truncates the file to its header.
+     */
+    private void reset() {
+    	for (Frame frame : frames) {
+    		frame.pageId = NO_PAGE;
+    		frame.dirty = false;
+    		frame.referenced = false;
+    		frame.pins = 0;
+    	}
+    	pageTable.clear();
+    	try {
+    		channel.truncate(pageSize);
+    	} catch (IOException e) {
+    		throw new UncheckedIOException(e);
+    	}
+    	pageCount = 1;
+    	size = 0;
+    	stamp = 0;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Double key, V value) {
+    	if (key == null) {
+    		throw new IllegalArgumentException("Null keys can not be indexed");
+    	}
+
+    	int sibling = insert(rootPage, key, ordinals.applyAsInt(value));
+
+    	// The root split, so the tree grows by one level.
+    	if (sibling != NO_PAGE) {
+    		Frame frame = allocate(INTERNAL);
+    		setKey(frame.page, 0, promotedKey);
+    		setOrdinal(frame.page, 0, promotedOrdinal);
+    		setChild(frame.page, 0, rootPage);
+    		setChild(frame.page, 1, sibling);
+    		setCount(frame.page, 1);
+    		rootPage = frame.pageId;
+    		release(frame, true);
+    	}
+    	size++;
+    }
+
+
+    /**
+     * Inserts an entry below the given page. A page is unpinned while its
+     * child is worked on, so at most three pages are pinned at any time.
+     *
+     * @param pageId page to insert below
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @return the page split off from pageId, or NO_PAGE if it did not split
+     */
+    private int insert(int pageId, double key, int ordinal) {
+    	Frame frame = fetch(pageId);
+    	int newChild = NO_PAGE;
+    	if (frame.page.get(NODE_TYPE) == INTERNAL) {
+    		int child = child(frame.page, search(frame.page, key, ordinal, true));
+    		release(frame, false);
+    		newChild = insert(child, key, ordinal);
+    		if (newChild == NO_PAGE) {
+    			return NO_PAGE;
+    		}
+    		// The child split, so its separator is inserted here instead.
+    		key = promotedKey;
+    		ordinal = promotedOrdinal;
+    		frame = fetch(pageId);
+    	}
+
+    	int capacity = frame.page.get(NODE_TYPE) == LEAF ? leafCapacity : internalCapacity;
+    	if (count(frame.page) < capacity) {
+    		insertEntry(frame.page, search(frame.page, key, ordinal, true), key, ordinal, newChild);
+    		release(frame, true);
+    		return NO_PAGE;
+    	}
+
+    	// The page is full, so split it and insert into the half the entry belongs in.
+    	Frame sibling = split(frame);
+    	int cmp = Double.compare(key, promotedKey);
+    	ByteBuffer target = cmp < 0 || (cmp == 0 && ordinal < promotedOrdinal) ? frame.page : sibling.page;
+    	insertEntry(target, search(target, key, ordinal, true), key, ordinal, newChild);
+    	release(frame, true);
+    	release(sibling, true);
+    	return sibling.pageId;
+    }
+
+
+    /**
+     * Moves the upper half of a full page into a new page and sets the
+     * separator to promote. A leaf keeps its first entry as a copy in the
+     * separator, an internal page hands its middle separator up. Splitting
+     * a leaf also pins its right neighbour for a moment to relink it.
+     *
+     * @param frame frame of the full page
+     * @return frame of the new page, pinned
+     */
+    private Frame split(Frame frame) {
+    	splits++;
+    	ByteBuffer page = frame.page;
+    	boolean leaf = page.get(NODE_TYPE) == LEAF;
+    	Frame siblingFrame = allocate(leaf ? LEAF : INTERNAL);
+    	ByteBuffer sibling = siblingFrame.page;
+    	int n = count(page);
+    	int mid = n / 2;
+    	if (leaf) {
+    		for (int i = mid; i < n; i++) {
+    			setKey(sibling, i - mid, key(page, i));
+    			setOrdinal(sibling, i - mid, ordinal(page, i));
+    		}
+    		setCount(sibling, n - mid);
+    		if (next(page) != NO_PAGE) {
+    			Frame nextFrame = fetch(next(page));
+    			setPrevious(nextFrame.page, siblingFrame.pageId);
+    			release(nextFrame, true);
+    		}
+    		setNext(sibling, next(page));
+    		setPrevious(sibling, frame.pageId);
+    		setNext(page, siblingFrame.pageId);
+    		promotedKey = key(sibling, 0);
+    		promotedOrdinal = ordinal(sibling, 0);
+    	}
+    	else {
+    		promotedKey = key(page, mid);
+    		promotedOrdinal = ordinal(page, mid);
+    		for (int i = mid + 1; i < n; i++) {
+    			setKey(sibling, i - mid - 1, key(page, i));
+    			setOrdinal(sibling, i - mid - 1, ordinal(page, i));
+    		}
+    		for (int i = mid + 1; i <= n; i++) {
+    			setChild(sibling, i - mid - 1, child(page, i));
+    		}
+    		setCount(sibling, n - mid - 1);
+    	}
+    	setCount(page, mid);
+    	return siblingFrame;
+    }
+
+
+    /**
+     * Shifts the entries from pos on one place right and writes the new
+     * entry at pos. In an internal page the new child goes right of it.
+     *
+     * @param page page with room for one more entry
+     * @param pos position of the new entry
+     * @param key key of the new entry
+     * @param ordinal ordinal of the new entry
+     * @param child page right of the new separator, only used in internal pages
+     */
+    private void insertEntry(ByteBuffer page, int pos, double key, int ordinal, int child) {
+    	int n = count(page);
+    	for (int i = n; i > pos; i--) {
+    		setKey(page, i, key(page, i - 1));
+    		setOrdinal(page, i, ordinal(page, i - 1));
+    	}
+    	setKey(page, pos, key);
+    	setOrdinal(page, pos, ordinal);
+    	if (page.get(NODE_TYPE) == INTERNAL) {
+    		for (int i = n + 1; i > pos + 1; i--) {
+    			setChild(page, i, child(page, i - 1));
+    		}
+    		setChild(page, pos + 1, child);
+    	}
+    	setCount(page, n + 1);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#delete(java.lang.Double, java.lang.Object)
+     */
+    @Override
+    public boolean delete(Double key, V value) {
+    	if (key == null) {
+    		return false;
+    	}
+
+    	int ordinal = ordinals.applyAsInt(value);
+    	Frame frame = fetch(findLeaf(key, ordinal));
+    	int pos = search(frame.page, key, ordinal, false);
+    	int n = count(frame.page);
+    	if (pos == n || Double.compare(key(frame.page, pos), key) != 0 || ordinal(frame.page, pos) != ordinal) {
+    		release(frame, false);
+    		return false;
+    	}
+    	for (int i = pos + 1; i < n; i++) {
+    		setKey(frame.page, i - 1, key(frame.page, i));
+    		setOrdinal(frame.page, i - 1, ordinal(frame.page, i));
+    	}
+    	setCount(frame.page, n - 1);
+    	release(frame, true);
+    	size--;
+    	return true;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double key, String comparator) {
+    	// Return just an empty list if the comparator is invalid or if the key is invalid.
+    	if (key == null || comparator == null) {
+    		return new ArrayList<V>();
+    	}
+    	if (comparator.contentEquals("==")) {
+    		return between(key, key, true, true);
+    	}
+    	else if (comparator.contentEquals("<=")) {
+    		return between(Double.NEGATIVE_INFINITY, key, true, true);
+    	}
+    	else if (comparator.contentEquals(">=")) {
+    		return between(key, Double.POSITIVE_INFINITY, true, true);
+    	}
+    	return new ArrayList<V>();
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#between(double, double, boolean, boolean)
+     */
+    @Override
+    public List<V> between(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	List<V> result = new ArrayList<V>();
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while (cursor.hasNext()) {
+    		result.add(cursor.next());
+    	}
+    	return result;
+    }
+
+
+    /**
+     * Counts the values in the interval by walking its leaf entries. Pages
+     * keep no subtree counts, so this reads every leaf in the interval,
+     * but no value is looked up.
+     *
+     * @see NutrientIndex#countRange(double, double, boolean, boolean)
+     */
+    @Override
+    public int countRange(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	int count = 0;
+    	Cursor cursor = cursor(lowKey, highKey, inclusiveLow, inclusiveHigh);
+    	while (cursor.hasNext()) {
+    		cursor.advance();
+    		count++;
+    	}
+    	return count;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#cursor(double, double, boolean, boolean)
+     */
+    @Override
+    public Cursor cursor(double lowKey, double highKey, boolean inclusiveLow, boolean inclusiveHigh) {
+    	// Ordinals are never negative, so these sort before or after every entry with lowKey.
+    	int ordinal = inclusiveLow ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    	int leaf = findLeaf(lowKey, ordinal);
+    	Frame frame = fetch(leaf);
+    	int index = search(frame.page, lowKey, ordinal, false);
+    	release(frame, false);
+    	return new Cursor(leaf, index, highKey, inclusiveHigh);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#descendingCursor(double, double, boolean, boolean)
+     */
+    @Override
+    public DescendingCursor descendingCursor(double highKey, double lowKey, boolean inclusiveHigh, boolean inclusiveLow) {
+    	// Ordinals are never negative, so these sort after or before every entry with highKey.
+    	int ordinal = inclusiveHigh ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+    	int leaf = findLeaf(highKey, ordinal);
+    	Frame frame = fetch(leaf);
+    	int index = search(frame.page, highKey, ordinal, false) - 1;
+    	release(frame, false);
+    	return new DescendingCursor(leaf, index, lowKey, inclusiveLow);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see NutrientIndex#size()
+     */
+    @Override
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Gets the value the caller last stored with setStamp
+     *
+     * @return the stamp, 0 for a new or cleared file
+     */
+    public long getStamp() {
+    	return stamp;
+    }
+
+
+    /**
+     * Stores a value with the index, written to the header on the next
+     * flush. The caller uses it to tell whether a reopened file still
+     * matches its data.
+     *
+     * @param stamp value to store
+     */
+    public void setStamp(long stamp) {
+    	this.stamp = stamp;
+    }
+
+
+    /**
+     * Writes every dirty page and the header to the file and forces them
+     * to the storage device.
+     */
+    public void flush() {
+    	try {
+    		for (Frame frame : frames) {
+    			if (frame.pageId != NO_PAGE && frame.dirty) {
+    				write(frame.page, (long) frame.pageId * pageSize);
+    				frame.dirty = false;
+    			}
+    		}
+    		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    		header.putInt(HEADER_MAGIC, MAGIC);
+    		header.putInt(HEADER_PAGE_SIZE, pageSize);
+    		header.putInt(HEADER_ROOT, rootPage);
+    		header.putInt(HEADER_PAGES, pageCount);
+    		header.putInt(HEADER_SIZE, size);
+    		header.putLong(HEADER_STAMP, stamp);
+    		write(header, 0);
+    		channel.force(false);
+    	} catch (IOException e) {
+    		throw new UncheckedIOException(e);
+    	}
+    }
+
+
+    /**
+     * Flushes the tree and closes its file.
+     *
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+    	flush();
+    	try {
+    		channel.close();
+    	} catch (IOException e) {
+    		throw new UncheckedIOException(e);
+    	}
+    }
+
+
+    /**
+     * Walks the tree and reports its shape. Splits are counted since the tree was opened,
+     * and the size is that of the file.
+     *
+     * @see NutrientIndex#stats()
+     */
+    @Override
+    public TreeStats stats() {
+    	List<Integer> levelNodes = new ArrayList<Integer>();
+    	long used = 0;
+    	long leaves = 0;
+    	List<Integer> level = Arrays.asList(rootPage);
+    	while (!level.isEmpty()) {
+    		levelNodes.add(level.size());
+    		List<Integer> nextLevel = new ArrayList<Integer>();
+    		for (int pageId : level) {
+    			Frame frame = fetch(pageId);
+    			ByteBuffer page = frame.page;
+    			int n = count(page);
+    			if (page.get(NODE_TYPE) == LEAF) {
+    				used += n;
+    				leaves++;
+    			}
+    			else {
+    				for (int i = 0; i <= n; i++) {
+    					nextLevel.add(child(page, i));
+    				}
+    			}
+    			release(frame, false);
+    		}
+    		level = nextLevel;
+    	}
+
+    	int[] counts = new int[levelNodes.size()];
+    	for (int i = 0; i < counts.length; i++) {
+    		counts[i] = levelNodes.get(i);
+    	}
+    	return new TreeStats(counts.length, counts, used, size, (double) used / (leaves * leafCapacity), splits, (long) pageCount * pageSize);
+    }
+
+
+    /**
+     * Checks the structure of the tree. Deletes leave underfull and even
+     * empty leaves behind, and an internal page may be left with a
+     * single child, so neither counts as a violation.
+     *
+     * @see NutrientIndex#validate()
+     */
+    @Override
+    public void validate() {
+    	int height = 1;
+    	int pageId = rootPage;
+    	while (true) {
+    		Frame frame = fetch(pageId);
+    		ByteBuffer page = frame.page;
+    		boolean leaf = page.get(NODE_TYPE) == LEAF;
+    		int child = leaf ? NO_PAGE : child(page, 0);
+    		release(frame, false);
+    		if (leaf) {
+    			break;
+    		}
+    		pageId = child;
+    		height++;
+    	}
+
+    	List<Integer> leaves = new ArrayList<Integer>();
+    	int entries = validate(rootPage, Double.NEGATIVE_INFINITY, Integer.MIN_VALUE, Double.POSITIVE_INFINITY,
+    			Integer.MAX_VALUE, 1, height, leaves);
+    	if (entries != size) {
+    		throw new IllegalStateException("Size is " + size + ", leaves hold " + entries + " entries");
+    	}
+
+    	// The leaf chain has to visit the leaves in key order, both ways.
+    	for (int i = 0; i < leaves.size(); i++) {
+    		int expectedPrevious = i == 0 ? NO_PAGE : leaves.get(i - 1);
+    		int expectedNext = i == leaves.size() - 1 ? NO_PAGE : leaves.get(i + 1);
+    		pageId = leaves.get(i);
+    		Frame frame = fetch(pageId);
+    		ByteBuffer page = frame.page;
+    		boolean linked = previous(page) == expectedPrevious && PagedBPTree.next(page) == expectedNext;
+    		release(frame, false);
+    		if (!linked) {
+    			throw new IllegalStateException("Sibling links of leaf " + i + " are broken");
+    		}
+    	}
+    }
+
+
+    /**
+     * Checks the subtree under a page and collects its leaves in key order.
+     * Every entry has to lie in [low, high) by key and then ordinal, the
+     * bounds being the separators around the subtree.
+     *
+     * @param pageId root of the subtree
+     * @param lowKey key of the lower bound
+     * @param lowOrdinal ordinal of the lower bound
+     * @param highKey key of the upper bound, POSITIVE_INFINITY with MAX_VALUE for none
+     * @param highOrdinal ordinal of the upper bound
+     * @param depth depth of the page, the root is at depth 1
+     * @param height depth every leaf has to be at
+     * @param leaves list of the leaves found so far
+     * @return number of entries in the subtree
+     */
+    private int validate(int pageId, double lowKey, int lowOrdinal, double highKey, int highOrdinal,
+    		int depth, int height, List<Integer> leaves) {
+    	// Copy the page out first so nothing stays pinned while the children are checked.
+    	Frame frame = fetch(pageId);
+    	ByteBuffer page = frame.page;
+    	boolean leaf = page.get(NODE_TYPE) == LEAF;
+    	int n = count(page);
+    	double[] keys = new double[n];
+    	int[] ordinals = new int[n];
+    	int[] children = new int[leaf ? 0 : n + 1];
+    	for (int i = 0; i < n; i++) {
+    		keys[i] = key(page, i);
+    		ordinals[i] = ordinal(page, i);
+    	}
+    	for (int i = 0; i < children.length; i++) {
+    		children[i] = child(page, i);
+    	}
+    	release(frame, false);
+
+    	for (int i = 0; i < n; i++) {
+    		if (i > 0 && compare(keys[i - 1], ordinals[i - 1], keys[i], ordinals[i]) >= 0) {
+    			throw new IllegalStateException("Entries out of order in page " + pageId);
+    		}
+    		boolean unbounded = highKey == Double.POSITIVE_INFINITY && highOrdinal == Integer.MAX_VALUE;
+    		if (compare(keys[i], ordinals[i], lowKey, lowOrdinal) < 0
+    				|| (!unbounded && compare(keys[i], ordinals[i], highKey, highOrdinal) >= 0)) {
+    			throw new IllegalStateException("Entry " + keys[i] + "#" + ordinals[i] + " outside its separators in page " + pageId);
+    		}
+    	}
+
+    	if (leaf) {
+    		if (depth != height) {
+    			throw new IllegalStateException("Leaf at depth " + depth + " in a tree of height " + height);
+    		}
+    		leaves.add(pageId);
+    		return n;
+    	}
+    	int entries = 0;
+    	for (int i = 0; i <= n; i++) {
+    		entries += validate(children[i],
+    				i == 0 ? lowKey : keys[i - 1], i == 0 ? lowOrdinal : ordinals[i - 1],
+    				i == n ? highKey : keys[i], i == n ? highOrdinal : ordinals[i],
+    				depth + 1, height, leaves);
+    	}
+    	return entries;
+    }
+
+
+    /**
+     * Compares two entries by key and then by ordinal.
+     */
+    private static int compare(double key, int ordinal, double otherKey, int otherOrdinal) {
+    	int cmp = Double.compare(key, otherKey);
+    	return cmp != 0 ? cmp : Integer.compare(ordinal, otherOrdinal);
+    }
+
+
+    /**
+     * Gets the page number of the leaf the given entry belongs in.
+     *
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @return page number of the leaf
+     */
+    private int findLeaf(double key, int ordinal) {
+    	int pageId = rootPage;
+    	while (true) {
+    		Frame frame = fetch(pageId);
+    		if (frame.page.get(NODE_TYPE) == LEAF) {
+    			release(frame, false);
+    			return pageId;
+    		}
+    		int child = child(frame.page, search(frame.page, key, ordinal, true));
+    		release(frame, false);
+    		pageId = child;
+    	}
+    }
+
+
+    /**
+     * Finds the first entry of a page that is not below the given entry,
+     * or with upper set the first entry that is above it. In an internal
+     * page the upper position is also the child to descend into.
+     *
+     * @param page page to search
+     * @param key key of the entry
+     * @param ordinal ordinal of the entry
+     * @param upper whether entries equal to the given one are skipped
+     * @return position in the page, count(page) if there is none
+     */
+    private int search(ByteBuffer page, double key, int ordinal, boolean upper) {
+    	int low = 0;
+    	int high = count(page);
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		int cmp = Double.compare(key(page, mid), key);
+    		if (cmp == 0) {
+    			cmp = Integer.compare(ordinal(page, mid), ordinal);
+    		}
+    		if (cmp < 0 || (upper && cmp == 0)) {
+    			low = mid + 1;
+    		}
+    		else {
+    			high = mid;
+    		}
+    	}
+    	return low;
+    }
+
+
+    /**
+     * Pins a page in the buffer pool, reading it from the file if it is
+     * not cached.
+     *
+     * @param pageId page number
+     * @return the frame holding the page
+     */
+    private Frame fetch(int pageId) {
+    	Frame frame = pageTable.get(pageId);
+    	if (frame == null) {
+    		frame = victim();
+    		try {
+    			read(frame.page, (long) pageId * pageSize);
+    		} catch (IOException e) {
+    			throw new UncheckedIOException(e);
+    		}
+    		frame.pageId = pageId;
+    		pageTable.put(pageId, frame);
+    	}
+    	frame.pins++;
+    	frame.referenced = true;
+    	return frame;
+    }
+
+
+    /**
+     * Adds a new empty page to the end of the file and pins it.
+     *
+     * @param type LEAF or INTERNAL
+     * @return the frame holding the new page
+     */
+    private Frame allocate(byte type) {
+    	Frame frame = victim();
+    	Arrays.fill(frame.page.array(), (byte) 0);
+    	frame.page.put(NODE_TYPE, type);
+    	setNext(frame.page, NO_PAGE);
+    	setPrevious(frame.page, NO_PAGE);
+    	frame.pageId = pageCount++;
+    	frame.dirty = true;
+    	frame.referenced = true;
+    	frame.pins = 1;
+    	pageTable.put(frame.pageId, frame);
+    	return frame;
+    }
+
+
+    /**
+     * Unpins a page.
+     *
+     * @param frame the frame holding the page
+     * @param dirty whether the page was changed
+     */
+    private void release(Frame frame, boolean dirty) {
+    	frame.pins--;
+    	frame.dirty |= dirty;
+    }
+
+
+    /**
+     * Frees a frame with the clock algorithm. The hand clears the
+     * reference bit of each unpinned frame it passes and stops at the
+     * first unpinned frame whose bit is already clear.
+     *
+     * @return an empty frame
+     */
+    private Frame victim() {
+    	// Two turns of the hand clear every bit, so a frame is found unless all are pinned.
+    	for (int step = 0; step <= 2 * frames.length; step++) {
+    		Frame frame = frames[hand];
+    		hand = (hand + 1) % frames.length;
+    		if (frame.pins > 0) {
+    			continue;
+    		}
+    		if (frame.referenced) {
+    			frame.referenced = false;
+    			continue;
+    		}
+    		if (frame.pageId != NO_PAGE) {
+    			if (frame.dirty) {
+    				try {
+    					write(frame.page, (long) frame.pageId * pageSize);
+    				} catch (IOException e) {
+    					throw new UncheckedIOException(e);
+    				}
+    				frame.dirty = false;
+    			}
+    			pageTable.remove(frame.pageId);
+    			frame.pageId = NO_PAGE;
+    		}
+    		return frame;
+    	}
+    	throw new IllegalStateException("Every buffer frame is pinned");
+    }
+
+
+    /**
+     * Fills a buffer from the file, with zeros past its end.
+     */
+    private void read(ByteBuffer buffer, long position) throws IOException {
+    	buffer.clear();
+    	while (buffer.hasRemaining()) {
+    		if (channel.read(buffer, position + buffer.position()) < 0) {
+    			break;
+    		}
+    	}
+    	while (buffer.hasRemaining()) {
+    		buffer.put((byte) 0);
+    	}
+    }
+
+
+    /**
+     * Writes a whole buffer to the file.
+     */
+    private void write(ByteBuffer buffer, long position) throws IOException {
+    	buffer.clear();
+    	while (buffer.hasRemaining()) {
+    		channel.write(buffer, position + buffer.position());
+    	}
+    }
+
+
+    /*
+     * Accessors for the fields of a node page. Keys sit at the start of
+     * the data area, ordinals after room for every key, and the children
+     * of an internal page after room for every ordinal.
+     */
+
+    private static int count(ByteBuffer page) {
+    	return page.getInt(NODE_COUNT);
+    }
+
+    private static void setCount(ByteBuffer page, int count) {
+    	page.putInt(NODE_COUNT, count);
+    }
+
+    private static int next(ByteBuffer page) {
+    	return page.getInt(NODE_NEXT);
+    }
+
+    private static void setNext(ByteBuffer page, int next) {
+    	page.putInt(NODE_NEXT, next);
+    }
+
+    private static int previous(ByteBuffer page) {
+    	return page.getInt(NODE_PREVIOUS);
+    }
+
+    private static void setPrevious(ByteBuffer page, int previous) {
+    	page.putInt(NODE_PREVIOUS, previous);
+    }
+
+    private static double key(ByteBuffer page, int i) {
+    	return page.getDouble(NODE_DATA + 8 * i);
+    }
+
+    private static void setKey(ByteBuffer page, int i, double key) {
+    	page.putDouble(NODE_DATA + 8 * i, key);
+    }
+
+    private int ordinal(ByteBuffer page, int i) {
+    	return page.getInt(ordinalBase(page) + 4 * i);
+    }
+
+    private void setOrdinal(ByteBuffer page, int i, int ordinal) {
+    	page.putInt(ordinalBase(page) + 4 * i, ordinal);
+    }
+
+    private int ordinalBase(ByteBuffer page) {
+    	return NODE_DATA + 8 * (page.get(NODE_TYPE) == LEAF ? leafCapacity : internalCapacity);
+    }
+
+    private int child(ByteBuffer page, int i) {
+    	return page.getInt(NODE_DATA + 12 * internalCapacity + 4 * i);
+    }
+
+    private void setChild(ByteBuffer page, int i, int child) {
+    	page.putInt(NODE_DATA + 12 * internalCapacity + 4 * i, child);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        List<Integer> level = Arrays.asList(rootPage);
+        while (!level.isEmpty()) {
+            List<Integer> nextLevel = new ArrayList<Integer>();
+            sb.append('{');
+            for (int p = 0; p < level.size(); p++) {
+                Frame frame = fetch(level.get(p));
+                int n = count(frame.page);
+                double[] keys = new double[n];
+                for (int i = 0; i < n; i++) {
+                    keys[i] = key(frame.page, i);
+                }
+                sb.append(Arrays.toString(keys));
+                if (p < level.size() - 1)
+                    sb.append(", ");
+                if (frame.page.get(NODE_TYPE) == INTERNAL) {
+                    for (int i = 0; i <= n; i++) {
+                        nextLevel.add(child(frame.page, i));
+                    }
+                }
+                release(frame, false);
+            }
+            sb.append("}\n");
+            level = nextLevel;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * A forward cursor over a range of the tree. It holds a leaf page
+     * number and a position in that leaf and follows the next links,
+     * pinning the leaf only for the duration of each call.
+     *
+     * The cursor is only valid until the next insert or delete.
+     */
+    public class Cursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, NO_PAGE once the range is used up
+        private int leaf;
+
+        // Position of the next entry within leaf
+        private int index;
+
+        // Upper end of the range
+        private final double highKey;
+
+        // Whether keys equal to highKey are in the range
+        private final boolean inclusiveHigh;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf
+         * @param highKey upper end of the range
+         * @param inclusiveHigh whether keys equal to highKey are in the range
+         */
+        Cursor(int leaf, int index, double highKey, boolean inclusiveHigh) {
+            this.leaf = leaf;
+            this.index = index;
+            this.highKey = highKey;
+            this.inclusiveHigh = inclusiveHigh;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	if (leaf == NO_PAGE) {
+        		return false;
+        	}
+        	Frame frame = fetch(leaf);
+        	// Step over the end of the current leaf, and over leaves emptied by deletes.
+        	while (index >= count(frame.page)) {
+        		int next = PagedBPTree.next(frame.page);
+        		release(frame, false);
+        		leaf = next;
+        		index = 0;
+        		if (leaf == NO_PAGE) {
+        			return false;
+        		}
+        		frame = fetch(leaf);
+        	}
+
+        	int cmp = Double.compare(key(frame.page, index), highKey);
+        	release(frame, false);
+        	if (cmp > 0 || (cmp == 0 && !inclusiveHigh)) {
+        		leaf = NO_PAGE;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	return table.get(advance());
+        }
+
+        /**
+         * Moves past the next entry without looking up its value.
+         *
+         * @return ordinal of the entry
+         */
+        private int advance() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	Frame frame = fetch(leaf);
+        	key = key(frame.page, index);
+        	int ordinal = ordinal(frame.page, index++);
+        	release(frame, false);
+        	return ordinal;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.RangeCursor#getKey()
+         */
+        @Override
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class Cursor
+
+
+    /**
+     * A backward cursor over a range of the tree. It mirrors Cursor,
+     * following the previous links between leaves.
+     *
+     * The cursor is only valid until the next insert or delete.
+     */
+    public class DescendingCursor implements NutrientIndex.RangeCursor<V> {
+
+        // Leaf the cursor is in, NO_PAGE once the range is used up
+        private int leaf;
+
+        // Position of the next entry within leaf
+        private int index;
+
+        // Lower end of the range
+        private final double lowKey;
+
+        // Whether keys equal to lowKey are in the range
+        private final boolean inclusiveLow;
+
+        // Key of the value most recently returned by next()
+        private double key;
+
+        /**
+         * Package constructor
+         *
+         * @param leaf leaf holding the first entry of the range
+         * @param index position of that entry within the leaf, -1 if it is in an earlier leaf
+         * @param lowKey lower end of the range
+         * @param inclusiveLow whether keys equal to lowKey are in the range
+         */
+        DescendingCursor(int leaf, int index, double lowKey, boolean inclusiveLow) {
+            this.leaf = leaf;
+            this.index = index;
+            this.lowKey = lowKey;
+            this.inclusiveLow = inclusiveLow;
+            key = Double.NaN;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+        	if (leaf == NO_PAGE) {
+        		return false;
+        	}
+        	Frame frame = fetch(leaf);
+        	// Step over the start of the current leaf, and over leaves emptied by deletes.
+        	while (index < 0) {
+        		int previous = previous(frame.page);
+        		release(frame, false);
+        		leaf = previous;
+        		if (leaf == NO_PAGE) {
+        			return false;
+        		}
+        		frame = fetch(leaf);
+        		index = count(frame.page) - 1;
+        	}
+
+        	int cmp = Double.compare(key(frame.page, index), lowKey);
+        	release(frame, false);
+        	if (cmp < 0 || (cmp == 0 && !inclusiveLow)) {
+        		leaf = NO_PAGE;
+        		return false;
+        	}
+        	return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public V next() {
+        	if (!hasNext()) {
+        		throw new NoSuchElementException();
+        	}
+        	Frame frame = fetch(leaf);
+        	key = key(frame.page, index);
+        	int ordinal = ordinal(frame.page, index--);
+        	release(frame, false);
+        	return table.get(ordinal);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see NutrientIndex.RangeCursor#getKey()
+         */
+        @Override
+        public double getKey() {
+        	return key;
+        }
+
+    } // End of class DescendingCursor
+
+
+    /**
+     * A slot of the buffer pool holding one page.
+     */
+    private static class Frame {
+
+        // Contents of the page
+        final ByteBuffer page;
+
+        // Page number held, NO_PAGE if the frame is free
+        int pageId;
+
+        // Whether the page changed since it was read or written
+        boolean dirty;
+
+        // Whether the page was used since the clock hand last passed
+        boolean referenced;
+
+        // Number of callers using the page, it can not be evicted while above 0
+        int pins;
+
+        /**
+         * Package constructor
+         *
+         * @param pageSize size of the page in bytes
+         */
+        Frame(int pageSize) {
+            page = ByteBuffer.allocate(pageSize);
+            pageId = NO_PAGE;
+        }
+
+    } // End of class Frame
+
+} // End of class PagedBPTree
@@ -0,0 +1,131 @@
+package application;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The way FoodData answers one filterByNutrients or countRange call: which
+ * structure it searches, which nutrient drives an index search, and the
+ * numbers the choice was made from. Plans are only read, for debugging
+ * slow rule lists; they do not change after they are made.
+ */
+public class QueryPlan {
+
+    /**
+     * How the matching food items are found
+     */
+    public enum Strategy {
+    	// The rules can not match anything, nothing is searched
+    	EMPTY,
+    	// The bitmap indexes are intersected, as the bitmap mode asks
+    	BITMAP,
+    	// The most selective nutrient's index is searched, the other rules are checked on each candidate
+    	INDEX,
+    	// The k-d tree is searched on every nutrient at once
+    	KD_TREE,
+    	// Every rule is checked against every item in the nutrient columns
+    	SCAN
+    }
+
+    // How the matching food items are found
+    private final Strategy strategy;
+
+    // Nutrient whose index is searched, null unless the strategy is INDEX
+    private final String driver;
+
+    // Estimated number of items inside each nutrient's interval, in rule order
+    private final Map<String, Integer> estimates;
+
+    // Number of food items in the data set when the plan was made
+    private final int items;
+
+    // Estimated cost of the plan, in roughly nanoseconds
+    private final double cost;
+
+
+    /**
+     * Public constructor
+     *
+     * @param strategy how the matching food items are found
+     * @param driver nutrient whose index is searched, or null
+     * @param estimates estimated number of items inside each nutrient's interval
+     * @param items number of food items in the data set
+     * @param cost estimated cost of the plan, or NaN if it was not estimated
+     */
+    public QueryPlan(Strategy strategy, String driver, Map<String, Integer> estimates, int items, double cost) {
+        this.strategy = strategy;
+        this.driver = driver;
+        this.estimates = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(estimates));
+        this.items = items;
+        this.cost = cost;
+    }
+
+
+    /**
+     * Gets how the matching food items are found
+     *
+     * @return the strategy
+     */
+    public Strategy getStrategy() {
+    	return strategy;
+    }
+
+    /**
+     * Gets the nutrient whose index is searched
+     *
+     * @return the nutrient, or null unless the strategy is INDEX
+     */
+    public String getDriver() {
+    	return driver;
+    }
+
+    /**
+     * Gets the estimated number of items inside each nutrient's interval.
+     * An estimate can stop short at the point where the nutrient could no
+     * longer drive the search.
+     *
+     * @return nutrient to estimate, in rule order; empty if nothing was estimated
+     */
+    public Map<String, Integer> getEstimates() {
+    	return estimates;
+    }
+
+    /**
+     * Gets the number of food items in the data set when the plan was made
+     *
+     * @return item count
+     */
+    public int getItems() {
+    	return items;
+    }
+
+    /**
+     * Gets the estimated cost of the plan
+     *
+     * @return cost in roughly nanoseconds, or NaN for a plan the bitmap mode picked
+     */
+    public double getCost() {
+    	return cost;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+    	StringBuilder text = new StringBuilder(strategy.toString());
+    	if (driver != null) {
+    		text.append(" on ").append(driver);
+    	}
+    	if (!Double.isNaN(cost)) {
+    		text.append(String.format(" cost=%.0f", cost));
+    	}
+    	text.append(" items=").append(items);
+    	if (!estimates.isEmpty()) {
+    		text.append(" estimates=").append(estimates);
+    	}
+    	return text.toString();
+    }
+
+} // End of class QueryPlan
@@ -11,6 +11,8 @@ public class TestStuff {
 	public static void main(String[] args) {
 		// TODO Auto-generated method stub
 		
+		checkSignedZero();
+		
 		String filePath = "foodItems.txt";
 		
 		FoodData foodData = new FoodData();
@@ -55,5 +57,54 @@ public class TestStuff {
 		System.out.println(Arrays.toString(MealSummary.calculateNutrients(intersectedList)));
 		
 	}
+	
+	/**
+	 * Counts rules on zero fat under the index, column scan and bitmap
+	 * plans, on items of which some are added with -0.0 fat and some
+	 * with 0.0. Every plan has to count them as the same zero, and the
+	 * rules written with -0 have to match them too. One more item has no
+	 * number for calories, which no rule on calories may match.
+	 */
+	private static void checkSignedZero() {
+		FoodData foodData = new FoodData();
+		for(int i = 0; i < 20000; i++) {
+			FoodItem food = new FoodItem("zero" + i, "Item " + i);
+			food.addNutrient("calories", i % 500);
+			food.addNutrient("fat", i >= 100 ? i : i % 2 == 0 ? -0.0 : 0.0);
+			food.addNutrient("carbohydrate", i % 70);
+			food.addNutrient("fiber", i % 13);
+			food.addNutrient("protein", i % 40);
+			foodData.addFoodItem(food);
+		}
+		//a value that is not a number is in no interval, whichever rule drives the search
+		FoodItem unknown = new FoodItem("zeroNaN", "Unknown calories");
+		unknown.addNutrient("calories", Double.NaN);
+		unknown.addNutrient("fat", 0.0);
+		unknown.addNutrient("carbohydrate", 0);
+		unknown.addNutrient("fiber", 0);
+		unknown.addNutrient("protein", 0);
+		foodData.addFoodItem(unknown);
+		
+		String[][] ruleSets = {{"fat == 0"}, {"fat == -0"}, {"fat <= -0.0"}, {"fat >= -0", "fat <= 0"},
+				{"fat <= 0", "calories <= 450"}};
+		int[] expected = {101, 101, 101, 101, 100};
+		for(int r = 0; r < ruleSets.length; r++) {
+			List<String> rules = Arrays.asList(ruleSets[r]);
+			int indexed = foodData.countRange(rules);
+			QueryPlan.Strategy strategy = foodData.getLastPlan().getStrategy();
+			int filtered = foodData.filterByNutrients(rules).size();
+			foodData.setColumnScan(true);
+			int scanned = foodData.countRange(rules);
+			foodData.setColumnScan(false);
+			foodData.setBitmapBuckets(64);
+			int bitmapped = foodData.countRange(rules);
+			foodData.setBitmapBuckets(0);
+			boolean agree = indexed == expected[r] && filtered == expected[r] && scanned == expected[r]
+					&& bitmapped == expected[r];
+			System.out.println((agree ? "ok   " : "FAIL ") + rules + ": " + strategy + " " + indexed
+					+ ", filtered " + filtered + ", SCAN " + scanned + ", BITMAP " + bitmapped);
+		}
+		System.out.println();
+	}
 
 }
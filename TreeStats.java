@@ -0,0 +1,180 @@
+package application;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A snapshot of the shape of a tree index: its height, how many nodes
+ * each level has, how full the leaves are, how many splits it has done
+ * and roughly how much memory or disk it takes. The numbers are read in
+ * one walk over the tree and do not change afterwards.
+ */
+public class TreeStats {
+
+    // Sizes used to estimate heap usage, assuming compressed references
+    static final int OBJECT_BYTES = 16;
+    static final int ARRAY_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+
+    // Number of levels, 1 for a tree that is a single leaf
+    private final int height;
+
+    // Number of nodes on each level, root level first
+    private final int[] levelNodes;
+
+    // Number of keys held in the leaves
+    private final long keys;
+
+    // Number of values in the tree
+    private final long values;
+
+    // Entries in use over entries the leaves have room for
+    private final double leafFill;
+
+    // Number of node splits since the tree was created
+    private final long splits;
+
+    // Estimated size of the nodes in bytes
+    private final long bytes;
+
+
+    /**
+     * Public constructor
+     *
+     * @param height number of levels
+     * @param levelNodes number of nodes on each level, root level first
+     * @param keys number of keys held in the leaves
+     * @param values number of values in the tree
+     * @param leafFill average fraction of a leaf in use
+     * @param splits number of node splits since the tree was created
+     * @param bytes estimated size of the nodes in bytes
+     */
+    public TreeStats(int height, int[] levelNodes, long keys, long values, double leafFill, long splits, long bytes) {
+        this.height = height;
+        this.levelNodes = levelNodes;
+        this.keys = keys;
+        this.values = values;
+        this.leafFill = leafFill;
+        this.splits = splits;
+        this.bytes = bytes;
+    }
+
+
+    /**
+     * Adds up the stats of several trees. Levels are matched from the
+     * leaves up, the height is the tallest tree's, and the leaf fill is
+     * weighted by each tree's number of leaves.
+     *
+     * @param stats stats of each tree
+     * @return the combined stats
+     */
+    public static TreeStats sum(Collection<TreeStats> stats) {
+    	int height = 0;
+    	for (TreeStats s : stats) {
+    		height = Math.max(height, s.height);
+    	}
+
+    	int[] levelNodes = new int[height];
+    	long keys = 0;
+    	long values = 0;
+    	double usedLeaves = 0;
+    	long leaves = 0;
+    	long splits = 0;
+    	long bytes = 0;
+    	for (TreeStats s : stats) {
+    		for (int i = 0; i < s.height; i++) {
+    			levelNodes[height - s.height + i] += s.levelNodes[i];
+    		}
+    		keys += s.keys;
+    		values += s.values;
+    		usedLeaves += s.leafFill * s.getLeafCount();
+    		leaves += s.getLeafCount();
+    		splits += s.splits;
+    		bytes += s.bytes;
+    	}
+    	return new TreeStats(height, levelNodes, keys, values, leaves == 0 ? 0 : usedLeaves / leaves, splits, bytes);
+    }
+
+
+    /**
+     * Gets the number of levels
+     *
+     * @return height of the tree
+     */
+    public int getHeight() {
+    	return height;
+    }
+
+    /**
+     * Gets the number of nodes on each level
+     *
+     * @return node counts, root level first
+     */
+    public int[] getLevelNodes() {
+    	return levelNodes.clone();
+    }
+
+    /**
+     * Gets the number of leaves
+     *
+     * @return node count of the bottom level
+     */
+    public int getLeafCount() {
+    	return height == 0 ? 0 : levelNodes[height - 1];
+    }
+
+    /**
+     * Gets the number of keys held in the leaves
+     *
+     * @return key count
+     */
+    public long getKeys() {
+    	return keys;
+    }
+
+    /**
+     * Gets the number of values in the tree
+     *
+     * @return value count
+     */
+    public long getValues() {
+    	return values;
+    }
+
+    /**
+     * Gets how full the leaves are on average
+     *
+     * @return fraction of leaf capacity in use, from 0 to 1
+     */
+    public double getLeafFill() {
+    	return leafFill;
+    }
+
+    /**
+     * Gets the number of node splits since the tree was created
+     *
+     * @return split count
+     */
+    public long getSplits() {
+    	return splits;
+    }
+
+    /**
+     * Gets the estimated size of the nodes
+     *
+     * @return bytes
+     */
+    public long getBytes() {
+    	return bytes;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+    	return String.format("height=%d levels=%s keys=%d values=%d leafFill=%.2f splits=%d bytes=%d",
+    			height, Arrays.toString(levelNodes), keys, values, leafFill, splits, bytes);
+    }
+
+} // End of class TreeStats
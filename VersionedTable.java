@@ -0,0 +1,206 @@
+package application;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list that grows only at its end and hands out read-only snapshots of
+ * itself in constant time. The elements live in fixed-size pages under a
+ * directory of pages, and a snapshot shares both. Once a snapshot is
+ * taken, the first change to an element of a page it shares copies that
+ * page, and the directory with it, and changes the copy. An append writes
+ * past the end of every snapshot, so it copies nothing.
+ *
+ * The nutrient indexes find their values by ordinal in one of these, so a
+ * snapshot of an index reads the values its ordinals had when it was
+ * taken, even after the ordinals are freed or reused. The list itself is
+ * for one thread at a time; its snapshots can be read by any number of
+ * threads while it changes.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class VersionedTable<V> extends AbstractList<V> {
+
+    // Bits of an index that pick the slot within a page
+    private static final int PAGE_BITS = 10;
+
+    // Slots per page
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    // Pages of elements, a page is created by the first append that needs it
+    private Object[][] pages;
+
+    // Epoch each page was created or last copied in
+    private int[] pageEpochs;
+
+    // Epoch the directory was created or last copied in
+    private int directoryEpoch;
+
+    // Number of elements
+    private int size;
+
+    // Epoch of the pages made since the last snapshot; pages of an earlier
+    // epoch may be shared with a snapshot, so they are copied before they change
+    private int epoch;
+
+    // Snapshot of the list as it is, null once the list changes
+    private List<V> published;
+
+
+    /**
+     * Public constructor
+     */
+    public VersionedTable() {
+        pages = new Object[4][];
+        pageEpochs = new int[4];
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractList#get(int)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(int index) {
+    	if (index < 0 || index >= size) {
+    		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    	}
+    	return (V) pages[index >>> PAGE_BITS][index & (PAGE_SIZE - 1)];
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+    	return size;
+    }
+
+
+    /**
+     * Appends an element. The slot is past the end of every snapshot, so
+     * it is written in place even in a shared page.
+     *
+     * @param value the element
+     * @return true
+     */
+    @Override
+    public boolean add(V value) {
+    	int page = size >>> PAGE_BITS;
+    	if (page == pages.length) {
+    		// A new directory is shared with no snapshot yet.
+    		pages = Arrays.copyOf(pages, 2 * pages.length);
+    		pageEpochs = Arrays.copyOf(pageEpochs, pages.length);
+    		directoryEpoch = epoch;
+    	}
+    	if (pages[page] == null) {
+    		pages[page] = new Object[PAGE_SIZE];
+    		pageEpochs[page] = epoch;
+    	}
+    	pages[page][size & (PAGE_SIZE - 1)] = value;
+    	size++;
+    	published = null;
+    	return true;
+    }
+
+
+    /**
+     * Replaces an element, copying its page first if a snapshot may share it.
+     *
+     * @param index position of the element
+     * @param value the new element
+     * @return the element it replaced
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V set(int index, V value) {
+    	if (index < 0 || index >= size) {
+    		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    	}
+    	int page = index >>> PAGE_BITS;
+    	if (pageEpochs[page] != epoch) {
+    		if (directoryEpoch != epoch) {
+    			pages = pages.clone();
+    			directoryEpoch = epoch;
+    		}
+    		pages[page] = pages[page].clone();
+    		pageEpochs[page] = epoch;
+    	}
+    	V old = (V) pages[page][index & (PAGE_SIZE - 1)];
+    	pages[page][index & (PAGE_SIZE - 1)] = value;
+    	published = null;
+    	return old;
+    }
+
+
+    /**
+     * Gets a read-only snapshot of the list as it is now. The snapshot
+     * never changes, whatever happens to the list after it, and taking
+     * one copies nothing. Snapshots taken with no change in between are
+     * the same object.
+     *
+     * @return the snapshot
+     */
+    public List<V> snapshot() {
+    	if (published == null) {
+    		published = new Snapshot<V>(pages, size);
+    		epoch++;
+    	}
+    	return published;
+    }
+
+
+    /**
+     * A read-only view of the pages of a VersionedTable as they were when
+     * it was taken. The table copies any page it shares before changing
+     * it, so the slots below size never change again.
+     *
+     * @param <V> value - expect a user-defined type that stores all data for a food item
+     */
+    private static class Snapshot<V> extends AbstractList<V> {
+
+        // Directory of the pages of this version
+        private final Object[][] pages;
+
+        // Number of elements in this version
+        private final int size;
+
+        /**
+         * Package constructor
+         *
+         * @param pages directory of the pages
+         * @param size number of elements
+         */
+        Snapshot(Object[][] pages, int size) {
+            this.pages = pages;
+            this.size = size;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.AbstractList#get(int)
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(int index) {
+        	if (index < 0 || index >= size) {
+        		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        	}
+        	return (V) pages[index >>> PAGE_BITS][index & (PAGE_SIZE - 1)];
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.AbstractCollection#size()
+         */
+        @Override
+        public int size() {
+        	return size;
+        }
+
+    } // End of class Snapshot
+
+} // End of class VersionedTable
@@ -0,0 +1,1052 @@
+package application;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The benchmarks and stress tests of the indexes, kept apart from the
+ * classes the application is built from. Each one is named by the class
+ * it measures and takes its own arguments after the name:
+ *
+ *     java application.Benchmarks DoubleBPTree 1000000 200000
+ */
+public class Benchmarks {
+
+    // Name of each benchmark, in the order they are listed
+    private static final String[] NAMES = {"BPTree", "BPTree-latched", "DoubleBPTree", "BufferedBPTree", "OffHeapBPTree",
+    		"FoodIdIndex", "KdTree", "NameTrigramIndex", "NutrientBitmapIndex", "NutrientColumns",
+    		"OrdinalIntersection", "FoodData"};
+
+    // Nutrients every food item of the FoodData stress test has
+    private static final String[] NUTRIENTS = {"calories", "fat", "carbohydrate", "fiber", "protein"};
+
+
+    /**
+     * Runs one benchmark
+     *
+     * @param args name of the benchmark, then its own arguments
+     * @throws InterruptedException if the main thread is interrupted while waiting for the others
+     * @throws IllegalArgumentException if there is no benchmark of that name
+     */
+    public static void main(String[] args) throws InterruptedException {
+    	if (args.length == 0) {
+    		System.out.println("usage: java application.Benchmarks <name> [arguments]");
+    		System.out.println("names: " + String.join(", ", NAMES));
+    		return;
+    	}
+    	String[] rest = Arrays.copyOfRange(args, 1, args.length);
+    	switch (args[0]) {
+    	case "BPTree":
+    		narrowQueries(rest);
+    		break;
+    	case "BPTree-latched":
+    		latchedBPTree(rest);
+    		break;
+    	case "DoubleBPTree":
+    		branchingFactors(rest);
+    		break;
+    	case "BufferedBPTree":
+    		bufferedInserts(rest);
+    		break;
+    	case "OffHeapBPTree":
+    		offHeapCollections(rest);
+    		break;
+    	case "FoodIdIndex":
+    		idLookups(rest);
+    		break;
+    	case "KdTree":
+    		boxQueries(rest);
+    		break;
+    	case "NameTrigramIndex":
+    		nameSearches(rest);
+    		break;
+    	case "NutrientBitmapIndex":
+    		bitmapQueries(rest);
+    		break;
+    	case "NutrientColumns":
+    		columnScans(rest);
+    		break;
+    	case "OrdinalIntersection":
+    		intersections(rest);
+    		break;
+    	case "FoodData":
+    		latchedFoodData(rest);
+    		break;
+    	default:
+    		throw new IllegalArgumentException("No benchmark named " + args[0] + "; the names are "
+    				+ String.join(", ", NAMES));
+    	}
+    }
+
+
+    /**
+     * Times narrow queries on a large bulk-loaded BPTree, one set for each
+     * comparator and one for between. Every key is stored ten times and
+     * every query matches ten or twenty values: ">=" on the last keys,
+     * "<=" on the first keys, "==" and between on random keys. A search
+     * that walked the leaves from the edge of the tree would touch a
+     * million leaves on the queries far from its starting edge; one that
+     * seeks to the boundary leaf costs a descent whatever the key. Each
+     * set runs twice and only the second run is printed, so the JIT has
+     * warmed up. A query the thread is descheduled or paused during
+     * takes a scheduler tick of milliseconds whatever the tree does, so
+     * the 99th percentile and the count of queries over a millisecond
+     * are printed beside the maximum.
+     * Ten million keys at branching factor 3 need -Xmx3g.
+     * 
+     * @param args number of keys (default 10000000), branching factor
+     *        (default 3), queries per comparator (default 20000)
+     */
+    static void narrowQueries(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    	int branchingFactor = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    	int queries = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+    	
+    	// Keys 0, 0, ..., 1, 1, ... so that every key holds ten values.
+    	int duplicates = 10;
+    	int distinct = (entries + duplicates - 1) / duplicates;
+    	List<Double> keys = new ArrayList<Double>(entries);
+    	for(int i = 0; i < entries; i++) {
+    		keys.add((double) (i / duplicates));
+    	}
+    	long start = System.nanoTime();
+    	BPTree<Double, Double> tree = new BPTree<Double, Double>(branchingFactor, keys, keys, 1.0);
+    	long build = System.nanoTime() - start;
+    	keys = null;
+    	System.out.printf("%d keys, branching factor %d, height %d, bulk loaded in %.0f ms%n",
+    			entries, branchingFactor, tree.stats().getHeight(), build / 1e6);
+    	
+    	String[] comparators = {">=", "<=", "==", "between"};
+    	Random random = new Random(42);
+    	long[] times = new long[queries];
+    	for(int pass = 0; pass < 2; pass++) {
+    		if(pass == 1) {
+    			System.out.println("query       avg us    p99 us    max us   over 1 ms   values/query");
+    		}
+    		for(String comparator : comparators) {
+    			long found = 0;
+    			for(int q = 0; q < queries; q++) {
+    				// The open-ended comparators stay narrow only at their own end of the keys.
+    				double key = comparator.equals(">=") ? distinct - 1 - random.nextInt(2)
+    						: comparator.equals("<=") ? random.nextInt(2) : random.nextInt(distinct);
+    				start = System.nanoTime();
+    				List<Double> result = comparator.equals("between") ? tree.between(key, key + 0.5, true, true)
+    						: tree.rangeSearch(key, comparator);
+    				times[q] = System.nanoTime() - start;
+    				found += result.size();
+    			}
+    			
+    			if(pass == 1) {
+    				long total = 0;
+    				int slow = 0;
+    				for(long time : times) {
+    					total += time;
+    					slow += time > 1000000 ? 1 : 0;
+    				}
+    				Arrays.sort(times);
+    				System.out.printf("%-7s   %8.2f  %8.2f  %8.2f   %9d   %12.1f%n", comparator, total / 1e3 / queries,
+    						times[(int) (queries * 0.99)] / 1e3, times[queries - 1] / 1e3, slow, (double) found / queries);
+    			}
+    		}
+    	}
+    }
+
+
+    /**
+     * Stress test of the latch crabbing of a concurrent BPTree: writer
+     * threads insert keys while reader threads run range searches on the
+     * same tree, so readers walk the leaves while writers split nodes.
+     * Every reader checks what it gets back. A result has to hold only
+     * keys in the interval, in ascending order and each once, a count of
+     * the same interval may never go down, and a key whose insert has
+     * returned has to be found. Once the writers are done the tree is
+     * validated and has to hold every key. Key and value are the same
+     * number, so a value shows where it was found.
+     *
+     * @param args readers (default 4), writers (default 2), keys each writer inserts (default 50000),
+     *        branching factor (default 4)
+     * @throws InterruptedException if the main thread is interrupted while waiting for the others
+     */
+    static void latchedBPTree(String[] args) throws InterruptedException {
+    	int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    	int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+    	int keysPerWriter = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+    	int branchingFactor = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+    	int keys = writers * keysPerWriter;
+
+    	BPTree<Integer, Integer> tree = new BPTree<Integer, Integer>(branchingFactor, true);
+    	ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<String>();
+    	AtomicBoolean writing = new AtomicBoolean(true);
+    	AtomicLong reads = new AtomicLong();
+
+    	// Writer w inserts the keys w, w + writers, ... in an order of its own.
+    	int[][] orders = new int[writers][keysPerWriter];
+    	AtomicLong[] inserted = new AtomicLong[writers];
+    	List<Thread> writerThreads = new ArrayList<Thread>();
+    	for (int w = 0; w < writers; w++) {
+    		int writer = w;
+    		List<Integer> order = new ArrayList<Integer>();
+    		for (int i = 0; i < keysPerWriter; i++) {
+    			order.add(i * writers + writer);
+    		}
+    		Collections.shuffle(order, new Random(writer));
+    		for (int i = 0; i < keysPerWriter; i++) {
+    			orders[writer][i] = order.get(i);
+    		}
+    		inserted[writer] = new AtomicLong();
+    		writerThreads.add(new Thread(() -> {
+    			for (int i = 0; i < keysPerWriter; i++) {
+    				tree.insert(orders[writer][i], orders[writer][i]);
+    				inserted[writer].set(i + 1);
+    			}
+    		}));
+    	}
+
+    	// Each reader counts a few fixed intervals over and over.
+    	int intervals = 16;
+    	List<Thread> readerThreads = new ArrayList<Thread>();
+    	for (int r = 0; r < readers; r++) {
+    		int reader = r;
+    		readerThreads.add(new Thread(() -> {
+    			Random random = new Random(1000 + reader);
+    			int[] lastCounts = new int[intervals];
+    			do {
+    				int q = random.nextInt(intervals);
+    				int low = q * keys / intervals;
+    				int high = low + keys / intervals / (1 + q % 4);
+    				List<Integer> found = q % 3 == 0 ? tree.rangeSearch(low, ">=") : tree.between(low, high, true, false);
+    				int inInterval = 0;
+    				for (int i = 0; i < found.size(); i++) {
+    					int key = found.get(i);
+    					if (key < low || (q % 3 != 0 && key >= high)) {
+    						violations.add("[" + low + ", " + high + "): found " + key);
+    					}
+    					if (i > 0 && found.get(i - 1) >= key) {
+    						violations.add("[" + low + ", " + high + "): " + found.get(i - 1) + " before " + key);
+    					}
+    					inInterval += key < high ? 1 : 0;
+    				}
+    				if (inInterval < lastCounts[q]) {
+    					violations.add("[" + low + ", " + high + "): count fell from " + lastCounts[q] + " to " + inInterval);
+    				}
+    				lastCounts[q] = inInterval;
+
+    				int writer = random.nextInt(writers);
+    				long done = inserted[writer].get();
+    				if (done > 0) {
+    					int key = orders[writer][random.nextInt((int) done)];
+    					List<Integer> exact = tree.rangeSearch(key, "==");
+    					if (exact.size() != 1 || exact.get(0) != key) {
+    						violations.add("key " + key + " found " + exact);
+    					}
+    				}
+    				reads.incrementAndGet();
+    			} while (writing.get());
+    		}));
+    	}
+
+    	long start = System.nanoTime();
+    	for (Thread thread : readerThreads) {
+    		thread.start();
+    	}
+    	for (Thread thread : writerThreads) {
+    		thread.start();
+    	}
+    	for (Thread thread : writerThreads) {
+    		thread.join();
+    	}
+    	writing.set(false);
+    	for (Thread thread : readerThreads) {
+    		thread.join();
+    	}
+    	long elapsed = System.nanoTime() - start;
+
+    	// With the writers done, the tree has to be whole and hold every key once.
+    	try {
+    		tree.validate();
+    	}
+    	catch (IllegalStateException e) {
+    		violations.add(e.getMessage());
+    	}
+    	List<Integer> all = tree.rangeSearch(Integer.MIN_VALUE, ">=");
+    	for (int i = 0; i < all.size(); i++) {
+    		if (all.get(i) != i) {
+    			violations.add("key " + i + " missing, " + all.get(i) + " in its place");
+    			break;
+    		}
+    	}
+    	if (all.size() != keys) {
+    		violations.add(all.size() + " keys after inserting " + keys);
+    	}
+
+    	System.out.printf("latched BPTree, branching factor %d, %d readers, %d writers: %d keys, height %d, "
+    			+ "%d reads in %.0f ms, %d violations%n", branchingFactor, readers, writers, all.size(),
+    			tree.stats().getHeight(), reads.get(), elapsed / 1e6, violations.size());
+    	int shown = 0;
+    	for (String violation : violations) {
+    		if (shown++ == 10) {
+    			break;
+    		}
+    		System.out.println("  " + violation);
+    	}
+    }
+
+
+    /**
+     * Sweeps the branching factor and reports insert and range-search
+     * throughput at each one. Every tree gets the same random keys, then
+     * answers the same short range queries through a cursor, so the
+     * numbers show the trade between the height of the tree and the cost
+     * of searching and shifting within a node. The sweep runs twice and
+     * only the second pass is printed, so the JIT has warmed up.
+     *
+     * @param args number of entries (default 1000000), number of range queries (default 200000)
+     */
+    static void branchingFactors(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    	int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    	int[] branchingFactors = {3, 4, 8, 16, 32, 64, 128, 256, 512};
+
+    	// Each range covers about 100 keys.
+    	double width = 100;
+    	for (int pass = 0; pass < 2; pass++) {
+    		if (pass == 1) {
+    			System.out.println("branching   height   inserts/s   range queries/s   values/query");
+    		}
+    		for (int branchingFactor : branchingFactors) {
+    			DoubleBPTree<Integer> tree = new DoubleBPTree<Integer>(branchingFactor);
+    			Random random = new Random(42);
+    			long start = System.nanoTime();
+    			for (int i = 0; i < entries; i++) {
+    				tree.insert((double) random.nextInt(entries), i);
+    			}
+    			long inserts = System.nanoTime() - start;
+
+    			long found = 0;
+    			start = System.nanoTime();
+    			for (int i = 0; i < queries; i++) {
+    				double low = random.nextInt(entries);
+    				Iterator<Integer> cursor = tree.cursor(low, low + width, true, false);
+    				while (cursor.hasNext()) {
+    					cursor.next();
+    					found++;
+    				}
+    			}
+    			long ranges = System.nanoTime() - start;
+
+    			if (pass == 1) {
+    				System.out.printf("%9d   %6d   %9.0f   %15.0f   %12.1f%n", branchingFactor, tree.stats().getHeight(),
+    						entries / (inserts / 1e9), queries / (ranges / 1e9), (double) found / queries);
+    			}
+    		}
+    	}
+    }
+
+
+    /**
+     * Compares insert throughput of DoubleBPTree and BufferedBPTree,
+     * then the throughput of range queries that follow the inserts. Both
+     * trees get the same random keys.
+     *
+     * @param args number of entries (default 2000000), branching factor (default 64),
+     *        buffer capacity (default 1024)
+     */
+    static void bufferedInserts(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    	int branchingFactor = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    	int bufferCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+    	// Ordinal i is the value i itself, so the table holds nothing on the heap.
+    	List<Integer> table = new AbstractList<Integer>() {
+    		@Override
+    		public Integer get(int index) {
+    			return index;
+    		}
+    		@Override
+    		public int size() {
+    			return entries;
+    		}
+    	};
+
+    	System.out.println("tree             inserts/s   range queries/s");
+    	for (int pass = 0; pass < 2; pass++) {
+    		for (int run = 0; run < 2; run++) {
+    			NutrientIndex<Integer> tree = run == 0 ? new DoubleBPTree<Integer>(branchingFactor)
+    					: new BufferedBPTree<Integer>(branchingFactor, bufferCapacity, table, value -> value);
+    			Random random = new Random(42);
+    			long start = System.nanoTime();
+    			for (int i = 0; i < entries; i++) {
+    				tree.insert((double) random.nextInt(entries), i);
+    			}
+    			long inserts = System.nanoTime() - start;
+
+    			start = System.nanoTime();
+    			int queries = 100000;
+    			long found = 0;
+    			for (int i = 0; i < queries; i++) {
+    				double low = random.nextInt(entries);
+    				found += tree.countRange(low, low + 100, true, false);
+    			}
+    			long ranges = System.nanoTime() - start;
+
+    			// The first pass only warms up the JIT.
+    			if (pass == 1) {
+    				System.out.printf("%-15s %10.0f   %15.0f  (%d found)%n", run == 0 ? "DoubleBPTree" : "BufferedBPTree",
+    						entries / (inserts / 1e9), queries / (ranges / 1e9), found);
+    			}
+    		}
+    	}
+    }
+
+
+    /**
+     * Compares GC behaviour of the heap trees and OffHeapBPTree. Each
+     * tree is filled with the same random keys, then a full collection is forced
+     * while it is still reachable, so its pause shows the cost of tracing
+     * the index. Run with a heap large enough for the boxed BPTree, for
+     * example -Xmx8g for 20 million entries.
+     *
+     * @param args number of entries (default 2000000), branching factor (default 64)
+     */
+    static void offHeapCollections(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    	int branchingFactor = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+    	// Ordinal i is the value i itself, so the table holds nothing on the heap.
+    	List<Integer> table = new AbstractList<Integer>() {
+    		@Override
+    		public Integer get(int index) {
+    			return index;
+    		}
+    		@Override
+    		public int size() {
+    			return entries;
+    		}
+    	};
+
+    	System.out.println("tree            build ms   gc during build   forced gc ms   lookups ms");
+    	for (int run = 0; run < 3; run++) {
+    		BPTreeADT<Double, Integer> tree;
+    		String name;
+    		if (run == 0) {
+    			tree = new BPTree<Double, Integer>(branchingFactor);
+    			name = "BPTree";
+    		}
+    		else if (run == 1) {
+    			tree = new DoubleBPTree<Integer>(branchingFactor);
+    			name = "DoubleBPTree";
+    		}
+    		else {
+    			tree = new OffHeapBPTree<Integer>(branchingFactor, table, value -> value);
+    			name = "OffHeapBPTree";
+    		}
+    		System.gc();
+
+    		Random random = new Random(42);
+    		long[] before = gcTotals();
+    		long start = System.nanoTime();
+    		for (int i = 0; i < entries; i++) {
+    			tree.insert((double) random.nextInt(entries), i);
+    		}
+    		long build = System.nanoTime() - start;
+    		long[] after = gcTotals();
+
+    		start = System.nanoTime();
+    		System.gc();
+    		long pause = System.nanoTime() - start;
+
+    		start = System.nanoTime();
+    		int found = 0;
+    		for (int i = 0; i < 100000; i++) {
+    			found += tree.rangeSearch((double) random.nextInt(entries), "==").size();
+    		}
+    		long lookups = System.nanoTime() - start;
+
+    		System.out.printf("%-15s %8d   %5d (%6d ms)   %12d   %10d  (%d found)%n", name,
+    				build / 1000000, after[0] - before[0], after[1] - before[1],
+    				pause / 1000000, lookups / 1000000, found);
+    	}
+    }
+
+
+    /**
+     * Sums the collection counts and times of every collector.
+     *
+     * @return {collections, milliseconds}
+     */
+    private static long[] gcTotals() {
+    	long[] totals = new long[2];
+    	for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+    		totals[0] += Math.max(0, bean.getCollectionCount());
+    		totals[1] += Math.max(0, bean.getCollectionTime());
+    	}
+    	return totals;
+    }
+
+
+    /**
+     * Compares lookups in a FoodIdIndex against a HashMap from ID String
+     * to Integer
+     *
+     * @param args number of IDs and number of lookups
+     */
+    static void idLookups(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    	int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+
+    	Random random = new Random(42);
+    	String[] ids = new String[entries];
+    	FoodIdIndex index = new FoodIdIndex();
+    	HashMap<String, Integer> map = new HashMap<String, Integer>();
+    	for (int i = 0; i < entries; i++) {
+    		ids[i] = String.format("%08x%016x", random.nextInt(), random.nextLong());
+    		index.put(ids[i], i);
+    		map.put(ids[i], i);
+    	}
+    	int[] picks = random.ints(lookups, 0, entries).toArray();
+    	String[] queries = new String[lookups];
+
+    	for (int pass = 0; pass < 3; pass++) {
+    		// Fresh String copies with no hash code cached, as IDs read from a file would be.
+    		for (int i = 0; i < lookups; i++) {
+    			queries[i] = new String(ids[picks[i]].toCharArray());
+    		}
+    		long sum = 0;
+    		long start = System.nanoTime();
+    		for (String id : queries) {
+    			sum += index.get(id);
+    		}
+    		long table = System.nanoTime() - start;
+
+    		for (int i = 0; i < lookups; i++) {
+    			queries[i] = new String(ids[picks[i]].toCharArray());
+    		}
+    		start = System.nanoTime();
+    		for (String id : queries) {
+    			sum -= map.get(id);
+    		}
+    		long hashed = System.nanoTime() - start;
+
+    		if (pass == 2) {
+    			System.out.printf("FoodIdIndex: %6.1f ns/lookup, %6.1f MB%n", (double) table / lookups, index.bytes() / 1e6);
+    			System.out.printf("HashMap:     %6.1f ns/lookup, checksum %d%n", (double) hashed / lookups, sum);
+    		}
+    	}
+    }
+
+
+    /**
+     * Compares box queries on a KdTree against one B+ tree per
+     * dimension whose range results are intersected, the way a filter
+     * with one rule per dimension is answered without the k-d tree.
+     *
+     * @param args number of points, number of queries and constrained dimensions
+     */
+    static void boxQueries(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    	int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    	int bounded = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    	int dimensions = 5;
+
+    	Random random = new Random(42);
+    	List<double[]> points = new ArrayList<double[]>();
+    	List<Integer> values = new ArrayList<Integer>();
+    	List<DoubleBPTree<Integer>> indexes = new ArrayList<DoubleBPTree<Integer>>();
+    	for (int d = 0; d < dimensions; d++) {
+    		indexes.add(new DoubleBPTree<Integer>(16));
+    	}
+    	for (int i = 0; i < entries; i++) {
+    		double[] point = new double[dimensions];
+    		for (int d = 0; d < dimensions; d++) {
+    			point[d] = random.nextInt(1000);
+    			indexes.get(d).insert(point[d], i);
+    		}
+    		points.add(point);
+    		values.add(i);
+    	}
+    	KdTree<Integer> tree = new KdTree<Integer>(dimensions, 32, points, values);
+
+    	// Each bounded dimension keeps about a fifth of the points.
+    	double[][] lows = new double[queries][dimensions];
+    	double[][] highs = new double[queries][dimensions];
+    	for (int q = 0; q < queries; q++) {
+    		Arrays.fill(lows[q], Double.NEGATIVE_INFINITY);
+    		Arrays.fill(highs[q], Double.POSITIVE_INFINITY);
+    		for (int d = 0; d < bounded; d++) {
+    			lows[q][d] = random.nextInt(800);
+    			highs[q][d] = lows[q][d] + 199;
+    		}
+    	}
+
+    	for (int pass = 0; pass < 2; pass++) {
+    		long found = 0;
+    		long start = System.nanoTime();
+    		for (int q = 0; q < queries; q++) {
+    			found += tree.search(lows[q], highs[q]).size();
+    		}
+    		long kd = System.nanoTime() - start;
+
+    		long intersected = 0;
+    		start = System.nanoTime();
+    		for (int q = 0; q < queries; q++) {
+    			List<Integer> result = indexes.get(0).between(lows[q][0], highs[q][0], true, true);
+    			for (int d = 1; d < bounded; d++) {
+    				result.retainAll(new HashSet<Integer>(indexes.get(d).between(lows[q][d], highs[q][d], true, true)));
+    			}
+    			intersected += result.size();
+    		}
+    		long perIndex = System.nanoTime() - start;
+
+    		if (pass == 1) {
+    			System.out.printf("k-d tree:      %8.0f queries/s, %8.1f values/query%n", queries / (kd / 1e9), (double) found / queries);
+    			System.out.printf("per-index:     %8.0f queries/s, %8.1f values/query%n", queries / (perIndex / 1e9), (double) intersected / queries);
+    		}
+    	}
+    }
+
+
+    /**
+     * Compares searches of a NameTrigramIndex against folding and
+     * scanning every name, on names made of random syllables
+     *
+     * @param args number of names and number of queries
+     */
+    static void nameSearches(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    	int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    	String[] syllables = {"ba", "ko", "ri", "chee", "se", "to", "ma", "lo", "nut", "gra", "pe", "yo",
+    			"gurt", "cho", "co", "late", "mint", "soy", "ve", "gan", "crisp", "bar", "oat", "al"};
+
+    	Random random = new Random(42);
+    	String[] names = new String[entries];
+    	NameTrigramIndex index = new NameTrigramIndex();
+    	for (int i = 0; i < entries; i++) {
+    		StringBuilder name = new StringBuilder();
+    		for (int s = 3 + random.nextInt(6); s > 0; s--) {
+    			String syllable = syllables[random.nextInt(syllables.length)];
+    			name.append(name.length() == 0 || random.nextInt(3) == 0 ? syllable.toUpperCase() : syllable);
+    		}
+    		names[i] = name.append('_').append(i).toString();
+    		index.add(i, names[i]);
+    	}
+    	String[] terms = new String[queries];
+    	for (int q = 0; q < queries; q++) {
+    		String name = names[random.nextInt(entries)];
+    		int at = random.nextInt(name.length() - 6);
+    		terms[q] = name.substring(at, at + 4 + random.nextInt(3));
+    	}
+
+    	for (int pass = 0; pass < 3; pass++) {
+    		long found = 0;
+    		long start = System.nanoTime();
+    		for (String term : terms) {
+    			found += index.search(term).length;
+    		}
+    		long indexed = System.nanoTime() - start;
+
+    		long scanned = 0;
+    		start = System.nanoTime();
+    		for (String term : terms) {
+    			String query = term.toLowerCase();
+    			for (String name : names) {
+    				if (name.toLowerCase().contains(query)) {
+    					scanned++;
+    				}
+    			}
+    		}
+    		long scan = System.nanoTime() - start;
+
+    		if (pass == 2) {
+    			System.out.printf("trigram index: %9.3f ms/query, %9.1f names/query, %d trigrams%n",
+    					indexed / 1e6 / queries, (double) found / queries, index.trigrams());
+    			System.out.printf("folding scan:  %9.3f ms/query, %9.1f names/query%n",
+    					scan / 1e6 / queries, (double) scanned / queries);
+    		}
+    	}
+    }
+
+
+    /**
+     * Times conjunctive range queries over five nutrients, answered by
+     * intersecting the NutrientBitmapIndex bitmaps of the five ranges.
+     *
+     * @param args number of items, number of queries, number of buckets and width of each range
+     */
+    static void bitmapQueries(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    	int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    	int bucketCount = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+    	int width = args.length > 3 ? Integer.parseInt(args[3]) : 400;
+    	int nutrients = 5;
+
+    	Random random = new Random(42);
+    	NutrientBitmapIndex[] indexes = new NutrientBitmapIndex[nutrients];
+    	for (int n = 0; n < nutrients; n++) {
+    		double[] values = new double[entries];
+    		for (int i = 0; i < entries; i++) {
+    			values[i] = random.nextInt(1000);
+    		}
+    		indexes[n] = new NutrientBitmapIndex(bucketCount, values);
+    	}
+
+    	// Values run from 0 to 999, so each range keeps about width / 1000 of the items.
+    	double[][] lows = new double[queries][nutrients];
+    	for (int q = 0; q < queries; q++) {
+    		for (int n = 0; n < nutrients; n++) {
+    			lows[q][n] = random.nextInt(1000 - width);
+    		}
+    	}
+
+    	for (int pass = 0; pass < 2; pass++) {
+    		long found = 0;
+    		long start = System.nanoTime();
+    		for (int q = 0; q < queries; q++) {
+    			List<double[]> intervals = new ArrayList<double[]>();
+    			for (int n = 0; n < nutrients; n++) {
+    				intervals.add(new double[] {lows[q][n], lows[q][n] + width - 1});
+    			}
+    			found += NutrientBitmapIndex.intersect(Arrays.asList(indexes), intervals).cardinality();
+    		}
+    		long elapsed = System.nanoTime() - start;
+
+    		if (pass == 1) {
+    			System.out.printf("%d items, %d buckets: %.1f us/query, %.1f items/query, %d KB per index%n",
+    					entries, indexes[0].getBucketCount(), elapsed / 1e3 / queries, (double) found / queries,
+    					indexes[0].bytes() / 1024);
+    		}
+    	}
+    }
+
+
+    /**
+     * Compares a scan of NutrientColumns against one DoubleBPTree per
+     * nutrient whose range results are intersected, on rules that each
+     * keep a large share of the items.
+     *
+     * @param args number of items, number of queries and the share of items each rule keeps, in percent
+     */
+    static void columnScans(String[] args) {
+    	int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    	int queries = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    	int percent = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+    	String[] nutrients = {"calories", "fat", "carbohydrate", "fiber", "protein"};
+
+    	Random random = new Random(42);
+    	NutrientColumns columns = new NutrientColumns(nutrients);
+    	List<DoubleBPTree<Integer>> indexes = new ArrayList<DoubleBPTree<Integer>>();
+    	for (int n = 0; n < nutrients.length; n++) {
+    		double[] keys = new double[entries];
+    		List<Integer> values = new ArrayList<Integer>();
+    		for (int i = 0; i < entries; i++) {
+    			keys[i] = random.nextInt(1000);
+    			columns.set(i, nutrients[n], keys[i]);
+    		}
+    		// Bulk load the tree from the values in key order.
+    		Integer[] order = new Integer[entries];
+    		for (int i = 0; i < entries; i++) {
+    			order[i] = i;
+    		}
+    		Arrays.sort(order, (a, b) -> Double.compare(keys[a], keys[b]));
+    		double[] sortedKeys = new double[entries];
+    		for (int i = 0; i < entries; i++) {
+    			sortedKeys[i] = keys[order[i]];
+    			values.add(order[i]);
+    		}
+    		indexes.add(new DoubleBPTree<Integer>(64, sortedKeys, values, 1.0));
+    	}
+
+    	double[][] lows = new double[queries][nutrients.length];
+    	double[][] highs = new double[queries][nutrients.length];
+    	for (int q = 0; q < queries; q++) {
+    		for (int n = 0; n < nutrients.length; n++) {
+    			lows[q][n] = random.nextInt(1000 - 10 * percent + 1);
+    			highs[q][n] = lows[q][n] + 10 * percent - 1;
+    		}
+    	}
+
+    	for (int pass = 0; pass < 2; pass++) {
+    		long scanned = 0;
+    		long start = System.nanoTime();
+    		for (int q = 0; q < queries; q++) {
+    			scanned += NutrientColumns.ordinals(columns.scan(nutrients, lows[q], highs[q])).length;
+    		}
+    		long scan = System.nanoTime() - start;
+
+    		long intersected = 0;
+    		start = System.nanoTime();
+    		for (int q = 0; q < queries; q++) {
+    			List<Integer> result = indexes.get(0).between(lows[q][0], highs[q][0], true, true);
+    			for (int n = 1; n < nutrients.length; n++) {
+    				result.retainAll(new HashSet<Integer>(indexes.get(n).between(lows[q][n], highs[q][n], true, true)));
+    			}
+    			intersected += result.size();
+    		}
+    		long trees = System.nanoTime() - start;
+
+    		if (pass == 1) {
+    			System.out.printf("column scan:  %9.1f us/query, %9.1f items/query%n", scan / 1e3 / queries, (double) scanned / queries);
+    			System.out.printf("tree indexes: %9.1f us/query, %9.1f items/query%n", trees / 1e3 / queries, (double) intersected / queries);
+    		}
+    	}
+    }
+
+
+    /**
+     * Compares OrdinalIntersection against ArrayList.retainAll on lists of
+     * boxed ordinals
+     *
+     * @param args size of the largest set, number of sets, and how many times smaller each next set is
+     */
+    static void intersections(String[] args) {
+    	int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    	int count = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    	int shrink = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+    	Random random = new Random(42);
+    	List<int[]> sets = new ArrayList<int[]>();
+    	List<List<Integer>> lists = new ArrayList<List<Integer>>();
+    	int universe = 2 * size;
+    	for (int s = 0, n = size; s < count; s++, n = Math.max(1, n / shrink)) {
+    		int[] set = random.ints(0, universe).distinct().limit(n).sorted().toArray();
+    		sets.add(set);
+    		List<Integer> list = new ArrayList<Integer>();
+    		for (int x : set) {
+    			list.add(x);
+    		}
+    		lists.add(list);
+    	}
+
+    	// Warm the engine up; retainAll is slow enough to time once.
+    	int[] result = null;
+    	long engine = 0;
+    	for (int pass = 0; pass < 10; pass++) {
+    		long start = System.nanoTime();
+    		result = OrdinalIntersection.intersect(sets);
+    		engine = System.nanoTime() - start;
+    	}
+
+    	long start = System.nanoTime();
+    	List<Integer> retained = new ArrayList<Integer>(lists.get(0));
+    	for (int s = 1; s < lists.size(); s++) {
+    		retained.retainAll(lists.get(s));
+    	}
+    	long retain = System.nanoTime() - start;
+
+    	System.out.printf("intersect: %10.3f ms, %d ordinals%n", engine / 1e6, result.length);
+    	System.out.printf("retainAll: %10.3f ms, %d ordinals%n", retain / 1e6, retained.size());
+    }
+
+
+    /**
+     * Tells whether a food item passes every rule of a query
+     * @param food the food item
+     * @param query the compiled rules
+     * @return true if each of the item's values lies in its interval
+     */
+    private static boolean passes(FoodItem food, NutrientQuery query) {
+    	for(String nutrient : query.getNutrients()) {
+    		Double value = food.getNutrients().get(nutrient);
+    		if(value == null || Double.compare(value, query.getLow(nutrient)) < 0
+    				|| Double.compare(value, query.getHigh(nutrient)) > 0) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Stress test of the latch: writer threads add food items while
+     * reader threads query the same FoodData, and every reader checks
+     * what it gets back. Each item a query returns has to pass the rules,
+     * a count of the same rules may never go down, a page ordered by a
+     * nutrient has to be in that order, and an ID whose item has been
+     * added has to find it. Once the writers are done, every structure is
+     * validated and each rule set has to count exactly the items that
+     * pass it. The run is made with DoubleBPTree indexes, BufferedBPTree
+     * indexes and the bitmap mode, and prints the violations it finds.
+     * @param args readers (default 4), writers (default 2), items each writer adds (default 20000)
+     * @throws InterruptedException if the main thread is interrupted while waiting for the others
+     */
+    static void latchedFoodData(String[] args) throws InterruptedException {
+    	int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    	int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+    	int itemsPerWriter = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+    	List<NutrientQuery> ruleSets = new ArrayList<NutrientQuery>();
+    	ruleSets.add(NutrientQuery.compile(Arrays.asList("calories <= 100")));
+    	ruleSets.add(NutrientQuery.compile(Arrays.asList("fat >= 900")));
+    	ruleSets.add(NutrientQuery.compile(Arrays.asList("protein >= 400", "protein <= 420")));
+    	ruleSets.add(NutrientQuery.compile(Arrays.asList("carbohydrate == 7")));
+    	ruleSets.add(NutrientQuery.compile(Arrays.asList("calories >= 500", "fiber <= 50")));
+    	ruleSets.add(NutrientQuery.compile(Arrays.asList("fat <= 300", "protein >= 600", "calories <= 500")));
+    	ruleSets.add(NutrientQuery.compile(Arrays.asList("fiber >= 0")));
+    	
+    	String[] modes = {"DoubleBPTree", "BufferedBPTree", "bitmap"};
+    	for(String mode : modes) {
+    		FoodData foodData = new FoodData(FoodData.AUTO_BRANCHING_FACTOR, mode.equals("BufferedBPTree") ? 16 : 0);
+    		if(mode.equals("bitmap")) {
+    			foodData.setBitmapBuckets(64);
+    		}
+    		ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<String>();
+    		AtomicBoolean writing = new AtomicBoolean(true);
+    		AtomicLong reads = new AtomicLong();
+    		//number of items each writer has added so far
+    		AtomicLong[] added = new AtomicLong[writers];
+    		
+    		List<Thread> writerThreads = new ArrayList<Thread>();
+    		for(int w = 0; w < writers; w++) {
+    			int writer = w;
+    			added[writer] = new AtomicLong();
+    			writerThreads.add(new Thread(() -> {
+    				Random random = new Random(writer);
+    				for(int i = 0; i < itemsPerWriter; i++) {
+    					FoodItem food = new FoodItem("w" + writer + "-" + i, "Item " + writer + " " + i);
+    					for(String nutrient : NUTRIENTS) {
+    						food.addNutrient(nutrient, random.nextInt(1000));
+    					}
+    					foodData.addFoodItem(food);
+    					added[writer].set(i + 1);
+    				}
+    			}));
+    		}
+    		List<Thread> readerThreads = new ArrayList<Thread>();
+    		for(int r = 0; r < readers; r++) {
+    			int reader = r;
+    			readerThreads.add(new Thread(() -> {
+    				Random random = new Random(1000 + reader);
+    				int[] lastCounts = new int[ruleSets.size()];
+    				int lastSize = 0;
+    				do {
+    					int q = random.nextInt(ruleSets.size());
+    					NutrientQuery query = ruleSets.get(q);
+    					int count = foodData.countRange(query);
+    					if(count < lastCounts[q]) {
+    						violations.add(query + ": count fell from " + lastCounts[q] + " to " + count);
+    					}
+    					List<FoodItem> found = foodData.filterByNutrients(query);
+    					if(found.size() < count) {
+    						violations.add(query + ": filter found " + found.size() + " after counting " + count);
+    					}
+    					lastCounts[q] = found.size();
+    					for(FoodItem food : found) {
+    						if(!passes(food, query)) {
+    							violations.add(query + ": filter found " + food.getID() + " " + food.getNutrients());
+    						}
+    					}
+    					
+    					List<FoodItem> page = foodData.orderByNutrient("protein", reader % 2 == 0, query.getRules(), 50);
+    					for(int i = 0; i < page.size(); i++) {
+    						int cmp = i == 0 ? 0 : Double.compare(page.get(i - 1).getNutrientValue("protein"),
+    								page.get(i).getNutrientValue("protein"));
+    						if(!passes(page.get(i), query) || (reader % 2 == 0 ? cmp > 0 : cmp < 0)) {
+    							violations.add(query + ": page out of order or rules at " + page.get(i).getID());
+    						}
+    					}
+    					
+    					int writer = random.nextInt(writers);
+    					long done = added[writer].get();
+    					if(done > 0) {
+    						String id = "w" + writer + "-" + random.nextInt((int) done);
+    						FoodItem food = foodData.getById(id);
+    						if(food == null || !food.getID().equals(id)) {
+    							violations.add("ID " + id + " found " + food);
+    						}
+    					}
+    					
+    					//a snapshot answers a query the same way however often it is asked
+    					FoodDataSnapshot snapshot = foodData.snapshot();
+    					if(snapshot.size() < lastSize) {
+    						violations.add("snapshot size fell from " + lastSize + " to " + snapshot.size());
+    					}
+    					lastSize = snapshot.size();
+    					int snapshotCount = snapshot.countRange(query);
+    					List<FoodItem> snapshotFound = snapshot.filterByNutrients(query);
+    					if(snapshotFound.size() != snapshotCount || snapshot.countRange(query) != snapshotCount) {
+    						violations.add(query + ": snapshot counted " + snapshotCount + ", found " + snapshotFound.size());
+    					}
+    					for(FoodItem food : snapshotFound) {
+    						if(!passes(food, query)) {
+    							violations.add(query + ": snapshot found " + food.getID() + " " + food.getNutrients());
+    						}
+    					}
+    					page = snapshot.orderByNutrient("protein", reader % 2 == 0, query.getRules(), 50);
+    					for(int i = 0; i < page.size(); i++) {
+    						int cmp = i == 0 ? 0 : Double.compare(page.get(i - 1).getNutrientValue("protein"),
+    								page.get(i).getNutrientValue("protein"));
+    						if(!passes(page.get(i), query) || (reader % 2 == 0 ? cmp > 0 : cmp < 0)) {
+    							violations.add(query + ": snapshot page out of order or rules at " + page.get(i).getID());
+    						}
+    					}
+    					reads.incrementAndGet();
+    				} while(writing.get());
+    			}));
+    		}
+    		
+    		long start = System.nanoTime();
+    		for(Thread thread : readerThreads) {
+    			thread.start();
+    		}
+    		for(Thread thread : writerThreads) {
+    			thread.start();
+    		}
+    		for(Thread thread : writerThreads) {
+    			thread.join();
+    		}
+    		writing.set(false);
+    		for(Thread thread : readerThreads) {
+    			thread.join();
+    		}
+    		long elapsed = System.nanoTime() - start;
+    		
+    		//with the writers done, every rule set has to count exactly the items that pass it
+    		try {
+    			foodData.validateIndexes();
+    		}
+    		catch(IllegalStateException e) {
+    			violations.add(e.getMessage());
+    		}
+    		List<FoodItem> all = foodData.getAllFoodItems();
+    		if(all.size() != writers * itemsPerWriter) {
+    			violations.add(all.size() + " items after adding " + writers * itemsPerWriter);
+    		}
+    		FoodDataSnapshot snapshot = foodData.snapshot();
+    		for(NutrientQuery query : ruleSets) {
+    			int expected = 0;
+    			for(FoodItem food : all) {
+    				if(passes(food, query)) {
+    					expected++;
+    				}
+    			}
+    			if(foodData.countRange(query) != expected || foodData.filterByNutrients(query).size() != expected) {
+    				violations.add(query + ": counted " + foodData.countRange(query) + ", " + expected + " pass");
+    			}
+    			if(snapshot.countRange(query) != expected || snapshot.filterByNutrients(query).size() != expected) {
+    				violations.add(query + ": snapshot counted " + snapshot.countRange(query) + ", " + expected + " pass");
+    			}
+    		}
+    		
+    		System.out.printf("%-15s %d readers, %d writers: %d items, %d reads in %.0f ms, %d violations%n",
+    				mode, readers, writers, all.size(), reads.get(), elapsed / 1e6, violations.size());
+    		int shown = 0;
+    		for(String violation : violations) {
+    			if(shown++ == 10) {
+    				break;
+    			}
+    			System.out.println("  " + violation);
+    		}
+    	}
+    }
+    
+
+
+} // End of class Benchmarks